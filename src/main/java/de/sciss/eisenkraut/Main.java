@@ -29,6 +29,8 @@ import de.sciss.eisenkraut.gui.ObserverPalette;
 import de.sciss.eisenkraut.gui.PrefsFrame;
 import de.sciss.eisenkraut.gui.WelcomeScreen;
 import de.sciss.eisenkraut.io.PrefCacheManager;
+import de.sciss.eisenkraut.io.SampleReader;
+import de.sciss.eisenkraut.net.OSCConcurrent;
 import de.sciss.eisenkraut.net.OSCRoot;
 import de.sciss.eisenkraut.net.OSCRouter;
 import de.sciss.eisenkraut.net.OSCRouterWrapper;
@@ -37,7 +39,6 @@ import de.sciss.eisenkraut.net.SuperColliderClient;
 import de.sciss.eisenkraut.render.FilterDialog;
 import de.sciss.eisenkraut.util.PrefsUtil;
 import de.sciss.gui.HelpFrame;
-import de.sciss.io.CacheManager;
 import de.sciss.io.IOUtil;
 import de.sciss.submin.Submin;
 import de.sciss.util.Flag;
@@ -69,6 +70,7 @@ import java.util.prefs.Preferences;
  *  The <code>Main</code> class extends the <code>Application</code>
  *  class from the <code>de.sciss.app</code> package.
  */
+@OSCConcurrent
 public class Main
         extends BasicApplication
         implements OSCRouter {
@@ -252,7 +254,8 @@ public class Main
         // warning : sequence is crucial
 //      oscServer           = new OSCRoot( prefs.node( OSCRoot.DEFAULT_NODE ), 0x4549 );
         osc                 = new OSCRouterWrapper(oscServer, this);
-        final CacheManager cache = new PrefCacheManager(prefs.node(PrefCacheManager.DEFAULT_NODE));
+        final PrefCacheManager cache = new PrefCacheManager(prefs.node(PrefCacheManager.DEFAULT_NODE));
+        SampleReader.setPreferences(prefs);
         superCollider       = new SuperColliderClient();
 
         init();
@@ -435,6 +438,7 @@ public class Main
         }
     }
 
+    @OSCConcurrent
     public Object oscQuery_version() {
         return (float) getVersion();
     }
@@ -13,18 +13,73 @@
 
 package de.sciss.eisenkraut.edit;
 
+import java.awt.EventQueue;
 import java.awt.event.ActionEvent;
+import java.util.ArrayList;
+import java.util.List;
 import javax.swing.AbstractAction;
+import javax.swing.undo.UndoableEdit;
 
 import de.sciss.eisenkraut.session.Session;
 
 @SuppressWarnings("serial")
 public class UndoManager extends de.sciss.app.UndoManager {
 
+    // managers which received edits during a batch ; event thread only
+    private static final List<UndoManager> collBatched = new ArrayList<UndoManager>();
+    private static boolean batching = false;
+
+    private final List<UndoableEdit> collBatchEdits = new ArrayList<UndoableEdit>();
+
     public UndoManager(Session doc) {
         super(doc);
     }
 
+    /**
+     *	Starts collecting edits. Until <code>endBatch</code> is called,
+     *	the edits added to any undo manager are merged, so that each
+     *	document receives only one undoable edit. This is used to process
+     *	the messages of an OSC bundle as a whole.
+     *
+     *	@synchronization	call in the event thread
+     */
+    public static void beginBatch() {
+        if (batching) throw new IllegalStateException("Batch already started");
+        batching = true;
+    }
+
+    /**
+     *	Stops collecting edits and adds the merged edits
+     *	to their undo managers.
+     *
+     *	@synchronization	call in the event thread
+     */
+    public static void endBatch() {
+        batching = false;
+        for (UndoManager um : collBatched) {
+            if (um.collBatchEdits.size() == 1) {
+                um.addEdit(um.collBatchEdits.get(0));
+            } else {
+                final BasicCompoundEdit ce = new BasicCompoundEdit(um.collBatchEdits.get(0).getPresentationName());
+                for (UndoableEdit edit : um.collBatchEdits) {
+                    ce.addEdit(edit);
+                }
+                ce.end();
+                um.addEdit(ce);
+            }
+            um.collBatchEdits.clear();
+        }
+        collBatched.clear();
+    }
+
+    public boolean addEdit(UndoableEdit anEdit) {
+        if (!batching || !EventQueue.isDispatchThread()) return super.addEdit(anEdit);
+
+        if (collBatchEdits.isEmpty()) collBatched.add(this);
+        collBatchEdits.add(anEdit);
+        return true;
+    }
+
     protected AbstractAction createUndoAction() {
         return new ActionUndoProc();
     }
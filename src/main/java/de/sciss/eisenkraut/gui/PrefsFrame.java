@@ -189,6 +189,26 @@ public class PrefsFrame
 
         row++;
         prefs = app.getUserPrefs();
+        key = PrefsUtil.KEY_MAPPEDREAD;
+        key2 = "prefsMappedRead";
+        lb = new JLabel(getResourceString(key2), TRAILING);
+        tab.gridAdd(lb, 0, row);
+        ggCheckBox = new PrefCheckBox(getResourceString("prefsMappedReadActive"));
+        ggCheckBox.setPreferences(prefs, key);
+        tab.gridAdd(ggCheckBox, 1, row, -1, 1);
+
+        row++;
+        key = PrefsUtil.KEY_BLOCKCACHE;
+        key2 = "prefsBlockCache";
+        lb = new JLabel(getResourceString(key2) + " [" +
+                getResourceString("labelMegaBytes") + "]", TRAILING);
+        tab.gridAdd(lb, 0, row);
+        ggParam = new PrefParamField();
+        ggParam.addSpace(spcIntegerFromZero);
+        ggParam.setPreferences(prefs, key);
+        tab.gridAdd(ggParam, 1, row, -1, 1);
+
+        row++;
         key = PrefsUtil.KEY_REVEAL_FILE;
         key2 = "prefsRevealCmd";
         lb = new JLabel(getResourceString(key2), TRAILING);
@@ -294,7 +294,10 @@ public class WaveformView
         dt.drawWaveform(info, this, g2);
     }
 
-    private void triggerRedisplay() {
+    /**
+     *  Asks the host to repaint the view. To be called in the event thread.
+     */
+    public void triggerRedisplay() {
         if (host != null) {
             host.update(this);
         } else if (isVisible()) {
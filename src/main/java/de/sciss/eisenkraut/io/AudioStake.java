@@ -67,6 +67,23 @@ public abstract class AudioStake
 
     // similar to InterleavedStreamFile
     public abstract int readFrames( float[][] data, int dataOffset, Span readSpan ) throws IOException;
+
+    /**
+     *	Positional variant of <code>readFrames</code>. Implementations
+     *	should not depend on a shared seek position, so that concurrent
+     *	readers do not need to synchronize.
+     *
+     *	@param	pos			the (virtual) position of the first frame, must lie within the stake's span
+     *	@param	data		target buffers, <code>null</code> channels are allowed
+     *	@param	dataOffset	offset into the target buffers
+     *	@param	len			number of frames to read
+     *	@return	the number of frames read
+     */
+    public int readFrames(long pos, float[][] data, int dataOffset, int len)
+            throws IOException {
+        return readFrames(data, dataOffset, new Span(pos, pos + len));
+    }
+
     // XXX writeSpan should be replaced by framesWritten internally for simplicity
     public abstract int writeFrames( float[][] data, int dataOffset, Span writeSpan ) throws IOException;
     public abstract long copyFrames( InterleavedStreamFile target, Span readSpan ) throws IOException;
@@ -81,6 +98,47 @@ public abstract class AudioStake
 
     public abstract void addToCache( CacheManager cm );
 
+    /**
+     *	Returns the files holding the stake's frames, if the stake's
+     *	channels are stored unaltered and in order in these files,
+     *	and the files have no other channels. This allows to copy
+     *	the frames as raw bytes. Otherwise returns <code>null</code>.
+     *	The default implementation returns <code>null</code>.
+     *
+     *	@return	the files; consider this array read-only
+     *
+     *	@see	#getFileFrame( int, long )
+     */
+    public InterleavedStreamFile[] getDirectFiles() {
+        return null;
+    }
+
+    /**
+     *	Returns the frame index in one of the direct files
+     *	corresponding to a position within the stake's span.
+     *
+     *	@see	#getDirectFiles()
+     */
+    public long getFileFrame(int fileIdx, long pos) {
+        throw new IllegalStateException("No direct files");
+    }
+
+    /**
+     *	Returns whether the stake's frames are already stored, unaltered,
+     *	in the given files at the frame positions corresponding to the
+     *	stake's span. In this case, writing the stake to these files
+     *	would not change them.
+     */
+    public boolean isMappedOnto(InterleavedStreamFile[] fs) {
+        final InterleavedStreamFile[] directFs = getDirectFiles();
+        if ((directFs == null) || (directFs.length != fs.length)) return false;
+
+        for (int i = 0; i < fs.length; i++) {
+            if ((directFs[i] != fs[i]) || (getFileFrame(i, span.start) != span.start)) return false;
+        }
+        return true;
+    }
+
     protected void debugDumpBasics()
     {
         System.err.print( "Span " + span.getStart() + " ... " + span.getStop() + "; disposed ? " + disposed );
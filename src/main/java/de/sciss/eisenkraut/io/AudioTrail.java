@@ -15,10 +15,14 @@ package de.sciss.eisenkraut.io;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import de.sciss.eisenkraut.session.Session;
 
@@ -29,6 +33,7 @@ import de.sciss.io.AudioFile;
 import de.sciss.io.AudioFileDescr;
 import de.sciss.io.IOUtil;
 import de.sciss.io.InterleavedStreamFile;
+import de.sciss.io.Marker;
 import de.sciss.io.Span;
 import de.sciss.jcollider.Buffer;
 import de.sciss.net.OSCBundle;
@@ -59,6 +64,8 @@ public class AudioTrail
 
     // default buffer size (frames per channel)
     private static final int BUF_SIZE = 8192;
+    // frames per raw byte copy in flatten, bounding the progress update interval
+    private static final int TRANSFER_SIZE = BUF_SIZE << 6;
     // for chunks greater or equal than this use a dedicated SilentAudioStake instead of writing zeros to regular AudioStake
     private static final int 		MIN_SILENT_SIZE 	= 65536;
 
@@ -66,11 +73,20 @@ public class AudioTrail
     private final int				numChannels;
     private final boolean			singleFile;
     private AudioFile[]				tempF				= null;
+    private final TempFileSpace		tempSpace			= new TempFileSpace(this);
+    // scratch files handed out by createScratchFile() which have not been adopted yet
+    private final Set<File>			setScratch			= new HashSet<File>();
 
     private final AudioFile[]		audioFiles;
+    // the trail whose files back our stakes (differs from this for cut trails)
+    private final AudioTrail		origin;
 
     private int						numDepDec			= 0;
 
+    // readers share it, writeInPlace and exchange hold it exclusively
+    // while the files are rewritten and the stakes are swapped
+    private final ReadWriteLock		stakeLock			= new ReentrantReadWriteLock();
+
 
     public static AudioTrail newFrom(AudioFile af)
             throws IOException {
@@ -136,13 +152,18 @@ public class AudioTrail
     }
 
     protected BasicTrail createEmptyCopy() {
-        return new AudioTrail(this.channelMaps, this.getRate(), new AudioFile[0]);
+        return new AudioTrail(this.channelMaps, this.getRate(), new AudioFile[0], origin);
     }
 
     private AudioTrail(int[][] channelMaps, double rate, AudioFile[] audioFiles) {
+        this(channelMaps, rate, audioFiles, null);
+    }
+
+    private AudioTrail(int[][] channelMaps, double rate, AudioFile[] audioFiles, AudioTrail origin) {
         super();
 
         this.audioFiles		= audioFiles;
+        this.origin			= origin == null ? this : origin;
         this.channelMaps	= channelMaps;
         singleFile			= channelMaps.length == 1;
 
@@ -162,7 +183,10 @@ public class AudioTrail
             throws IOException {
 
         for (AudioFile audioFile : audioFiles) {
-            if (audioFile != null) audioFile.close();
+            if (audioFile != null) {
+                SampleReader.release(audioFile);
+                audioFile.close();
+            }
         }
     }
 
@@ -175,9 +199,14 @@ public class AudioTrail
 
         if (afd.channels != channelMaps[0].length) throw new IllegalStateException();
 
-        clearIgnoreDependants();
-        deleteTempFiles();
-        addIgnoreDependants(new InterleavedAudioStake(span, af, span));
+        stakeLock.writeLock().lock();
+        try {
+            clearIgnoreDependants();
+            deleteTempFiles();
+            addIgnoreDependants(new InterleavedAudioStake(span, af, span));
+        } finally {
+            stakeLock.writeLock().unlock();
+        }
     }
 
     public void exchange(AudioFile[] afs)
@@ -209,16 +238,24 @@ public class AudioTrail
             fileSpans[i] = span;
         }
 
-        clearIgnoreDependants();
-        deleteTempFiles();
-        addIgnoreDependants(new MultiMappedAudioStake(span, afs, fileSpans, channelMaps));
+        stakeLock.writeLock().lock();
+        try {
+            clearIgnoreDependants();
+            deleteTempFiles();
+            addIgnoreDependants(new MultiMappedAudioStake(span, afs, fileSpans, channelMaps));
+        } finally {
+            stakeLock.writeLock().unlock();
+        }
     }
 
     public void dispose() {
         // call this first because dependants might rely on open audio files!
         super.dispose();
         for (AudioFile audioFile : audioFiles) {
-            if (audioFile != null) audioFile.cleanUp();
+            if (audioFile != null) {
+                SampleReader.release(audioFile);
+                audioFile.cleanUp();
+            }
         }
         deleteTempFiles();
     }
@@ -249,12 +286,19 @@ public class AudioTrail
         return new SilentAudioStake(span, numChannels);
     }
 
+    /**
+     *	Allocates a region in the temp files. Regions are reused once
+     *	no stake refers to them any more; this is detected through the
+     *	returned stake's maximum file span(s) which are shared with all
+     *	stakes derived from it (through <code>replaceStart</code> etc.).
+     */
     public synchronized AudioStake alloc(Span span)
             throws IOException {
 
-        long fileStart;
-        long fileStop;
+        final Span region;
+        final long fileStop;
         final Span[] fileSpans = new Span[channelMaps.length];
+        final AudioStake stake;
 
         // synchronized because this method is synchronized
         // and no other method calls createTempFiles() !
@@ -264,19 +308,223 @@ public class AudioTrail
         }
 //		}
 
-        // synchronized( tempF ) {
+        region		= tempSpace.alloc(span.getLength());
+        fileStop	= tempSpace.getSize();
         for (int i = 0; i < tempF.length; i++) {
-            fileStart = tempF[i].getFrameNum();
-            fileStop = fileStart + span.getLength();
-            tempF[i].setFrameNum(fileStop);
-            fileSpans[i] = new Span(fileStart, fileStop);
+            synchronized (tempF[i]) {
+                if (tempF[i].getFrameNum() < fileStop) tempF[i].setFrameNum(fileStop);
+            }
+            // separate objects, since the region itself must not keep the token alive
+            fileSpans[i] = new Span(region.start, region.stop);
         }
-        // }
 
         if (singleFile) {
-            return new InterleavedAudioStake(span, tempF[0], fileSpans[0]);
+            stake = new InterleavedAudioStake(span, tempF[0], fileSpans[0]);
+            tempSpace.track(fileSpans[0], region);
         } else {
-            return new MultiMappedAudioStake(span, tempF, fileSpans, channelMaps);
+            stake = new MultiMappedAudioStake(span, tempF, fileSpans, channelMaps);
+            tempSpace.track(fileSpans, region);
+        }
+        return stake;
+    }
+
+    /**
+     *	Creates a scratch file for exchanging frames with other applications.
+     *	It has the format of the temp files (32-bit float Wave64) with all
+     *	channels of the trail interleaved, so the sample data can be memory-mapped
+     *	by the other side, and the file can later be spliced in through
+     *	<code>adopt</code> without being copied.
+     *
+     *	@param	numFrames	the initial length of the file. these frames are zero
+     *	@return	the file, opened for writing. the caller is responsible for closing it
+     *
+     *	@see	#adopt( AudioFile, Span )
+     */
+    public AudioFile createScratchFile(long numFrames)
+            throws IOException {
+
+        final AudioFileDescr afd	= createTempDescr();
+        afd.channels				= getChannelNum();
+        afd.file					= IOUtil.createTempFile();
+        final AudioFile af			= AudioFile.openAsWrite(afd);
+        try {
+            if (numFrames > 0) af.setFrameNum(numFrames);
+        } catch (IOException e1) {
+            af.cleanUp();
+            if (!afd.file.delete()) afd.file.deleteOnExit();
+            throw e1;
+        }
+        synchronized (this) {
+            setScratch.add(afd.file.getAbsoluteFile());
+        }
+        return af;
+    }
+
+    /**
+     *	Checks whether a file was created by <code>createScratchFile</code> and
+     *	has not been claimed before. If so, it may be passed to <code>adopt</code>,
+     *	and subsequent calls return <code>false</code>. Any other file must be
+     *	copied with <code>adoptCopy</code> instead.
+     *
+     *	@see	#adopt( AudioFile, Span )
+     */
+    public synchronized boolean claimScratchFile(File f) {
+        return setScratch.remove(f.getAbsoluteFile());
+    }
+
+    /**
+     *	Checks whether a file is one of the document's audio files
+     *	or one of the trail's temp files, which cannot be adopted.
+     */
+    public synchronized boolean isOwnFile(File f)
+            throws IOException {
+
+        final File canon = f.getCanonicalFile();
+        for (AudioFile[] afs : new AudioFile[][] { origin.getAudioFiles(), origin.tempF }) {
+            if (afs == null) continue;
+            for (AudioFile af : afs) {
+                if ((af != null) && af.getFile().getCanonicalFile().equals(canon)) return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     *	Creates a stake which reads directly from an audio file, so that
+     *	frames written by another application can be spliced into the trail
+     *	without being copied or re-encoded. The trail takes over the file;
+     *	it is closed and deleted once no stake refers to it any more, or
+     *	along with the temp files, and it must not be modified any more.
+     *	Therefore, this may only be used for files obtained from
+     *	<code>createScratchFile</code>.
+     *
+     *	@param	af		an audio file with all channels of the trail, opened for reading
+     *	@param	span	the span of the stake, which reads the file from its beginning
+     *
+     *	@see	#adoptCopy( AudioFile, long, Span )
+     */
+    public AudioStake adopt(AudioFile af, Span span) {
+        checkAdopt(af, 0L, span);
+        return adopt(af, 0L, span);
+    }
+
+    /**
+     *	Copies a region of an audio file to a new scratch file and adopts the
+     *	copy. Unlike adopting a file directly, this keeps the trail independent
+     *	of a file which it does not own, and which may be overwritten or deleted
+     *	at any time. The frames are copied as raw bytes if the file has the
+     *	sample format of the scratch files, otherwise they are decoded and encoded.
+     *	Progress is reported to the current <code>ProcessingThread</code>, if any.
+     *
+     *	@param	af			an audio file with all channels of the trail, opened for reading.
+     *						it is not closed by this method, but its direct reader is released
+     *	@param	fileStart	the frame in the file at which the copied region begins
+     *	@param	span		the span of the stake
+     */
+    public AudioStake adoptCopy(AudioFile af, long fileStart, Span span)
+            throws IOException {
+
+        checkAdopt(af, fileStart, span);
+
+        final long			len			= span.getLength();
+        final AudioFile		copy		= createScratchFile(0);
+        final AudioStake	source		= new InterleavedAudioStake(span, af, new Span(fileStart, fileStart + len));
+        final AudioStake	target		= new InterleavedAudioStake(span, copy, new Span(0, len));
+        final double		progWeight	= 1.0 / Math.max(1, len);
+        final float[][]		buf			= new float[numChannels][BUF_SIZE];
+        long				readOff		= span.start;
+        int					chunkLen;
+        Span				subSpan;
+        AudioFile			result		= null;
+
+        claimScratchFile(copy.getFile());
+        try {
+            final FrameTransfer transfer = FrameTransfer.create(target);
+            if (transfer != null) {
+                try {
+                    while (readOff < span.stop) {
+                        chunkLen = (int) Math.min(TRANSFER_SIZE, span.stop - readOff);
+                        subSpan = new Span(readOff, readOff + chunkLen);
+                        if (!transfer.transfer(source, subSpan)) break;
+                        readOff += chunkLen;
+                        setProgression(readOff - span.start, progWeight);
+                    }
+                } finally {
+                    transfer.dispose();
+                }
+            }
+            while (readOff < span.stop) {
+                chunkLen = (int) Math.min(BUF_SIZE, span.stop - readOff);
+                subSpan = new Span(readOff, readOff + chunkLen);
+                source.readFrames(buf, 0, subSpan);
+                target.writeFrames(buf, 0, subSpan);
+                readOff += chunkLen;
+                setProgression(readOff - span.start, progWeight);
+            }
+            SampleReader.release(copy);
+            copy.close();
+            result = AudioFile.openAsRead(copy.getFile());
+        } finally {
+            source.dispose();
+            target.dispose();
+            // the source stake and the transfer opened a reader on the client's file
+            SampleReader.release(af);
+            if (result == null) {
+                SampleReader.release(copy);
+                copy.cleanUp();
+                if (!copy.getFile().delete()) copy.getFile().deleteOnExit();
+            }
+        }
+        return adopt(result, 0L, span);
+    }
+
+    private void checkAdopt(AudioFile af, long fileStart, Span span) {
+        if (af.getChannelNum() != numChannels) {
+            throw new IllegalArgumentException("Wrong # of channels (required: " + numChannels +
+                    " / got: " + af.getChannelNum() + ")");
+        }
+        if ((fileStart < 0) || (fileStart + span.getLength() > af.getFrameNum())) {
+            throw new IllegalArgumentException(String.valueOf(span));
+        }
+    }
+
+    private synchronized AudioStake adopt(AudioFile af, long fileStart, Span span) {
+        // all stakes derived from the new one share this object,
+        // so it becomes unreachable along with the last of them
+        final Span fileSpan = new Span(fileStart, fileStart + span.getLength());
+        tempSpace.trackFile(fileSpan, af);
+        if (singleFile) return new InterleavedAudioStake(span, af, fileSpan);
+
+        // one interleaved file for what are separate files in the trail
+        final AudioFile[]	fs			= new AudioFile[channelMaps.length];
+        final Span[]		fileSpans	= new Span[channelMaps.length];
+        final int[][]		fileMaps	= new int[channelMaps.length][];
+        for (int i = 0, ch = 0; i < channelMaps.length; i++) {
+            fs[i]			= af;
+            fileSpans[i]	= fileSpan;
+            fileMaps[i]		= new int[channelMaps[i].length];
+            for (int j = 0; j < fileMaps[i].length; j++, ch++) {
+                fileMaps[i][j] = ch;
+            }
+        }
+        return new MultiMappedAudioStake(span, fs, fileSpans, fileMaps);
+    }
+
+    // called by TempFileSpace when free space has accumulated at the end of the temp files
+    synchronized void truncateTempFiles() {
+        if (tempF == null) return;
+
+        final long fileStop = tempSpace.getSize();
+        try {
+            for (AudioFile f : tempF) {
+                synchronized (f) {
+                    if (f.getFrameNum() > fileStop) {
+                        SampleReader.truncate(f, fileStop);    // also drops mappings beyond the new end
+                    }
+                }
+            }
+        } catch (IOException e1) {
+            System.err.println("AudioTrail.truncateTempFiles : " + e1);
         }
     }
 
@@ -324,6 +572,11 @@ public class AudioTrail
      *	Note: when mode == MODE_INSERT, the caller should have called editInsert on this
      *	trail before, this is NOT done by this method; this method simply calls editAdd
      *	with the newly synthesized stake!
+     *	<p>
+     *	When inserting without blending from a cut trail of this trail, and
+     *	the track map works on whole files, no samples are copied; instead the
+     *	source stakes are referenced (through <code>RemappedAudioStake</code> if
+     *	the channels are rearranged).
      *
      *	TODO: this method should somehow be part of BasicTrail
      *	TODO: this method has become too complex and should be split up
@@ -354,6 +607,14 @@ public class AudioTrail
         final int				bufLen		= (int) Math.min( len, BUF_SIZE);
         final double			progWeight	= 1.0 / len;
 
+        if ((mode == MODE_INSERT) && !hasBlend) {
+            final int[] fileMap = getFileMap(srcTrail, trackMap);
+            if (fileMap != null) {
+                insertRangeRefFrom(srcTrail, copySpan, insertPos, source, ce, trackMap, fileMap);
+                return true;
+            }
+        }
+
         // throws IOException
         writeStake = alloc(new Span(insertPos, insertPos + len));
 
@@ -399,6 +660,75 @@ public class AudioTrail
         }
     }
 
+    /*
+     *	Determines whether the source trail's stakes can be referenced
+     *	instead of copied. This requires that they are backed by our own files
+     *	(so they live as long as we do), and that the track map can be expressed
+     *	in terms of whole files (so playback buffers can still be read directly).
+     *
+     *	@return	for each target file, the source file index or -1 for silence ;
+     *			or null if the stakes need to be copied
+     */
+    private int[] getFileMap(AudioTrail srcTrail, int[] trackMap) {
+        if ((srcTrail == null) || (srcTrail.origin != this.origin)) return null;
+
+        final int[]	fileMap		= new int[channelMaps.length];
+        final int[]	fileStart	= new int[channelMaps.length];
+        int			ch, srcFile;
+
+        for (int i = 0, j = 0; i < channelMaps.length; j += channelMaps[i].length, i++) {
+            fileStart[i] = j;
+        }
+
+        for (int i = 0; i < channelMaps.length; i++) {
+            ch = trackMap[fileStart[i]];
+            if (ch < 0) {
+                srcFile = -1;
+            } else {
+                srcFile = Arrays.binarySearch(fileStart, ch);
+                if ((srcFile < 0) || (channelMaps[srcFile].length != channelMaps[i].length)) return null;
+            }
+            for (int k = 0; k < channelMaps[i].length; k++) {
+                if (trackMap[fileStart[i] + k] != (srcFile < 0 ? -1 : ch + k)) return null;
+            }
+            fileMap[i] = srcFile;
+        }
+        return fileMap;
+    }
+
+    // inserts references to the source stakes, gaps are filled with silence
+    private void insertRangeRefFrom(AudioTrail srcTrail, Span copySpan, long insertPos, Object source,
+                                    AbstractCompoundEdit ce, int[] trackMap, int[] fileMap) {
+
+        final List<Stake>	collSrc		= srcTrail.getCutRange(copySpan, true, TOUCH_SPLIT, insertPos - copySpan.start);
+        final List<Stake>	collToAdd	= new ArrayList<Stake>(collSrc.size() + 1);
+        final long			insertStop	= insertPos + copySpan.getLength();
+        boolean				identity	= true;
+        long				pos			= insertPos;
+        Span				stakeSpan;
+
+        for (int i = 0; i < fileMap.length; i++) {
+            if (fileMap[i] != i) {
+                identity = false;
+                break;
+            }
+        }
+
+        for (Stake stake : collSrc) {
+            stakeSpan = stake.getSpan();
+            if (stakeSpan.isEmpty()) {
+                stake.dispose();
+                continue;
+            }
+            if (stakeSpan.start > pos) collToAdd.add(allocSilent(new Span(pos, stakeSpan.start)));
+            collToAdd.add(identity ? stake : new RemappedAudioStake((AudioStake) stake, trackMap, fileMap));
+            pos = stakeSpan.stop;
+        }
+        if (pos < insertStop) collToAdd.add(allocSilent(new Span(pos, insertStop)));
+
+        this.editAddAll(source, collToAdd, ce);
+    }
+
     private static void setProgression(long len, double progWeight)
             throws ProcessingThread.CancelledException {
         ProcessingThread.update((float) (len * progWeight));
@@ -1205,20 +1535,22 @@ public class AudioTrail
             throws IOException {
 
         final int		num		= stakesByStart.size();
-        int				idx		= Collections.binarySearch(stakesByStart, readSpan.start, startComparator);
+        int				idx		= binarySearch(stakesByStart, readSpan.start, true);
         if( idx < 0 )	idx		= Math.max(0, -(idx + 2));
 //		int				len		= (int) readSpan.getLength();
         int				dataStop= (int) readSpan.getLength() + dataOffset;
 
         AudioStake	stake;
         int			chunkLen;
-        Span		subSpan;
+        long		subStart;
 
+        // the positional variant needs no shared seek state, thus
+        // concurrent readers of the same files do not queue up
         while ((dataOffset < dataStop) && (idx < num)) {
             stake = (AudioStake) stakesByStart.get(idx);
-            subSpan = new Span(Math.max(stake.getSpan().start, readSpan.start),
-                    Math.min(stake.getSpan().stop, readSpan.stop));
-            chunkLen = stake.readFrames(data, dataOffset, subSpan);
+            subStart = Math.max(stake.getSpan().start, readSpan.start);
+            chunkLen = stake.readFrames(subStart, data, dataOffset,
+                    (int) Math.max(0, Math.min(stake.getSpan().stop, readSpan.stop) - subStart));
             dataOffset += chunkLen;
 //			len		   -= chunkLen;
             idx++;
@@ -1237,7 +1569,12 @@ public class AudioTrail
 
     protected void readFrames(float[][] data, int dataOffset, Span readSpan, AbstractCompoundEdit ce)
             throws IOException {
-        AudioTrail.readFrames(editGetCollByStart(ce), data, dataOffset, readSpan);
+        stakeLock.readLock().lock();
+        try {
+            AudioTrail.readFrames(editGetCollByStart(ce), data, dataOffset, readSpan);
+        } finally {
+            stakeLock.readLock().unlock();
+        }
     }
 
     public void readFrames(float[][] data, int dataOffset, Span readSpan)
@@ -1248,11 +1585,7 @@ public class AudioTrail
     private void createTempFiles()
             throws IOException {
 
-        final AudioFileDescr afd	= new AudioFileDescr();
-        afd.type					= AudioFileDescr.TYPE_WAVE64; // TYPE_AIFF
-        afd.rate					= getRate();
-        afd.bitsPerSample			= 32;
-        afd.sampleFormat			= AudioFileDescr.FORMAT_FLOAT;
+        final AudioFileDescr afd	= createTempDescr();
 
         if( singleFile ) {
             afd.channels			= getChannelNum();
@@ -1272,10 +1605,21 @@ public class AudioTrail
         }
     }
 
-    private void deleteTempFiles() {
+    private AudioFileDescr createTempDescr() {
+        final AudioFileDescr afd	= new AudioFileDescr();
+        afd.type					= AudioFileDescr.TYPE_WAVE64; // TYPE_AIFF
+        afd.rate					= getRate();
+        afd.bitsPerSample			= 32;
+        afd.sampleFormat			= AudioFileDescr.FORMAT_FLOAT;
+        return afd;
+    }
+
+    private synchronized void deleteTempFiles() {
+        tempSpace.clear();
         if (tempF != null) {
             for (AudioFile aTempF : tempF) {
                 if (aTempF != null) {
+                    SampleReader.release(aTempF);
                     aTempF.cleanUp();
                     final File af = aTempF.getFile();
                     if (!af.delete()) af.deleteOnExit();
@@ -1285,6 +1629,172 @@ public class AudioTrail
         tempF = null;
     }
 
+    /**
+     *	Checks whether saving the given span to the given files can be
+     *	done by patching the trail's own audio files in place. This requires
+     *	that the span covers the whole trail, that the files are the ones
+     *	the trail was created from, and that their format, length, markers
+     *	and comment stay the same, so that the headers need not be rewritten.
+     *
+     *	@see	#writeInPlace( Span )
+     */
+    public boolean canWriteInPlace(AudioFileDescr[] descrs, Span span, int[] channelMap) {
+        if ((audioFiles.length != descrs.length) || (span.start != 0) || (span.stop != getSpan().stop)) return false;
+
+        if (channelMap != null) {
+            if (channelMap.length != numChannels) return false;
+            for (int i = 0; i < channelMap.length; i++) {
+                if (channelMap[i] != i) return false;
+            }
+        }
+
+        AudioFileDescr afd;
+        for (int i = 0; i < audioFiles.length; i++) {
+            if (audioFiles[i] == null) return false;
+            afd = audioFiles[i].getDescr();
+            if (!descrs[i].file.getAbsoluteFile().equals(audioFiles[i].getFile().getAbsoluteFile()) ||
+                (descrs[i].type != afd.type) || (descrs[i].channels != afd.channels) ||
+                (descrs[i].bitsPerSample != afd.bitsPerSample) || (descrs[i].sampleFormat != afd.sampleFormat) ||
+                (descrs[i].rate != afd.rate) || (afd.channels != channelMaps[i].length) ||
+                (afd.length != span.getLength()) || !isSameMetadata(descrs[i], afd) ||
+                (SampleReader.get(audioFiles[i]) == null)) return false;
+        }
+        return true;
+    }
+
+    private static boolean isSameMetadata(AudioFileDescr a, AudioFileDescr b) {
+        final List<?> marksA	= (List<?>) a.getProperty(AudioFileDescr.KEY_MARKERS);
+        final List<?> marksB	= (List<?>) b.getProperty(AudioFileDescr.KEY_MARKERS);
+        final int     numA		= marksA == null ? 0 : marksA.size();
+        final int     numB		= marksB == null ? 0 : marksB.size();
+        final Object  commentA	= a.getProperty(AudioFileDescr.KEY_COMMENT);
+        final Object  commentB	= b.getProperty(AudioFileDescr.KEY_COMMENT);
+        Marker        markA, markB;
+
+        if ((numA != numB) || ((commentA == null) ? (commentB != null) : !commentA.equals(commentB))) return false;
+
+        for (int i = 0; i < numA; i++) {
+            markA = (Marker) marksA.get(i);
+            markB = (Marker) marksB.get(i);
+            if ((markA.pos != markB.pos) || !markA.name.equals(markB.name)) return false;
+        }
+        return true;
+    }
+
+    /**
+     *	Saves the trail to its own audio files by writing back
+     *	only those regions which are not already present in the files
+     *	at the same position, i.e. which were edited. The new data is
+     *	collected in a <code>SaveJournal</code> before any file is touched,
+     *	so a failure leaves the files intact, and a crash while copying
+     *	the journal over is repaired when the files are opened again.
+     *	<code>canWriteInPlace</code> must have returned <code>true</code>.
+     *	<p>
+     *	Copying the journal over invalidates all stakes which read
+     *	the files at other positions than their own. Therefore readers
+     *	are blocked until the files are rewritten and the trail has been
+     *	replaced by a single stake mapping the files one-to-one, which
+     *	is what <code>exchange</code> would install later on. Temporary
+     *	files are kept, since the undo history may still refer to them.
+     *
+     *	@see	#canWriteInPlace( AudioFileDescr[], Span, int[] )
+     */
+    public void writeInPlace(Span span)
+            throws IOException {
+
+        final List<Span>	dirty		= new ArrayList<Span>();
+        final int			num			= getNumStakes();
+        int					idx			= indexOf(span.start, true);
+        if( idx < 0 )		idx			= Math.max(0, -(idx + 2));
+        long				pos			= span.start;
+        long				dirtyLen	= 0L;
+        AudioStake			stake;
+        Span				stakeSpan, subSpan;
+
+        while ((pos < span.stop) && (idx < num)) {
+            stake		= (AudioStake) get(idx, true);
+            stakeSpan	= stake.getSpan();
+            if (stakeSpan.stop > pos) {
+                subSpan = new Span(Math.max(pos, stakeSpan.start), Math.min(stakeSpan.stop, span.stop));
+                if (!subSpan.isEmpty() && !stake.isMappedOnto(audioFiles)) {
+                    if (!dirty.isEmpty() && (dirty.get(dirty.size() - 1).stop == subSpan.start)) {
+                        subSpan = new Span(dirty.remove(dirty.size() - 1).start, subSpan.stop);
+                    }
+                    dirty.add(subSpan);
+                    dirtyLen += subSpan.getLength();
+                }
+                pos = subSpan.stop;
+            }
+            idx++;
+        }
+        if (dirty.isEmpty()) return;
+
+        final File[]				targets		= new File[audioFiles.length];
+        final SampleDataLayout[]	layouts		= new SampleDataLayout[audioFiles.length];
+        final ByteBuffer[]			byteBufs	= new ByteBuffer[audioFiles.length];
+        final float[][]				data		= new float[numChannels][BUF_SIZE];
+        final float[][][]			fileData	= new float[audioFiles.length][][];
+        final double				progWeight	= 1.0 / dirtyLen;
+        final SaveJournal			journal;
+        long						done		= 0L;
+        boolean						committed	= false;
+        int							chunkLen;
+
+        for (int i = 0, ch = 0; i < audioFiles.length; i++) {
+            targets[i]	= audioFiles[i].getFile();
+            layouts[i]	= SampleReader.get(audioFiles[i]).getLayout();
+            byteBufs[i]	= ByteBuffer.allocate(BUF_SIZE * layouts[i].frameSize).order(layouts[i].byteOrder);
+            fileData[i]	= new float[channelMaps[i].length][];
+            for (int j = 0; j < fileData[i].length; j++, ch++) {
+                fileData[i][j] = data[ch];
+            }
+        }
+
+        journal = SaveJournal.create(targets);
+        try {
+            for (Span dirtySpan : dirty) {
+                for (pos = dirtySpan.start; pos < dirtySpan.stop; pos += chunkLen) {
+                    chunkLen	= (int) Math.min(BUF_SIZE, dirtySpan.stop - pos);
+                    readFrames(data, 0, new Span(pos, pos + chunkLen));
+                    for (int i = 0; i < audioFiles.length; i++) {
+                        layouts[i].encode(fileData[i], 0, byteBufs[i], 0, chunkLen);
+                        byteBufs[i].clear().limit(chunkLen * layouts[i].frameSize);
+                        journal.write(i, layouts[i].bytePosition(pos), byteBufs[i]);
+                    }
+                    done += chunkLen;
+                    setProgression(done, progWeight);
+                }
+            }
+            journal.commit();
+            committed = true;
+        } finally {
+            if (!committed) journal.dispose();
+        }
+
+        stakeLock.writeLock().lock();
+        try {
+            journal.apply();
+
+            for (Span dirtySpan : dirty) {
+                for (AudioFile af : audioFiles) {
+                    SampleReader.invalidate(af, dirtySpan.start, dirtySpan.getLength());
+                }
+            }
+
+            // span covers the whole trail and files, see canWriteInPlace
+            clearIgnoreDependants();
+            if (audioFiles.length == 1) {
+                addIgnoreDependants(new InterleavedAudioStake(span, audioFiles[0], span));
+            } else {
+                final Span[] fileSpans = new Span[audioFiles.length];
+                Arrays.fill(fileSpans, span);
+                addIgnoreDependants(new MultiMappedAudioStake(span, audioFiles, fileSpans, channelMaps));
+            }
+        } finally {
+            stakeLock.writeLock().unlock();
+        }
+    }
+
     public void flatten(InterleavedStreamFile f, Span span, int[] channelMap)
             throws IOException {
 
@@ -1357,24 +1867,43 @@ public class AudioTrail
         Span					sourceSpan, subSpan;
         long					readStop	= span.start;
 
+        boolean					identity	= outChannels == numChannels;
         for (int i = 0; i < channelMap.length; i++) {
             inBuf[channelMap[i]] = outBuf[i];
+            identity &= channelMap[i] == i;
         }
 
-        while ((readStop < span.stop) && (idx < num)) {
-            source = (AudioStake) get(idx, true);
-            sourceSpan = source.getSpan();
-            readStop = Math.min(sourceSpan.stop, span.stop);
-            while (readOff < readStop) {
-                chunkLen = (int) Math.min(BUF_SIZE, readStop - readOff);
-                subSpan = new Span(readOff, readOff + chunkLen);
-                source.readFrames(inBuf, 0, subSpan);
-                target.writeFrames(outBuf, 0, subSpan);
-                readOff += chunkLen;
-                setProgression(readOff - span.start, progWeight);
+        // stakes whose files have the target's sample layout are copied
+        // as raw bytes; the others are decoded and encoded
+        final FrameTransfer		transfer	= identity ? FrameTransfer.create(target) : null;
+
+        try {
+            while ((readStop < span.stop) && (idx < num)) {
+                source = (AudioStake) get(idx, true);
+                sourceSpan = source.getSpan();
+                readStop = Math.min(sourceSpan.stop, span.stop);
+                if (transfer != null) {
+                    while (readOff < readStop) {
+                        chunkLen = (int) Math.min(TRANSFER_SIZE, readStop - readOff);
+                        subSpan = new Span(readOff, readOff + chunkLen);
+                        if (!transfer.transfer(source, subSpan)) break;
+                        readOff += chunkLen;
+                        setProgression(readOff - span.start, progWeight);
+                    }
+                }
+                while (readOff < readStop) {
+                    chunkLen = (int) Math.min(BUF_SIZE, readStop - readOff);
+                    subSpan = new Span(readOff, readOff + chunkLen);
+                    source.readFrames(inBuf, 0, subSpan);
+                    target.writeFrames(outBuf, 0, subSpan);
+                    readOff += chunkLen;
+                    setProgression(readOff - span.start, progWeight);
 //if( true ) throw new IOException( "FAIL TEST" );
+                }
+                idx++;
             }
-            idx++;
+        } finally {
+            if (transfer != null) transfer.dispose();
         }
         if (readStop < span.stop) {
             System.err.println("WARNING: trying to flatten beyond the trail's stop");
@@ -15,32 +15,51 @@ package de.sciss.eisenkraut.io;
 
 import java.awt.geom.CubicCurve2D;
 import java.awt.geom.Point2D;
+import java.util.Arrays;
 
 /**
  *  Object describing the
  *  type of cross-fading used
  *  in vector operations. Methods
  *	for calculating the fades are provided.
+ *	<p>
+ *	The fade curve is a cubic Bezier curve whose x coordinate
+ *	must be inverted for each frame. Instead of solving the cubic
+ *	per frame, the curve is approximated once by a polyline, which is
+ *	refined until linear interpolation stays within <code>MAX_ERROR</code>
+ *	of the exact weights (except next to a vertical tangent, within
+ *	2^-24 of the fade's length). The polyline only depends on the
+ *	control points and is shared by successive contexts with the
+ *	same curve.
  */
 public class BlendContext
 {
+    private static final double	MAX_ERROR		= 1.0e-6;	// about -120 dB
+    private static final int	NUM_SEGMENTS	= 16;		// initial subdivision
+    private static final int	MAX_DEPTH		= 20;		// maximum further subdivision
+    private static final int	CHUNK_SIZE		= 1024;		// frames of weights computed at a time
+
+    private static Curve		lastCurve		= null;
+
     /*
      *  The length of the
      *  blending cross-fade in
      *  sense rate frames
      */
     private final long		left, right;
-    private final double[]	eqn			= new double[ 4 ];
 //	private final double	yInA, yInB, yInD;
     private final double	yOutA, yOutB, yOutD, yXInA, yXInB, yXInD;
     private final double	wFact;
     private final double	yIn0 = 0.0, yOut0 = 1.0;
+    private final Curve		curve;
 
     /**
      *  Create a new BlendContext with
      *  the given length
      */
     public BlendContext(long left, long right, Point2D[] ctrlPt) {
+        final double[] eqn = new double[ 4 ];
+
         this.left		= left;
         this.right		= right;
 
@@ -64,6 +83,16 @@ public class BlendContext
         yOutB			=  3 * ctrlPt[0].getY() - 3;
 
         wFact			= 1.0 / (left + right);
+
+        synchronized( BlendContext.class ) {
+            if( (lastCurve != null) && lastCurve.matches( ctrlPt )) {
+                curve		= lastCurve;
+            } else {
+                curve		= new Curve( ctrlPt );
+                buildCurve( curve, eqn );
+                lastCurve	= curve;
+            }
+        }
     }
 
 /*
@@ -134,43 +163,33 @@ public class BlendContext
      */
     public void fadeIn( long blendOff, float[][] sourceBuf, int sourceOff, float[][] targetBuf, int targetOff, int length )
     {
-        fade( blendOff, sourceBuf, sourceOff, targetBuf, targetOff, length, yXInD, yXInB, yXInA, yIn0 );	// yX !!
+        fade( blendOff, sourceBuf, sourceOff, targetBuf, targetOff, length, true );
     }
 
     public void fadeOut( long blendOff, float[][] sourceBuf, int sourceOff, float[][] targetBuf, int targetOff, int length )
     {
-        fade( blendOff, sourceBuf, sourceOff, targetBuf, targetOff, length, yOutD, yOutB, yOutA, yOut0 );
+        fade( blendOff, sourceBuf, sourceOff, targetBuf, targetOff, length, false );
     }
 
     private void fade( long blendOff, float[][] sourceBuf, int sourceOff,
-                       float[][] targetBuf, int targetOff, int length, double yD, double yB, double yA, double y0 )
+                       float[][] targetBuf, int targetOff, int length, boolean in )
     {
-        final int		numCh	= sourceBuf.length;
-        final double	wOff	= blendOff * wFact;
-        final double[]	res		= new double[ 3 ];
-        double			t, tt;
-        int				ch;
-        float			w;
+        if( length <= 0 ) return;
 
-        for( int i = 0; i < length; i++, sourceOff++, targetOff++ ) {
-            eqn[ 0 ]	= -(wOff + wFact * i);		// C = -x
-            CubicCurve2D.solveCubic( eqn, res );
-            t			= res[ 0 ];
-            if( t < 0.0 || t > 1.0 ) {
-                t		= res[ 1 ];
-                if( t < 0.0 || t > 1.0 ) {
-                    t	= res[ 2 ];
-//					if( t < 0.0 || t > 1.0 ) {
-//						System.err.println( "oh dear. res[0] = "+res[0]+"; res[1] = "+res[1]+"; res[2] = "+res[2] );
-//					}
-                }
-            }
-            tt			= t * t;
-            w			= (float) (tt * t * yD + tt * yA + t * yB + y0);
-
-            for( ch = 0; ch < numCh; ch++ ) {
-                if( targetBuf[ ch ] != null ) {
-                    targetBuf[ ch ][ targetOff ] = sourceBuf[ ch ][ sourceOff ] * w;
+        final int		numCh	= sourceBuf.length;
+        final float[]	w		= new float[ Math.min( length, CHUNK_SIZE )];
+        float[]			src, tgt;
+        int				chunk;
+
+        for( int off = 0; off < length; off += chunk ) {
+            chunk = Math.min( length - off, CHUNK_SIZE );
+            weights( blendOff + off, in ? w : null, in ? null : w, chunk );
+            for( int ch = 0; ch < numCh; ch++ ) {
+                tgt = targetBuf[ ch ];
+                if( tgt == null ) continue;
+                src = sourceBuf[ ch ];
+                for( int i = 0, j = sourceOff + off, k = targetOff + off; i < chunk; i++, j++, k++ ) {
+                    tgt[ k ] = src[ j ] * w[ i ];
                 }
             }
         }
@@ -186,13 +205,10 @@ public class BlendContext
     {
 //System.err.println( "kieka! "+blendLen );
         final int		numCh	= sourceBufA.length;
-        final double	wOff	= blendOff * wFact;
-        final double[]	res		= new double[ 3 ];
         int				len2;
-        double			t, tt, ttt;
         int				i		= 0;
         int				ch;
-        float			wIn, wOut;
+        float[]			srcA, srcB, tgt;
 
         // plain A
         len2 = (int) Math.min( length, -blendOff );
@@ -210,28 +226,22 @@ public class BlendContext
 
         // xfade
         len2 = (int) Math.min( length, left + right - blendOff );
-        for( ; i < len2; i++, sourceOffA++, sourceOffB++, targetOff++ ) {
-            eqn[ 0 ]	= -(wOff + wFact * i);		// C = -x
-            CubicCurve2D.solveCubic( eqn, res );
-            t			= res[ 0 ];
-            if( t < 0.0 || t > 1.0 ) {
-                t		= res[ 1 ];
-                if( t < 0.0 || t > 1.0 ) {
-                    t	= res[ 2 ];
-//					if( t < 0.0 || t > 1.0 ) {
-//						System.err.println( "oh dear. res[0] = "+res[0]+"; res[1] = "+res[1]+"; res[2] = "+res[2] );
-//					}
-                }
-            }
-            tt			= t * t;
-            ttt			= tt * t;
-            wIn			= (float) (ttt * yXInD + tt * yXInA + t * yXInB + yIn0);
-            wOut		= (float) (ttt * yOutD + tt * yOutA + t * yOutB + yOut0);
-
-            for( ch = 0; ch < numCh; ch++ ) {
-                if( targetBuf[ ch ] != null ) {
-                    targetBuf[ ch ][ targetOff ] = sourceBufB[ ch ][ sourceOffB ] * wIn +
-                                                   sourceBufA[ ch ][ sourceOffA ] * wOut;
+        if( len2 > i ) {
+            final float[] wIn	= new float[ Math.min( len2 - i, CHUNK_SIZE )];
+            final float[] wOut	= new float[ wIn.length ];
+            int			  chunk;
+
+            for( ; i < len2; i += chunk, sourceOffA += chunk, sourceOffB += chunk, targetOff += chunk ) {
+                chunk = Math.min( len2 - i, CHUNK_SIZE );
+                weights( blendOff + i, wIn, wOut, chunk );
+                for( ch = 0; ch < numCh; ch++ ) {
+                    tgt = targetBuf[ ch ];
+                    if( tgt == null ) continue;
+                    srcA = sourceBufA[ ch ];
+                    srcB = sourceBufB[ ch ];
+                    for( int j = 0, ja = sourceOffA, jb = sourceOffB, k = targetOff; j < chunk; j++, ja++, jb++, k++ ) {
+                        tgt[ k ] = srcB[ jb ] * wIn[ j ] + srcA[ ja ] * wOut[ j ];
+                    }
                 }
             }
         }
@@ -246,4 +256,162 @@ public class BlendContext
             }
         }
     }
+
+    /*
+     *	Interpolates the fade-in and fade-out weights of successive frames.
+     *	Either array may be null.
+     */
+    private void weights( long blendOff, float[] wIn, float[] wOut, int length )
+    {
+        final double[]	x		= curve.x;
+        final int		lastSeg	= x.length - 2;
+        double			pos		= Math.max( 0.0, Math.min( 1.0, blendOff * wFact ));
+        int				seg		= Arrays.binarySearch( x, pos );
+        double			dx;
+
+        if( seg < 0 ) seg = -(seg + 2);
+        seg = Math.min( seg, lastSeg );
+
+        for( int i = 0; i < length; i++ ) {
+            pos = Math.max( 0.0, Math.min( 1.0, (blendOff + i) * wFact ));
+            while( (seg < lastSeg) && (pos > x[ seg + 1 ]) ) seg++;
+            dx = pos - x[ seg ];
+            if( wIn  != null ) wIn[ i ]  = (float) (curve.wIn[ seg ]  + dx * curve.slopeIn[ seg ]);
+            if( wOut != null ) wOut[ i ] = (float) (curve.wOut[ seg ] + dx * curve.slopeOut[ seg ]);
+        }
+    }
+
+    /*
+     *	Adds the nodes of the polyline approximating the curve.
+     *	eqn holds the coefficients of x(t), eqn[ 0 ] is overwritten.
+     */
+    private void buildCurve( Curve c, double[] eqn )
+    {
+        final double[]	res		= new double[ 3 ];
+        final double[]	wa		= new double[ 2 ];
+        final double[]	wb		= new double[ 2 ];
+
+        exact( 0.0, eqn, res, wa );
+        c.add( 0.0, wa );
+        for( int i = 0; i < NUM_SEGMENTS; i++ ) {
+            final double b = (double) (i + 1) / NUM_SEGMENTS;
+            exact( b, eqn, res, wb );
+            refine( c, (double) i / NUM_SEGMENTS, b, wa, wb, MAX_DEPTH, eqn, res );
+            wa[ 0 ] = wb[ 0 ];
+            wa[ 1 ] = wb[ 1 ];
+        }
+        c.finish();
+    }
+
+    // adds the nodes after a up to and including b
+    private void refine( Curve c, double a, double b, double[] wa, double[] wb, int depth,
+                         double[] eqn, double[] res )
+    {
+        final double[]	wm	= new double[ 2 ];
+        final double	m	= (a + b) / 2;
+
+        exact( m, eqn, res, wm );
+        if( (depth > 0) && !(isLinear( a, b, wa, wb, m, wm, eqn, res ))) {
+            refine( c, a, m, wa, wm, depth - 1, eqn, res );
+            refine( c, m, b, wm, wb, depth - 1, eqn, res );
+        } else {
+            c.add( b, wb );
+        }
+    }
+
+    // checks the interpolation error at the center and the quarters of a segment
+    private boolean isLinear( double a, double b, double[] wa, double[] wb, double m, double[] wm,
+                              double[] eqn, double[] res )
+    {
+        final double[] w = new double[ 2 ];
+
+        for( int i = 0; i < 2; i++ ) {
+            if( Math.abs( (wa[ i ] + wb[ i ]) / 2 - wm[ i ]) > MAX_ERROR ) return false;
+        }
+        for( int q = 1; q <= 3; q += 2 ) {
+            final double f = 0.25 * q;
+            exact( a + (b - a) * f, eqn, res, w );
+            for( int i = 0; i < 2; i++ ) {
+                if( Math.abs( wa[ i ] + (wb[ i ] - wa[ i ]) * f - w[ i ]) > MAX_ERROR ) return false;
+            }
+        }
+        return true;
+    }
+
+    // calculates the fade-in and fade-out weights at a position of the curve
+    private void exact( double pos, double[] eqn, double[] res, double[] w )
+    {
+        double t, tt, ttt;
+
+        eqn[ 0 ]	= -pos;		// C = -x
+        CubicCurve2D.solveCubic( eqn, res );
+        t			= res[ 0 ];
+        if( t < 0.0 || t > 1.0 ) {
+            t		= res[ 1 ];
+            if( t < 0.0 || t > 1.0 ) {
+                t	= res[ 2 ];
+            }
+        }
+        tt			= t * t;
+        ttt			= tt * t;
+        w[ 0 ]		= ttt * yXInD + tt * yXInA + t * yXInB + yIn0;
+        w[ 1 ]		= ttt * yOutD + tt * yOutA + t * yOutB + yOut0;
+    }
+
+// -------- Curve internal class --------
+
+    /*
+     *	The polyline for a pair of control points
+     */
+    private static final class Curve
+    {
+        private final double	ctrlX1, ctrlY1, ctrlX2, ctrlY2;
+        private int				num		= 0;
+
+        double[]				x		= new double[ 256 ];
+        double[]				wIn		= new double[ 256 ];
+        double[]				wOut	= new double[ 256 ];
+        double[]				slopeIn, slopeOut;
+
+        Curve( Point2D[] ctrlPt )
+        {
+            ctrlX1	= ctrlPt[ 0 ].getX();
+            ctrlY1	= ctrlPt[ 0 ].getY();
+            ctrlX2	= ctrlPt[ 1 ].getX();
+            ctrlY2	= ctrlPt[ 1 ].getY();
+        }
+
+        boolean matches( Point2D[] ctrlPt )
+        {
+            return (ctrlX1 == ctrlPt[ 0 ].getX()) && (ctrlY1 == ctrlPt[ 0 ].getY()) &&
+                   (ctrlX2 == ctrlPt[ 1 ].getX()) && (ctrlY2 == ctrlPt[ 1 ].getY());
+        }
+
+        void add( double pos, double[] w )
+        {
+            if( num == x.length ) {
+                x		= Arrays.copyOf( x,    num << 1 );
+                wIn		= Arrays.copyOf( wIn,  num << 1 );
+                wOut	= Arrays.copyOf( wOut, num << 1 );
+            }
+            x[ num ]	= pos;
+            wIn[ num ]	= w[ 0 ];
+            wOut[ num ]	= w[ 1 ];
+            num++;
+        }
+
+        void finish()
+        {
+            x			= Arrays.copyOf( x,    num );
+            wIn			= Arrays.copyOf( wIn,  num );
+            wOut		= Arrays.copyOf( wOut, num );
+            slopeIn		= new double[ num - 1 ];
+            slopeOut	= new double[ num - 1 ];
+            for( int i = 0; i < num - 1; i++ ) {
+                final double dx = x[ i + 1 ] - x[ i ];
+                slopeIn[ i ]	= (wIn[ i + 1 ]  - wIn[ i ])  / dx;
+                slopeOut[ i ]	= (wOut[ i + 1 ] - wOut[ i ]) / dx;
+            }
+        }
+    }
 }
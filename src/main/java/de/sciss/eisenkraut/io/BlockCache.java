@@ -0,0 +1,231 @@
+/*
+ *  BlockCache.java
+ *  Eisenkraut
+ *
+ *  Copyright (c) 2004-2020 Hanns Holger Rutz. All rights reserved.
+ *
+ *  This software is published under the GNU Affero General Public License v3+
+ *
+ *
+ *  For further information, please contact Hanns Holger Rutz at
+ *  contact@sciss.de
+ */
+
+package de.sciss.eisenkraut.io;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ *	A process-wide cache of decoded sample frames, shared by all
+ *	<code>SampleReader</code>s. Files are divided into blocks of
+ *	<code>BLOCK_FRAMES</code> frames. A block is decoded once and then
+ *	served from memory until it is evicted, so repeated passes over the
+ *	same region (say, a normalization followed by a filter, or scrubbing
+ *	back and forth) do not touch the file again. The samples are kept
+ *	outside of the Java heap in direct buffers, which are evicted in
+ *	least-recently-used order once the memory budget is exceeded.
+ *	<p>
+ *	Blocks are keyed by file position rather than by trail position,
+ *	so edits which merely rearrange stakes leave the cache intact. Writing
+ *	to a file region, truncating or closing a file on the other hand must
+ *	discard the affected blocks, see <code>SampleReader.invalidate</code>
+ *	and <code>SampleReader.release</code>. Only blocks that are entirely
+ *	covered by the file are cached.
+ *
+ *	@see	SampleReader#invalidate( de.sciss.io.InterleavedStreamFile, long, long )
+ */
+public class BlockCache {
+
+    /**
+     *	Number of frames per block.
+     */
+    public static final int		BLOCK_FRAMES	= 4096;
+
+    // access order, so iteration starts at the least recently used block
+    private static final Map<Key, FloatBuffer> blocks	= new LinkedHashMap<Key, FloatBuffer>(256, 0.75f, true);
+
+    private static volatile long	capacity		= 0L;	// bytes
+    private static long				size			= 0L;	// bytes
+    private static long				hits			= 0L;
+    private static long				misses			= 0L;
+
+    private BlockCache() { /* empty */ }
+
+    /**
+     *	Sets the memory budget. Zero disables the cache.
+     *
+     *	@param	bytes	the maximum number of bytes occupied by cached blocks
+     */
+    public static synchronized void setCapacity(long bytes) {
+        capacity = Math.max(0L, bytes);
+        evict(0L, 0);
+    }
+
+    public static long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     *	Returns the number of bytes currently occupied by cached blocks.
+     */
+    public static synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     *	Returns the number of block lookups which could be served from the cache.
+     */
+    public static synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     *	Returns the number of block lookups which had to be decoded from the file.
+     */
+    public static synchronized long getMisses() {
+        return misses;
+    }
+
+    static boolean isEnabled() {
+        return capacity > 0L;
+    }
+
+    /**
+     *	Copies frames from a cached block.
+     *
+     *	@param	blockOff	frame offset within the block
+     *	@return	<code>true</code> if the block was found, <code>false</code> if
+     *			it needs to be decoded and put into the cache
+     */
+    static synchronized boolean read(SampleReader r, long idx, int blockOff, float[][] data, int dataOffset, int len) {
+        final FloatBuffer b = blocks.get(new Key(r, idx));
+        if (b == null) {
+            misses++;
+            return false;
+        }
+        hits++;
+        for (int ch = 0; ch < data.length; ch++) {
+            if (data[ch] == null) continue;
+            b.position(ch * BLOCK_FRAMES + blockOff);
+            b.get(data[ch], dataOffset, len);
+        }
+        return true;
+    }
+
+    /**
+     *	Returns the current generation of a reader's blocks. This must be
+     *	queried before decoding a block, and passed to <code>put</code>.
+     */
+    static synchronized long getGeneration(SampleReader r) {
+        return r.cacheGeneration;
+    }
+
+    /**
+     *	Adds a decoded block, unless the reader's file has been
+     *	written to since <code>generation</code> was queried, in which
+     *	case the block might contain outdated samples.
+     *
+     *	@param	data	one array of <code>BLOCK_FRAMES</code> frames per channel of the file
+     */
+    static synchronized void put(SampleReader r, long idx, long generation, float[][] data) {
+        final int	numFloats	= data.length * BLOCK_FRAMES;
+        final long	bytes		= (long) numFloats << 2;
+
+        if ((r.cacheGeneration != generation) || (bytes > capacity)) return;
+
+        final Key	key			= new Key(r, idx);
+        FloatBuffer	b			= blocks.remove(key);
+        if (b != null) size -= (long) b.capacity() << 2;
+        final FloatBuffer recycled = evict(bytes, numFloats);
+        if ((b == null) || (b.capacity() != numFloats)) {
+            b = (recycled != null) ? recycled :
+                    ByteBuffer.allocateDirect(numFloats << 2).order(ByteOrder.nativeOrder()).asFloatBuffer();
+        }
+        b.clear();
+        for (float[] chData : data) {
+            b.put(chData, 0, BLOCK_FRAMES);
+        }
+        blocks.put(key, b);
+        size += bytes;
+    }
+
+    /**
+     *	Discards the blocks touching a region of a reader's file.
+     *
+     *	@param	start	first frame of the region in the file
+     *	@param	stop	frame after the end of the region
+     */
+    static synchronized void invalidate(SampleReader r, long start, long stop) {
+        r.cacheGeneration++;
+        if ((stop <= start) || blocks.isEmpty()) return;
+
+        final long startIdx	= start / BLOCK_FRAMES;
+        final long stopIdx	= (stop - 1) / BLOCK_FRAMES + 1;
+
+        if (stopIdx - startIdx <= blocks.size()) {
+            for (long idx = startIdx; idx < stopIdx; idx++) {
+                final FloatBuffer b = blocks.remove(new Key(r, idx));
+                if (b != null) size -= (long) b.capacity() << 2;
+            }
+        } else {
+            for (Iterator<Map.Entry<Key, FloatBuffer>> iter = blocks.entrySet().iterator(); iter.hasNext(); ) {
+                final Map.Entry<Key, FloatBuffer> e = iter.next();
+                final Key key = e.getKey();
+                if ((key.reader == r) && (key.idx >= startIdx) && (key.idx < stopIdx)) {
+                    size -= (long) e.getValue().capacity() << 2;
+                    iter.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     *	Discards all blocks of a reader, to be called when its file is closed.
+     */
+    static synchronized void remove(SampleReader r) {
+        invalidate(r, 0L, Long.MAX_VALUE);
+    }
+
+    // evicts blocks until the given number of bytes fits in. returns the
+    // buffer of an evicted block with the given number of floats, if any
+    private static FloatBuffer evict(long bytes, int numFloats) {
+        final Iterator<FloatBuffer> iter = blocks.values().iterator();
+        FloatBuffer recycled = null;
+        FloatBuffer b;
+
+        while ((size + bytes > capacity) && iter.hasNext()) {
+            b = iter.next();
+            iter.remove();
+            size -= (long) b.capacity() << 2;
+            if (b.capacity() == numFloats) recycled = b;
+        }
+        return recycled;
+    }
+
+    // ---------------------- internal classes ----------------------
+
+    private static final class Key {
+        final SampleReader	reader;
+        final long			idx;
+
+        Key(SampleReader reader, long idx) {
+            this.reader	= reader;
+            this.idx	= idx;
+        }
+
+        public int hashCode() {
+            return System.identityHashCode(reader) * 31 + (int) (idx ^ (idx >>> 32));
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            final Key that = (Key) o;
+            return (that.reader == this.reader) && (that.idx == this.idx);
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ *  ContentFingerprint.java
+ *  Eisenkraut
+ *
+ *  Copyright (c) 2004-2020 Hanns Holger Rutz. All rights reserved.
+ *
+ *  This software is published under the GNU Affero General Public License v3+
+ *
+ *
+ *  For further information, please contact Hanns Holger Rutz at
+ *  contact@sciss.de
+ */
+
+package de.sciss.eisenkraut.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ *	Identifies a file by its contents rather than by its path, so that
+ *	a renamed, moved or copied file is recognized as the same. To avoid
+ *	a full scan, only the file size and a hash over a fixed number of
+ *	blocks sampled evenly across the file (including the first and the
+ *	last block) are taken into account. Fingerprints are remembered per
+ *	path as long as the file's size and modification date do not change.
+ *	Where sampling is not good enough, <code>getFullHash</code> hashes
+ *	the whole file.
+ *
+ *	@see	PrefCacheManager
+ */
+public final class ContentFingerprint {
+
+    private static final int	BLOCK_SIZE	= 4096;
+    private static final int	NUM_BLOCKS	= 16;
+    private static final int	FULL_BUF_SIZE = 65536;
+
+    private static final long	FNV_OFFSET	= 0xCBF29CE484222325L;
+    private static final long	FNV_PRIME	= 0x100000001B3L;
+
+    private static final Map<File, ContentFingerprint> memo	= new HashMap<File, ContentFingerprint>();
+
+    private final long		size;
+    private final long		hash;
+    private final String	key;
+
+    // used to validate memoized fingerprints
+    private final long		lastModified;
+
+    private ContentFingerprint(long size, long hash, long lastModified) {
+        this.size			= size;
+        this.hash			= hash;
+        this.lastModified	= lastModified;
+        key					= toHex(size) + toHex(hash);
+    }
+
+    /**
+     *	Returns the fingerprint of a file, reading at most
+     *	<code>NUM_BLOCKS</code> blocks of it.
+     */
+    public static ContentFingerprint get(File f)
+            throws IOException {
+
+        final File				path			= f.getAbsoluteFile();
+        final long				lastModified	= path.lastModified();
+        ContentFingerprint		result;
+
+        synchronized (memo) {
+            result = memo.get(path);
+        }
+        if ((result != null) && (result.size == path.length()) && (result.lastModified == lastModified)) {
+            return result;
+        }
+
+        final RandomAccessFile	raf				= new RandomAccessFile(path, "r");
+        try {
+            final FileChannel	ch		= raf.getChannel();
+            final long			size	= ch.size();
+            final ByteBuffer	b		= ByteBuffer.allocate(BLOCK_SIZE);
+            final long			numBlocks = Math.max(1L, (size + BLOCK_SIZE - 1) / BLOCK_SIZE);
+            final int			numSampled = (int) Math.min(NUM_BLOCKS, numBlocks);
+            long				hash	= FNV_OFFSET;
+            long				pos;
+            int					n;
+
+            for (int i = 0; i < numSampled; i++) {
+                // evenly spaced, the first and last sampled block are the file's first and last block
+                pos = (numSampled == 1) ? 0L : (numBlocks - 1) * i / (numSampled - 1) * BLOCK_SIZE;
+                b.clear();
+                do {
+                    n = ch.read(b, pos + b.position());
+                } while ((n >= 0) && b.hasRemaining());
+                b.flip();
+                while (b.hasRemaining()) {
+                    hash = (hash ^ (b.get() & 0xFF)) * FNV_PRIME;
+                }
+            }
+            result = new ContentFingerprint(size, hash, lastModified);
+        } finally {
+            raf.close();
+        }
+
+        synchronized (memo) {
+            memo.put(path, result);
+        }
+        return result;
+    }
+
+    /**
+     *	Returns a hash over the entire contents of a file.
+     *	This reads the whole file, so it should not be called
+     *	from the event dispatch thread.
+     */
+    public static long getFullHash(File f)
+            throws IOException {
+
+        final RandomAccessFile	raf		= new RandomAccessFile(f, "r");
+        try {
+            final FileChannel	ch		= raf.getChannel();
+            final ByteBuffer	b		= ByteBuffer.allocate(FULL_BUF_SIZE);
+            final byte[]		arr		= b.array();
+            long				hash	= FNV_OFFSET;
+            long				pos		= 0L;
+            int					n;
+
+            while ((n = ch.read(b, pos)) >= 0) {
+                for (int i = 0; i < n; i++) {
+                    hash = (hash ^ (arr[i] & 0xFF)) * FNV_PRIME;
+                }
+                pos += n;
+                b.clear();
+            }
+            return hash;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     *	Forgets the memoized fingerprint of a file, to be called when
+     *	the file is being rewritten, as its size and modification date
+     *	might not reveal the change.
+     */
+    public static void forget(File f) {
+        synchronized (memo) {
+            memo.remove(f.getAbsoluteFile());
+        }
+    }
+
+    /**
+     *	Returns the fingerprint as a string of hexadecimal digits,
+     *	suitable as part of a file name.
+     */
+    public String getKey() {
+        return key;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public int hashCode() {
+        return key.hashCode();
+    }
+
+    public boolean equals(Object o) {
+        return (o instanceof ContentFingerprint) && ((ContentFingerprint) o).key.equals(key);
+    }
+
+    public String toString() {
+        return key;
+    }
+
+    private static String toHex(long n) {
+        final String s = Long.toHexString(n);
+        return "0000000000000000".substring(s.length()) + s;
+    }
+}
@@ -25,7 +25,12 @@ import java.awt.image.BufferedImage;
 import java.awt.image.WritableRaster;
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.prefs.Preferences;
 
 import de.sciss.app.AbstractApplication;
@@ -37,8 +42,6 @@ import de.sciss.eisenkraut.math.MathUtil;
 //import de.sciss.eisenkraut.math.SlidingDFT;
 import de.sciss.eisenkraut.util.PrefsUtil;
 import de.sciss.io.AudioFile;
-import de.sciss.io.CacheManager;
-import de.sciss.io.IOUtil;
 import de.sciss.io.Span;
 import de.sciss.timebased.Stake;
 import de.sciss.util.MutableInt;
@@ -53,6 +56,11 @@ import de.sciss.util.MutableInt;
  * 	disappointing. Even in the worst scenario, fftSize=32768 and stepSize=128,
  * 	the plain FFT approach is still 7.5 times faster than the
  * 	sliding DFT variant... 
+ * 	<P>
+ * 	Besides the first level with one frame per hop, coarser levels
+ * 	are kept for zoomed out views. Their frames are the means of the
+ * 	squared magnitudes of the finer level, calculated while the first
+ * 	level is written, so only one accumulator per level is needed.
  * 
  *	TODO: editing (addAllDep)
  *	TODO: delay compensation (fftSize data seems to be missing,
@@ -67,6 +75,9 @@ public class DecimatedSonaTrail
 extends DecimatedTrail
 {
     private static final int		UPDATE_PERIOD			= 4000; // milliseconds in async overview calculation
+    private static final int		HOPS_PER_CHUNK			= 64;	// hops read and transformed at once in async calculation
+    // decimation shifts of the levels relative to the hop size, same spacing as the waveform trail
+    private static final int[]		LEVEL_SHIFTS			= { 0, 4, 8 };
 
     protected final Decimator		decimator;
 
@@ -238,8 +249,7 @@ extends DecimatedTrail
         final Preferences cqPrefs = AbstractApplication.getApplication().getUserPrefs().node( PrefsUtil.NODE_VIEW ).node( PrefsUtil.NODE_SONAGRAM );
         constQ.readPrefs( cqPrefs );
         constQ.setSampleRate( fullScale.getRate() );
-        System.out.println( "Creating ConstQ Kernels..." );
-        constQ.createKernels();
+        constQ.createKernels();	// shared with other documents of the same rate
         numKernels		= constQ.getNumKernels();
         filterBuf		= new float[ numKernels ];
         fftSize			= constQ.getFFTSize();
@@ -252,7 +262,6 @@ extends DecimatedTrail
 //		} else {
 //			slide		= null;
 //		}
-        System.out.println( "...done." );
 
 //		numMag			= fftSize >> 1;
 //		stepSize		= Math.min( fftSize, 256 );
@@ -267,7 +276,10 @@ extends DecimatedTrail
 
 //		inpWin			= Filter.createFullWindow( fftSize, Filter.WIN_HANNING );
 
-final int[] decimations = { decimKorr }; // , decimKorr + 8 };
+        final int[] decimations = new int[ LEVEL_SHIFTS.length ];
+        for( int i = 0; i < decimations.length; i++ ) {
+            decimations[ i ] = decimKorr + LEVEL_SHIFTS[ i ];
+        }
         SUB_NUM = decimations.length; // the first 'subsample' is actually fullrate
         this.decimHelps	= new DecimationHelp[SUB_NUM];
         for(int i = 0; i < SUB_NUM; i++ ) {
@@ -275,7 +287,7 @@ final int[] decimations = { decimKorr }; // , decimKorr + 8 };
         }
 //		MAXSHIFT		= decimations[ SUBNUM - 1 ]; // + decimKorr;
 //		MAXCOARSE		= Math.max( fftSize, 1 << MAXSHIFT );
-        MAX_SHIFT = decimations[ 0 ]; // + decimKorr;
+        MAX_SHIFT = decimations[ SUB_NUM - 1 ]; // + decimKorr;
         MAX_COARSE = 1 << MAX_SHIFT;
         MAX_MASK = -MAX_COARSE;
         MAX_CEIL_ADD = MAX_COARSE - 1;
@@ -285,8 +297,8 @@ final int[] decimations = { decimKorr }; // , decimKorr + 8 };
         }
 
         tmpBufSize		= fftSize; // Math.max( 4096, MAXCOARSE << 1 );
-        // XXX generates OutOfMemoryError ; need to use a different approach in the decimation steps
-        // (should "just" use the maximum per-step decimation, which is 256 in the Session defaults)
+        // the coarser levels are streamed through a LevelWriter, so tmpBuf2
+        // only needs to hold one chunk for drawing
 //		tmpBufSize2		= SUBNUM > 0 ? Math.max( 4096, tmpBufSize >> (decimations[ 0 ] + decimKorr)) : tmpBufSize;
         tmpBufSize2		= 1 << decimations[ 0 ];
         for(int i = 1; i < SUB_NUM; i++ ) {
@@ -453,15 +465,17 @@ long screenOffX = 0;
         int						idx, inlineDecim;
 
         subLength = fullLength;
-//		for( idx = 0; idx < SUBNUM; idx++ ) {
-//			n = decimHelps[ idx ].fullrateToSubsample( fullLength );
-//			if( n < minLen ) break;
-//			subLength = n;
-//		}
-//		idx--;
-n = decimHelps[ 0 ].fullRateToSubsample( fullLength );
-subLength = n;
-idx=0;
+        for( idx = 0; idx < SUB_NUM; idx++ ) {
+            n = decimHelps[ idx ].fullRateToSubsample( fullLength );
+            if( n < minLen ) break;
+            subLength = n;
+        }
+        idx--;
+        // there is no full rate version, so the first level is the finest available
+        if( idx < 0 ) {
+            idx			= 0;
+            subLength	= decimHelps[ 0 ].fullRateToSubsample( fullLength );
+        }
         // had to change '>= minLen' to '> minLen' because minLen could be zero!
         if (model == MODEL_SONA) {//			for( inlineDecim = 2; subLength / inlineDecim > minLen; inlineDecim++ ) ;
 //			inlineDecim--;
@@ -699,74 +713,43 @@ final int pri = Thread.currentThread().getPriority();
 //System.out.println( "pri was " + pri );
 Thread.currentThread().setPriority( pri - 2 );
 
-//				final CacheManager	cm					= PrefCacheManager.getInstance();
-                long				pos;
-                // long framesWritten = 0;
-                long				framesWrittenCache	= 0;
-//				boolean				cacheWriteComplete	= false;
-                Span				tag2;
-                int					len;
-                long				time;
-// WARNING: the variant with deferring the continueWrite
-// does not work because we loose the bufSync and hence
-// any readFrames destroys our buf. For high res analysis
-// the speed gain using the outBufOff cache method is
-// anyway <3%.
-//				int					outBufOff	= 0;
-                int					inBufOff = 0, nextLen = fftSize >> 1;
-                long				nextTime			= System.currentTimeMillis() + UPDATE_PERIOD;
-
-//				if( cacheReadAS != null ) {
-//					pos = decimHelps[ 0 ].fullrateToSubsample( extSpan.getStart() ); // XXX
-//				} else {
-                    pos = extSpan.getStart();
-//				}
-//				minCoarse = MAXCOARSE >> decimHelps[ 0 ].shift;
+                // the chunk buffers are private to this thread, so bufSync
+                // only needs to be held while reading and writing
+                final float[][]			inBuf		= new float[ fullChannels ][ fftSize + (HOPS_PER_CHUNK - 1) * stepSize ];
+                final float[][]			outBuf		= new float[ decimChannels ][ HOPS_PER_CHUNK ];
+                final HopWorker[]		workers		= createHopWorkers( HOPS_PER_CHUNK );
+                final LevelWriter		levels		= new LevelWriter( decimHelps, decimChannels, HOPS_PER_CHUNK );
+                long					pos			= extSpan.getStart();
+                int						numHops, readLen, len;
+                long					time;
+                int						nextLen		= fftSize >> 1;
+                long					nextTime	= System.currentTimeMillis() + UPDATE_PERIOD;
 
                 try {
 //long t1 = System.currentTimeMillis();
-                    for( int i = 0; (i < numFullBuf) && keepAsyncRunning; i++ ) {
-                        synchronized( bufSync ) {
-//							if( (i % 100) == 0 ) System.out.println( "ici " + i + " / " + numFullBuf );
-                            len = (int) Math.min( nextLen, fullrateStop - pos );
-//							if( inBufOff + len <= tmpBufSize ) {
-                                tag2 = new Span( pos, pos + len );
-//								fullScale.readFrames( tmpBuf, inBufOff, tag2, null );
-                                fullScale.readFrames( tmpBuf, fftSize - nextLen, tag2, null );
-//							} else { // hitting buffer boundaries
-//								tag2 = new Span( pos, pos + (tmpBufSize - inBufOff) );
-//								fullScale.readFrames( tmpBuf, inBufOff, tag2, null );
-//								tag2 = new Span( tag2.stop, pos + len );
-//								fullScale.readFrames( tmpBuf, 0, tag2, null );
-//							}
-                            if( len < nextLen ) {
-                                for( int ch = 0; ch < fullChannels; ch++ ) {
-                                    for( int j = (inBufOff + len) % tmpBufSize, k = nextLen - len; k >= 0; k-- ) {
-                                        tmpBuf[ ch ][ j ] = 0f;
-                                        if( ++j == tmpBufSize ) j = 0;
-                                    }
-                                }
+                    for( int i = 0; (i < numFullBuf) && keepAsyncRunning; i += numHops ) {
+                        // hop j of the chunk transforms inBuf[ j * stepSize ... j * stepSize + fftSize ]
+                        numHops	= Math.min( HOPS_PER_CHUNK, numFullBuf - i );
+                        readLen	= nextLen + (numHops - 1) * stepSize;
+                        len		= (int) Math.max( 0, Math.min( readLen, fullrateStop - pos ));
+                        if( len > 0 ) {
+                            synchronized( bufSync ) {
+                                fullScale.readFrames( inBuf, fftSize - nextLen, new Span( pos, pos + len ), null );
                             }
-//							decimator.decimatePCM( tmpBuf, tmpBuf2, outBufOff, 1, 1 );
-                            decimator.decimatePCM( tmpBuf, tmpBuf2, 0, 1, 1 );
-//							if( ++outBufOff == 1 ) {
-//								das.continueWrite( 0, tmpBuf2, 0, outBufOff );
-                                das.continueWrite( 0, tmpBuf2, 0, 1 );
-//								if( cacheWriteAS != null ) {
-////									cacheWriteAS.writeFrames( tmpBuf2, 0, new Span( framesWrittenCache, framesWrittenCache + outBufOff ));
-//									cacheWriteAS.writeFrames( tmpBuf2, 0, new Span( framesWrittenCache, framesWrittenCache + 1 ));
-//								}
-//								framesWrittenCache += outBufOff;
-                                framesWrittenCache++;
-//								outBufOff = 0;
-//							}
-                            pos += nextLen;
-                            inBufOff = (inBufOff + nextLen) % tmpBufSize;
-                            nextLen = stepSize;
+                        }
+                        if( len < readLen ) {
                             for( int ch = 0; ch < fullChannels; ch++ ) {
-                                System.arraycopy( tmpBuf[ ch ], nextLen, tmpBuf[ ch ], 0, fftSize - nextLen );
+                                Arrays.fill( inBuf[ ch ], fftSize - nextLen + len, fftSize - nextLen + readLen, 0f );
                             }
-//							System.out.println( "frame done" );
+                        }
+                        decimatePCM( inBuf, outBuf, numHops, workers );
+                        synchronized( bufSync ) {
+                            levels.write( das, outBuf, numHops );
+                        }
+                        pos += readLen;
+                        nextLen = stepSize;
+                        for( int ch = 0; ch < fullChannels; ch++ ) {
+                            System.arraycopy( inBuf[ ch ], numHops * stepSize, inBuf[ ch ], 0, fftSize - stepSize );
                         }
                         time = System.currentTimeMillis();
                         if( time >= nextTime ) {
@@ -777,17 +760,11 @@ Thread.currentThread().setPriority( pri - 2 );
                             }
                         }
                     }
-                    //						if( outBufOff > 0 ) {	// flush rest
-                    //							das.continueWrite( 0, tmpBuf2, 0, outBufOff );
-                    //							if( cacheWriteAS != null ) {
-                    //								cacheWriteAS.writeFrames( tmpBuf2, 0, new Span( framesWrittenCache, framesWrittenCache + outBufOff ));
-                    //							}
-                    //							framesWrittenCache += outBufOff;
-                    //							outBufOff = 0;
-                    //						}
-                    //						cacheWriteComplete = true;
-                    //						if( cacheWriteAS != null ) cacheWriteAS.addToCache( cm );
-                    //					das.flush();
+                    if( keepAsyncRunning ) {
+                        synchronized( bufSync ) {
+                            levels.flush( das );
+                        }
+                    }
 
 //final long t2 = System.currentTimeMillis();
 //System.out.println( "for doSlide = " + doSlide + "; len = " + extSpan.getLength() + "; calc took " + (t2-t1) + " ms; fftSize = " + fftSize + "; stepSize " + stepSize );
@@ -820,6 +797,7 @@ Thread.currentThread().setPriority( pri - 2 );
         final long				fullrateStop, fullrateLen; // , insertLen;
         final int				numFullBuf;
         final double			progWeight;
+        final LevelWriter		levels			= new LevelWriter( decimHelps, decimChannels, 1 );
         int						inBufOff = 0, nextLen = fftSize >> 1;
         long					pos;
         long					framesWritten = 0;
@@ -859,7 +837,7 @@ Thread.currentThread().setPriority( pri - 2 );
                 }
                 decimator.decimatePCM( tmpBuf, tmpBuf2, 0, 1, 1 );
 //				subsampleWrite( tmpBuf, tmpBuf, das, MAXCOARSE, null, 0 );
-                das.continueWrite( 0, tmpBuf2, 0, 1 );
+                levels.write( das, tmpBuf2, 1 );
 //				pos += MAXCOARSE;
 //				framesWritten += MAXCOARSE;
                 pos += nextLen;
@@ -871,6 +849,7 @@ Thread.currentThread().setPriority( pri - 2 );
 
                 setProgression( framesWritten, progWeight );
             }
+            levels.flush( das );
 
 //			len = (int) (fullrateStop - pos);
 //			if( len > 0 ) {
@@ -936,12 +915,17 @@ Thread.currentThread().setPriority( pri - 2 );
         final AudioFile[] audioFiles = fullScale.getAudioFiles();
         if ((audioFiles.length == 0) || (audioFiles[0] == null)) return null;
 
-        final CacheManager cm = PrefCacheManager.getInstance();
+        final PrefCacheManager cm = PrefCacheManager.getInstance();
         if (!cm.isActive()) return null;
 
         final File[] f = new File[audioFiles.length];
-        for (int i = 0; i < f.length; i++) {
-            f[i] = cm.createCacheFileName(IOUtil.setFileSuffix(audioFiles[i].getFile(), "fft"));
+        try {
+            for (int i = 0; i < f.length; i++) {
+                f[i] = cm.getCacheFile(ContentFingerprint.get(audioFiles[i].getFile()), "sona");
+                if (f[i] == null) return null;
+            }
+        } catch (IOException e1) {
+            return null;
         }
         return f;
     }
@@ -1162,6 +1146,216 @@ Thread.currentThread().setPriority( pri - 2 );
         } // for( SUBNUM )
     }
 
+    /*
+     *	Transforms the hops of a chunk read by the async thread, distributing
+     *	them across the workers on the shared decimation pool if there are any.
+     */
+    protected void decimatePCM( float[][] inBuf, float[][] outBuf, int numHops, HopWorker[] workers )
+    throws IOException
+    {
+        if( workers == null ) {
+            decimator.decimatePCM( inBuf, outBuf, 0, numHops, 1 );
+            return;
+        }
+
+        for( int i = 0, start = 0; i < workers.length; i++ ) {
+            final int stop = numHops * (i + 1) / workers.length;
+            workers[ i ].set( inBuf, outBuf, start, stop );
+            start = stop;
+        }
+        try {
+            for( Future<Object> f : getDecimationPool().invokeAll( Arrays.asList( workers ))) {
+                f.get();
+            }
+        } catch( InterruptedException e1 ) {
+            throw new InterruptedIOException();
+        } catch( ExecutionException e1 ) {
+            final Throwable cause = e1.getCause();
+            if( cause instanceof RuntimeException ) throw (RuntimeException) cause;
+            throw new IOException( cause );
+        }
+    }
+
+    /*
+     *	Returns <code>null</code> if there's only one processor
+     */
+    protected HopWorker[] createHopWorkers( int maxHops )
+    {
+        final int numWorkers = Math.min( maxHops, getDecimationPool().getParallelism() );
+        if( numWorkers < 2 ) return null;
+
+        final HopWorker[] workers = new HopWorker[ numWorkers ];
+        for( int i = 0; i < numWorkers; i++ ) {
+            workers[ i ] = new HopWorker();
+        }
+        return workers;
+    }
+
+    /*
+     *	Calculates the output frames <code>outStart</code> until <code>outStop</code>
+     *	of <code>decimatePCM</code>. This does not touch any shared state,
+     *	so disjoint ranges may be calculated in parallel as long as each
+     *	caller provides its own buffers.
+     */
+    private void transformHops( float[][] inBuf, float[][] outBuf, int outOff, int outStart, int outStop,
+                                  int decim, float[] fftBuf, float[] filterBuf )
+    {
+        final float w = 1.0f / decim;
+
+//int gaga = fftSize;
+        for( int inOff = (outStart - outOff) * decim * stepSize, decimCnt = 0; outStart < outStop; inOff += stepSize ) {
+            for( int ch = 0, outChanOff = 0; ch < fullChannels; ch++ ) {
+//System.out.println( "calling with " + inBuf[ ch].length + " -- " + inOff + " ; " + fftSize + "; " + filterBuf.length + " -- " + constQ.getNumKernels() );
+
+//					if( doSlide ) {
+//						slide.next( inBuf[ ch ], inOff, stepSize, ch, constQ.getFFTBuffer() );
+//						constQ.convolve( filterBuf, 0 );
+//					} else {
+                    constQ.transform( inBuf[ ch ], inOff, fftSize, filterBuf, 0, fftBuf );
+//					}
+                if( decimCnt == 0 ) {
+                    for( int i = 0; i < numKernels; i++ ) {
+                        outBuf[ outChanOff++ ][ outStart ] = filterBuf[ i ] * w;
+                    }
+                } else {
+                    for( int i = 0; i < numKernels; i++ ) {
+                        outBuf[ outChanOff++ ][ outStart ] += filterBuf[ i ] * w;
+                    }
+                }
+            }
+            decimCnt = (decimCnt + 1) % decim;
+            if( decimCnt == 0 ) outStart++;
+        }
+    }
+
+    // transforms a range of hops with its own buffers
+    private class HopWorker
+    implements Callable<Object>
+    {
+        private final float[]	fftBuf		= constQ.createFFTBuffer();
+        private final float[]	filterBuf	= new float[ numKernels ];
+        private float[][]		inBuf, outBuf;
+        private int				start, stop;
+
+        protected HopWorker() { /* empty */ }
+
+        protected void set( float[][] inBuf, float[][] outBuf, int start, int stop )
+        {
+            this.inBuf	= inBuf;
+            this.outBuf	= outBuf;
+            this.start	= start;
+            this.stop	= stop;
+        }
+
+        public Object call()
+        {
+            transformHops( inBuf, outBuf, 0, start, stop, 1, fftBuf, filterBuf );
+            return null;
+        }
+    }
+
+    /*
+     *	Writes the first level frames of a stake and derives the coarser levels
+     *	from them. Each coarser frame is the mean of <code>1 << shift difference</code>
+     *	finer frames; partial sums are carried over to the next call, so the
+     *	buffers do not grow with the stake length.
+     */
+    static final class LevelWriter
+    {
+        private final DecimationHelp[]	decimHelps;
+        private final int				decimChannels;
+        private final float[][]			sums;
+        private final int[]				counts;
+        private final float[][]			buf;
+
+        LevelWriter( DecimationHelp[] decimHelps, int decimChannels, int maxLen )
+        {
+            this.decimHelps		= decimHelps;
+            this.decimChannels	= decimChannels;
+            sums				= new float[ decimHelps.length ][ decimChannels ];
+            counts				= new int[ decimHelps.length ];
+            buf					= new float[ decimChannels ][ maxLen ];
+        }
+
+        /*
+         *	@param	frames	the first level frames, starting at offset zero
+         */
+        void write( DecimatedStake das, float[][] frames, int len )
+        throws IOException
+        {
+            float[][]	in	= frames;
+            int			num	= len;
+
+            das.continueWrite( 0, frames, 0, len );
+
+            for( int sub = 1; (sub < decimHelps.length) && (num > 0); sub++ ) {
+                final int		factor	= 1 << (decimHelps[ sub ].shift - decimHelps[ sub - 1 ].shift);
+                final float		w		= 1.0f / factor;
+                final float[]	subSums	= sums[ sub ];
+                int				cnt		= counts[ sub ];
+                int				outLen	= 0;
+
+                // this works in place, as the output index never exceeds the input index
+                for( int ch = 0; ch < decimChannels; ch++ ) {
+                    final float[]	inCh	= in[ ch ];
+                    final float[]	outCh	= buf[ ch ];
+                    float			sum		= subSums[ ch ];
+
+                    cnt		= counts[ sub ];
+                    outLen	= 0;
+                    for( int i = 0; i < num; i++ ) {
+                        sum += inCh[ i ];
+                        if( ++cnt == factor ) {
+                            outCh[ outLen++ ]	= sum * w;
+                            sum					= 0f;
+                            cnt					= 0;
+                        }
+                    }
+                    subSums[ ch ] = sum;
+                }
+                counts[ sub ]	= cnt;
+                das.continueWrite( sub, buf, 0, outLen );
+                in				= buf;
+                num				= outLen;
+            }
+        }
+
+        /*
+         *	Writes the incomplete last frame of each coarser level,
+         *	averaging only the finer frames which were seen. The levels
+         *	are allocated with the floor of the stake length, so there
+         *	may be no room for it, in which case it is dropped.
+         */
+        void flush( DecimatedStake das )
+        throws IOException
+        {
+            boolean carry = false;
+
+            for( int sub = 1; sub < decimHelps.length; sub++ ) {
+                final float[] subSums = sums[ sub ];
+
+                if( carry ) {
+                    for( int ch = 0; ch < decimChannels; ch++ ) {
+                        subSums[ ch ] += buf[ ch ][ 0 ];
+                    }
+                    counts[ sub ]++;
+                }
+                carry = counts[ sub ] > 0;
+                if( !carry ) continue;
+
+                final float w = 1.0f / counts[ sub ];
+                for( int ch = 0; ch < decimChannels; ch++ ) {
+                    buf[ ch ][ 0 ]	= subSums[ ch ] * w;
+                    subSums[ ch ]	= 0f;
+                }
+                counts[ sub ] = 0;
+                if( das.getFramesLeft( sub ) > 0 ) {
+                    das.continueWrite( sub, buf, 0, 1 );
+                }
+            }
+        }
+    }
+
     // ---------------------- decimation subclasses ----------------------
 
     private abstract class Decimator
@@ -1204,8 +1398,6 @@ Thread.currentThread().setPriority( pri - 2 );
 
         protected void decimatePCM( float[][] inBuf, float[][] outBuf, int outOff, int len, int decim )
         {
-            final float w = 1.0f / decim;
-
 //			for( int inOff = 0, stop = outOff + len, decimCnt = 0; outOff < stop; inOff += stepSize ) {
 //				for( int ch = 0; ch < fullChannels; ch++ ) {
 //					constQ.transform( inBuf[ ch ], inOff, Math.max( 0, inBuf[ ch ].length - inOff ), outBuf[ ch ], outOff, decimCnt > 0, w );
@@ -1214,30 +1406,7 @@ Thread.currentThread().setPriority( pri - 2 );
 //				if( decimCnt == 0 ) outOff += modelChannels;
 //			}
 
-//int gaga = fftSize;
-            for( int inOff = 0, stop = outOff + len, decimCnt = 0; outOff < stop; inOff += stepSize ) {
-                for( int ch = 0, outChanOff = 0; ch < fullChannels; ch++ ) {
-//System.out.println( "calling with " + inBuf[ ch].length + " -- " + inOff + " ; " + fftSize + "; " + filterBuf.length + " -- " + constQ.getNumKernels() );
-
-//					if( doSlide ) {
-//						slide.next( inBuf[ ch ], inOff, stepSize, ch, constQ.getFFTBuffer() );
-//						constQ.convolve( filterBuf, 0 );
-//					} else {
-                        constQ.transform( inBuf[ ch ], inOff, fftSize, filterBuf, 0 );
-//					}
-                    if( decimCnt == 0 ) {
-                        for( int i = 0; i < numKernels; i++ ) {
-                            outBuf[ outChanOff++ ][ outOff ] = filterBuf[ i ] * w;
-                        }
-                    } else {
-                        for( int i = 0; i < numKernels; i++ ) {
-                            outBuf[ outChanOff++ ][ outOff ] += filterBuf[ i ] * w;
-                        }
-                    }
-                }
-                decimCnt = (decimCnt + 1) % decim;
-                if( decimCnt == 0 ) outOff++;
-            }
+            transformHops( inBuf, outBuf, outOff, outOff, outOff + len, decim, constQ.getFFTBuffer(), filterBuf );
         }
 
         protected int draw( DecimationInfo info, int ch,
@@ -147,17 +147,10 @@ public class DecimatedStake extends BasicStake {
 
         synchronized( fs ) {
             readyLen = (int) Math.min( len, Math.max( 0, fileSpans[ sub ].start + framesWritten[ sub ].value() - fOffset ));
-            if( readyLen > 0 ) {
-
-                if( fs[ sub ].getFramePosition() != fOffset ) {
-                    fs[ sub ].seekFrame( fOffset );
-                }
-    // XXX TEST
-    //			fs[ sub ].readFrames( data, dataOffset, len );
-    //			readyLen = (int) Math.min( len, framesWritten[ sub ].value() - fOffset );
-                fs[ sub ].readFrames( data, dataOffset, readyLen );
-            }
         }
+        // frames up to readyLen have been written and won't change,
+        // so they can be read without holding the lock
+        if( readyLen > 0 ) readFramesUnlocked( sub, fOffset, data, dataOffset, readyLen );
 
         framesRead.set( readyLen );
         framesBusy.set( len - readyLen );
@@ -176,15 +169,27 @@ public class DecimatedStake extends BasicStake {
 
         synchronized( fs ) {
             readyLen = (int) Math.min( 1, fileSpans[ sub ].start + framesWritten[ sub ].value() - fOffset );
-            if( readyLen == 1 ) {
-                if( fs[ sub ].getFramePosition() != fOffset ) {
-                    fs[ sub ].seekFrame( fOffset );
-                }
-                fs[ sub ].readFrames( data, dataOffset, 1 );
-                return true;
-            } else {
-                return false;
+        }
+        if( readyLen == 1 ) {
+            readFramesUnlocked( sub, fOffset, data, dataOffset, 1 );
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    // uses positional reads if possible, otherwise falls back to seek + read under the lock
+    private void readFramesUnlocked( int sub, long fOffset, float[][] data, int dataOffset, int len )
+    throws IOException
+    {
+        final SampleReader r = SampleReader.get( fs[ sub ]);
+        if( (r != null) && r.readFrames( fOffset, data, dataOffset, len )) return;
+
+        synchronized( fs ) {
+            if( fs[ sub ].getFramePosition() != fOffset ) {
+                fs[ sub ].seekFrame( fOffset );
             }
+            fs[ sub ].readFrames( data, dataOffset, len );
         }
     }
 
@@ -203,11 +208,22 @@ public class DecimatedStake extends BasicStake {
                 fs[ sub ].seekFrame( fOffset );
             }
             fs[ sub ].writeFrames( data, dataOffset, len );
+            SampleReader.invalidate( fs[ sub ], fOffset, len );
 
             framesWritten[ sub ].add( len );
         }
     }
 
+    /**
+     *	Returns the number of frames that may still be
+     *	written to a level with <code>continueWrite</code>.
+     */
+    public long getFramesLeft(int sub) {
+        synchronized (fs) {
+            return fileSpans[sub].stop - (fileSpans[sub].start + framesWritten[sub].value());
+        }
+    }
+
     public void flush()
             throws IOException {
         synchronized (fs) {
@@ -32,6 +32,8 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
 
 public abstract class DecimatedTrail extends BasicTrail {
 
@@ -90,6 +92,8 @@ public abstract class DecimatedTrail extends BasicTrail {
 
     protected EventManager			asyncManager			= null;
 
+    private static ForkJoinPool		decimPool				= null; // lazy
+
     protected static final double	TWENTYBYLOG10			= 20 / MathUtil.LN10; // 8.685889638065;
     protected static final double	TENBYLOG10				= 10 / MathUtil.LN10;
 
@@ -132,6 +136,27 @@ public abstract class DecimatedTrail extends BasicTrail {
         ProcessingThread.flushProgression();
     }
 
+    /**
+     *	Returns the pool shared by all trails for calculating
+     *	overviews in the background. It uses one worker per processor;
+     *	the workers run at a lowered priority so as not to
+     *	compete with the GUI and real-time threads.
+     */
+    protected static synchronized ForkJoinPool getDecimationPool() {
+        if (decimPool == null) {
+            decimPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors(),
+                    new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+                        public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                            final ForkJoinWorkerThread t =
+                                    ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                            t.setPriority(Thread.NORM_PRIORITY - 2);
+                            return t;
+                        }
+                    }, null, false);
+        }
+        return decimPool;
+    }
+
     protected final void killAsyncThread() {
         if (threadAsync != null) {
             synchronized (threadAsync) {
@@ -270,6 +295,7 @@ public abstract class DecimatedTrail extends BasicTrail {
     protected void deleteTempFiles(AudioFile[] tempFiles) {
         for (AudioFile tempFile : tempFiles) {
             if (tempFile != null) {
+                SampleReader.release(tempFile);
                 tempFile.cleanUp();
                 tempFile.getFile().delete();
             }
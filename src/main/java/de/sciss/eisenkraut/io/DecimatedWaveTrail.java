@@ -16,11 +16,8 @@ package de.sciss.eisenkraut.io;
 import de.sciss.app.AbstractCompoundEdit;
 import de.sciss.eisenkraut.Main;
 import de.sciss.eisenkraut.gui.WaveformView;
-import de.sciss.eisenkraut.util.PrefsUtil;
 import de.sciss.io.AudioFile;
-import de.sciss.io.AudioFileCacheInfo;
 import de.sciss.io.AudioFileDescr;
-import de.sciss.io.CacheManager;
 import de.sciss.io.Span;
 import de.sciss.timebased.Stake;
 import de.sciss.util.MutableInt;
@@ -29,7 +26,17 @@ import java.awt.*;
 import java.awt.geom.AffineTransform;
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 /**
  *	TODO: common superclass of AudioTrail and DecimatedTrail
@@ -42,8 +49,14 @@ public class DecimatedWaveTrail
         extends DecimatedTrail {
 
     private static final int		UPDATE_PERIOD			= 2000; // milliseconds in async overview calculation
+    private static final int		MIN_PEAK_BLOCKS			= 16;	// in getPeak
+    private static final int		PEAK_BUF_SIZE			= 8192;
+    private static final String		CACHE_MODEL				= "wave";	// cache file model name
 
     private final Decimator			decimator;
+    private final WaveformTiles		tiles;
+    // per tile worker buffers, see drawWaveform
+    private final ThreadLocal<float[][][]>	tileBufs	= new ThreadLocal<float[][][]>();
 
     // waveform drawing
     // private static final Stroke strkLine = new BasicStroke( 0.5f );
@@ -109,6 +122,7 @@ public class DecimatedWaveTrail
         setRate( fullScale.getRate() );
 
         this.fullScale	= fullScale;
+        tiles			= new WaveformTiles( this );
         fullScale.addDependant( this );
 
         // ok, the fullScale file might have already been populated
@@ -259,6 +273,16 @@ public class DecimatedWaveTrail
      * scaling the Graphics2D by 1/4 at no significant CPU cost.
      */
     public void drawWaveform(DecimationInfo info, WaveformView view, Graphics2D g2) {
+        tiles.paint(info, view, g2);
+    }
+
+    /*
+     * Draws the waveform of info.span into the given channel rectangles.
+     * This may block on file I/O and is called by the tile workers,
+     * which run in parallel, each using its own buffers.
+     */
+    protected void drawWaveform(DecimationInfo info, Rectangle[] rects, boolean logAmp, float minY, float maxY,
+                                List<Span> busyList, Graphics2D g2) {
         final boolean			fromPCM 		= info.idx == -1;
         final boolean			toPCM			= fromPCM && (info.inlineDecim == 1);
         // final long maxLen = toPCM ? tmpBufSize : (fromPCM ? Math.min(
@@ -277,10 +301,12 @@ public class DecimatedWaveTrail
         final int[][]			rmsPolyX		= toPCM ? null : new int[ fullChannels ][ polySize ];
         final int[][]			rmsPolyY		= toPCM ? null : new int[ fullChannels ][ polySize ];
         final boolean[]			sampleAndHold	= toPCM ? new boolean[ fullChannels ] : null;
-        final float				maxY, minY, minInpY, deltaY, deltaYN;
+        final float				minInpY, deltaY, deltaYN;
         final float				offY;
         final int[]				off				= new int[ fullChannels ];
-        final boolean			logAmp			= view.getVerticalScale() == PrefsUtil.VSCALE_AMP_LOG;
+        final float[][][]		bufs			= getTileBuffers();
+        final float[][]			frameBuf		= bufs[ 0 ];
+        final float[][]			decimBuf		= bufs[ 1 ];
 
         float[]					sPeakP;
         float					offX, scaleX, scaleY, f1;
@@ -292,15 +318,9 @@ public class DecimatedWaveTrail
         Rectangle				r;
 
         try {
-            drawBusyList.clear(); // "must be called in the event thread"
-
             if( logAmp ) {
-                maxY	= view.getAmpLogMax();
-                minY	= view.getAmpLogMin();
                 minInpY = (float) Math.exp( minY / TWENTYBYLOG10 );
             } else {
-                maxY	= view.getAmpLinMax();
-                minY	= view.getAmpLinMin();
                 minInpY	= 0;	// not used
             }
             deltaY	= maxY - minY;
@@ -309,76 +329,72 @@ public class DecimatedWaveTrail
 
 //System.out.println( "deltaY " + deltaY + "; deltaYN " + deltaYN + "; offY " + offY );
 
-            synchronized( bufSync ) {
-                createBuffers();
-
-                while( totalLength > 0 ) {
-                    fullLen		= Math.min( maxLen, totalLength );
-                    chunkLen	= (int) (fromPCM ? fullLen : decimHelps[ info.idx ].fullRateToSubsample( fullLen ));
-                    decimLen	= chunkLen / info.inlineDecim;
-                    chunkLen	= decimLen * info.inlineDecim;
-                    fullLen		= (long) chunkLen << info.shift;
+            while( totalLength > 0 ) {
+                fullLen		= Math.min( maxLen, totalLength );
+                chunkLen	= (int) (fromPCM ? fullLen : decimHelps[ info.idx ].fullRateToSubsample( fullLen ));
+                decimLen	= chunkLen / info.inlineDecim;
+                chunkLen	= decimLen * info.inlineDecim;
+                fullLen		= (long) chunkLen << info.shift;
 //					chunkSpan	= new Span( start, start + fullLen );
 
-                    if( fromPCM ) {
-                        fullStop = fullScale.getSpan().stop;
-                        chunkSpan = new Span( start, Math.min( fullStop, start + fullLen ));
-                        fullScale.readFrames( tmpBuf, 0, chunkSpan );
-                        final long chunkStop = chunkSpan.getLength();
-                        if( (chunkStop < fullLen) && (chunkStop > 0) ) {
-                            // duplicate last frames
-                            for( int i = (int) chunkStop, j = i - 1; i < (int) fullLen; i++ ) {
-                                for( int ch = 0; ch < fullChannels; ch++ ) {
-                                    sPeakP		= tmpBuf[ ch ];
-                                    sPeakP[ i ]	= sPeakP[ j ];
-                                }
+                if( fromPCM ) {
+                    fullStop = fullScale.getSpan().stop;
+                    chunkSpan = new Span( start, Math.min( fullStop, start + fullLen ));
+                    fullScale.readFrames( frameBuf, 0, chunkSpan );
+                    final long chunkStop = chunkSpan.getLength();
+                    if( (chunkStop < fullLen) && (chunkStop > 0) ) {
+                        // duplicate last frames
+                        for( int i = (int) chunkStop, j = i - 1; i < (int) fullLen; i++ ) {
+                            for( int ch = 0; ch < fullChannels; ch++ ) {
+                                sPeakP		= frameBuf[ ch ];
+                                sPeakP[ i ]	= sPeakP[ j ];
                             }
                         }
-                        if( !toPCM ) decimator.decimatePCM( tmpBuf, tmpBuf2, 0, decimLen, info.inlineDecim );
-                    } else {
-                        chunkSpan = new Span( start, start + fullLen );
-                        readFrames( info.idx, tmpBuf2, 0, drawBusyList, chunkSpan, null);
-                        if( info.inlineDecim > 1 ) decimator.decimate( tmpBuf2, tmpBuf2, 0, decimLen, info.inlineDecim );
                     }
-                    if( toPCM ) {
-                        if( logAmp ) {
-                            for( int ch = 0; ch < fullChannels; ch++ ) {
-                                sPeakP = tmpBuf[ ch ];
-                                for( int i = 0; i < decimLen; i++ ) {
-                                    f1 = Math.abs( sPeakP[ i ]);
-                                    if( f1 > minInpY ) {
-                                        sPeakP[ i ] = (float) (Math.log( f1 ) * TWENTYBYLOG10);
-                                    } else {
-                                        sPeakP[ i ] = minY;
-                                    }
+                    if( !toPCM ) decimator.decimatePCM( frameBuf, decimBuf, 0, decimLen, info.inlineDecim );
+                } else {
+                    chunkSpan = new Span( start, start + fullLen );
+                    readFrames( info.idx, decimBuf, 0, busyList, chunkSpan, null);
+                    if( info.inlineDecim > 1 ) decimator.decimate( decimBuf, decimBuf, 0, decimLen, info.inlineDecim );
+                }
+                if( toPCM ) {
+                    if( logAmp ) {
+                        for( int ch = 0; ch < fullChannels; ch++ ) {
+                            sPeakP = frameBuf[ ch ];
+                            for( int i = 0; i < decimLen; i++ ) {
+                                f1 = Math.abs( sPeakP[ i ]);
+                                if( f1 > minInpY ) {
+                                    sPeakP[ i ] = (float) (Math.log( f1 ) * TWENTYBYLOG10);
+                                } else {
+                                    sPeakP[ i ] = minY;
                                 }
                             }
                         }
+                    }
+                    for( int ch = 0; ch < fullChannels; ch++ ) {
+                        sPeakP				= frameBuf[ ch ];
+                        r					= rects[ ch ];
+                        scaleX				= 4 * r.width / (float) (info.subLength - 1);
+                        scaleY				= r.height * deltaYN;
+                        offX				= scaleX * off[ ch ];
+                        sampleAndHold[ch]	= scaleX > 16;
+                        off[ch]				= drawPCM( sPeakP, decimLen, peakPolyX[ ch ],
+                                                       peakPolyY[ ch ], off[ ch ], offX, scaleX, scaleY, sampleAndHold[ ch ]);
+                    }
+                } else {
+                    if( logAmp ) {
                         for( int ch = 0; ch < fullChannels; ch++ ) {
-                            sPeakP				= tmpBuf[ ch ];
-                            r					= view.rectForChannel( ch );
-                            scaleX				= 4 * r.width / (float) (info.subLength - 1);
-                            scaleY				= r.height * deltaYN;
-                            offX				= scaleX * off[ ch ];
-                            sampleAndHold[ch]	= scaleX > 16;
-                            off[ch]				= drawPCM( sPeakP, decimLen, peakPolyX[ ch ],
-                                                           peakPolyY[ ch ], off[ ch ], offX, scaleX, scaleY, sampleAndHold[ ch ]);
+                            off[ ch ] = decimator.drawLog( info, decimBuf, ch, peakPolyX, peakPolyY, rmsPolyX, rmsPolyY, decimLen, rects[ ch ], deltaYN, off[ ch ], minY, minInpY );
                         }
                     } else {
-                        if( logAmp ) {
-                            for( int ch = 0; ch < fullChannels; ch++ ) {
-                                off[ ch ] = decimator.drawLog( info, ch, peakPolyX, peakPolyY, rmsPolyX, rmsPolyY, decimLen, view.rectForChannel( ch ), deltaYN, off[ ch ], minY, minInpY );
-                            }
-                        } else {
-                            for( int ch = 0; ch < fullChannels; ch++ ) {
-                                off[ ch ] = decimator.draw( info, ch, peakPolyX, peakPolyY, rmsPolyX, rmsPolyY, decimLen, view.rectForChannel( ch ), deltaYN, off[ ch ]);
-                            }
+                        for( int ch = 0; ch < fullChannels; ch++ ) {
+                            off[ ch ] = decimator.draw( info, decimBuf, ch, peakPolyX, peakPolyY, rmsPolyX, rmsPolyY, decimLen, rects[ ch ], deltaYN, off[ ch ]);
                         }
                     }
-                    start += fullLen;
-                    totalLength -= fullLen;
                 }
-            } // synchronized( bufSync )
+                start += fullLen;
+                totalLength -= fullLen;
+            }
 
             // System.err.println( "busyList.size() = "+busyList.size() );
 
@@ -387,7 +403,7 @@ public class DecimatedWaveTrail
                 g2.setStroke(strkLine);
                 g2.setPaint(pntLine);
                 for (int ch = 0; ch < fullChannels; ch++) {
-                    r = view.rectForChannel(ch);
+                    r = rects[ch];
                     g2.clipRect(r.x, r.y, r.width, r.height);
                     g2.translate(r.x, r.y + r.height * offY);
                     g2.scale(0.25f, 0.25f);
@@ -398,11 +414,11 @@ public class DecimatedWaveTrail
                 g2.setStroke(strkOrig);
             } else {
                 for (int ch = 0; ch < fullChannels; ch++) {
-                    r = view.rectForChannel(ch);
+                    r = rects[ch];
                     g2.clipRect(r.x, r.y, r.width, r.height);
-                    if (!drawBusyList.isEmpty()) {
+                    if (!busyList.isEmpty()) {
                         g2.setPaint(pntBusy);
-                        for (Span aDrawBusyList : drawBusyList) {
+                        for (Span aDrawBusyList : busyList) {
                             chunkSpan = aDrawBusyList;
                             scaleX = r.width / (float) info.getTotalLength(); // (info.sublength - 1);
                             g2.fillRect((int) ((chunkSpan.start - info.span.start) * scaleX) + r.x, r.y,
@@ -425,6 +441,16 @@ public class DecimatedWaveTrail
         }
     }
 
+    // returns the calling thread's pair of full rate and decimated buffers
+    private float[][][] getTileBuffers() {
+        float[][][] bufs = tileBufs.get();
+        if( bufs == null ) {
+            bufs = new float[][][] { new float[ fullChannels ][ tmpBufSize ], new float[ decimChannels ][ tmpBufSize2 ]};
+            tileBufs.set( bufs );
+        }
+        return bufs;
+    }
+
 
     /**
      * Determines which sub-sampled version is suitable for a given display range
@@ -510,6 +536,135 @@ public class DecimatedWaveTrail
         }
     }
 
+    /**
+     * Determines the peak amplitude of the full-rate trail within a span.
+     * The span is divided into blocks of one decimation period, and the
+     * peak envelope of the overview yields an upper bound for each block.
+     * Blocks are examined in the order of decreasing bounds by reading
+     * their full-rate samples, until no remaining block can exceed the peak
+     * found so far. Since the maximum is usually found in the first block,
+     * this reads only a fraction of the span. Blocks at stake boundaries,
+     * blocks whose overview is still being calculated, and the ragged end
+     * of the span are always read.
+     *
+     * @param channels
+     *            for each channel of the full-rate trail, whether it should be
+     *            considered, or <code>null</code> to consider all channels
+     * @return the maximum absolute sample value
+     * @throws IOException
+     *             if a read error occurs
+     */
+    public float getPeak(Span span, boolean[] channels)
+            throws IOException {
+
+        final long len = span.getLength();
+        if (len <= 0) return 0f;
+
+        int sub = SUB_NUM - 1;
+        while ((sub > 0) && ((len >> decimHelps[sub].shift) < MIN_PEAK_BLOCKS)) sub--;
+
+        final int		shift		= decimHelps[sub].shift;
+        final int		numBlocks	= (int) ((len + decimHelps[sub].factor - 1) >> shift);
+        final float[]	bounds		= new float[numBlocks];
+        final boolean[]	covered		= new boolean[numBlocks];
+        final Integer[]	order		= new Integer[numBlocks];
+        final float[][]	buf			= new float[fullChannels][(int) Math.min(PEAK_BUF_SIZE, len)];
+        float			peak		= 0f;
+        Span			blockSpan, chunkSpan;
+        int				k;
+
+        if ((model == MODEL_FULLWAVE_PEAKRMS) || (model == MODEL_HALFWAVE_PEAKRMS)) {
+            collectPeakBounds(sub, span, channels, bounds, covered);
+        }
+        for (k = 0; k < numBlocks; k++) {
+            if (!covered[k]) bounds[k] = Float.POSITIVE_INFINITY;
+            order[k] = k;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return Float.compare(bounds[b], bounds[a]);
+            }
+        });
+
+        for (int i = 0; (i < numBlocks) && (bounds[order[i]] > peak); i++) {
+            k			= order[i];
+            blockSpan	= new Span(span.start + ((long) k << shift), Math.min(span.stop, span.start + ((long) (k + 1) << shift)));
+            for (long pos = blockSpan.start; pos < blockSpan.stop; pos = chunkSpan.stop) {
+                chunkSpan = new Span(pos, Math.min(blockSpan.stop, pos + buf[0].length));
+                fullScale.readFrames(buf, 0, chunkSpan);
+                for (int ch = 0; ch < fullChannels; ch++) {
+                    if ((channels != null) && !channels[ch]) continue;
+                    final float[] b = buf[ch];
+                    for (int j = 0, m = (int) chunkSpan.getLength(); j < m; j++) {
+                        final float f = Math.abs(b[j]);
+                        if (f > peak) peak = f;
+                    }
+                }
+            }
+        }
+        return peak;
+    }
+
+    // fills in the peak bounds of the blocks of getPeak from the decimated stakes.
+    // the position of a decimated frame is only known up to the rounding of the
+    // stake's bias, so each frame is attributed to its neighbouring blocks as well
+    private void collectPeakBounds(int sub, Span span, boolean[] channels, float[] bounds, boolean[] covered)
+            throws IOException {
+
+        final DecimationHelp	decim		= decimHelps[sub];
+        final List<Stake>		coll		= editGetCollByStart(null);
+        final MutableInt		readyLen	= new MutableInt(0);
+        final MutableInt		busyLen		= new MutableInt(0);
+        int						idx			= editIndexOf(span.start, true, null);
+        float[][]				buf			= null;
+        DecimatedStake			stake;
+        Span					subSpan;
+        long					pos;
+        float					p;
+        int						n, ch2;
+
+        if (idx < 0) idx = -(idx + 2);
+        for (idx = Math.max(0, idx); idx < coll.size(); idx++) {
+            stake = (DecimatedStake) coll.get(idx);
+            if (stake.getSpan().start >= span.stop) break;
+            subSpan = new Span(Math.max(stake.getSpan().start, span.start), Math.min(stake.getSpan().stop, span.stop));
+            if (subSpan.isEmpty()) continue;
+
+            n = (int) (subSpan.getLength() >> decim.shift) + 2;
+            if ((buf == null) || (buf[0].length < n)) buf = new float[decimChannels][n];
+            stake.readFrames(sub, buf, 0, subSpan, readyLen, busyLen);
+
+            for (int j = 0; j < readyLen.value(); j++) {
+                p = 0f;
+                for (int ch = 0; ch < fullChannels; ch++) {
+                    if ((channels != null) && !channels[ch]) continue;
+                    ch2 = ch * modelChannels;
+                    p = Math.max(p, Math.max(buf[ch2][j], -buf[ch2 + 1][j]));
+                }
+                pos = subSpan.start + ((long) j << decim.shift);
+                markBlocks(span, decim, pos - decim.factor, pos + (decim.factor << 1), p, bounds, covered);
+            }
+            // the edges of the stake might have been decimated together with
+            // material outside of it, and the end might not be decimated yet
+            markBlocks(span, decim, subSpan.start - decim.factor, subSpan.start + decim.factor,
+                    Float.POSITIVE_INFINITY, bounds, covered);
+            markBlocks(span, decim, subSpan.start + ((long) (readyLen.value() - 1) << decim.shift), subSpan.stop + decim.factor,
+                    Float.POSITIVE_INFINITY, bounds, covered);
+        }
+    }
+
+    private static void markBlocks(Span span, DecimationHelp decim, long start, long stop, float bound,
+                                   float[] bounds, boolean[] covered) {
+
+        final int startK	= (int) Math.max(0L, (start - span.start) >> decim.shift);	// arithmetic shift floors
+        final int stopK		= (int) Math.min(bounds.length, ((stop - span.start + decim.factor - 1) >> decim.shift));
+
+        for (int k = startK; k < stopK; k++) {
+            if (bound > bounds[k]) bounds[k] = bound;
+            covered[k] = true;
+        }
+    }
+
     /*
      * Same as in <code>NondestructiveDecimatedSampledTrack</code> but with
      * automaic bias adjust.
@@ -578,10 +733,11 @@ public class DecimatedWaveTrail
 
     // ----------- dependant implementation -----------
 
-//	public void dispose()
-//	{
-//		super.dispose();
-//	}
+    public void dispose()
+    {
+        tiles.dispose();
+        super.dispose();
+    }
 
     // private void addAllDepAsync( Object source, List stakes, SyncCompoundEdit
     // ce, Span union )
@@ -597,12 +753,9 @@ public class DecimatedWaveTrail
         final Span					union		= fullScale.getSpan();
         final Span					extSpan;
         final long					fullrateStop, fullrateLen; // , insertLen;
-        final int					numFullBuf;
         // final CacheManager cm = CacheManager.getInstance();
         final AbstractCompoundEdit	ce			= null; // XXX
         final Object				source		= null; // XXX
-        final AudioStake			cacheReadAS;
-        final AudioStake			cacheWriteAS;
 
         synchronized( fileSync ) {
             das			= allocAsync( union );
@@ -612,18 +765,6 @@ public class DecimatedWaveTrail
         fullrateStop	= Math.min( extSpan.getStop(), fullScale.editGetSpan( ce ).stop );
         fullrateLen		= fullrateStop - extSpan.getStart();
 
-        cacheReadAS		= openCacheForRead( model );
-        if( cacheReadAS == null ) {
-            // cacheWriteAS = fullScale.openCacheForWrite( model,
-            // decimHelps[ 0 ].fullrateToSubsample( union.getLength() ));
-            cacheWriteAS = openCacheForWrite( model, (fullrateLen + MAX_CEIL_ADD) & MAX_MASK);
-            numFullBuf	= (int) (fullrateLen >> MAX_SHIFT);
-        } else {
-            // cached files always have integer fullBufs!
-            numFullBuf	= (int) ((fullrateLen + MAX_CEIL_ADD) >> MAX_SHIFT);
-            cacheWriteAS = null;
-        }
-
         synchronized( bufSync ) {
             createBuffers();
         }
@@ -638,51 +779,78 @@ final int pri = Thread.currentThread().getPriority();
 //System.out.println( "pri was " + pri );
 Thread.currentThread().setPriority( pri - 2 );
                 final int			minCoarse;
-                final CacheManager	cm					= PrefCacheManager.getInstance();
-                long				pos;
-                // long framesWritten = 0;
+                final PrefCacheManager cm				= PrefCacheManager.getInstance();
+                final ForkJoinPool	pool				= getDecimationPool();
+                final int			maxPending			= pool.getParallelism() << 1;
+                final Deque<Future<float[][][]>> pending = new ArrayDeque<Future<float[][][]>>( maxPending );
+                final long			startPos;
+                final int			numBlocks;
+                final int			lastLen;
+                final int			numFullBuf;
+                AudioStake			cacheReadAS			= null;
+                AudioStake			cacheWriteAS		= null;
                 long				framesWrittenCache	= 0;
                 boolean				cacheWriteComplete	= false;
-                Span				tag2;
-                float				f1;
+                float[][][]			blockBufs;
                 int					len;
+                int					nextBlock			= 0;
                 long				time;
                 long				nextTime			= System.currentTimeMillis() + UPDATE_PERIOD;
 
-                if( cacheReadAS != null ) {
-                    pos = decimHelps[ 0 ].fullRateToSubsample( extSpan.getStart() );
+                // the cache is opened here rather than on the caller's
+                // thread, as validating it may hash the whole audio file
+                try {
+                    cacheReadAS = openCacheForRead( model );
+                    if( cacheReadAS == null ) {
+                        cacheWriteAS = openCacheForWrite( model, (fullrateLen + MAX_CEIL_ADD) & MAX_MASK);
+                    }
+                } catch( IOException e1 ) {
+                    e1.printStackTrace();	// decimate without the cache
+                }
+                if( cacheReadAS == null ) {
+                    numFullBuf	= (int) (fullrateLen >> MAX_SHIFT);
                 } else {
-                    pos = extSpan.getStart();
+                    // cached files always have integer fullBufs!
+                    numFullBuf	= (int) ((fullrateLen + MAX_CEIL_ADD) >> MAX_SHIFT);
                 }
+
                 minCoarse = MAX_COARSE >> decimHelps[ 0 ].shift;
+                if( cacheReadAS != null ) {
+                    startPos	= decimHelps[ 0 ].fullRateToSubsample( extSpan.getStart() );
+                    numBlocks	= numFullBuf;
+                    lastLen		= minCoarse;
+                } else {
+                    startPos	= extSpan.getStart();
+                     // the last block may be shorter, it is padded in the decimation task
+                    len			= (int) (fullrateStop - (startPos + ((long) numFullBuf << MAX_SHIFT)));
+                    numBlocks	= len > 0 ? numFullBuf + 1 : numFullBuf;
+                    lastLen		= len > 0 ? len : MAX_COARSE;
+                }
 
+                // the blocks are decimated independently of each other on the
+                // shared pool; results are written in order, so the stake and
+                // cache files are laid out exactly as in the sequential case
                 try {
-                    for( int i = 0; (i < numFullBuf) && keepAsyncRunning; i++ ) {
-                        synchronized( bufSync ) {
-                            if( cacheReadAS != null ) {
-                                // System.out.println( "tmpBuf2.length = "+tmpBuf2.length+"; fullChannels = "+fullChannels + "; decimChannels = "+decimChannels );
-                                tag2 = new Span( pos, pos + minCoarse );
-                                cacheReadAS.readFrames( tmpBuf2, 0, tag2 );
-                                das.continueWrite( 0, tmpBuf2, 0, minCoarse );
-                                subsampleWrite2( tmpBuf2, das, minCoarse );
-                                pos += minCoarse;
-                            } else {
-                                tag2 = new Span(pos, pos + MAX_COARSE);
-                                // fullScale.readFrames( tmpBuf, 0, tag2, ce );
-                                fullScale.readFrames(tmpBuf, 0, tag2, null);
-                                // for( int k = 0; k < tmpBuf.length; k++ ) {
-                                // for( int j = 0; j < MAXCOARSE; j++ ) {
-                                // tmpBuf[ k ][ j ] = 0.125f; }}
-                                subsampleWrite( tmpBuf, tmpBuf2, das, MAX_COARSE,
-                                                cacheWriteAS, framesWrittenCache );
-                                pos += MAX_COARSE;
-                                framesWrittenCache += minCoarse;
-                            }
-                            // framesWritten += MAXCOARSE;
+                    for( int i = 0; (i < numBlocks) && keepAsyncRunning; i++ ) {
+                        while( (nextBlock < numBlocks) && (pending.size() < maxPending) ) {
+                            pending.add( pool.submit( new BlockDecimation( cacheReadAS, startPos, nextBlock,
+                                    nextBlock == numBlocks - 1 ? lastLen : (cacheReadAS != null ? minCoarse : MAX_COARSE) )));
+                            nextBlock++;
+                        }
+                        blockBufs = awaitBlock( pending.removeFirst() );
+                        len = minCoarse;
+                        for( int sub = 0; sub < SUB_NUM; sub++ ) {
+                            if( sub > 0 ) len >>= decimHelps[ sub ].shift - decimHelps[ sub - 1 ].shift;
+                            das.continueWrite( sub, blockBufs[ sub ], 0, len );
+                        }
+                        if( cacheWriteAS != null ) {
+                            cacheWriteAS.writeFrames( blockBufs[ 0 ], 0, new Span( framesWrittenCache, framesWrittenCache + minCoarse ));
+                            framesWrittenCache += minCoarse;
                         }
                         time = System.currentTimeMillis();
                         if( time >= nextTime ) {
                             nextTime = time + UPDATE_PERIOD;
+                            tiles.refreshIncomplete();
                             if( asyncManager != null ) {
                                 asyncManager.dispatchEvent( new AsyncEvent(
                                         DecimatedWaveTrail.this, AsyncEvent.UPDATE, time, DecimatedWaveTrail.this ));
@@ -690,34 +858,27 @@ Thread.currentThread().setPriority( pri - 2 );
                         }
                     }
 
-                     // cached files always have integer fullBufs!
-                    if( (cacheReadAS == null) && keepAsyncRunning ) {
-                        len = (int) (fullrateStop - pos);
-                        if( len > 0 ) {
-                            synchronized( bufSync ) {
-                                tag2 = new Span( pos, pos + len );
-                                // fullScale.readFrames( tmpBuf, 0, tag2, ce );
-                                fullScale.readFrames( tmpBuf, 0, tag2, null );
-                                for( int ch = 0; ch < fullChannels; ch++ ) {
-                                    f1 = tmpBuf[ch][len - 1];
-                                    for(int i = len; i < MAX_COARSE; i++ ) {
-                                        tmpBuf[ch][i] = f1;
-                                    }
+                    if( keepAsyncRunning ) {
+                        cacheWriteComplete = true;
+                        if( cacheWriteAS != null ) {
+                            final ContentFingerprint[] fps = createCacheFingerprints();
+                            if( fps != null ) {
+                                final AudioFile[] audioFiles = fullScale.getAudioFiles();
+                                for( int i = 0; i < fps.length; i++ ) {
+                                    cm.add( fps[ i ], audioFiles[ i ].getFile() );
                                 }
-                                subsampleWrite( tmpBuf, tmpBuf2, das, MAX_COARSE,
-                                                cacheWriteAS, framesWrittenCache );
-                                // pos += MAXCOARSE;
-                                // framesWrittenCache += minCoarse;
                             }
                         }
                     }
-                    if( keepAsyncRunning ) {
-                        cacheWriteComplete = true;
-                        if( cacheWriteAS != null ) cacheWriteAS.addToCache( cm );
-                    }
                 } catch( IOException e1 ) {
                     e1.printStackTrace();
                 } finally {
+                    // tasks may still be reading from the cache stake, so let them finish
+                    while( !pending.isEmpty() ) {
+                        try {
+                            awaitBlock( pending.removeFirst() );
+                        } catch( Exception e2 ) { /* ignored */ }
+                    }
                     if( cacheReadAS != null ) {
                         cacheReadAS.cleanUp();
                         cacheReadAS.dispose(); // !!!
@@ -736,6 +897,7 @@ Thread.currentThread().setPriority( pri - 2 );
                         }
                     }
 
+                    tiles.refreshIncomplete();
                     if (asyncManager != null) {
                         asyncManager.dispatchEvent(new AsyncEvent(DecimatedWaveTrail.this,
                                 AsyncEvent.FINISHED, System.currentTimeMillis(), DecimatedWaveTrail.this));
@@ -752,6 +914,81 @@ Thread.currentThread().setPriority( pri - 2 );
         threadAsync.start();
     }
 
+    private static float[][][] awaitBlock( Future<float[][][]> f )
+    throws IOException
+    {
+        try {
+            return f.get();
+        } catch( InterruptedException e1 ) {
+            throw new InterruptedIOException();
+        } catch( ExecutionException e1 ) {
+            final Throwable cause = e1.getCause();
+            if( cause instanceof IOException ) throw (IOException) cause;
+            if( cause instanceof RuntimeException ) throw (RuntimeException) cause;
+            throw new IOException( cause );
+        }
+    }
+
+    /*
+     *	Reads one block of MAX_COARSE full rate frames (or minCoarse frames
+     *	of a cache file) and calculates all decimation stages for it.
+     *	Blocks are aligned to the coarsest decimation, thus do not depend
+     *	on each other. The result is one buffer per stage.
+     */
+    private class BlockDecimation
+    implements Callable<float[][][]>
+    {
+        private final AudioStake	cacheReadAS;
+        private final long			pos;
+        private final int			len;
+
+        protected BlockDecimation( AudioStake cacheReadAS, long startPos, int block, int len )
+        {
+            this.cacheReadAS	= cacheReadAS;
+            this.len			= len;
+            pos					= startPos + (long) block * (cacheReadAS != null ? MAX_COARSE >> decimHelps[ 0 ].shift : MAX_COARSE);
+        }
+
+        public float[][][] call()
+        throws IOException
+        {
+            final float[][][]	result	= new float[ SUB_NUM ][][];
+            float[][]			buf;
+            int					decimLen;
+            float				f1;
+
+            if( cacheReadAS != null ) {
+                buf			= new float[ decimChannels ][ len ];
+                cacheReadAS.readFrames( pos, buf, 0, len );
+                decimLen	= len;
+            } else {
+                buf			= new float[ fullChannels ][ MAX_COARSE ];
+                fullScale.readFrames( buf, 0, new Span( pos, pos + len ));
+                if( len < MAX_COARSE ) {
+                    for( int ch = 0; ch < fullChannels; ch++ ) {
+                        f1 = buf[ ch ][ len - 1 ];
+                        for( int i = len; i < MAX_COARSE; i++ ) {
+                            buf[ ch ][ i ] = f1;
+                        }
+                    }
+                }
+                decimLen	= MAX_COARSE >> decimHelps[ 0 ].shift;
+                final float[][] outBuf = new float[ decimChannels ][ decimLen ];
+                decimator.decimatePCM( buf, outBuf, 0, decimLen, 1 << decimHelps[ 0 ].shift );
+                buf			= outBuf;
+            }
+            result[ 0 ] = buf;
+
+            for( int i = 1; i < SUB_NUM; i++ ) {
+                final int decim = decimHelps[ i ].shift - decimHelps[ i - 1 ].shift;
+                decimLen >>= decim;
+                result[ i ] = new float[ decimChannels ][ decimLen ];
+                decimator.decimate( result[ i - 1 ], result[ i ], 0, decimLen, 1 << decim );
+            }
+            return result;
+        }
+    }
+
     protected void addAllDep( Object source, List<Stake> stakes, AbstractCompoundEdit ce, Span union )
     throws IOException
     {
@@ -818,18 +1055,47 @@ Thread.currentThread().setPriority( pri - 2 );
     // ----------- private -----------
 
     protected File[] createCacheFileNames()
+    {
+        final ContentFingerprint[] fps = createCacheFingerprints();
+        if( fps == null ) return null;
+
+        final PrefCacheManager cm = PrefCacheManager.getInstance();
+        final File[] f = new File[ fps.length ];
+        for( int i = 0; i < f.length; i++ ) {
+            f[i] = cm.getCacheFile( fps[i], CACHE_MODEL );
+            if( f[i] == null ) return null;
+        }
+        return f;
+    }
+
+    /*
+     * @returns the fingerprints of the audio files, or null if
+     * the cache is inactive or the files cannot be read
+     */
+    private ContentFingerprint[] createCacheFingerprints()
     {
         final AudioFile[] audioFiles = fullScale.getAudioFiles();
         if( (audioFiles.length == 0) || (audioFiles[0] == null) ) return null;
 
-        final CacheManager cm = PrefCacheManager.getInstance();
-        if( !cm.isActive() ) return null;
+        if( !PrefCacheManager.getInstance().isActive() ) return null;
 
-        final File[] f = new File[ audioFiles.length ];
-        for( int i = 0; i < f.length; i++ ) {
-            f[i] = cm.createCacheFileName( audioFiles[i].getFile() );
+        final ContentFingerprint[] fps = new ContentFingerprint[ audioFiles.length ];
+        try {
+            for( int i = 0; i < fps.length; i++ ) {
+                fps[i] = ContentFingerprint.get( audioFiles[i].getFile() );
+            }
+        } catch( IOException e1 ) {
+            return null;
         }
-        return f;
+        return fps;
+    }
+
+    // identifies the decimation model and the audio file's layout.
+    // the file itself is identified by the fingerprint in the cache file's name
+    private static byte[] createCacheAppCode( ContentFingerprint fp, int decimModel, AudioFile af )
+    {
+        return (fp.getKey() + " " + decimModel + " " + af.getChannelNum() + " " + af.getFrameNum()).getBytes(
+            StandardCharsets.US_ASCII );
     }
 
     /*
@@ -838,9 +1104,11 @@ Thread.currentThread().setPriority( pri - 2 );
     private AudioStake openCacheForRead( int decimModel )
     throws IOException
     {
+        final ContentFingerprint[] fps	= createCacheFingerprints();
         final File[]		f			= createCacheFileNames();
-        if( f == null ) return null;
+        if( (fps == null) || (f == null) ) return null;
 
+        final PrefCacheManager cm		= PrefCacheManager.getInstance();
         final AudioFile[]	audioFiles	= fullScale.getAudioFiles();
         final Span[]		fileSpans	= new Span[ audioFiles.length ];
         final AudioFile[]	cacheAFs	= new AudioFile[ audioFiles.length ];
@@ -849,7 +1117,10 @@ Thread.currentThread().setPriority( pri - 2 );
         AudioStake			result		= null;
         AudioFileDescr		afd;
         byte[]				appCode;
-        AudioFileCacheInfo	infoA, infoB;
+
+        for( int i = 0; i < fps.length; i++ ) {
+            if( !cm.isValid( fps[ i ], audioFiles[ i ].getFile() )) return null;
+        }
 
         try {
             for( int i = 0; i < cacheAFs.length; i++ ) {
@@ -870,20 +1141,10 @@ Thread.currentThread().setPriority( pri - 2 );
                 appCode = (byte[]) afd.getProperty( AudioFileDescr.KEY_APPCODE );
                 // System.err.println( "ourCode = '" + ourCode + "'; afd.appCode
                 // = '" + afd.appCode + "'; appCode = '" + appCode + "'" );
-                if( ourCode.equals( afd.appCode ) && (appCode != null) ) {
-                    infoA = AudioFileCacheInfo.decode( appCode );
-                    if( infoA != null ) {
-                        infoB = new AudioFileCacheInfo( audioFiles[ i ], decimModel, audioFiles[ i ].getFrameNum() );
-                        if( !infoA.equals( infoB )) {
-                            // System.err.println( "info mismatch!" );
-                            return null;
-                        }
-                        // System.err.println( "ok. numChans = " +
-                        // infoA.getNumChannels() );
-                    } else {
-                        return null;
-                    }
-                } else {
+                if( !ourCode.equals( afd.appCode ) ||
+                    !Arrays.equals( appCode, createCacheAppCode( fps[ i ], decimModel, audioFiles[ i ]))) {
+
+                    // System.err.println( "info mismatch!" );
                     return null;
                 }
                 fileSpans[ i ] = new Span( 0, cacheAFs[ i ].getFrameNum() );
@@ -894,6 +1155,7 @@ Thread.currentThread().setPriority( pri - 2 );
             } else {
                 result = new MultiMappedAudioStake( fileSpans[ 0 ], cacheAFs, fileSpans, channelMaps );
             }
+            for( ContentFingerprint fp : fps ) cm.touch( fp );
             return result;
         } finally {
             if( result == null ) {
@@ -909,19 +1171,19 @@ Thread.currentThread().setPriority( pri - 2 );
     private AudioStake openCacheForWrite( int decimModel, long decimFrameNum )
     throws IOException
     {
+        final ContentFingerprint[] fps		= createCacheFingerprints();
         final File[]			f			= createCacheFileNames();
-        if( f == null ) return null;
+        if( (fps == null) || (f == null) ) return null;
 
         final AudioFile[]		audioFiles	= fullScale.getAudioFiles();
         final AudioFileDescr	afdProto	= new AudioFileDescr();
-        final CacheManager		cm			= PrefCacheManager.getInstance();
+        final PrefCacheManager	cm			= PrefCacheManager.getInstance();
         final Span[]			fileSpans	= new Span[ audioFiles.length ];
         final AudioFile[]		cacheAFs	= new AudioFile[ audioFiles.length ];
         final String			ourCode		= Main.getMacOSCreator(); // AbstractApplication.getApplication().getMacOSCreator();
         final int[][]			channelMaps	= createCacheChannelMaps();
         AudioStake				result		= null;
         AudioFileDescr			afd;
-        AudioFileCacheInfo		info;
 
         afdProto.type			= AudioFileDescr.TYPE_AIFF;
         afdProto.bitsPerSample	= 32;
@@ -931,14 +1193,13 @@ Thread.currentThread().setPriority( pri - 2 );
 
         try {
             for( int i = 0; i < f.length; i++ ) {
-                cm.removeFile( f[ i ]); // in case it existed
+                cm.removeFile( fps[ i ], CACHE_MODEL ); // in case it existed
 // System.out.println( "openCacheForWrite doing '" + f[ i ].getAbsolutePath() + "'" );
                 afd				= new AudioFileDescr( afdProto );
                 afd.channels	= channelMaps[ i ].length;
                 // System.out.println( "channels = " + afd.channels );
                 afd.file		= f[ i ];
-                info			= new AudioFileCacheInfo( audioFiles[ i ], decimModel, audioFiles[ i ].getFrameNum() );
-                afd.setProperty( AudioFileDescr.KEY_APPCODE, info.encode() );
+                afd.setProperty( AudioFileDescr.KEY_APPCODE, createCacheAppCode( fps[ i ], decimModel, audioFiles[ i ]));
                 cacheAFs[ i ]	= AudioFile.openAsWrite( afd );
                 fileSpans[ i ]	= new Span( 0, decimFrameNum );
             }
@@ -1023,10 +1284,10 @@ Thread.currentThread().setPriority( pri - 2 );
         protected abstract void decimatePCM( float[][] inBuf, float[][] outBuf, int outOff, int len, int decim );
         // protected abstract void decimatePCMFast( float[][] inBuf, float[][]
         // outBuf, int outOff, int len, int decim );
-        protected abstract int draw( DecimationInfo info, int ch, int[][] peakPolyX, int[][] peakPolyY,
+        protected abstract int draw( DecimationInfo info, float[][] decimBuf, int ch, int[][] peakPolyX, int[][] peakPolyY,
                                      int[][] rmsPolyX, int[][] rmsPolyY, int decimLen,
                                      Rectangle r, float deltaYN, int off );
-        protected abstract int drawLog( DecimationInfo info, int ch, int[][] peakPolyX, int[][] peakPolyY,
+        protected abstract int drawLog( DecimationInfo info, float[][] decimBuf, int ch, int[][] peakPolyX, int[][] peakPolyY,
                                         int[][] rmsPolyX, int[][] rmsPolyY, int decimLen,
                                         Rectangle r, float deltaYN, int off, float minY, float minInpY );
     }
@@ -1182,7 +1443,7 @@ System.out.println( "warning: HalfPeakRMSDecimator : not checked" );
             } // for( ch )
         }
 
-        protected int draw( DecimationInfo info, int ch,
+        protected int draw( DecimationInfo info, float[][] decimBuf, int ch,
                             int[][] peakPolyX, int[][] peakPolyY,
                             int[][] rmsPolyX, int[][] rmsPolyY, int decimLen,
                             Rectangle r, float deltaYN, int off )
@@ -1192,10 +1453,10 @@ System.out.println( "warning: HalfPeakRMSDecimator : not checked" );
             int			ch2;
 
             ch2		= ch <<= 2;
-            sPeakP	= tmpBuf2[ ch2++ ];
-            sPeakN	= tmpBuf2[ ch2++ ];
-            sRMSP	= tmpBuf2[ ch2++ ];
-            sRMSN	= tmpBuf2[ ch2 ];
+            sPeakP	= decimBuf[ ch2++ ];
+            sPeakN	= decimBuf[ ch2++ ];
+            sRMSP	= decimBuf[ ch2++ ];
+            sRMSN	= decimBuf[ ch2 ];
 
             scaleX	= 4 * r.width / (float) (info.subLength - 1);
             scaleY	= r.height * deltaYN;
@@ -1208,7 +1469,7 @@ System.out.println( "warning: HalfPeakRMSDecimator : not checked" );
                                          scaleY ));
         }
 
-        protected int drawLog( DecimationInfo info, int ch, int[][] peakPolyX, int[][] peakPolyY,
+        protected int drawLog( DecimationInfo info, float[][] decimBuf, int ch, int[][] peakPolyX, int[][] peakPolyY,
             int[][] rmsPolyX, int[][] rmsPolyY, int decimLen,
             Rectangle r, float deltaYN, int off, float minY, float minInpY )
         {
@@ -1308,14 +1569,14 @@ System.out.println( "warning: HalfPeakRMSDecimator : not checked" );
         // decimate( inBuf, outBuf, outOff, len, decim );
         // }
 
-        protected int draw( DecimationInfo info, int ch, int[][] peakPolyX, int[][] peakPolyY,
+        protected int draw( DecimationInfo info, float[][] decimBuf, int ch, int[][] peakPolyX, int[][] peakPolyY,
                             int[][] rmsPolyX, int[][] rmsPolyY, int decimLen,
                             Rectangle r, float deltaYN, int off )
         {
             throw new IllegalStateException( "Median drawing not yet working" );
         }
 
-        protected int drawLog( DecimationInfo info, int ch, int[][] peakPolyX, int[][] peakPolyY,
+        protected int drawLog( DecimationInfo info, float[][] decimBuf, int ch, int[][] peakPolyX, int[][] peakPolyY,
                 int[][] rmsPolyX, int[][] rmsPolyY, int decimLen,
                 Rectangle r, float deltaYN, int off, float minY, float minInpY )
         {
@@ -1392,7 +1653,7 @@ System.out.println( "warning: HalfPeakRMSDecimator : not checked" );
             } // for( ch )
         }
 
-        protected int draw( DecimationInfo info, int ch,
+        protected int draw( DecimationInfo info, float[][] decimBuf, int ch,
                             int[][] peakPolyX, int[][] peakPolyY,
                             int[][] rmsPolyX, int[][] rmsPolyY, int decimLen,
                             Rectangle r, float deltaYN, int off )
@@ -1402,9 +1663,9 @@ System.out.println( "warning: HalfPeakRMSDecimator : not checked" );
             float		offX, scaleX, scaleY;
 
             ch2		= ch * 3;
-            sPeakP	= tmpBuf2[ ch2++ ];
-            sPeakN	= tmpBuf2[ ch2++ ];
-            sRMSP	= tmpBuf2[ ch2 ];
+            sPeakP	= decimBuf[ ch2++ ];
+            sPeakN	= decimBuf[ ch2++ ];
+            sRMSP	= decimBuf[ ch2 ];
             scaleX	= 4 * r.width / (float) (info.subLength - 1);
             scaleY	= r.height * deltaYN;
             offX	= scaleX * off;
@@ -1444,7 +1705,7 @@ System.out.println( "warning: HalfPeakRMSDecimator : not checked" );
             return off;
         }
 
-        protected int drawLog( DecimationInfo info, int ch,
+        protected int drawLog( DecimationInfo info, float[][] decimBuf, int ch,
             int[][] peakPolyX, int[][] peakPolyY,
             int[][] rmsPolyX, int[][] rmsPolyY, int decimLen,
             Rectangle r, float deltaYN, int off, float minY, float minInpY )
@@ -1454,9 +1715,9 @@ System.out.println( "warning: HalfPeakRMSDecimator : not checked" );
             float		offX, scaleX, scaleY;
 
             ch2		= ch * 3;
-            sPeakP	= tmpBuf2[ ch2++ ];
-            sPeakN	= tmpBuf2[ ch2++ ];
-            sRMSP	= tmpBuf2[ ch2 ];
+            sPeakP	= decimBuf[ ch2++ ];
+            sPeakN	= decimBuf[ ch2++ ];
+            sRMSP	= decimBuf[ ch2 ];
             scaleX	= 4 * r.width / (float) (info.subLength - 1);
             scaleY	= r.height * deltaYN;
             offX	= scaleX * off;
@@ -0,0 +1,131 @@
+/*
+ *  FrameTransfer.java
+ *  Eisenkraut
+ *
+ *  Copyright (c) 2004-2020 Hanns Holger Rutz. All rights reserved.
+ *
+ *  This software is published under the GNU Affero General Public License v3+
+ *
+ *
+ *  For further information, please contact Hanns Holger Rutz at
+ *  contact@sciss.de
+ */
+
+package de.sciss.eisenkraut.io;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+
+import de.sciss.io.AudioFile;
+import de.sciss.io.InterleavedStreamFile;
+import de.sciss.io.Span;
+
+/**
+ *	Copies frames from source stakes to a target stake as raw bytes,
+ *	bypassing decoding and encoding, as long as the files on both
+ *	sides have the same sample layout. The target files are written
+ *	through separate channels, the stream files are merely told
+ *	about their new length.
+ *
+ *	@see	AudioTrail#flatten( InterleavedStreamFile[], Span, int[] )
+ */
+class FrameTransfer {
+
+    private final AudioStake			target;
+    private final AudioFile[]			targetFs;
+    private final FileChannel[]			targetChs;
+    private final SampleDataLayout[]	targetLayouts;
+
+    private FrameTransfer(AudioStake target, AudioFile[] targetFs, FileChannel[] targetChs,
+                          SampleDataLayout[] targetLayouts) {
+        this.target			= target;
+        this.targetFs		= targetFs;
+        this.targetChs		= targetChs;
+        this.targetLayouts	= targetLayouts;
+    }
+
+    /**
+     *	Prepares direct copying to a target stake.
+     *
+     *	@return	the transfer, or <code>null</code> if the target's
+     *			files do not support direct copying
+     */
+    static FrameTransfer create(AudioStake target)
+            throws IOException {
+
+        final InterleavedStreamFile[]	fs		= target.getDirectFiles();
+        if (fs == null) return null;
+
+        final AudioFile[]				afs		= new AudioFile[fs.length];
+        final FileChannel[]				chs		= new FileChannel[fs.length];
+        final SampleDataLayout[]		layouts	= new SampleDataLayout[fs.length];
+        FrameTransfer					result	= null;
+
+        try {
+            for (int i = 0; i < fs.length; i++) {
+                if (!(fs[i] instanceof AudioFile)) return null;
+                afs[i]		= (AudioFile) fs[i];
+                afs[i].flush();	// the header must be on disk for the layout scan
+                chs[i]		= new RandomAccessFile(afs[i].getFile(), "rw").getChannel();
+                layouts[i]	= SampleDataLayout.create(afs[i], chs[i]);
+                if (layouts[i] == null) return null;
+            }
+            result = new FrameTransfer(target, afs, chs, layouts);
+            return result;
+        } finally {
+            if (result == null) close(chs);
+        }
+    }
+
+    /**
+     *	Copies a region of a source stake to the same
+     *	region of the target stake.
+     *
+     *	@return	<code>true</code> if the frames were copied, <code>false</code>
+     *			if they must be read and written the normal way. In this
+     *			case, the region may have been copied partly
+     */
+    boolean transfer(AudioStake source, Span readSpan)
+            throws IOException {
+
+        final InterleavedStreamFile[] srcFs = source.getDirectFiles();
+        if ((srcFs == null) || (srcFs.length != targetFs.length)) return false;
+
+        final SampleReader[]	readers	= new SampleReader[srcFs.length];
+        final long				len		= readSpan.getLength();
+        long					targetFrame;
+
+        for (int i = 0; i < srcFs.length; i++) {
+            readers[i] = SampleReader.get(srcFs[i]);
+            if ((readers[i] == null) || !readers[i].getLayout().isCompatible(targetLayouts[i])) return false;
+        }
+
+        for (int i = 0; i < srcFs.length; i++) {
+            targetFrame = target.getFileFrame(i, readSpan.start);
+            synchronized (targetFs[i]) {
+                if (!readers[i].transferFrames(source.getFileFrame(i, readSpan.start), len,
+                        targetChs[i], targetLayouts[i].bytePosition(targetFrame))) return false;
+                SampleReader.invalidate(targetFs[i], targetFrame, len);
+
+                // the header is updated from the stream file's length when it is closed
+                if (targetFs[i].getFrameNum() < targetFrame + len) targetFs[i].setFrameNum(targetFrame + len);
+            }
+        }
+        return true;
+    }
+
+    void dispose() {
+        close(targetChs);
+    }
+
+    private static void close(FileChannel[] chs) {
+        for (FileChannel ch : chs) {
+            if (ch != null) {
+                try {
+                    ch.close();
+                } catch (IOException e1) { /* ignore */ }
+            }
+        }
+    }
+}
@@ -46,6 +46,7 @@ public class InterleavedAudioStake
 
     public void close()
             throws IOException {
+        SampleReader.release(f);
         f.close();
     }
 
@@ -91,14 +92,22 @@ public class InterleavedAudioStake
     public int readFrames(float[][] data, int dataOffset, Span readSpan)
             throws IOException {
 
-        final int len = (int) readSpan.getLength();
+        return readFrames(readSpan.start, data, dataOffset, (int) readSpan.getLength());
+    }
+
+    public int readFrames(long pos, float[][] data, int dataOffset, int len)
+            throws IOException {
+
         if (len == 0) return 0;
-        final long fOffset = fileSpan.start + readSpan.start - span.start;
+        final long fOffset = fileSpan.start + pos - span.start;
 
         if ((fOffset < fileSpan.start) || ((fOffset + len) > fileSpan.stop)) {
             throw new IllegalArgumentException(fOffset + " ... " + (fOffset + len) + " not within " + fileSpan.toString());
         }
 
+        final SampleReader r = SampleReader.get(f);
+        if ((r != null) && r.readFrames(fOffset, data, dataOffset, len)) return len;
+
         synchronized (f) {
             if (f.getFramePosition() != fOffset) {
                 f.seekFrame(fOffset);
@@ -125,6 +134,7 @@ public class InterleavedAudioStake
             }
             f.writeFrames(data, dataOffset, len);
         }
+        SampleReader.invalidate(f, fOffset, len);
         return len;
     }
 
@@ -185,6 +195,14 @@ public class InterleavedAudioStake
         cm.addFile(f.getFile());
     }
 
+    public InterleavedStreamFile[] getDirectFiles() {
+        return new InterleavedStreamFile[] { f };
+    }
+
+    public long getFileFrame(int fileIdx, long pos) {
+        return fileSpan.start + pos - span.start;
+    }
+
     public void debugDump() {
         debugDumpBasics();
         System.err.println(" ; f = " + f.getFile().getName() + " (file span " + fileSpan.toString() + " )");
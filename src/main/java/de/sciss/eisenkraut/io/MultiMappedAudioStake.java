@@ -65,11 +65,15 @@ public class MultiMappedAudioStake extends AudioStake {
 
     public void close()
             throws IOException {
-        for (InterleavedStreamFile f : fs) f.close();
+        for (InterleavedStreamFile f : fs) {
+            SampleReader.release(f);
+            f.close();
+        }
     }
 
     public void cleanUp() {
         for (InterleavedStreamFile f : fs) {
+            SampleReader.release(f);
             try {
                 f.close();
             } catch (IOException e1) { /* ignore */ }
@@ -148,9 +152,16 @@ public class MultiMappedAudioStake extends AudioStake {
     public int readFrames(float[][] data, int offset, Span readSpan)
             throws IOException {
 
-        final int len = (int) readSpan.getLength();
+        return readFrames(readSpan.start, data, offset, (int) readSpan.getLength());
+    }
+
+    public int readFrames(long pos, float[][] data, int offset, int len)
+            throws IOException {
+
         if (len == 0) return 0;
 
+        if (readFramesDirect(pos, data, offset, len)) return len;
+
         InterleavedStreamFile   f;
         long                    fOffset;
         int[]                   channelMap;
@@ -161,7 +172,7 @@ public class MultiMappedAudioStake extends AudioStake {
                 f           = fs[i];
                 channelMap  = channelMaps[i];
                 mappedData  = this.mappedData[i];
-                fOffset     = fileSpans[i].start + readSpan.start - span.start;
+                fOffset     = fileSpans[i].start + pos - span.start;
 
                 if ((fOffset < fileSpans[i].start) || ((fOffset + len) > fileSpans[i].stop)) {
                     throw new IllegalArgumentException(fOffset + " ... " + (fOffset + len) + " not within " + fileSpans[i].toString());
@@ -182,6 +193,34 @@ public class MultiMappedAudioStake extends AudioStake {
         return len;
     }
 
+    // reads through the files' SampleReaders, if available for all of them.
+    // uses a local channel mapping so no lock is needed
+    private boolean readFramesDirect(long pos, float[][] data, int offset, int len)
+            throws IOException {
+
+        final SampleReader[] rs = new SampleReader[fs.length];
+        for (int i = 0; i < fs.length; i++) {
+            rs[i] = SampleReader.get(fs[i]);
+            if (rs[i] == null) return false;
+        }
+
+        for (int i = 0, j = 0; i < fs.length; i++) {
+            final int[]     channelMap  = channelMaps[i];
+            final float[][] mappedData  = new float[fs[i].getChannelNum()][];
+            final long      fOffset     = fileSpans[i].start + pos - span.start;
+
+            if ((fOffset < fileSpans[i].start) || ((fOffset + len) > fileSpans[i].stop)) {
+                throw new IllegalArgumentException(fOffset + " ... " + (fOffset + len) + " not within " + fileSpans[i].toString());
+            }
+
+            for (int k = 0; k < channelMap.length; k++, j++) {
+                mappedData[channelMap[k]] = data[j];
+            }
+            if (!rs[i].readFrames(fOffset, mappedData, offset, len)) return false;
+        }
+        return true;
+    }
+
     public int writeFrames(float[][] data, int offset, Span writeSpan)
             throws IOException {
 
@@ -213,6 +252,7 @@ public class MultiMappedAudioStake extends AudioStake {
                     }
                     f.writeFrames(mappedData, offset, len);
                 }
+                SampleReader.invalidate(f, fOffset, len);
             }
             clearMappedData();	// avoid memory footprint
         }
@@ -276,6 +316,7 @@ public class MultiMappedAudioStake extends AudioStake {
         }
 
         for (int i = 0; i < fs.length; i++) {
+            if (bufs[i] == null) continue;    // skipped by RemappedAudioStake
             fOffset = fileSpans[i].start + readSpan.start - span.start;
 
             if ((fOffset < fileSpans[i].start) || ((fOffset + len) > fileSpans[i].stop)) {
@@ -322,6 +363,21 @@ public class MultiMappedAudioStake extends AudioStake {
         }
     }
 
+    public InterleavedStreamFile[] getDirectFiles() {
+        for (int i = 0; i < fs.length; i++) {
+            if (channelMaps[i].length != fs[i].getChannelNum()) return null;
+
+            for (int j = 0; j < channelMaps[i].length; j++) {
+                if (channelMaps[i][j] != j) return null;
+            }
+        }
+        return fs;
+    }
+
+    public long getFileFrame(int fileIdx, long pos) {
+        return fileSpans[fileIdx].start + pos - span.start;
+    }
+
     public int getChannelNum() {
         return numChannels;
     }
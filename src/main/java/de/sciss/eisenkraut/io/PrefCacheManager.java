@@ -13,18 +13,54 @@
 
 package de.sciss.eisenkraut.io;
 
+import java.awt.event.ActionEvent;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.prefs.PreferenceChangeEvent;
 import java.util.prefs.PreferenceChangeListener;
 import java.util.prefs.Preferences;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.swing.AbstractAction;
+import javax.swing.Action;
 
 import de.sciss.app.AbstractApplication;
-import de.sciss.io.CacheManager;
 import de.sciss.util.Param;
 import de.sciss.util.ParamSpace;
 
+/**
+ *	Manages the folder of overview cache files. Cache files are named
+ *	after the <code>ContentFingerprint</code> of the audio file they
+ *	were calculated from, followed by a model name (such as
+ *	<code>"wave"</code> or <code>"sona"</code>), so an audio file that
+ *	has been renamed, moved or copied finds its overviews again.
+ *	<p>
+ *	All model files of one fingerprint form one cache entry, which is
+ *	accessed and evicted as a whole. Entries are evicted in
+ *	least-recently-used order once the total size of the files exceeds
+ *	the capacity, which is given in megabytes. An entry larger than the
+ *	capacity is not kept at all. The entries and their access order are
+ *	persisted in an index file in the cache folder.
+ *	<p>
+ *	Since the fingerprint only samples the audio file, each entry also
+ *	remembers the file it was last verified for, along with that file's
+ *	modification date and a hash over its entire contents. An entry is
+ *	only trusted without further checks for this very file as long as it
+ *	has not been modified. For any other file, such as a copy, or after
+ *	a modification, the full hash decides whether the entry is valid.
+ */
 public class PrefCacheManager
-        extends CacheManager
         implements PreferenceChangeListener {
 
     /**
@@ -36,16 +72,27 @@ public class PrefCacheManager
     public static final String KEY_FOLDER		= "folder";		// String
     public static final String KEY_CAPACITY		= "capacity";	// Param
 
+    private static final String INDEX_NAME		= "index.txt";
+    private static final String	CACHE_SUFFIX	= ".aif";
+    // <size><hash>.<model>.aif, see ContentFingerprint
+    private static final Pattern	CACHE_NAME		= Pattern.compile("([0-9a-f]{32})\\.[a-z]+\\.aif");
+
     private final Preferences prefs;
 
     private static final Param DEFAULT_CAPACITY = new Param( 100, ParamSpace.ABS);
 
     private static PrefCacheManager instance;
 
+    // access order, so iteration starts at the least recently used entry
+    private final Map<String, Entry>	entries		= new LinkedHashMap<String, Entry>(64, 0.75f, true);
+    private long						size		= 0L;	// bytes
+
+    private File		folder		= null;
+    private int			capacity;	// megabytes
+    private boolean		active		= false;
+
     public PrefCacheManager( Preferences prefs )
     {
-        super();
-
         if( instance != null ) throw new IllegalStateException( "Only one instance allowed" );
 
         instance		= this;
@@ -80,17 +127,382 @@ public class PrefCacheManager
         return prefs;
     }
 
+    public synchronized boolean isActive() {
+        return active;
+    }
+
     public void setActive(boolean onOff) {
-        super.setActive(onOff);
+        synchronized (this) {
+            active = onOff;
+        }
         prefs.putBoolean(KEY_ACTIVE, onOff);
     }
 
-    public void setFolderAndCapacity(File folder, int capacity) {
-        super.setFolderAndCapacity(folder, capacity);
+    public synchronized File getFolder() {
+        return folder;
+    }
+
+    public void setFolder(File folder) {
+        synchronized (this) {
+            this.folder = folder;
+            readIndex();
+            if (evict(null)) writeIndex();
+        }
         prefs.put(KEY_FOLDER, folder.getPath());
+    }
+
+    /**
+     *	Returns the capacity in megabytes.
+     */
+    public synchronized int getCapacity() {
+        return capacity;
+    }
+
+    public void setCapacity(int capacity) {
+        synchronized (this) {
+            this.capacity = capacity;
+            if (evict(null)) writeIndex();
+        }
+        prefs.put(KEY_CAPACITY, new Param(capacity, ParamSpace.ABS).toString());
+    }
+
+    public void setFolderAndCapacity(File folder, int capacity) {
+        synchronized (this) {
+            this.capacity = capacity;
+        }
+        setFolder(folder);
         prefs.put(KEY_CAPACITY, new Param(capacity, ParamSpace.ABS).toString());
     }
 
+    /**
+     *	Returns the cache file for one model of an audio file.
+     *	The file may or may not exist.
+     *
+     *	@param	model	a short name of the kind of data kept in the file,
+     *					which may not contain a period
+     *	@return	the file, or <code>null</code> if the cache is inactive
+     *			or the cache folder cannot be created
+     */
+    public synchronized File getCacheFile(ContentFingerprint fp, String model) {
+        if (!active || (folder == null)) return null;
+        if (!folder.isDirectory() && !folder.mkdirs()) return null;
+
+        return new File(folder, fp.getKey() + "." + model + CACHE_SUFFIX);
+    }
+
+    /**
+     *	Marks an entry as most recently used,
+     *	to be called when its cache files were read.
+     */
+    public synchronized void touch(ContentFingerprint fp) {
+        final Entry e = entries.get(fp.getKey());
+        if (e == null) return;
+
+        e.lastAccess = System.currentTimeMillis();
+        writeIndex();
+    }
+
+    /**
+     *	Adds or updates an entry, to be called when a cache file of the
+     *	given fingerprint has been completely written. Older entries are
+     *	evicted as necessary. This hashes the whole audio file, so it
+     *	should not be called from the event dispatch thread.
+     *
+     *	@param	source	the audio file the cache file was calculated from
+     */
+    public void add(ContentFingerprint fp, File source) {
+        final File	path		= source.getAbsoluteFile();
+        final long	modified	= path.lastModified();
+        long		fullHash;
+        boolean		hashed;
+
+        try {
+            fullHash	= ContentFingerprint.getFullHash(path);
+            hashed		= true;
+        } catch (IOException e1) {
+            fullHash	= 0L;
+            hashed		= false;
+        }
+
+        synchronized (this) {
+            if (folder == null) return;
+
+            final String	key	= fp.getKey();
+            Entry			e	= entries.remove(key);
+
+            if (e != null) size -= e.size;
+            e = new Entry(key, measure(key), System.currentTimeMillis());
+            if (hashed) e.setSource(path, modified, fullHash);
+            entries.put(key, e);
+            size += e.size;
+            evict(e);
+            writeIndex();
+        }
+    }
+
+    /**
+     *	Checks whether the entry of a fingerprint may be used for the given
+     *	audio file. Unless the entry was last verified for this very file
+     *	with its current modification date, the whole file is hashed and
+     *	compared. A valid entry then remembers the file, so the check is
+     *	cheap the next time; a stale entry, or one without a hash, is removed.
+     *	This should not be called from the event dispatch thread.
+     *
+     *	@return	<code>true</code> if there is no entry or the entry is valid
+     */
+    public boolean isValid(ContentFingerprint fp, File source) {
+        final File	path		= source.getAbsoluteFile();
+        final long	modified	= path.lastModified();
+        final String key		= fp.getKey();
+        final long	fullHash;
+        final boolean unknown;
+        boolean		valid;
+
+        synchronized (this) {
+            final Entry e = entries.get(key);
+            if (e == null) return true;
+            if (path.equals(e.source) && (e.sourceModified == modified)) return true;
+            // a null source means the hash is unknown
+            unknown		= e.source == null;
+            fullHash	= e.fullHash;
+        }
+
+        if (unknown) {
+            valid = false;
+        } else {
+            try {
+                valid = ContentFingerprint.getFullHash(path) == fullHash;
+            } catch (IOException e1) {
+                valid = false;
+            }
+        }
+
+        synchronized (this) {
+            final Entry e = entries.get(key);
+            if (e == null) return valid;
+
+            if (valid) {
+                e.setSource(path, modified, fullHash);
+            } else {
+                deleteEntry(e);
+                entries.remove(key);
+            }
+            writeIndex();
+        }
+        return valid;
+    }
+
+    /**
+     *	Drops the entry of an audio file which a document is about to
+     *	overwrite or has just written. A write that does not change the
+     *	sampled blocks of the file would otherwise leave a stale entry
+     *	behind under an unchanged fingerprint.
+     */
+    public void invalidate(File f) {
+        final ContentFingerprint fp;
+
+        ContentFingerprint.forget(f);
+        if (!f.isFile()) return;
+        try {
+            fp = ContentFingerprint.get(f);
+        } catch (IOException e1) {
+            return;
+        } finally {
+            // the file is being rewritten, so do not keep its fingerprint
+            ContentFingerprint.forget(f);
+        }
+
+        synchronized (this) {
+            if (folder == null) return;
+
+            final Entry e = entries.remove(fp.getKey());
+            if (e == null) return;
+
+            deleteEntry(e);
+            writeIndex();
+        }
+    }
+
+    /**
+     *	Deletes one model's cache file of an entry.
+     */
+    public synchronized void removeFile(ContentFingerprint fp, String model) {
+        if (folder == null) return;
+
+        final String	key	= fp.getKey();
+        final File		f	= new File(folder, key + "." + model + CACHE_SUFFIX);
+        final Entry		e	= entries.get(key);
+
+        if (f.exists() && !f.delete()) f.deleteOnExit();
+        if (e == null) return;
+
+        size -= e.size;
+        e.size = measure(key);
+        if (e.size == 0L) {
+            entries.remove(key);
+        } else {
+            size += e.size;
+        }
+        writeIndex();
+    }
+
+    public Action getDebugDumpAction() {
+        return new ActionDebugDump();
+    }
+
+    // ----------- private -----------
+
+    private File[] listFiles(final String key) {
+        final File[] fs = folder.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.startsWith(key + ".") && CACHE_NAME.matcher(name).matches();
+            }
+        });
+        return (fs == null) ? new File[0] : fs;
+    }
+
+    private long measure(String key) {
+        long n = 0L;
+        for (File f : listFiles(key)) {
+            n += f.length();
+        }
+        return n;
+    }
+
+    // evicts least recently used entries until the total size fits the capacity.
+    // an entry larger than the capacity is evicted itself instead.
+    // returns whether entries were evicted
+    private boolean evict(Entry added) {
+        final long	capBytes	= (long) capacity << 20;
+        boolean		evicted		= false;
+
+        if ((added != null) && (added.size > capBytes)) {
+            deleteEntry(added);
+            entries.remove(added.key);
+            evicted = true;
+        }
+
+        for (Iterator<Entry> iter = entries.values().iterator(); (size > capBytes) && iter.hasNext(); ) {
+            final Entry e = iter.next();
+            if (e == added) continue;
+            deleteEntry(e);
+            iter.remove();
+            evicted = true;
+        }
+        return evicted;
+    }
+
+    private void deleteEntry(Entry e) {
+        for (File f : listFiles(e.key)) {
+            if (!f.delete()) f.deleteOnExit();
+        }
+        size -= e.size;
+    }
+
+    // reads the index and reconciles it with the actual folder contents.
+    // only files named like cache files are considered. cache files missing
+    // from the index are added by modification date, index entries without
+    // files are dropped, sizes are always measured
+    private void readIndex() {
+        final File		fIndex		= new File(folder, INDEX_NAME);
+        final List<Entry> coll		= new ArrayList<Entry>();
+        final Map<String, Entry> found = new LinkedHashMap<String, Entry>();
+        final File[]	fs			= folder.listFiles();
+        BufferedReader	r			= null;
+        String			name, key;
+        String[]		tok;
+        Matcher			m;
+        Entry			e;
+
+        entries.clear();
+        size = 0L;
+        if (fs == null) return;
+
+        for (File f : fs) {
+            m = CACHE_NAME.matcher(f.getName());
+            if (!m.matches()) continue;
+            key	= m.group(1);
+            e	= found.get(key);
+            if (e == null) {
+                found.put(key, new Entry(key, 0L, f.lastModified()));
+            } else if (e.lastAccess < f.lastModified()) {
+                e.lastAccess = f.lastModified();
+            }
+        }
+
+        if (fIndex.isFile()) {
+            try {
+                r = new BufferedReader(new FileReader(fIndex));
+                while ((name = r.readLine()) != null) {
+                    // key, last access, size [, source modification, full hash, source path]
+                    tok	= name.trim().split("\\s+", 6);
+                    e	= (tok.length < 2) ? null : found.get(tok[0]);
+                    if (e == null) continue;
+                    try {
+                        e.lastAccess = Long.parseLong(tok[1]);
+                        if (tok.length == 6) {
+                            e.setSource(new File(tok[5]), Long.parseLong(tok[3]), Long.parseUnsignedLong(tok[4], 16));
+                        }
+                    } catch (NumberFormatException e1) { /* ignore */ }
+                }
+            } catch (IOException e1) {
+                System.err.println(fIndex.getPath() + " : " + e1.getLocalizedMessage());
+            } finally {
+                if (r != null) {
+                    try {
+                        r.close();
+                    } catch (IOException e1) { /* ignore */ }
+                }
+            }
+        }
+
+        for (Entry e2 : found.values()) {
+            e2.size = measure(e2.key);
+            coll.add(e2);
+        }
+        coll.sort(Entry.ACCESS_ORDER);
+        for (Entry e2 : coll) {
+            entries.put(e2.key, e2);
+            size += e2.size;
+        }
+    }
+
+    // least recently used entry first. writes to a temporary file first
+    // so that an interrupted write does not destroy the index
+    private void writeIndex() {
+        if ((folder == null) || !folder.isDirectory()) return;
+
+        final File		fIndex	= new File(folder, INDEX_NAME);
+        final File		fTemp	= new File(folder, INDEX_NAME + ".tmp");
+        final List<Entry> coll	= new ArrayList<Entry>(entries.values());
+        BufferedWriter	w		= null;
+        boolean			success	= false;
+
+        coll.sort(Entry.ACCESS_ORDER);
+        try {
+            w = new BufferedWriter(new FileWriter(fTemp));
+            for (Entry e : coll) {
+                w.write(e.key + " " + e.lastAccess + " " + e.size);
+                if (e.source != null) {
+                    w.write(" " + e.sourceModified + " " + Long.toHexString(e.fullHash) + " " + e.source.getPath());
+                }
+                w.newLine();
+            }
+            w.close();
+            w = null;
+            success = (!fIndex.exists() || fIndex.delete()) && fTemp.renameTo(fIndex);
+        } catch (IOException e1) {
+            System.err.println(fIndex.getPath() + " : " + e1.getLocalizedMessage());
+        } finally {
+            if (w != null) {
+                try {
+                    w.close();
+                } catch (IOException e1) { /* ignore */ }
+            }
+            if (!success) fTemp.delete();
+        }
+    }
+
 // ------- PreferenceChangeListener interface -------
 
     public void preferenceChange( PreferenceChangeEvent e )
@@ -118,4 +530,55 @@ public class PrefCacheManager
                 break;
         }
     }
-}
\ No newline at end of file
+
+// ------- internal classes -------
+
+    private static final class Entry {
+        static final Comparator<Entry> ACCESS_ORDER = new Comparator<Entry>() {
+            public int compare(Entry a, Entry b) {
+                return Long.compare(a.lastAccess, b.lastAccess);
+            }
+        };
+
+        final String	key;
+        long			size;		// bytes, all models
+        long			lastAccess;
+
+        // the audio file the entry was last verified for, or null if unknown
+        File			source;
+        long			sourceModified;
+        long			fullHash;
+
+        Entry(String key, long size, long lastAccess) {
+            this.key		= key;
+            this.size		= size;
+            this.lastAccess	= lastAccess;
+        }
+
+        void setSource(File source, long sourceModified, long fullHash) {
+            this.source			= source;
+            this.sourceModified	= sourceModified;
+            this.fullHash		= fullHash;
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private class ActionDebugDump
+            extends AbstractAction {
+        protected ActionDebugDump()
+        {
+            super( "Dump Cache" );
+        }
+
+        public void actionPerformed( ActionEvent e )
+        {
+            synchronized (PrefCacheManager.this) {
+                System.err.println("------- cache : " + folder + " ; " + (size >> 10) + " of " +
+                        ((long) capacity << 10) + " KB -------");
+                for (Entry entry : entries.values()) {
+                    System.err.println("  " + entry.key + " : " + (entry.size >> 10) + " KB");
+                }
+            }
+        }
+    }
+}
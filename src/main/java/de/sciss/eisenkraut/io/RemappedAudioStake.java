@@ -0,0 +1,231 @@
+/*
+ *  RemappedAudioStake.java
+ *  Eisenkraut
+ *
+ *  Copyright (c) 2004-2020 Hanns Holger Rutz. All rights reserved.
+ *
+ *  This software is published under the GNU Affero General Public License v3+
+ *
+ *
+ *  For further information, please contact Hanns Holger Rutz at
+ *  contact@sciss.de
+ */
+
+package de.sciss.eisenkraut.io;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import de.sciss.io.CacheManager;
+import de.sciss.io.InterleavedStreamFile;
+import de.sciss.io.Span;
+import de.sciss.jcollider.Buffer;
+import de.sciss.net.OSCBundle;
+import de.sciss.timebased.Stake;
+
+/**
+ *	A read-only stake that presents another stake
+ *	with its channels rearranged. Channels can be duplicated
+ *	or replaced by silence. This is used to paste regions
+ *	of an audio trail without copying the sample data.
+ *	<p>
+ *	The wrapped stake must be backed by files of the same
+ *	trail (or a cut trail thereof), so that both have the same
+ *	file layout, and the rearrangement must happen at the file level,
+ *	i.e. each target file either is silent or corresponds to exactly
+ *	one source file. This is required to play back the stake with
+ *	the supercollider player.
+ *
+ *	@see	AudioTrail#copyRangeFrom( AudioTrail, Span, long, int, Object, de.sciss.app.AbstractCompoundEdit, int[], BlendContext, BlendContext )
+ */
+public class RemappedAudioStake
+        extends AudioStake {
+
+    private final AudioStake	src;
+    private final long			srcOffset;	// source position minus our position
+    private final int[]			trackMap;	// target channel -> source channel or -1
+    private final int[]			fileMap;	// target file -> source file or -1
+
+    private final static int	BUFSIZE	= 8192;
+
+    /**
+     *	@param	src			the stake to read from. its span is taken to be
+     *						this stake's span
+     *	@param	trackMap	for each target channel, the source channel or -1
+     *						for silence. must not be modified afterwards
+     *	@param	fileMap		for each target file, the source file or -1
+     *						for silence. must not be modified afterwards
+     */
+    public RemappedAudioStake(AudioStake src, int[] trackMap, int[] fileMap) {
+        this(src.getSpan(), src, 0L, trackMap, fileMap);
+    }
+
+    private RemappedAudioStake(Span span, AudioStake src, long srcOffset, int[] trackMap, int[] fileMap) {
+        super(span);
+
+        this.src		= src;
+        this.srcOffset	= srcOffset;
+        this.trackMap	= trackMap;
+        this.fileMap	= fileMap;
+    }
+
+    public void close()
+            throws IOException {
+        // the files belong to the wrapped stake's trail
+    }
+
+    public void cleanUp() {
+        // the files belong to the wrapped stake's trail
+    }
+
+    public Stake duplicate() {
+        return new RemappedAudioStake(span, src, srcOffset, trackMap, fileMap);
+    }
+
+    public Stake replaceStart(long newStart) {
+        final Span newSpan = span.replaceStart(newStart);
+        if ((newSpan.getLength() < 0) || !src.getSpan().contains(newSpan.shift(srcOffset))) {
+            throw new IllegalArgumentException(String.valueOf(newStart));
+        }
+        return new RemappedAudioStake(newSpan, src, srcOffset, trackMap, fileMap);
+    }
+
+    public Stake replaceStop(long newStop) {
+        final Span newSpan = span.replaceStop(newStop);
+        if ((newSpan.getLength() < 0) || !src.getSpan().contains(newSpan.shift(srcOffset))) {
+            throw new IllegalArgumentException(String.valueOf(newStop));
+        }
+        return new RemappedAudioStake(newSpan, src, srcOffset, trackMap, fileMap);
+    }
+
+    public Stake shiftVirtual(long delta) {
+        return new RemappedAudioStake(span.shift(delta), src, srcOffset - delta, trackMap, fileMap);
+    }
+
+    public int readFrames(float[][] data, int dataOffset, Span readSpan)
+            throws IOException {
+
+        return readFrames(readSpan.start, data, dataOffset, (int) readSpan.getLength());
+    }
+
+    public int readFrames(long pos, float[][] data, int dataOffset, int len)
+            throws IOException {
+
+        if (len == 0) return 0;
+
+        final float[][]	srcData	= new float[src.getChannelNum()][];
+        boolean			dup		= false;
+        int				ch;
+
+        for (int i = 0; i < trackMap.length; i++) {
+            if (data[i] == null) continue;
+            ch = trackMap[i];
+            if (ch < 0) {
+                Arrays.fill(data[i], dataOffset, dataOffset + len, 0f);
+            } else if (srcData[ch] == null) {
+                srcData[ch] = data[i];
+            } else {
+                dup = true;
+            }
+        }
+
+        src.readFrames(pos + srcOffset, srcData, dataOffset, len);
+
+        if (dup) {
+            for (int i = 0; i < trackMap.length; i++) {
+                ch = trackMap[i];
+                if ((data[i] != null) && (ch >= 0) && (srcData[ch] != data[i])) {
+                    System.arraycopy(srcData[ch], dataOffset, data[i], dataOffset, len);
+                }
+            }
+        }
+        return len;
+    }
+
+    public int writeFrames(float[][] data, int dataOffset, Span writeSpan)
+            throws IOException {
+
+        throw new IllegalStateException("Remapped stakes are read-only");
+    }
+
+    public long copyFrames(InterleavedStreamFile target, Span readSpan)
+            throws IOException {
+
+        final long		len				= readSpan.getLength();
+        if (len == 0) return 0;
+
+        final float[][]	data			= new float[trackMap.length][(int) Math.min(BUFSIZE, len)];
+        long			framesCopied	= 0;
+        int				chunkLen;
+
+        do {
+            chunkLen = (int) Math.min(BUFSIZE, len - framesCopied);
+            readFrames(readSpan.start + framesCopied, data, 0, chunkLen);
+            target.writeFrames(data, 0, chunkLen);
+            framesCopied += chunkLen;
+        } while (framesCopied < len);
+
+        return len;
+    }
+
+    public void addBufferReadMessages(OSCBundle bndl, Span readSpan, Buffer[] bufs, int bufOff) {
+        final int len = (int) readSpan.getLength();
+        if (len == 0) return;
+
+        if (bufs.length != fileMap.length) {
+            throw new IllegalArgumentException("Wrong # of buffers (" + bufs.length + " != " + fileMap.length + ")");
+        }
+
+        final Span		srcSpan		= readSpan.shift(srcOffset);
+        final Buffer[]	srcBufs		= new Buffer[fileMap.length];
+        final boolean[]	done		= new boolean[fileMap.length];
+        boolean			pending		= true;
+        boolean			assigned;
+
+        for (int i = 0; i < fileMap.length; i++) {
+            if (fileMap[i] < 0) {
+                bndl.addPacket(bufs[i].fillMsg(
+                        bufOff * bufs[i].getNumChannels(), len * bufs[i].getNumChannels(), 0.0f));
+                done[i] = true;
+            }
+        }
+
+        // a source file may feed several target buffers, so we need as many passes
+        // as the maximum number of duplicates. the wrapped stake skips null buffers
+        while (pending) {
+            pending = false;
+            assigned = false;
+            Arrays.fill(srcBufs, null);
+            for (int i = 0; i < fileMap.length; i++) {
+                if (done[i]) continue;
+                if (srcBufs[fileMap[i]] == null) {
+                    srcBufs[fileMap[i]] = bufs[i];
+                    done[i] = true;
+                    assigned = true;
+                } else {
+                    pending = true;
+                }
+            }
+            if (assigned) src.addBufferReadMessages(bndl, srcSpan, srcBufs, bufOff);
+        }
+    }
+
+    public void flush()
+            throws IOException {
+        // nothing to write
+    }
+
+    public void addToCache(CacheManager cm) {
+        src.addToCache(cm);
+    }
+
+    public int getChannelNum() {
+        return trackMap.length;
+    }
+
+    public void debugDump() {
+        debugDumpBasics();
+        System.err.print(" ; remapped " + Arrays.toString(trackMap) + " (source offset " + srcOffset + ") of ");
+        src.debugDump();
+    }
+}
@@ -0,0 +1,345 @@
+/*
+ *  SampleDataLayout.java
+ *  Eisenkraut
+ *
+ *  Copyright (c) 2004-2020 Hanns Holger Rutz. All rights reserved.
+ *
+ *  This software is published under the GNU Affero General Public License v3+
+ *
+ *
+ *  For further information, please contact Hanns Holger Rutz at
+ *  contact@sciss.de
+ */
+
+package de.sciss.eisenkraut.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import de.sciss.io.AudioFile;
+import de.sciss.io.AudioFileDescr;
+import de.sciss.io.InterleavedStreamFile;
+
+/**
+ *	Describes where and how the interleaved sample frames of
+ *	an audio file are stored on disk, so they can be accessed
+ *	directly through a <code>FileChannel</code> (or a mapping thereof)
+ *	without going through the stream file's seek position.
+ *	<p>
+ *	The layout is derived by scanning the file header for the
+ *	sample data chunk. Currently AIFF / AIFC, WAVE, Wave64 and
+ *	NeXT/Sun (<code>.snd</code>) files with 16, 24 or 32 bit integer or
+ *	32 or 64 bit floating point samples are understood; for anything else
+ *	<code>create</code> returns <code>null</code> and the caller
+ *	must fall back to the stream file.
+ */
+public class SampleDataLayout {
+
+    private static final int FORMAT_INT16   = 0;
+    private static final int FORMAT_INT24   = 1;
+    private static final int FORMAT_INT32   = 2;
+    private static final int FORMAT_FLOAT32 = 3;
+    private static final int FORMAT_FLOAT64 = 4;
+
+    public final long       dataOffset;
+    public final ByteOrder  byteOrder;
+    public final int        channels;
+    public final int        bytesPerSample;
+    public final int        frameSize;
+
+    private final int       format;
+
+    private SampleDataLayout(long dataOffset, ByteOrder byteOrder, int channels, int bytesPerSample, int format) {
+        this.dataOffset     = dataOffset;
+        this.byteOrder      = byteOrder;
+        this.channels       = channels;
+        this.bytesPerSample = bytesPerSample;
+        this.frameSize      = channels * bytesPerSample;
+        this.format         = format;
+    }
+
+    /**
+     *	Determines the sample data layout of a stream file.
+     *
+     *	@param	f	the stream file whose header to scan. Only instances
+     *				of <code>AudioFile</code> are supported
+     *	@param	ch	a channel opened on the same file
+     *	@return	the layout or <code>null</code> if the file type or
+     *			sample format is not supported
+     */
+    public static SampleDataLayout create(InterleavedStreamFile f, FileChannel ch)
+            throws IOException {
+
+        if (!(f instanceof AudioFile)) return null;
+
+        final AudioFileDescr afd = ((AudioFile) f).getDescr();
+        final int format;
+
+        switch (afd.sampleFormat) {
+            case AudioFileDescr.FORMAT_INT:
+                switch (afd.bitsPerSample) {
+                    case 16: format = FORMAT_INT16; break;
+                    case 24: format = FORMAT_INT24; break;
+                    case 32: format = FORMAT_INT32; break;
+                    default: return null;
+                }
+                break;
+            case AudioFileDescr.FORMAT_FLOAT:
+                switch (afd.bitsPerSample) {
+                    case 32: format = FORMAT_FLOAT32; break;
+                    case 64: format = FORMAT_FLOAT64; break;
+                    default: return null;
+                }
+                break;
+            default:
+                return null;
+        }
+
+        final ByteBuffer b = ByteBuffer.allocate(40);
+        if (!readFully(ch, b, 0L, 40)) return null;
+        final String magic = magic(b, 0);
+
+        if (magic.equals("FORM")) {
+            return scanAIFF(ch, f.getChannelNum(), afd.bitsPerSample >> 3, format);
+        } else if (magic.equals("RIFF")) {
+            return scanRIFF(ch, f.getChannelNum(), afd.bitsPerSample >> 3, format);
+        } else if (magic.equals("riff")) {
+            return scanWave64(ch, f.getChannelNum(), afd.bitsPerSample >> 3, format);
+        } else if (magic.equals(".snd")) {
+            b.order(ByteOrder.BIG_ENDIAN);
+            return new SampleDataLayout(b.getInt(4) & 0xFFFFFFFFL, ByteOrder.BIG_ENDIAN,
+                    f.getChannelNum(), afd.bitsPerSample >> 3, format);
+        } else {
+            return null;
+        }
+    }
+
+    private static SampleDataLayout scanAIFF(FileChannel ch, int channels, int bytesPerSample, int format)
+            throws IOException {
+
+        final ByteBuffer    b       = ByteBuffer.allocate(28).order(ByteOrder.BIG_ENDIAN);
+        final long          size    = ch.size();
+        final boolean       isAIFC;
+        ByteOrder           order   = ByteOrder.BIG_ENDIAN;
+        long                pos     = 12;
+        long                chunkLen;
+        String              id;
+
+        if (!readFully(ch, b, 8, 4)) return null;
+        isAIFC = magic(b, 0).equals("AIFC");
+
+        while (pos + 8 <= size) {
+            if (!readFully(ch, b, pos, 8)) return null;
+            id          = magic(b, 0);
+            chunkLen    = b.getInt(4) & 0xFFFFFFFFL;
+            if (id.equals("COMM") && isAIFC) {
+                // numChannels (2), numFrames (4), sampleSize (2), sampleRate (10), compressionType (4)
+                if (!readFully(ch, b, pos + 8, 22)) return null;
+                if (magic(b, 18).equals("sowt")) order = ByteOrder.LITTLE_ENDIAN;
+            } else if (id.equals("SSND")) {
+                if (!readFully(ch, b, pos + 8, 4)) return null;
+                return new SampleDataLayout(pos + 16 + (b.getInt(0) & 0xFFFFFFFFL), order,
+                        channels, bytesPerSample, format);
+            }
+            pos += 8 + chunkLen + (chunkLen & 1);
+        }
+        return null;
+    }
+
+    private static SampleDataLayout scanRIFF(FileChannel ch, int channels, int bytesPerSample, int format)
+            throws IOException {
+
+        final ByteBuffer    b       = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        final long          size    = ch.size();
+        long                pos     = 12;
+        long                chunkLen;
+
+        while (pos + 8 <= size) {
+            if (!readFully(ch, b, pos, 8)) return null;
+            chunkLen = b.getInt(4) & 0xFFFFFFFFL;
+            if (magic(b, 0).equals("data")) {
+                return new SampleDataLayout(pos + 8, ByteOrder.LITTLE_ENDIAN, channels, bytesPerSample, format);
+            }
+            pos += 8 + chunkLen + (chunkLen & 1);
+        }
+        return null;
+    }
+
+    // Wave64 chunk GUIDs are constructed such that the first four bytes spell the RIFF fourcc
+    private static SampleDataLayout scanWave64(FileChannel ch, int channels, int bytesPerSample, int format)
+            throws IOException {
+
+        final ByteBuffer    b       = ByteBuffer.allocate(24).order(ByteOrder.LITTLE_ENDIAN);
+        final long          size    = ch.size();
+        long                pos     = 40;
+        long                chunkLen;
+
+        while (pos + 24 <= size) {
+            if (!readFully(ch, b, pos, 24)) return null;
+            chunkLen = b.getLong(16);   // includes the 24 bytes header
+            if (magic(b, 0).equals("data")) {
+                return new SampleDataLayout(pos + 24, ByteOrder.LITTLE_ENDIAN, channels, bytesPerSample, format);
+            }
+            if (chunkLen < 24) return null;
+            pos += (chunkLen + 7) & ~7L;
+        }
+        return null;
+    }
+
+    private static boolean readFully(FileChannel ch, ByteBuffer b, long pos, int len)
+            throws IOException {
+
+        b.clear();
+        b.limit(len);
+        while (b.hasRemaining()) {
+            if (ch.read(b, pos + b.position()) < 0) return false;
+        }
+        return true;
+    }
+
+    private static String magic(ByteBuffer b, int off) {
+        final char[] c = new char[4];
+        for (int i = 0; i < 4; i++) {
+            c[i] = (char) (b.get(off + i) & 0xFF);
+        }
+        return new String(c);
+    }
+
+    /**
+     *	Returns whether frames can be copied as raw bytes
+     *	between files of this and another layout.
+     */
+    public boolean isCompatible(SampleDataLayout that) {
+        return (that.format == format) && (that.channels == channels) && that.byteOrder.equals(byteOrder);
+    }
+
+    /**
+     *	Returns the absolute byte position in the file of a given frame.
+     */
+    public long bytePosition(long frame) {
+        return dataOffset + frame * frameSize;
+    }
+
+    /**
+     *	Decodes interleaved frames from a buffer using absolute gets,
+     *	that is without modifying the buffer's position. This way, the
+     *	same buffer can be shared by concurrent readers. Integer samples
+     *	are converted exactly like <code>AudioFile</code> does, i.e. divided
+     *	by the largest positive value, so both paths yield identical floats.
+     *
+     *	@param	b			the source buffer whose byte order must be <code>byteOrder</code>
+     *	@param	bufPos		absolute byte index into <code>b</code> of the first frame
+     *	@param	data		the target buffers; <code>null</code> channels are skipped
+     *	@param	dataOffset	offset into the target buffers
+     *	@param	len			number of frames to decode
+     */
+    public void decode(ByteBuffer b, int bufPos, float[][] data, int dataOffset, int len) {
+        float[] d;
+        int     pos;
+
+        for (int ch = 0; ch < channels; ch++) {
+            d = data[ch];
+            if (d == null) continue;
+            pos = bufPos + ch * bytesPerSample;
+            switch (format) {
+                case FORMAT_INT16:
+                    for (int i = dataOffset, stop = dataOffset + len; i < stop; i++, pos += frameSize) {
+                        d[i] = (float) b.getShort(pos) / 0x7FFF;
+                    }
+                    break;
+                case FORMAT_INT24:
+                    if (byteOrder == ByteOrder.BIG_ENDIAN) {
+                        for (int i = dataOffset, stop = dataOffset + len; i < stop; i++, pos += frameSize) {
+                            d[i] = (float) ((b.get(pos) << 16) | ((b.get(pos + 1) & 0xFF) << 8) |
+                                    (b.get(pos + 2) & 0xFF)) / 0x7FFFFF;
+                        }
+                    } else {
+                        for (int i = dataOffset, stop = dataOffset + len; i < stop; i++, pos += frameSize) {
+                            d[i] = (float) ((b.get(pos + 2) << 16) | ((b.get(pos + 1) & 0xFF) << 8) |
+                                    (b.get(pos) & 0xFF)) / 0x7FFFFF;
+                        }
+                    }
+                    break;
+                case FORMAT_INT32:
+                    for (int i = dataOffset, stop = dataOffset + len; i < stop; i++, pos += frameSize) {
+                        d[i] = (float) b.getInt(pos) / 0x7FFFFFFF;
+                    }
+                    break;
+                case FORMAT_FLOAT32:
+                    for (int i = dataOffset, stop = dataOffset + len; i < stop; i++, pos += frameSize) {
+                        d[i] = b.getFloat(pos);
+                    }
+                    break;
+                case FORMAT_FLOAT64:
+                    for (int i = dataOffset, stop = dataOffset + len; i < stop; i++, pos += frameSize) {
+                        d[i] = (float) b.getDouble(pos);
+                    }
+                    break;
+                default:
+                    assert false : format;
+            }
+        }
+    }
+
+    /**
+     *	Encodes frames into a buffer using absolute puts. This is the
+     *	inverse of <code>decode</code>. Integer samples are converted exactly like
+     *	<code>AudioFile</code> does, i.e. multiplied by the largest positive value
+     *	and truncated, so regions written either way cannot be told apart.
+     *
+     *	@param	data		the source buffers, one per channel of the file
+     *	@param	dataOffset	offset into the source buffers
+     *	@param	b			the target buffer whose byte order must be <code>byteOrder</code>
+     *	@param	bufPos		absolute byte index into <code>b</code> of the first frame
+     *	@param	len			number of frames to encode
+     */
+    public void encode(float[][] data, int dataOffset, ByteBuffer b, int bufPos, int len) {
+        float[] d;
+        int     pos, i24;
+
+        for (int ch = 0; ch < channels; ch++) {
+            d   = data[ch];
+            pos = bufPos + ch * bytesPerSample;
+            switch (format) {
+                case FORMAT_INT16:
+                    for (int i = dataOffset, stop = dataOffset + len; i < stop; i++, pos += frameSize) {
+                        b.putShort(pos, (short) (d[i] * 0x7FFF));
+                    }
+                    break;
+                case FORMAT_INT24:
+                    for (int i = dataOffset, stop = dataOffset + len; i < stop; i++, pos += frameSize) {
+                        i24 = (int) (d[i] * 0x7FFFFF);
+                        if (byteOrder == ByteOrder.BIG_ENDIAN) {
+                            b.put(pos, (byte) (i24 >> 16));
+                            b.put(pos + 1, (byte) (i24 >> 8));
+                            b.put(pos + 2, (byte) i24);
+                        } else {
+                            b.put(pos + 2, (byte) (i24 >> 16));
+                            b.put(pos + 1, (byte) (i24 >> 8));
+                            b.put(pos, (byte) i24);
+                        }
+                    }
+                    break;
+                case FORMAT_INT32:
+                    for (int i = dataOffset, stop = dataOffset + len; i < stop; i++, pos += frameSize) {
+                        b.putInt(pos, (int) (d[i] * 0x7FFFFFFF));
+                    }
+                    break;
+                case FORMAT_FLOAT32:
+                    for (int i = dataOffset, stop = dataOffset + len; i < stop; i++, pos += frameSize) {
+                        b.putFloat(pos, d[i]);
+                    }
+                    break;
+                case FORMAT_FLOAT64:
+                    for (int i = dataOffset, stop = dataOffset + len; i < stop; i++, pos += frameSize) {
+                        b.putDouble(pos, d[i]);
+                    }
+                    break;
+                default:
+                    assert false : format;
+            }
+        }
+    }
+}
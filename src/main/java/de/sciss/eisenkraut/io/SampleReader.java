@@ -0,0 +1,408 @@
+/*
+ *  SampleReader.java
+ *  Eisenkraut
+ *
+ *  Copyright (c) 2004-2020 Hanns Holger Rutz. All rights reserved.
+ *
+ *  This software is published under the GNU Affero General Public License v3+
+ *
+ *
+ *  For further information, please contact Hanns Holger Rutz at
+ *  contact@sciss.de
+ */
+
+package de.sciss.eisenkraut.io;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.prefs.PreferenceChangeEvent;
+import java.util.prefs.PreferenceChangeListener;
+import java.util.prefs.Preferences;
+
+import de.sciss.eisenkraut.util.PrefsUtil;
+import de.sciss.io.InterleavedStreamFile;
+import de.sciss.util.Param;
+
+/**
+ *	A reader that decodes sample frames of an audio file
+ *	without using (and thus without locking) the stream file's
+ *	seek position. By default, frames are fetched with positional
+ *	<code>FileChannel</code> reads (<code>pread</code>) into a
+ *	per-thread buffer. In mapped mode, the sample data is instead
+ *	memory-mapped in windows of approx. 64 MB which are shared by
+ *	all threads; decoding uses absolute buffer access only. In both
+ *	modes concurrent readers of the same file never block each other.
+ *	<p>
+ *	There is at most one reader per stream file. Readers are
+ *	obtained through <code>get</code> which returns <code>null</code>
+ *	if the file's format is not supported by <code>SampleDataLayout</code>.
+ *	In this case the caller is expected to use the stream file instead.
+ *	Owners of stream files must call <code>release</code>
+ *	when closing the file, and <code>invalidate</code> after
+ *	writing to it.
+ *	<p>
+ *	Unless disabled, decoded frames are kept in the
+ *	shared <code>BlockCache</code>.
+ *
+ *	@see	SampleDataLayout
+ *	@see	BlockCache
+ */
+public class SampleReader {
+
+    private static final int    WINDOW_BYTES    = 1 << 26;
+    private static final int    BUF_BYTES       = 1 << 16;
+
+    private static final Map<InterleavedStreamFile, SampleReader> readers =
+            new HashMap<InterleavedStreamFile, SampleReader>();
+
+    private static volatile boolean mapped      = false;
+
+    private final FileChannel       ch;
+    private final SampleDataLayout  layout;
+    private final long              windowSize;     // integer multiple of frameSize
+    private MappedByteBuffer[]      windows         = new MappedByteBuffer[0];
+    private volatile boolean        closed          = false;
+    // mapped readers share it, truncate holds it exclusively while
+    // the file shrinks, so no window is accessed beyond the end of file
+    private final ReadWriteLock     truncLock       = new ReentrantReadWriteLock();
+
+    private final int               bufFrames;
+    private final ThreadLocal<ByteBuffer> threadBuf = new ThreadLocal<ByteBuffer>();
+    private final ThreadLocal<float[][]> threadBlock = new ThreadLocal<float[][]>();
+
+    long                            cacheGeneration = 0L;   // guarded by BlockCache
+
+    private SampleReader(FileChannel ch, SampleDataLayout layout) {
+        this.ch         = ch;
+        this.layout     = layout;
+        windowSize      = (long) Math.max(1, WINDOW_BYTES / layout.frameSize) * layout.frameSize;
+        bufFrames       = Math.max(1, BUF_BYTES / layout.frameSize);
+    }
+
+    /**
+     *	Reads the mapped read mode and block cache settings from the given
+     *	preferences and tracks their changes.
+     */
+    public static void setPreferences(final Preferences prefs) {
+        setMapped(prefs.getBoolean(PrefsUtil.KEY_MAPPEDREAD, false));
+        setBlockCacheCapacity(prefs);
+        prefs.addPreferenceChangeListener(new PreferenceChangeListener() {
+            public void preferenceChange(PreferenceChangeEvent e) {
+                if (e.getKey().equals(PrefsUtil.KEY_MAPPEDREAD)) {
+                    setMapped(Boolean.valueOf(e.getNewValue()));
+                } else if (e.getKey().equals(PrefsUtil.KEY_BLOCKCACHE)) {
+                    setBlockCacheCapacity(prefs);
+                }
+            }
+        });
+    }
+
+    private static void setBlockCacheCapacity(Preferences prefs) {
+        final Param p = Param.fromPrefs(prefs, PrefsUtil.KEY_BLOCKCACHE, null);
+        BlockCache.setCapacity(p == null ? 0L : (long) p.val << 20);
+    }
+
+    public static void setMapped(boolean onOff) {
+        mapped = onOff;
+    }
+
+    public static boolean isMapped() {
+        return mapped;
+    }
+
+    /**
+     *	Returns the shared reader for a stream file, creating it if necessary.
+     *
+     *	@return	the reader, or <code>null</code> if direct reading is not
+     *			possible for this file
+     */
+    public static SampleReader get(InterleavedStreamFile f) {
+        synchronized (readers) {
+            if (readers.containsKey(f)) return readers.get(f);
+
+            SampleReader r = null;
+            try {
+                final FileChannel ch = new RandomAccessFile(f.getFile(), "r").getChannel();
+                final SampleDataLayout layout = SampleDataLayout.create(f, ch);
+                if (layout != null) {
+                    r = new SampleReader(ch, layout);
+                } else {
+                    ch.close();
+                }
+            } catch (IOException e1) {
+                System.err.println("SampleReader: " + f.getFile().getName() + " : " + e1);
+            }
+            readers.put(f, r);  // null entries avoid repeated header scans
+            return r;
+        }
+    }
+
+    /**
+     *	Closes and forgets the reader for a stream file (if any).
+     *	To be called when the stream file is closed.
+     */
+    public static void release(InterleavedStreamFile f) {
+        final SampleReader r;
+        synchronized (readers) {
+            r = readers.remove(f);
+        }
+        if (r != null) {
+            r.close();
+            BlockCache.remove(r);
+        }
+    }
+
+    /**
+     *	Discards cached frames of a stream file. To be called
+     *	after writing to the file.
+     *
+     *	@param	frameOffset	the frame position in the file (not in the trail)
+     *	@param	len			number of frames written
+     */
+    public static void invalidate(InterleavedStreamFile f, long frameOffset, long len) {
+        final SampleReader r;
+        synchronized (readers) {
+            r = readers.get(f);
+        }
+        if (r != null) BlockCache.invalidate(r, frameOffset, frameOffset + len);
+    }
+
+    /**
+     *	Truncates a stream file, discarding mapped windows and cached
+     *	frames beyond its new end. Mapped reads of the file are blocked
+     *	until the file has shrunk, so that no reader touches a window
+     *	reaching beyond the end of file. Unlike <code>release</code>,
+     *	the reader stays open, so concurrent reads of the remaining
+     *	frames are not disturbed.
+     *
+     *	@param	frameNum	the new number of frames in the file
+     */
+    public static void truncate(InterleavedStreamFile f, long frameNum)
+            throws IOException {
+
+        final SampleReader r;
+        synchronized (readers) {
+            r = readers.get(f);
+        }
+        if (r == null) {
+            f.setFrameNum(frameNum);
+            return;
+        }
+        r.truncLock.writeLock().lock();
+        try {
+            r.dropWindows(frameNum);
+            f.setFrameNum(frameNum);
+        } finally {
+            r.truncLock.writeLock().unlock();
+        }
+        BlockCache.invalidate(r, frameNum, Long.MAX_VALUE);
+    }
+
+    public SampleDataLayout getLayout() {
+        return layout;
+    }
+
+    /**
+     *	Copies frames as raw bytes to another file, without decoding them.
+     *	The target must have a compatible layout.
+     *
+     *	@param	frameOffset	the frame position in the file (not in the trail)
+     *	@param	len			number of frames to copy
+     *	@param	target		a channel opened for writing on the target file
+     *	@param	targetPos	absolute byte position in the target file
+     *	@return	<code>true</code> if the frames were copied, <code>false</code> if
+     *			the region is not (yet) covered by the file, in which case
+     *			the caller should use the stream file instead
+     *
+     *	@see	SampleDataLayout#isCompatible( SampleDataLayout )
+     */
+    public boolean transferFrames(long frameOffset, long len, FileChannel target, long targetPos)
+            throws IOException {
+
+        final long pos  = layout.bytePosition(frameOffset);
+        final long size = len * layout.frameSize;
+
+        if (closed || (ch.size() < pos + size)) return false;
+
+        for (long done = 0L, n; done < size; done += n) {
+            target.position(targetPos + done);
+            n = ch.transferTo(pos + done, size - done, target);
+            if (n == 0L) throw new IOException("Could not transfer frames");
+        }
+        return true;
+    }
+
+    /**
+     *	Reads interleaved frames from the file into separate channel buffers.
+     *
+     *	@param	frameOffset	the frame position in the file (not in the trail)
+     *	@param	data		target buffers; <code>null</code> channels are skipped
+     *	@param	dataOffset	offset into the target buffers
+     *	@param	len			number of frames to read
+     *	@return	<code>true</code> if the frames were read, <code>false</code> if
+     *			the region is not (yet) covered by the file, in which case
+     *			the caller should use the stream file instead
+     */
+    public boolean readFrames(long frameOffset, float[][] data, int dataOffset, int len)
+            throws IOException {
+
+        return BlockCache.isEnabled() ? readFramesCached(frameOffset, data, dataOffset, len) :
+                readFramesDecoded(frameOffset, data, dataOffset, len);
+    }
+
+    private boolean readFramesDecoded(long frameOffset, float[][] data, int dataOffset, int len)
+            throws IOException {
+
+        return mapped ? readFramesMapped(frameOffset, data, dataOffset, len) :
+                readFramesPositional(frameOffset, data, dataOffset, len);
+    }
+
+    private boolean readFramesCached(long frameOffset, float[][] data, int dataOffset, int len)
+            throws IOException {
+
+        final int   blockFrames = BlockCache.BLOCK_FRAMES;
+        long        pos         = frameOffset;
+        int         remaining   = len;
+        long        idx, generation;
+        int         blockOff, chunkLen;
+        float[][]   block       = threadBlock.get();
+
+        if (block == null) {
+            block = new float[layout.channels][blockFrames];
+            threadBlock.set(block);
+        }
+
+        while (remaining > 0) {
+            idx         = pos / blockFrames;
+            blockOff    = (int) (pos - idx * blockFrames);
+            chunkLen    = Math.min(remaining, blockFrames - blockOff);
+            if (!BlockCache.read(this, idx, blockOff, data, dataOffset, chunkLen)) {
+                generation = BlockCache.getGeneration(this);
+                if (readFramesDecoded(idx * blockFrames, block, 0, blockFrames)) {
+                    BlockCache.put(this, idx, generation, block);
+                    for (int ch = 0; ch < data.length; ch++) {
+                        if (data[ch] != null) System.arraycopy(block[ch], blockOff, data[ch], dataOffset, chunkLen);
+                    }
+                } else if (!readFramesDecoded(pos, data, dataOffset, chunkLen)) {
+                    return false;   // the block is not entirely covered by the file
+                }
+            }
+            dataOffset += chunkLen;
+            remaining  -= chunkLen;
+            pos        += chunkLen;
+        }
+        return true;
+    }
+
+    private boolean readFramesPositional(long frameOffset, float[][] data, int dataOffset, int len)
+            throws IOException {
+
+        final int   frameSize   = layout.frameSize;
+        long        pos         = layout.bytePosition(frameOffset);
+        int         remaining   = len;
+        int         chunkLen, n;
+        ByteBuffer  b           = threadBuf.get();
+
+        if (closed) return false;
+        if (b == null) {
+            b = ByteBuffer.allocateDirect(bufFrames * frameSize).order(layout.byteOrder);
+            threadBuf.set(b);
+        }
+
+        while (remaining > 0) {
+            chunkLen = Math.min(remaining, bufFrames);
+            b.clear();
+            b.limit(chunkLen * frameSize);
+            try {
+                while (b.hasRemaining()) {
+                    n = ch.read(b, pos + b.position());
+                    if (n < 0) return false;    // not (yet) covered by the file
+                }
+            } catch (ClosedChannelException e1) {
+                return false;   // released concurrently, let the stream file take over
+            }
+            layout.decode(b, 0, data, dataOffset, chunkLen);
+            dataOffset += chunkLen;
+            remaining  -= chunkLen;
+            pos        += chunkLen * frameSize;
+        }
+        return true;
+    }
+
+    private boolean readFramesMapped(long frameOffset, float[][] data, int dataOffset, int len)
+            throws IOException {
+
+        final int frameSize = layout.frameSize;
+        long    rel         = frameOffset * frameSize;
+        int     remaining   = len;
+        int     idx, winPos, chunkLen;
+        ByteBuffer win;
+
+        // coverage is checked by getWindow and must hold until decoding is done
+        truncLock.readLock().lock();
+        try {
+            while (remaining > 0) {
+                idx         = (int) (rel / windowSize);
+                winPos      = (int) (rel - idx * windowSize);
+                chunkLen    = (int) Math.min(remaining, (windowSize - winPos) / frameSize);
+                win         = getWindow(idx, winPos + chunkLen * frameSize);
+                if (win == null) return false;
+                layout.decode(win, winPos, data, dataOffset, chunkLen);
+                dataOffset += chunkLen;
+                remaining  -= chunkLen;
+                rel        += (long) chunkLen * frameSize;
+            }
+        } finally {
+            truncLock.readLock().unlock();
+        }
+        return true;
+    }
+
+    // returns a window with at least minLimit bytes, or null if the file is too short.
+    // the caller must hold the read lock of truncLock while accessing the window
+    private synchronized ByteBuffer getWindow(int idx, int minLimit)
+            throws IOException {
+
+        if (closed) return null;
+
+        if (idx >= windows.length) {
+            final MappedByteBuffer[] newWindows = new MappedByteBuffer[idx + 1];
+            System.arraycopy(windows, 0, newWindows, 0, windows.length);
+            windows = newWindows;
+        }
+        MappedByteBuffer win = windows[idx];
+        if ((win == null) || (win.capacity() < minLimit)) {
+            // temp files grow while being written, so the last window may need re-mapping
+            final long start    = layout.dataOffset + idx * windowSize;
+            final long size     = Math.min(windowSize, ch.size() - start);
+            if (size < minLimit) return null;
+            win = ch.map(FileChannel.MapMode.READ_ONLY, start, size);
+            win.order(layout.byteOrder);
+            windows[idx] = win;
+        }
+        return win;
+    }
+
+    // drops the windows reaching beyond the given frame; they are mapped again on demand
+    private synchronized void dropWindows(long frameNum) {
+        for (int idx = (int) (frameNum * layout.frameSize / windowSize); idx < windows.length; idx++) {
+            windows[idx] = null;
+        }
+    }
+
+    private synchronized void close() {
+        closed  = true;
+        windows = new MappedByteBuffer[0];
+        try {
+            ch.close();
+        } catch (IOException e1) { /* ignore */ }
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ *  SaveJournal.java
+ *  Eisenkraut
+ *
+ *  Copyright (c) 2004-2020 Hanns Holger Rutz. All rights reserved.
+ *
+ *  This software is published under the GNU Affero General Public License v3+
+ *
+ *
+ *  For further information, please contact Hanns Holger Rutz at
+ *  contact@sciss.de
+ */
+
+package de.sciss.eisenkraut.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ *	A redo journal that makes in-place modifications of audio files
+ *	crash-safe. The new contents of all modified byte regions are
+ *	first appended to the journal. Only after the journal has been
+ *	committed, the regions are copied over to the target files.
+ *	If the application dies before the commit, the targets are untouched
+ *	and the journal is discarded; if it dies after the commit,
+ *	<code>recover</code> completes the copy the next time the
+ *	files are opened.
+ *	<p>
+ *	The journal is stored next to the first target file. Its layout is:
+ *	magic, state (0 = open, 1 = committed), table offset, data, and
+ *	finally the table (target paths and region entries).
+ */
+public class SaveJournal {
+
+    private static final int	MAGIC			= 0x4569734A;	// 'EisJ'
+    private static final int	STATE_OPEN		= 0;
+    private static final int	STATE_COMMITTED	= 1;
+    private static final int	HEADER_SIZE		= 16;
+
+    private final File			file;
+    private final File[]		targets;
+    private final RandomAccessFile raf;
+    private final FileChannel	ch;
+    private final List<Entry>	entries			= new ArrayList<Entry>();
+    private long				dataPos			= HEADER_SIZE;
+
+    private SaveJournal(File file, File[] targets, RandomAccessFile raf) {
+        this.file		= file;
+        this.targets	= targets;
+        this.raf		= raf;
+        this.ch			= raf.getChannel();
+    }
+
+    /**
+     *	Returns the journal file for a set of target files.
+     */
+    public static File getFile(File firstTarget) {
+        return new File(firstTarget.getParentFile(), "." + firstTarget.getName() + ".eisj");
+    }
+
+    /**
+     *	Creates a new, empty journal. A stale journal of the same
+     *	name is overwritten, so <code>recover</code> must have been called
+     *	before the targets were opened.
+     */
+    public static SaveJournal create(File[] targets)
+            throws IOException {
+
+        final File				f	= getFile(targets[0]);
+        final RandomAccessFile	raf	= new RandomAccessFile(f, "rw");
+        raf.setLength(0L);
+        raf.writeInt(MAGIC);
+        raf.writeInt(STATE_OPEN);
+        raf.writeLong(0L);
+        return new SaveJournal(f, targets, raf);
+    }
+
+    /**
+     *	Completes an interrupted save if a committed journal is found
+     *	for the given target, and removes the journal.
+     *
+     *	@return	<code>true</code> if a save was completed
+     */
+    public static boolean recover(File firstTarget)
+            throws IOException {
+
+        final File f = getFile(firstTarget);
+        if (!f.isFile()) return false;
+
+        final RandomAccessFile raf = new RandomAccessFile(f, "r");
+        final boolean result;
+        try {
+            if ((raf.length() < HEADER_SIZE) || (raf.readInt() != MAGIC) || (raf.readInt() != STATE_COMMITTED)) {
+                result = false;    // never committed, targets are untouched
+            } else {
+                raf.seek(raf.readLong());
+                final File[] targets = new File[raf.readInt()];
+                for (int i = 0; i < targets.length; i++) {
+                    targets[i] = new File(raf.readUTF());
+                }
+                final Entry[] entries = new Entry[raf.readInt()];
+                for (int i = 0; i < entries.length; i++) {
+                    entries[i] = new Entry(raf.readInt(), raf.readLong(), raf.readLong(), raf.readLong());
+                }
+                apply(raf.getChannel(), targets, entries);
+                System.err.println("Completed interrupted save of '" + firstTarget.getName() + "'");
+                result = true;
+            }
+        } finally {
+            raf.close();
+        }
+        if (!f.delete()) f.deleteOnExit();
+        return result;
+    }
+
+    /**
+     *	Appends new contents for a region of a target file.
+     *
+     *	@param	targetIdx	index into the target files
+     *	@param	targetPos	byte position in the target file
+     *	@param	b			the contents from its position to its limit
+     */
+    public void write(int targetIdx, long targetPos, ByteBuffer b)
+            throws IOException {
+
+        final long	len		= b.remaining();
+        final Entry	last	= entries.isEmpty() ? null : entries.get(entries.size() - 1);
+
+        while (b.hasRemaining()) {
+            dataPos += ch.write(b, dataPos);
+        }
+        if ((last != null) && (last.targetIdx == targetIdx) && (last.targetPos + last.len == targetPos) &&
+            (last.journalPos + last.len == dataPos - len)) {
+
+            last.len += len;
+        } else {
+            entries.add(new Entry(targetIdx, targetPos, len, dataPos - len));
+        }
+    }
+
+    /**
+     *	Writes the table, flushes the journal to disk and marks it
+     *	as committed. From now on, the modifications are bound to happen.
+     */
+    public void commit()
+            throws IOException {
+
+        raf.seek(dataPos);
+        raf.writeInt(targets.length);
+        for (File target : targets) {
+            raf.writeUTF(target.getAbsolutePath());
+        }
+        raf.writeInt(entries.size());
+        for (Entry e : entries) {
+            raf.writeInt(e.targetIdx);
+            raf.writeLong(e.targetPos);
+            raf.writeLong(e.len);
+            raf.writeLong(e.journalPos);
+        }
+        ch.force(true);
+        raf.seek(4);
+        raf.writeInt(STATE_COMMITTED);
+        raf.writeLong(dataPos);
+        ch.force(true);
+    }
+
+    /**
+     *	Copies the committed regions to the target files
+     *	and deletes the journal. If copying fails, the journal
+     *	is kept so that <code>recover</code> can retry.
+     */
+    public void apply()
+            throws IOException {
+
+        try {
+            apply(ch, targets, entries.toArray(new Entry[entries.size()]));
+        } catch (IOException e1) {
+            close();
+            throw e1;
+        }
+        dispose();
+    }
+
+    /**
+     *	Closes and deletes the journal. If called before <code>commit</code>,
+     *	this discards all modifications.
+     */
+    public void dispose() {
+        close();
+        if (!file.delete()) file.deleteOnExit();
+    }
+
+    private void close() {
+        try {
+            raf.close();
+        } catch (IOException e1) { /* ignore */ }
+    }
+
+    private static void apply(FileChannel src, File[] targets, Entry[] entries)
+            throws IOException {
+
+        final FileChannel[] dst = new FileChannel[targets.length];
+        try {
+            for (int i = 0; i < targets.length; i++) {
+                dst[i] = new RandomAccessFile(targets[i], "rw").getChannel();
+            }
+            for (Entry e : entries) {
+                for (long done = 0L, n; done < e.len; done += n) {
+                    src.position(e.journalPos + done);
+                    n = dst[e.targetIdx].transferFrom(src, e.targetPos + done, e.len - done);
+                    if (n == 0L) throw new IOException("Journal is truncated");
+                }
+            }
+            for (FileChannel c : dst) c.force(false);
+        } finally {
+            for (FileChannel c : dst) {
+                if (c != null) c.close();
+            }
+        }
+    }
+
+    private static final class Entry {
+        final int	targetIdx;
+        final long	targetPos;
+        long		len;
+        final long	journalPos;
+
+        Entry(int targetIdx, long targetPos, long len, long journalPos) {
+            this.targetIdx	= targetIdx;
+            this.targetPos	= targetPos;
+            this.len		= len;
+            this.journalPos	= journalPos;
+        }
+    }
+}
@@ -69,7 +69,12 @@ public class SilentAudioStake extends AudioStake {
     public int readFrames( float[][] data, int dataOffset, Span readSpan )
     throws IOException
     {
-        final int	len		= (int) readSpan.getLength();
+        return readFrames( readSpan.start, data, dataOffset, (int) readSpan.getLength() );
+    }
+
+    public int readFrames( long pos, float[][] data, int dataOffset, int len )
+    throws IOException
+    {
         final int	stop	= dataOffset + len;
         float[]		temp;
 
@@ -130,6 +135,7 @@ public class SilentAudioStake extends AudioStake {
         if (len == 0) return;
 
         for (Buffer buf : bufs) {
+            if (buf == null) continue;    // skipped by RemappedAudioStake
             bndl.addPacket(buf.fillMsg(
                     bufOff * buf.getNumChannels(), len * buf.getNumChannels(), 0.0f));
         }
@@ -0,0 +1,213 @@
+/*
+ *  TempFileSpace.java
+ *  Eisenkraut
+ *
+ *  Copyright (c) 2004-2020 Hanns Holger Rutz. All rights reserved.
+ *
+ *  This software is published under the GNU Affero General Public License v3+
+ *
+ *
+ *  For further information, please contact Hanns Holger Rutz at
+ *  contact@sciss.de
+ */
+
+package de.sciss.eisenkraut.io;
+
+import java.io.File;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import de.sciss.io.AudioFile;
+import de.sciss.io.Span;
+
+/**
+ *	Keeps track of the regions of an audio trail's temporary files.
+ *	Each allocated region is associated with a token object that is
+ *	strongly referenced by all stakes which read from the region.
+ *	Once the token has been garbage collected, no stake in the trail,
+ *	in the undo history or in a clipboard can access the region any more,
+ *	so it is put on a free-list from which subsequent allocations are served.
+ *	If free space accumulates at the end of the files, the trail is
+ *	asked to truncate them.
+ *	<p>
+ *	Regions span the same frames in all temp files of a trail,
+ *	since these always grow in lockstep.
+ *	<p>
+ *	Files adopted by the trail are tracked in the same way: once
+ *	their token has been garbage collected, they are closed and deleted.
+ */
+class TempFileSpace {
+
+    private static final ReferenceQueue<Object>	queue		= new ReferenceQueue<Object>();
+    private static Thread						reclaimer	= null;
+
+    private final AudioTrail					trail;
+    private final Set<RegionRef>				live		= new HashSet<RegionRef>();
+    private final Set<FileRef>					liveFiles	= new HashSet<FileRef>();
+    private final TreeMap<Long, Long>			free		= new TreeMap<Long, Long>();	// start -> stop
+    private long								size		= 0L;
+
+    TempFileSpace(AudioTrail trail) {
+        this.trail = trail;
+    }
+
+    /**
+     *	Returns a region of the given length, preferring the
+     *	first hole that is large enough. If there is none, the
+     *	region is appended, and the caller is responsible
+     *	for growing the files to <code>getSize()</code>.
+     */
+    synchronized Span alloc(long len) {
+        final Iterator<Map.Entry<Long, Long>> iter = free.entrySet().iterator();
+        Map.Entry<Long, Long> e;
+        long start, stop;
+
+        while (iter.hasNext()) {
+            e		= iter.next();
+            start	= e.getKey();
+            stop	= e.getValue();
+            if (stop - start >= len) {
+                iter.remove();
+                if (stop - start > len) free.put(start + len, stop);
+                return new Span(start, start + len);
+            }
+        }
+
+        start	= size;
+        size   += len;
+        return new Span(start, size);
+    }
+
+    /**
+     *	Registers a region for reclamation once the
+     *	given token has become unreachable.
+     */
+    synchronized void track(Object token, Span region) {
+        live.add(new RegionRef(token, region, this));
+        ensureReclaimer();
+    }
+
+    /**
+     *	Registers an adopted file to be closed and deleted
+     *	once the given token has become unreachable.
+     */
+    synchronized void trackFile(Object token, AudioFile af) {
+        liveFiles.add(new FileRef(token, af, this));
+        ensureReclaimer();
+    }
+
+    /**
+     *	Returns the number of frames in use, i.e.
+     *	the end of the last region that has not been freed.
+     */
+    synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     *	Forgets all regions and deletes all adopted files,
+     *	to be called when the temp files are deleted.
+     */
+    synchronized void clear() {
+        for (FileRef ref : liveFiles) {
+            delete(ref.af);
+        }
+        liveFiles.clear();
+        live.clear();
+        free.clear();
+        size = 0L;
+    }
+
+    // returns whether the files can be truncated
+    private synchronized boolean release(RegionRef ref) {
+        if (!live.remove(ref)) return false;	// cleared in the meantime
+
+        long start	= ref.region.start;
+        long stop	= ref.region.stop;
+
+        // coalesce with adjacent holes
+        final Map.Entry<Long, Long> pred = free.floorEntry(start);
+        if ((pred != null) && (pred.getValue() == start)) {
+            start = pred.getKey();
+            free.remove(start);
+        }
+        final Long succStop = free.remove(stop);
+        if (succStop != null) stop = succStop;
+
+        if (stop == size) {
+            size = start;
+            return true;
+        } else {
+            free.put(start, stop);
+            return false;
+        }
+    }
+
+    private synchronized boolean releaseFile(FileRef ref) {
+        return liveFiles.remove(ref);	// false if cleared in the meantime
+    }
+
+    private static void delete(AudioFile af) {
+        SampleReader.release(af);
+        af.cleanUp();
+        final File f = af.getFile();
+        if (!f.delete()) f.deleteOnExit();
+    }
+
+    private static synchronized void ensureReclaimer() {
+        if (reclaimer != null) return;
+
+        reclaimer = new Thread("TempFileSpace") {
+            public void run() {
+                while (true) {
+                    try {
+                        final Reference<?> r = queue.remove();
+                        if (r instanceof FileRef) {
+                            final FileRef ref = (FileRef) r;
+                            if (ref.space.releaseFile(ref)) delete(ref.af);
+                        } else {
+                            final RegionRef ref = (RegionRef) r;
+                            // note: called without holding our lock (trail before space)
+                            if (ref.space.release(ref)) ref.space.trail.truncateTempFiles();
+                        }
+                    } catch (InterruptedException e1) { /* ignore */ }
+                }
+            }
+        };
+        reclaimer.setDaemon(true);
+        reclaimer.setPriority(Thread.MIN_PRIORITY);
+        reclaimer.start();
+    }
+
+    private static final class RegionRef
+            extends WeakReference<Object> {
+
+        final Span				region;
+        final TempFileSpace		space;
+
+        RegionRef(Object token, Span region, TempFileSpace space) {
+            super(token, queue);
+            this.region	= region;
+            this.space	= space;
+        }
+    }
+
+    private static final class FileRef
+            extends WeakReference<Object> {
+
+        final AudioFile			af;
+        final TempFileSpace		space;
+
+        FileRef(Object token, AudioFile af, TempFileSpace space) {
+            super(token, queue);
+            this.af		= af;
+            this.space	= space;
+        }
+    }
+}
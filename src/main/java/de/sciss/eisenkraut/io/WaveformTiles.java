@@ -0,0 +1,469 @@
+/*
+ *  WaveformTiles.java
+ *  Eisenkraut
+ *
+ *  Copyright (c) 2004-2020 Hanns Holger Rutz. All rights reserved.
+ *
+ *  This software is published under the GNU Affero General Public License v3+
+ *
+ *
+ *  For further information, please contact Hanns Holger Rutz at
+ *  contact@sciss.de
+ */
+
+package de.sciss.eisenkraut.io;
+
+import java.awt.EventQueue;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import de.sciss.eisenkraut.gui.WaveformView;
+import de.sciss.eisenkraut.util.PrefsUtil;
+import de.sciss.io.Span;
+import de.sciss.timebased.Trail;
+
+/**
+ *	Renders the waveform of a <code>DecimatedWaveTrail</code> in the
+ *	background, so that painting never waits for the disk. The timeline
+ *	is divided into tiles of a fixed pixel width. The number of frames per
+ *	tile is quantized to a few steps per octave of zoom, so that tiles can be
+ *	reused while scrolling and, scaled slightly, while zooming. Each tile
+ *	holds the rows of all channels, since a single read serves all of them.
+ *	<p>
+ *	Finished tiles are kept in a least-recently-used cache with a budget of pixels.
+ *	While a tile is pending, the busy pattern is painted in its place.
+ *	Tiles touched by a modification of the full scale trail are discarded.
+ *	Tiles containing regions whose overview was still being calculated
+ *	are kept, but are rendered again when the calculation progresses.
+ *	<p>
+ *	Tiles next to the visible ones are rendered ahead of time on a separate
+ *	low priority thread, in the direction in which the view was last scrolled
+ *	(e.g. by the user or by the timeline following the playback position).
+ *	The distance grows with the scroll speed. Prefetching waits while visible
+ *	tiles are pending, and prefetches which are no longer ahead of the view are
+ *	dropped the next time the view is painted.
+ */
+class WaveformTiles {
+
+    private static final int		TILE_WIDTH			= 256;
+    private static final int		STEPS_PER_OCTAVE	= 4;
+    private static final long		MAX_PIXELS			= 1L << 23;	// ca. 32 MB
+    private static final int		PREFETCH_MILLIS		= 1000;		// time span to cover when scrolling
+    private static final int		MAX_PREFETCH_PAGES	= 4;
+    private static final int		MAX_PREFETCH_TILES	= 32;
+
+    private static ExecutorService	executor			= null;		// lazy
+    private static ExecutorService	prefetcher			= null;		// lazy
+
+    private final DecimatedWaveTrail	trail;
+    private final Trail.Listener		trailListener;
+
+    // access order, so iteration starts at the least recently used tile
+    private final Map<Key, Tile>		cache				= new LinkedHashMap<Key, Tile>(64, 0.75f, true);
+    private final Map<Key, Request>		pending				= new HashMap<Key, Request>();
+    private long						numPixels			= 0L;
+    private int							paintSerial			= 0;
+    private boolean						redisplayPending	= false;
+    private int							numVisiblePending	= 0;
+
+    // scroll tracking for prefetching
+    private long						lastViewStart		= -1L;
+    private long						lastTileFrames		= -1L;
+    private long						lastPaintTime		= 0L;
+    private int							prefetchDir			= 0;		// -1, 0 (both sides), +1
+    private long						prefetchFrames		= 0L;
+
+    WaveformTiles(DecimatedWaveTrail trail) {
+        this.trail = trail;
+
+        trailListener = new Trail.Listener() {
+            public void trailModified(Trail.Event e) {
+                invalidate(e.getAffectedSpan());
+            }
+        };
+        trail.fullScale.addListener(trailListener);
+    }
+
+    void dispose() {
+        trail.fullScale.removeListener(trailListener);
+        synchronized (this) {
+            cache.clear();
+            pending.clear();
+            numPixels = 0L;
+            notifyAll();	// release waiting prefetches
+        }
+    }
+
+    /**
+     *	Paints the tiles covering the given decimation info's span.
+     *	Missing tiles are requested, and the view is redisplayed
+     *	when they are ready. To be called in the event thread.
+     */
+    void paint(DecimationInfo info, WaveformView view, Graphics2D g2) {
+        final int		width		= view.getWidth();
+        final long		viewStart	= info.span.start;
+        final long		viewLen		= info.span.getLength() - 1;	// the view adds one frame
+        final long		trailStop	= trail.fullScale.getSpan().stop;
+        if ((width <= 0) || (viewLen <= 0) || (trailStop <= 0)) return;
+
+        final double	spp			= (double) viewLen / width;
+        final int		level		= (int) Math.floor(Math.log(spp) / Math.log(2) * STEPS_PER_OCTAVE);
+        final long		tileFrames	= Math.max(1L, Math.round(TILE_WIDTH * Math.pow(2, (double) level / STEPS_PER_OCTAVE)));
+        final int		numCh		= view.getNumChannels();
+        final Rectangle[] rects		= new Rectangle[numCh];
+        final int		vScale		= view.getVerticalScale();
+        final boolean	logAmp		= vScale == PrefsUtil.VSCALE_AMP_LOG;
+        final float		minY		= logAmp ? view.getAmpLogMin() : view.getAmpLinMin();
+        final float		maxY		= logAmp ? view.getAmpLogMax() : view.getAmpLinMax();
+        final int		height		= view.getHeight();
+        final long		stop		= Math.min(trailStop, viewStart + viewLen);
+        final List<Request> toSubmit = new ArrayList<Request>();
+        final List<Request> toPrefetch = new ArrayList<Request>();
+        Key				key;
+        Tile			tile;
+        Request			req;
+        long			tileStart;
+        int				x1, x2;
+
+        for (int ch = 0; ch < numCh; ch++) {
+            rects[ch] = new Rectangle(view.rectForChannel(ch));
+        }
+
+        synchronized (this) {
+            paintSerial++;
+            for (long idx = viewStart / tileFrames; (tileStart = idx * tileFrames) < stop; idx++) {
+                key		= new Key(tileFrames, idx, height, vScale, minY, maxY);
+                tile	= cache.get(key);
+                x1		= (int) Math.round((tileStart - viewStart) / spp);
+                x2		= (int) Math.round((tileStart + tileFrames - viewStart) / spp);
+
+                if (tile != null) {
+                    g2.drawImage(tile.img, x1, 0, x2, height, 0, 0, TILE_WIDTH, height, null);
+                } else {
+                    x2 = Math.min(x2, (int) Math.round((trailStop - viewStart) / spp));
+                    g2.setPaint(trail.pntBusy);
+                    for (Rectangle r : rects) {
+                        g2.fillRect(x1, r.y, x2 - x1, r.height);
+                    }
+                }
+
+                if ((tile == null) || tile.stale) {
+                    req = pending.get(key);
+                    if ((req == null) || req.prefetch) {	// a queued prefetch would wait too long
+                        req = new Request(key, new Span(tileStart, Math.min(trailStop, tileStart + tileFrames)),
+                                rects, logAmp, minY, maxY, view, false);
+                        pending.put(key, req);
+                        toSubmit.add(req);
+                        numVisiblePending++;
+                    }
+                    req.serial = paintSerial;
+                }
+            }
+
+            updateScrolling(viewStart, viewLen, tileFrames);
+            final long pfStart, pfStop;
+            if (prefetchDir > 0) {
+                pfStart	= stop;
+                pfStop	= stop + prefetchFrames;
+            } else if (prefetchDir < 0) {
+                pfStart	= viewStart - prefetchFrames;
+                pfStop	= viewStart;
+            } else {
+                pfStart	= viewStart - (prefetchFrames >> 1);
+                pfStop	= stop + (prefetchFrames >> 1);
+            }
+            // nearest tiles first
+            final long	startIdx	= Math.max(0L, pfStart / tileFrames);
+            final long	stopIdx		= Math.min((trailStop + tileFrames - 1) / tileFrames, (pfStop + tileFrames - 1) / tileFrames);
+            final long	firstIdx	= viewStart / tileFrames;
+            final long	lastIdx		= (stop - 1) / tileFrames;
+            // prefetched tiles must fit into the cache next to the visible ones,
+            // otherwise they would evict the visible tiles
+            final long	maxPrefetch	= Math.min(MAX_PREFETCH_TILES,
+                    MAX_PIXELS / ((long) TILE_WIDTH * Math.max(1, height)) - (lastIdx - firstIdx + 1));
+            int			numPrefetch	= 0;
+            for (int i = 0; (numPrefetch < maxPrefetch) && ((lastIdx + i < stopIdx) || (firstIdx - i > startIdx)); i++) {
+                for (long idx : new long[] { lastIdx + 1 + i, firstIdx - 1 - i }) {
+                    if ((idx < startIdx) || (idx >= stopIdx) || (numPrefetch >= maxPrefetch)) continue;
+                    numPrefetch++;
+                    key		= new Key(tileFrames, idx, height, vScale, minY, maxY);
+                    tile	= cache.get(key);
+                    if ((tile != null) && !tile.stale) continue;
+                    req		= pending.get(key);
+                    if (req == null) {
+                        tileStart = idx * tileFrames;
+                        req = new Request(key, new Span(tileStart, Math.min(trailStop, tileStart + tileFrames)),
+                                rects, logAmp, minY, maxY, view, true);
+                        pending.put(key, req);
+                        toPrefetch.add(req);
+                    }
+                    req.serial = paintSerial;
+                }
+            }
+        }
+
+        for (Request r : toSubmit) {
+            getExecutor().execute(r);
+        }
+        for (Request r : toPrefetch) {
+            getPrefetcher().execute(r);
+        }
+    }
+
+    // estimates the direction and distance to prefetch from the change of the view
+    private void updateScrolling(long viewStart, long viewLen, long tileFrames) {
+        final long now = System.currentTimeMillis();
+
+        if (tileFrames != lastTileFrames) {		// zoomed
+            prefetchDir		= 0;
+            prefetchFrames	= viewLen;
+        } else if (viewStart != lastViewStart) {
+            final long	delta	= viewStart - lastViewStart;
+            final long	dt		= Math.max(1L, now - lastPaintTime);
+            final long	ahead	= (long) ((double) Math.abs(delta) / dt * PREFETCH_MILLIS);
+
+            prefetchDir		= delta > 0 ? 1 : -1;
+            prefetchFrames	= Math.max(viewLen, Math.min(viewLen * MAX_PREFETCH_PAGES, ahead));
+        }
+        // otherwise we are repainting at the same position, keep the previous estimate
+        lastViewStart	= viewStart;
+        lastTileFrames	= tileFrames;
+        lastPaintTime	= now;
+    }
+
+    /**
+     *	Discards all tiles touching a span of frames.
+     */
+    synchronized void invalidate(Span span) {
+        if (span == null) return;
+
+        for (Iterator<Map.Entry<Key, Tile>> iter = cache.entrySet().iterator(); iter.hasNext(); ) {
+            final Map.Entry<Key, Tile> e = iter.next();
+            if (e.getKey().getSpan().touches(span)) {
+                numPixels -= e.getValue().numPixels;
+                iter.remove();
+            }
+        }
+        // renderings in progress may have read the old data
+        for (Iterator<Key> iter = pending.keySet().iterator(); iter.hasNext(); ) {
+            if (iter.next().getSpan().touches(span)) iter.remove();
+        }
+    }
+
+    /**
+     *	Marks the tiles which were rendered while parts of the
+     *	overview were still being calculated, so that they are
+     *	rendered again the next time they are painted.
+     */
+    synchronized void refreshIncomplete() {
+        for (Tile tile : cache.values()) {
+            if (tile.incomplete) tile.stale = true;
+        }
+    }
+
+    // called by the workers
+    private void render(Request req) {
+        synchronized (this) {
+            if (req.prefetch) {
+                // leave the disk to the visible tiles
+                while ((numVisiblePending > 0) && (pending.get(req.key) == req)) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e1) {
+                        pending.remove(req.key);
+                        return;
+                    }
+                }
+            }
+            // skip tiles which have been scrolled out of view or invalidated in the meantime
+            if (pending.get(req.key) != req) return;
+            if (req.serial != paintSerial) {
+                pending.remove(req.key);
+                return;
+            }
+        }
+
+        final int				width		= (int) Math.ceil(TILE_WIDTH * (double) req.span.getLength() / req.key.tileFrames);
+        final BufferedImage		img			= new BufferedImage(TILE_WIDTH, Math.max(1, req.key.height), BufferedImage.TYPE_INT_ARGB);
+        final Graphics2D		g2			= img.createGraphics();
+        final List<Span>		busyList	= new ArrayList<Span>();
+        final DecimationInfo	info		= trail.getBestSubsample(new Span(req.span.start, req.span.stop + 1), width);
+
+        for (Rectangle r : req.rects) {
+            r.x		= 0;
+            r.width	= width;
+        }
+        try {
+            trail.drawWaveform(info, req.rects, req.logAmp, req.minY, req.maxY, busyList, g2);
+        } finally {
+            g2.dispose();
+        }
+
+        synchronized (this) {
+            if (pending.get(req.key) != req) return;	// invalidated while rendering
+            pending.remove(req.key);
+
+            final Tile tile	= new Tile(img, !busyList.isEmpty());
+            final Tile old	= cache.put(req.key, tile);
+            if (old != null) numPixels -= old.numPixels;
+            numPixels += tile.numPixels;
+
+            final Iterator<Tile> iter = cache.values().iterator();
+            while ((numPixels > MAX_PIXELS) && (cache.size() > 1)) {
+                numPixels -= iter.next().numPixels;
+                iter.remove();
+            }
+
+            if (req.prefetch || redisplayPending) return;
+            redisplayPending = true;
+        }
+
+        EventQueue.invokeLater(new Runnable() {
+            public void run() {
+                synchronized (WaveformTiles.this) {
+                    redisplayPending = false;
+                }
+                req.view.triggerRedisplay();
+            }
+        });
+    }
+
+    private synchronized void visibleDone() {
+        if (--numVisiblePending == 0) notifyAll();
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            final int numThreads = Math.max(1, Runtime.getRuntime().availableProcessors() >> 1);
+            executor = createExecutor(numThreads, "WaveformTiles", Thread.NORM_PRIORITY - 1);
+        }
+        return executor;
+    }
+
+    private static synchronized ExecutorService getPrefetcher() {
+        if (prefetcher == null) {
+            prefetcher = createExecutor(1, "WaveformPrefetch", Thread.MIN_PRIORITY);
+        }
+        return prefetcher;
+    }
+
+    private static ExecutorService createExecutor(int numThreads, final String name, final int priority) {
+        return new ThreadPoolExecutor(numThreads, numThreads, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        final Thread t = new Thread(r, name);
+                        t.setDaemon(true);
+                        t.setPriority(priority);
+                        return t;
+                    }
+                });
+    }
+
+    // ---------------------- internal classes ----------------------
+
+    private static final class Key {
+        final long	tileFrames;
+        final long	idx;
+        final int	height;
+        final int	vScale;
+        final float	minY;
+        final float	maxY;
+
+        Key(long tileFrames, long idx, int height, int vScale, float minY, float maxY) {
+            this.tileFrames	= tileFrames;
+            this.idx		= idx;
+            this.height		= height;
+            this.vScale		= vScale;
+            this.minY		= minY;
+            this.maxY		= maxY;
+        }
+
+        Span getSpan() {
+            return new Span(idx * tileFrames, (idx + 1) * tileFrames);
+        }
+
+        public int hashCode() {
+            int h = (int) (tileFrames ^ (tileFrames >>> 32));
+            h = h * 31 + (int) (idx ^ (idx >>> 32));
+            h = h * 31 + height;
+            h = h * 31 + vScale;
+            h = h * 31 + Float.floatToIntBits(minY);
+            return h * 31 + Float.floatToIntBits(maxY);
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            final Key that = (Key) o;
+            return (that.tileFrames == this.tileFrames) && (that.idx == this.idx) && (that.height == this.height) &&
+                    (that.vScale == this.vScale) && (that.minY == this.minY) && (that.maxY == this.maxY);
+        }
+    }
+
+    private static final class Tile {
+        final BufferedImage	img;
+        final long			numPixels;
+        final boolean		incomplete;
+        boolean				stale		= false;
+
+        Tile(BufferedImage img, boolean incomplete) {
+            this.img		= img;
+            this.numPixels	= (long) img.getWidth() * img.getHeight();
+            this.incomplete	= incomplete;
+        }
+    }
+
+    private final class Request
+            implements Runnable {
+
+        final Key			key;
+        final Span			span;		// clipped to the trail's stop
+        final Rectangle[]	rects;
+        final boolean		logAmp;
+        final float			minY;
+        final float			maxY;
+        final WaveformView	view;
+        final boolean		prefetch;	// tile is not (yet) visible
+        int					serial;		// of the most recent paint that wanted this tile
+
+        Request(Key key, Span span, Rectangle[] rects, boolean logAmp, float minY, float maxY, WaveformView view,
+                boolean prefetch) {
+            this.key	= key;
+            this.span	= span;
+            this.rects	= new Rectangle[rects.length];
+            for (int i = 0; i < rects.length; i++) {
+                this.rects[i] = new Rectangle(rects[i]);
+            }
+            this.logAmp	= logAmp;
+            this.minY	= minY;
+            this.maxY	= maxY;
+            this.view	= view;
+            this.prefetch	= prefetch;
+        }
+
+        public void run() {
+            try {
+                render(this);
+            } catch (RuntimeException e1) {
+                synchronized (WaveformTiles.this) {
+                    if (pending.get(key) == this) pending.remove(key);
+                }
+                System.err.println("WaveformTiles:");
+                e1.printStackTrace();
+            } finally {
+                if (!prefetch) visibleDone();
+            }
+        }
+    }
+}
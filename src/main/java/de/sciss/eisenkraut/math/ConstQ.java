@@ -13,11 +13,25 @@
 
 package de.sciss.eisenkraut.math;
 
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.prefs.Preferences;
 
 import de.sciss.util.Param;
 import de.sciss.util.ParamSpace;
 
+/**
+ *	Constant-Q spectral analysis, after Brown & Puckette.
+ *	<p>
+ *	The kernel sets are shared between all instances with identical
+ *	sample rate, frequency range, bands per octave and maximum FFT size,
+ *	so that opening several documents of the same rate computes the
+ *	kernels only once. The methods which take an explicit FFT buffer
+ *	do not touch any instance state and may be called from several
+ *	threads at the same time, each with its own buffer obtained from
+ *	<code>createFFTBuffer</code>.
+ */
 public class ConstQ
 {
     public static final String KEY_MINFREQ		= "minfreq";		// Param (Hz)
@@ -26,7 +40,12 @@ public class ConstQ
     public static final String KEY_MAXTIMERES	= "maxtimeres" ;	// Param (ms)
     public static final String KEY_MAXFFTSIZE	= "maxfftsize";		// Param (String fftSize)
 
-    private Kernel[]	kernels;
+    private static final int	MAX_CACHED_KERNELS	= 4;
+
+    // most recently used first
+    private static final List<Kernels> kernelCache = new LinkedList<Kernels>();
+
+    private Kernels		kernels;
     private int			numKernels;
     private int			fftSize;
     private float[]		fftBuf;
@@ -155,26 +174,80 @@ public class ConstQ
 
     public float getFrequency( int kernel )
     {
-        return kernels[ kernel ].freq;
+        return kernels.freq[ kernel ];
+    }
+
+    /**
+     * 	Creates a buffer suitable for the thread-safe variants
+     * 	of <code>transform</code> and <code>convolve</code>.
+     */
+    public float[] createFFTBuffer()
+    {
+        return new float[ fftSize + 2 ];
     }
 
+    /**
+     * 	Calculates the kernels for the current settings, or
+     * 	reuses them if they have been calculated before.
+     */
     public void createKernels()
+    {
+        maxFreq		= (float) Math.min( maxFreq, fs/2 );
+
+        synchronized( kernelCache ) {
+            for( Iterator<Kernels> iter = kernelCache.iterator(); iter.hasNext(); ) {
+                final Kernels k = iter.next();
+                if( (k.fs == fs) && (k.minFreq == minFreq) && (k.maxFreq == maxFreq) &&
+                    (k.bandsPerOct == bandsPerOct) && (k.maxFFTSize == maxFFTSize) ) {
+
+                    iter.remove();
+                    kernelCache.add( 0, k );
+                    useKernels( k );
+                    return;
+                }
+            }
+        }
+
+        final Kernels k = calcKernels();
+        synchronized( kernelCache ) {
+            kernelCache.add( 0, k );
+            while( kernelCache.size() > MAX_CACHED_KERNELS ) kernelCache.remove( MAX_CACHED_KERNELS );
+        }
+        useKernels( k );
+    }
+
+    private void useKernels( Kernels k )
+    {
+        kernels		= k;
+        numKernels	= k.freq.length;
+        fftSize		= k.fftSize;
+        fftBuf		= new float[ fftSize << 1 ];
+    }
+
+    private Kernels calcKernels()
     {
         final float		threshSqr, q;
         final double	maxKernLen;
         final int		fftSizeC;
 
         int				kernelLen, kernelLenE, specStart, specStop;
-        float[]			win;
+        final int		numKernels;
+        final int		fftSize;
+        final float[]	fftBuf;
+        final int[]		specOff, dataOff;
+        final float[]	freq;
+        float[]			win, data;
         float			f1, f2;
         double			theorKernLen, centerFreq, centerFreqN, weight, d1, cos, sin;
 
 //		System.out.println( "Calculating sparse kernel matrices" );
 
-        maxFreq		= (float) Math.min( maxFreq, fs/2 );
         q			= (float) (1 / (Math.pow( 2, 1.0/bandsPerOct ) - 1));
         numKernels	= (int) Math.ceil( bandsPerOct * MathUtil.log2( maxFreq / minFreq ));
-        kernels		= new Kernel[ numKernels ];
+        specOff		= new int[ numKernels ];
+        dataOff		= new int[ numKernels + 1 ];
+        freq		= new float[ numKernels ];
+        data		= new float[ 1024 ];
 //		cqKernels	= new float[ cqKernelNum ][];
 //		cqKernelOffs= new int[ cqKernelNum ];
         maxKernLen	= q * fs / minFreq;
@@ -288,9 +361,26 @@ public class ConstQ
             }
 
 //System.out.println( "Kernel k : specStart " + specStart + "; specStop " + specStop + "; centerFreq " + centerFreq );
-            kernels[ k ] = new Kernel( specStart, new float[ specStop - specStart ], (float) centerFreq );
-            System.arraycopy( fftBuf, specStart, kernels[ k ].data, 0, specStop - specStart );
+            // all kernels are packed into one array in the order in which
+            // convolve traverses them
+            if( dataOff[ k ] + specStop - specStart > data.length ) {
+                final float[] newData = new float[ Math.max( data.length << 1, dataOff[ k ] + specStop - specStart )];
+                System.arraycopy( data, 0, newData, 0, dataOff[ k ]);
+                data = newData;
+            }
+            System.arraycopy( fftBuf, specStart, data, dataOff[ k ], specStop - specStart );
+            specOff[ k ]		= specStart;
+            dataOff[ k + 1 ]	= dataOff[ k ] + specStop - specStart;
+            freq[ k ]			= (float) centerFreq;
+        }
+
+        if( data.length > dataOff[ numKernels ]) {
+            final float[] newData = new float[ dataOff[ numKernels ]];
+            System.arraycopy( data, 0, newData, 0, newData.length );
+            data = newData;
         }
+
+        return new Kernels( fs, minFreq, maxFreq, bandsPerOct, maxFFTSize, fftSize, specOff, dataOff, data, freq );
     }
 
 //	/**
@@ -352,17 +442,29 @@ public class ConstQ
      * 	of the filter outputs.
      */
     public float[] convolve( float[] output, int outOff )
+    {
+        return convolve( fftBuf, output, outOff );
+    }
+
+    /**
+     * 	Like <code>convolve( float[], int )</code>, but reading the
+     * 	spectrum from the given buffer.
+     */
+    public float[] convolve( float[] fftBuf, float[] output, int outOff )
     {
         if( output == null ) output = new float[ numKernels ];
 
-        float[]	kern;
-        float	f1, f2;
+        final float[]	kern	= kernels.data;
+        final int[]		specOff	= kernels.specOff;
+        final int[]		dataOff	= kernels.dataOff;
+        float			f1, f2, re, im, kRe, kIm;
 
+        // the kernels are stored back to back in ascending frequency,
+        // hence both the kernel data and the spectrum are read sequentially
         for( int k = 0; k < numKernels; k++, outOff++ ) {
-            kern	= kernels[ k ].data;
             f1		= 0f;
             f2		= 0f;
-            for( int i = kernels[ k ].offset, j = 0; j < kern.length; i += 2, j += 2 ) {
+            for( int i = specOff[ k ], j = dataOff[ k ], stop = dataOff[ k + 1 ]; j < stop; i += 2, j += 2 ) {
                 // complex mult: a * b =
                 // (re(a)re(b)-im(a)im(b))+i(re(a)im(b)+im(a)re(b))
                 // ; since we left out the conjugation of the kernel(!!)
@@ -370,8 +472,12 @@ public class ConstQ
                 // (re(a)re(b)+im(a)im(b))+i(im(a)re(b)-re(a)im(b))
                 // ; in fact this conjugation is unimportant for the
                 // calculation of the magnitudes...
-                f1 += fftBuf[ i ] * kern[ j ] - fftBuf[ i+1 ] * kern[ j+1 ];
-                f2 += fftBuf[ i ] * kern[ j+1 ] + fftBuf[ i+1 ] * kern[ j ];
+                re	= fftBuf[ i ];
+                im	= fftBuf[ i+1 ];
+                kRe	= kern[ j ];
+                kIm	= kern[ j+1 ];
+                f1 += re * kRe - im * kIm;
+                f2 += re * kIm + im * kRe;
             }
 //			cBuf[ k ] = ;  // squared magnitude
 //			f1 = (float) ((Math.log( f1 * f1 + f2 * f2 ) + LNKORR_ADD) * gain);
@@ -391,6 +497,17 @@ public class ConstQ
     }
 
     public float[] transform(float[] input, int inOff, int inLen, float[] output, int outOff )
+    {
+        return transform( input, inOff, inLen, output, outOff, fftBuf );
+    }
+
+    /**
+     * 	Like <code>transform( float[], int, int, float[], int )</code>, but
+     * 	using the given buffer instead of the one returned by <code>getFFTBuffer</code>.
+     *
+     * 	@param	fftBuf	a buffer as returned by <code>createFFTBuffer</code>
+     */
+    public float[] transform(float[] input, int inOff, int inLen, float[] output, int outOff, float[] fftBuf )
     {
         if( output == null ) output = new float[ numKernels ];
 
@@ -416,20 +533,36 @@ public class ConstQ
         // optimierte overlap-add fft
         Fourier.realTransform( fftBuf, fftSize, Fourier.FORWARD );
 
-        return convolve( output, outOff );
+        return convolve( fftBuf, output, outOff );
     }
 
-    private static class Kernel
+    // an immutable kernel set, shared between instances
+    private static class Kernels
     {
-        protected final int			offset;
-        protected final float[]		data;
-        protected final float		freq;
-
-        protected Kernel( int offset, float[] data, float freq )
+        protected final double		fs;
+        protected final float		minFreq;
+        protected final float		maxFreq;
+        protected final int			bandsPerOct;
+        protected final int			maxFFTSize;
+        protected final int			fftSize;
+        protected final int[]		specOff;	// per kernel offset into the spectrum
+        protected final int[]		dataOff;	// per kernel offset into data, plus the total length
+        protected final float[]		data;		// all kernels, back to back
+        protected final float[]		freq;
+
+        protected Kernels( double fs, float minFreq, float maxFreq, int bandsPerOct, int maxFFTSize,
+                           int fftSize, int[] specOff, int[] dataOff, float[] data, float[] freq )
         {
-            this.offset	= offset;
-            this.data	= data;
-            this.freq	= freq;
+            this.fs				= fs;
+            this.minFreq		= minFreq;
+            this.maxFreq		= maxFreq;
+            this.bandsPerOct	= bandsPerOct;
+            this.maxFFTSize		= maxFFTSize;
+            this.fftSize		= fftSize;
+            this.specOff		= specOff;
+            this.dataOff		= dataOff;
+            this.data			= data;
+            this.freq			= freq;
         }
     }
-}
\ No newline at end of file
+}
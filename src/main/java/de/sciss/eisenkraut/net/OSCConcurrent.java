@@ -0,0 +1,40 @@
+/*
+ *  OSCConcurrent.java
+ *  Eisenkraut
+ *
+ *  Copyright (c) 2004-2020 Hanns Holger Rutz. All rights reserved.
+ *
+ *  This software is published under the GNU Affero General Public License v3+
+ *
+ *
+ *  For further information, please contact Hanns Holger Rutz at
+ *  contact@sciss.de
+ */
+
+package de.sciss.eisenkraut.net;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ *	Marks an <code>oscCmd_</code>, <code>oscQuery_</code> or <code>oscGet_</code>
+ *	method as safe to be called from any thread. Such methods are executed
+ *	directly on the OSC dispatcher thread, whereas all other handlers are
+ *	executed on the event thread.
+ *	<p>
+ *	On a router class, this marks its <code>oscRoute</code> method as safe to
+ *	be called from any thread. Messages are only passed on to routers marked
+ *	like this on the dispatcher thread; before any other router is called,
+ *	the message is handed over to the event thread.
+ *
+ *	@see	OSCRouterWrapper
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ ElementType.METHOD, ElementType.TYPE })
+public @interface OSCConcurrent {
+    // marker
+}
@@ -17,24 +17,44 @@
 
 package de.sciss.eisenkraut.net;
 
+import java.awt.EventQueue;
 import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.prefs.PreferenceChangeEvent;
 import java.util.prefs.PreferenceChangeListener;
 import java.util.prefs.Preferences;
 import java.util.regex.Pattern;
 
 import de.sciss.app.AbstractApplication;
-import de.sciss.app.BasicEvent;
-import de.sciss.app.EventManager;
+import de.sciss.eisenkraut.edit.UndoManager;
 import de.sciss.net.*;
 import de.sciss.util.Param;
 import de.sciss.util.ParamSpace;
 
+/**
+ *	The OSC server and root of the router tree. Incoming messages are
+ *	routed on a dedicated dispatcher thread, so that queries marked with
+ *	<code>OSCConcurrent</code> are answered without waiting for the event
+ *	thread. All other handlers are invoked on the event thread.
+ *	<p>
+ *	The messages of an incoming bundle are processed as one batch: they are
+ *	handled in one go on the event thread, so the edits they make are merged
+ *	into one undoable edit and the views are updated once, and the replies
+ *	are sent back as one bundle.
+ *
+ *	@see	OSCConcurrent
+ */
 public class OSCRoot
-        implements OSCRouter, OSCListener, EventManager.Processor, PreferenceChangeListener {
+        implements OSCRouter, OSCListener, Runnable, PreferenceChangeListener {
 
     public static final int DEFAULT_PORT	= 0x4549;	// 'E', 'I'
 
@@ -60,10 +80,18 @@ public class OSCRoot
 
     private final Pattern					oscPathPtrn		= Pattern.compile( "/" );
 
+    // controllers keep sending the same few addresses, so each address
+    // is split only once. the component arrays are shared by all messages
+    // of the same address and must not be modified
+    private static final int				MAX_PATHS		= 1024;
+    private final Map<String, String[]>		mapPaths		= new ConcurrentHashMap<String, String[]>();
+
     // elements = RoutedOSCMessage instances
 //	private final List						collMessages	= Collections.synchronizedList( new ArrayList() );
     private final OSCRouterWrapper			osc;
-    private final EventManager				elm;
+    private final BlockingQueue<Batch>		dispatchQueue	= new LinkedBlockingQueue<Batch>();
+    // the bundle currently being received, per receiver thread
+    private final ThreadLocal<Batch>		receiving		= new ThreadLocal<Batch>();
 
     private static final String				OSC_DUMP		= "dumpOSC";
 
@@ -96,7 +124,6 @@ public class OSCRoot
             prefs.putBoolean(KEY_ACTIVE, false);
             prefs.put(KEY_PORT, defaultPortParam.toString());
         }
-        elm = new EventManager( this );
         osc = new OSCRouterWrapper( null, this );
         osc.oscAddRouter( new OSCRouter() {
             public String oscGetPathComponent()
@@ -120,6 +147,10 @@ public class OSCRoot
             }
         });
 
+        final Thread dispatcher = new Thread( this, "OSC dispatcher" );
+        dispatcher.setDaemon( true );
+        dispatcher.start();
+
 //		// not really a path but
 //		// the general responder for query replies
 //		osc.oscAddRouter( new OSCRouter() {
@@ -227,6 +258,7 @@ public class OSCRoot
 //				dch.socket().bind( addr );
 
                 serv	= OSCServer.newUsing( protocol, port, loopBack );
+                serv.setCodec( new BundleCodec() );
 //				rcv     = new OSCReceiver( dch );
 //				trns    = new OSCTransmitter( dch );
 //				rcv.addOSCListener( this );
@@ -441,10 +473,79 @@ public class OSCRoot
 
     // ------------ Runnable interface ------------
 
-    // called from the event thread
-    // when new messages have been queued
-    public void processEvent(BasicEvent e) {
-        osc.oscRoute((RoutedOSCMessage) e);
+    // the dispatcher thread
+    public void run() {
+        while (true) {
+            final Batch b;
+            try {
+                b = dispatchQueue.take();
+            } catch (InterruptedException e1) {
+                return;
+            }
+            dispatch(b);
+        }
+    }
+
+    // routes the messages on the dispatcher thread until one of them
+    // needs the event thread. from there on, the rest of the batch is
+    // routed on the event thread, so the order of the messages is kept
+    private void dispatch(final Batch b) {
+        final int	numMsg	= b.roms.size();
+        int			i		= 0;
+
+        while (i < numMsg) {
+            route(b.roms.get(i));
+            if (b.deferred) break;
+            i++;
+        }
+        if (i < numMsg) {
+            final int start = i;
+            try {
+                EventQueue.invokeAndWait(new Runnable() {
+                    public void run() {
+                        final boolean compound = numMsg - start > 1;
+                        if (compound) UndoManager.beginBatch();
+                        try {
+                            for (int j = start; j < numMsg; j++) {
+                                route(b.roms.get(j));
+                            }
+                        } finally {
+                            if (compound) UndoManager.endBatch();
+                        }
+                    }
+                });
+            } catch (InterruptedException e1) {
+                Thread.currentThread().interrupt();
+            } catch (InvocationTargetException e1) {
+                e1.getCause().printStackTrace();
+            }
+        }
+
+        final List<OSCMessage> replies = b.close();
+        if (replies.isEmpty()) return;
+        try {
+            if (replies.size() == 1) {
+                send(replies.get(0), b.roms.get(0).addr);
+            } else {
+                final OSCBundle bndl = new OSCBundle();
+                for (OSCMessage reply : replies) {
+                    bndl.addPacket(reply);
+                }
+                send(bndl, b.roms.get(0).addr);
+            }
+        } catch (IOException e1) {
+            System.err.println(e1.getClass().getName() + " : " + e1.getLocalizedMessage());
+        } catch (IllegalStateException e1) {	// server was stopped in the meantime
+            System.err.println(e1.getClass().getName() + " : " + e1.getLocalizedMessage());
+        }
+    }
+
+    private void route(RoutedOSCMessage rom) {
+        try {
+            osc.oscRoute(rom);
+        } catch (RuntimeException e1) {	// e.g. malformed document index
+            failed(rom, e1);
+        }
     }
 
     // ------------ OSCRouter interface ------------
@@ -493,14 +594,42 @@ public class OSCRoot
     // ------------ OSCListener interface ------------
 
     public void messageReceived(OSCMessage msg, SocketAddress addr, long when) {
-        final String[] path = oscPathPtrn.split(msg.getName());
+        final String[]	path	= splitPath(msg.getName());
+        Batch			b		= receiving.get();
 
+        if (b == null) b = new Batch(1);
         if (path.length < 2) {
             failedUnknownPath(msg);
-            return;
+        } else {
+            b.roms.add(new RoutedOSCMessage(msg, addr, when, this, path, 0, b));
+        }
+        if (--b.remaining == 0) {
+            receiving.remove();
+            submit(b);
         }
+    }
+
+    private void submit(Batch b) {
+        if (!b.roms.isEmpty()) dispatchQueue.add(b);
+    }
 
-        elm.dispatchEvent(new RoutedOSCMessage(msg, addr, when, this, path, 0));
+    private static int countMessages(OSCBundle bndl) {
+        int numMsg = 0;
+        for (int i = 0; i < bndl.getPacketCount(); i++) {
+            final OSCPacket p = bndl.getPacket(i);
+            numMsg += (p instanceof OSCBundle) ? countMessages((OSCBundle) p) : 1;
+        }
+        return numMsg;
+    }
+
+    private String[] splitPath(String name) {
+        String[] path = mapPaths.get(name);
+        if (path == null) {
+            path = oscPathPtrn.split(name);
+            if (mapPaths.size() >= MAX_PATHS) mapPaths.clear();	// protect against arbitrary addresses
+            mapPaths.put(name, path);
+        }
+        return path;
     }
 
 // ------- PreferenceChangeListener interface -------
@@ -520,4 +649,64 @@ public class OSCRoot
             }
         }
     }
-}
\ No newline at end of file
+
+// ---------------- internal classes ----------------
+
+    /*
+     *	The messages of one incoming bundle, or a single message.
+     *	Replies are collected until the batch is closed.
+     */
+    static final class Batch {
+        final List<RoutedOSCMessage>	roms		= new ArrayList<RoutedOSCMessage>();
+        int								remaining;	// messages yet to be received
+        boolean							deferred	= false;
+        private List<OSCMessage>		replies		= new ArrayList<OSCMessage>();
+
+        Batch(int numMsg) {
+            remaining = numMsg;
+        }
+
+        /*
+         *	@return	false if the batch was already closed,
+         *			and the reply must be sent immediately
+         */
+        synchronized boolean collectReply(OSCMessage reply) {
+            if (replies == null) return false;
+            replies.add(reply);
+            return true;
+        }
+
+        synchronized List<OSCMessage> close() {
+            final List<OSCMessage> result = replies;
+            replies = null;
+            return result;
+        }
+    }
+
+    /*
+     *	NetUtil dispatches the messages of a bundle one by one
+     *	without telling where the bundle ends. Therefore the number
+     *	of messages is counted when the packet is decoded, which
+     *	happens on the same receiver thread right before dispatching.
+     */
+    private class BundleCodec
+            extends OSCPacketCodec {
+
+        protected BundleCodec() { /* empty */ }
+
+        public OSCPacket decode(ByteBuffer b)
+                throws IOException {
+            final OSCPacket	p		= super.decode(b);
+            final Batch		pending	= receiving.get();
+            final int		numMsg	= (p instanceof OSCBundle) ? countMessages((OSCBundle) p) : 1;
+
+            if (pending != null) submit(pending);	// incomplete bundle, should not happen
+            if (numMsg > 1) {
+                receiving.set(new Batch(numMsg));
+            } else {
+                receiving.remove();
+            }
+            return p;
+        }
+    }
+}
@@ -13,25 +13,57 @@
  
 package de.sciss.eisenkraut.net;
 
-import java.io.IOException;
-import java.lang.reflect.InvocationTargetException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.WrongMethodTypeException;
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ *	Routes messages to sub routers by path component, and dispatches
+ *	messages addressed to the wrapped router itself to its public
+ *	<code>oscCmd_&lt;name&gt;( RoutedOSCMessage )</code>,
+ *	<code>oscQuery_&lt;name&gt;()</code> and
+ *	<code>oscGet_&lt;name&gt;( RoutedOSCMessage )</code> methods.
+ *	These methods are looked up once per router class, when the
+ *	first wrapper for it is created.
+ *	<p>
+ *	Messages are routed on the OSC dispatcher thread as long as the sub
+ *	routers are annotated with <code>OSCConcurrent</code>, and handler
+ *	methods annotated with <code>OSCConcurrent</code> are invoked right
+ *	there. For any other router or method the message is handed over to
+ *	the event thread.
+ *
+ *	@see	OSCConcurrent
+ */
 public class OSCRouterWrapper
         implements OSCRouter {
 
+    private static final String	PREFIX_CMD		= "oscCmd_";
+    private static final String	PREFIX_QUERY	= "oscQuery_";
+    private static final String	PREFIX_GET		= "oscGet_";
+
+    private static final MethodType	cmdType		= MethodType.methodType(void.class, Object.class, RoutedOSCMessage.class);
+    private static final MethodType	queryType	= MethodType.methodType(Object.class, Object.class);
+    private static final MethodType	getType		= MethodType.methodType(Object[].class, Object.class, RoutedOSCMessage.class);
+
+    private static final Map<Class<?>, Handlers> mapHandlers = new ConcurrentHashMap<Class<?>, Handlers>();
+
     private final OSCRouter	r;
     private final OSCRouter	superRouter;
-    private final Map<String, OSCRouter> mapSubRouters = new HashMap<String, OSCRouter>();
-
-    private static final Class[] oscCmdMethodTypes		= { RoutedOSCMessage.class };
-    private static final Class[] oscGetMethodTypes		= { RoutedOSCMessage.class };
+    private final Handlers	handlers;
+    private final Map<String, OSCRouter> mapSubRouters = new ConcurrentHashMap<String, OSCRouter>();
 
     public OSCRouterWrapper(OSCRouter superRouter, OSCRouter thisRouter) {
         r = thisRouter;
         this.superRouter = superRouter;
+        handlers = getHandlers(thisRouter.getClass());
         if (superRouter != null) superRouter.oscAddRouter(r);
     }
 
@@ -46,6 +78,7 @@ public class OSCRouterWrapper
             rom = rom.next();
             final OSCRouter nextR = mapSubRouters.get(rom.getPathComponent());
             if (nextR != null) {
+                if (rom.defer(nextR.getClass().isAnnotationPresent(OSCConcurrent.class))) return;
                 nextR.oscRoute(rom);
             } else {
                 OSCRoot.failedUnknownPath(rom);
@@ -53,7 +86,7 @@ public class OSCRouterWrapper
         } else {
             final Object[]	replyArgs;
             final String	cmd;
-            Method			oscMethod;
+            MethodHandle	oscMethod;
 
             if (argCnt == 0) {
                 OSCRoot.failedArgCount(rom);
@@ -66,17 +99,23 @@ public class OSCRouterWrapper
                         OSCRoot.failedArgCount(rom);
                         return;
                     }
+                    final MethodHandle[] queryMethods = new MethodHandle[argCnt - 2];
+                    boolean concurrent = true;
+                    for (int argIdx = 2; argIdx < argCnt; argIdx++) {
+                        oscMethod = handlers.queries.get(rom.msg.getArg(argIdx).toString());
+                        if (oscMethod == null) {
+                            OSCRoot.failedArgValue(rom, argIdx);
+                            return;
+                        }
+                        queryMethods[argIdx - 2] = oscMethod;
+                        concurrent &= handlers.concurrent.contains(oscMethod);
+                    }
+                    if (rom.defer(concurrent)) return;
+
                     replyArgs = new Object[argCnt - 1];
                     replyArgs[0] = rom.msg.getArg(1);
-                    int argIdx = 2;
-                    try {
-                        for (; argIdx < argCnt; argIdx++) {
-                            oscMethod = r.getClass().getMethod("oscQuery_" + rom.msg.getArg(argIdx).toString(), (Class[]) null);
-                            replyArgs[argIdx - 1] = oscMethod.invoke(r, (Object[]) null);
-                        }
-                    } catch (NoSuchMethodException e1) {
-                        OSCRoot.failedArgValue(rom, argIdx);
-                        return;
+                    for (int i = 0; i < queryMethods.length; i++) {
+                        replyArgs[i + 1] = (Object) queryMethods[i].invokeExact((Object) r);
                     }
                     rom.reply(OSCRoot.OSC_QUERYREPLY, replyArgs);
 
@@ -86,39 +125,32 @@ public class OSCRouterWrapper
                         OSCRoot.failedArgCount(rom);
                         return;
                     }
-                    final Object[] methodResult;
-                    try {
-                        oscMethod = r.getClass().getMethod("oscGet_" + rom.msg.getArg(2), oscGetMethodTypes);
-                        methodResult = (Object[]) oscMethod.invoke(r, rom);
-                        if (methodResult != null) {
-                            replyArgs = new Object[methodResult.length + 1];
-                            replyArgs[0] = rom.msg.getArg(1);
-                            System.arraycopy(methodResult, 0, replyArgs, 1, methodResult.length);
-                            rom.reply(OSCRoot.OSC_GETREPLY, replyArgs);
-                        }
-                    } catch (NoSuchMethodException e1) {
+                    oscMethod = handlers.gets.get(rom.msg.getArg(2).toString());
+                    if (oscMethod == null) {
                         OSCRoot.failedArgValue(rom, 2);
+                        return;
+                    }
+                    if (rom.defer(handlers.concurrent.contains(oscMethod))) return;
+
+                    final Object[] methodResult = (Object[]) oscMethod.invokeExact((Object) r, rom);
+                    if (methodResult != null) {
+                        replyArgs = new Object[methodResult.length + 1];
+                        replyArgs[0] = rom.msg.getArg(1);
+                        System.arraycopy(methodResult, 0, replyArgs, 1, methodResult.length);
+                        rom.reply(OSCRoot.OSC_GETREPLY, replyArgs);
                     }
 
                 } else {	// any other command
-                    try {
-                        oscMethod = r.getClass().getMethod("oscCmd_" + cmd, oscCmdMethodTypes);
-                        oscMethod.invoke(r, rom);
-                    } catch (NoSuchMethodException e1) {
+                    oscMethod = handlers.commands.get(cmd);
+                    if (oscMethod == null) {
                         OSCRoot.failedUnknownCmd(rom);
+                        return;
                     }
+                    if (rom.defer(handlers.concurrent.contains(oscMethod))) return;
+
+                    oscMethod.invokeExact((Object) r, rom);
                 }
-            } catch (SecurityException e1) {
-                OSCRoot.failed(rom, e1);
-            } catch (IllegalAccessException e1) {
-                OSCRoot.failed(rom, e1);
-            } catch (IllegalArgumentException e1) {
-                OSCRoot.failed(rom, e1);
-            } catch (InvocationTargetException e1) {
-                OSCRoot.failed(rom, e1);
-            } catch (ExceptionInInitializerError e1) {
-                OSCRoot.failed(rom, e1);
-            } catch (IOException e1) {
+            } catch (Throwable e1) {	// anything thrown by the handler methods or by reply
                 OSCRoot.failed(rom, e1);
             }
         }
@@ -140,4 +172,62 @@ public class OSCRouterWrapper
     {
         return r.oscGetPathComponent();
     }
-}
\ No newline at end of file
+
+    private static Handlers getHandlers(Class<?> c) {
+        Handlers h = mapHandlers.get(c);
+        if (h == null) {
+            h = new Handlers(c);
+            mapHandlers.put(c, h);
+        }
+        return h;
+    }
+
+    // ---------------------- internal classes ----------------------
+
+    // the handler methods of one router class, adapted to uniform types
+    // so they can be called with invokeExact
+    private static final class Handlers {
+        final Map<String, MethodHandle> commands	= new HashMap<String, MethodHandle>();
+        final Map<String, MethodHandle> queries		= new HashMap<String, MethodHandle>();
+        final Map<String, MethodHandle> gets		= new HashMap<String, MethodHandle>();
+        final Set<MethodHandle>			concurrent	= new HashSet<MethodHandle>();	// annotated with OSCConcurrent
+
+        Handlers(Class<?> c) {
+            final MethodHandles.Lookup lookup = MethodHandles.lookup();
+
+            for (Method m : c.getMethods()) {
+                if (Modifier.isStatic(m.getModifiers())) continue;
+
+                final String		name	= m.getName();
+                final Class<?>[]	params	= m.getParameterTypes();
+                final boolean		romArg	= (params.length == 1) && (params[0] == RoutedOSCMessage.class);
+
+                if (name.startsWith(PREFIX_CMD) && romArg) {
+                    add(lookup, commands, name.substring(PREFIX_CMD.length()), m, cmdType);
+                } else if (name.startsWith(PREFIX_QUERY) && (params.length == 0)) {
+                    add(lookup, queries, name.substring(PREFIX_QUERY.length()), m, queryType);
+                } else if (name.startsWith(PREFIX_GET) && romArg) {
+                    add(lookup, gets, name.substring(PREFIX_GET.length()), m, getType);
+                }
+            }
+        }
+
+        private void add(MethodHandles.Lookup lookup, Map<String, MethodHandle> map, String key, Method m,
+                         MethodType type) {
+            try {
+                // public methods of non-public classes (e.g. anonymous routers)
+                // are otherwise not accessible from this package
+                m.setAccessible(true);
+                final MethodHandle h = lookup.unreflect(m).asType(type);
+                map.put(key, h);
+                if (m.isAnnotationPresent(OSCConcurrent.class)) concurrent.add(h);
+            } catch (SecurityException e1) {
+                System.err.println("OSCRouterWrapper: cannot access " + m + " : " + e1);
+            } catch (IllegalAccessException e1) {
+                System.err.println("OSCRouterWrapper: cannot access " + m + " : " + e1);
+            } catch (WrongMethodTypeException e1) {
+                System.err.println("OSCRouterWrapper: illegal return type of " + m);
+            }
+        }
+    }
+}
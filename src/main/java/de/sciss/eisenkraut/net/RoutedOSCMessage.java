@@ -13,6 +13,7 @@
 
 package de.sciss.eisenkraut.net;
 
+import java.awt.EventQueue;
 import java.io.IOException;
 import java.net.SocketAddress;
 
@@ -28,8 +29,14 @@ public class RoutedOSCMessage extends BasicEvent {
 
     private final String[]			path;
     private final int				pathIdx;
+    private final OSCRoot.Batch		batch;
 
     public RoutedOSCMessage(OSCMessage msg, SocketAddress addr, long when, OSCRoot server, String[] path, int pathIdx) {
+        this(msg, addr, when, server, path, pathIdx, null);
+    }
+
+    RoutedOSCMessage(OSCMessage msg, SocketAddress addr, long when, OSCRoot server, String[] path, int pathIdx,
+                     OSCRoot.Batch batch) {
         super(addr, 0, when);
         this.msg		= msg;
         this.addr		= addr;
@@ -37,6 +44,7 @@ public class RoutedOSCMessage extends BasicEvent {
         this.server		= server;
         this.path		= path;
         this.pathIdx	= pathIdx;
+        this.batch		= batch;
     }
 
     public boolean incorporate(BasicEvent oldEvent) {
@@ -80,12 +88,27 @@ public class RoutedOSCMessage extends BasicEvent {
     }
 
     public RoutedOSCMessage next(int skip) {
-        return new RoutedOSCMessage(msg, addr, when, server, path, pathIdx + skip);
+        return new RoutedOSCMessage(msg, addr, when, server, path, pathIdx + skip, batch);
+    }
+
+    /**
+     *	Decides whether the handler for this message may be invoked
+     *	on the current thread. If it may not, the message's batch is
+     *	marked to be routed again from the event thread, and the
+     *	caller must return without further side effects.
+     *
+     *	@param	concurrent	whether the handler may be called from any thread
+     *	@return	<code>true</code> if the caller must not invoke the handler
+     */
+    public boolean defer(boolean concurrent) {
+        if (concurrent || (batch == null) || EventQueue.isDispatchThread()) return false;
+        batch.deferred = true;
+        return true;
     }
 
     public void reply(String cmd, Object[] args)
             throws IOException {
-        server.send(new OSCMessage(cmd, args), addr);
+        send(new OSCMessage(cmd, args));
     }
 
     public void replyFailed()
@@ -100,7 +123,7 @@ public class RoutedOSCMessage extends BasicEvent {
         for (int i = 0; i < argCount; i++) {
             args[i + 1] = msg.getArg(i);
         }
-        server.send(new OSCMessage(OSCRoot.OSC_FAILEDREPLY, args), addr);
+        send(new OSCMessage(OSCRoot.OSC_FAILEDREPLY, args));
     }
 
     public void replyDone(int copyArgCount, Object[] doneArgs)
@@ -114,6 +137,13 @@ public class RoutedOSCMessage extends BasicEvent {
         for (Object doneArg : doneArgs) {
             args[j++] = doneArg;
         }
-        server.send(new OSCMessage(OSCRoot.OSC_DONEREPLY, args), addr);
+        send(new OSCMessage(OSCRoot.OSC_DONEREPLY, args));
+    }
+
+    // replies to messages of a bundle are collected
+    // until the whole bundle has been processed
+    private void send(OSCMessage reply)
+            throws IOException {
+        if ((batch == null) || !batch.collectReply(reply)) server.send(reply, addr);
     }
 }
\ No newline at end of file
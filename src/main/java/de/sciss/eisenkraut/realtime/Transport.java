@@ -21,6 +21,7 @@ import de.sciss.app.AbstractApplication;
 import de.sciss.io.Span;
 import de.sciss.util.Disposable;
 
+import de.sciss.eisenkraut.net.OSCConcurrent;
 import de.sciss.eisenkraut.net.OSCRouter;
 import de.sciss.eisenkraut.net.OSCRouterWrapper;
 import de.sciss.eisenkraut.net.OSCRoot;
@@ -41,6 +42,7 @@ import de.sciss.eisenkraut.util.PrefsUtil;
  *	the consumer's methods are called and registered
  *	transport listeners are informed about actions.
  */
+@OSCConcurrent
 public class Transport
         implements TimelineListener, OSCRouter, Disposable {
 
@@ -64,7 +66,7 @@ public class Transport
 
     private double						rateScale	= 1.0;
 
-    private boolean						running		= false;
+    private volatile boolean			running		= false;	// queried from the OSC dispatcher thread
 
     // --- actions ---
 
@@ -435,6 +437,7 @@ public class Transport
         return getCurrentFrame();
     }
 
+    @OSCConcurrent
     public Object oscQuery_running() {
         return isRunning() ? 1 : 0;
     }
@@ -65,6 +65,7 @@ public abstract class FadePlugIn
 //		prBlend			= new BlendContext( prTotalSpan.getLength(), CurvePanel.getControlPoints( prefs ));
         prBlend			= new BlendContext( prTotalSpan.getLength(), 0, CurvePanel.getControlPoints( prefs ));
         prBuf			= new float[ source.numAudioChannels ][];
+        source.context.setOption( RenderContext.KEY_CHANNEL_INDEPENDENT, Boolean.TRUE );
 
         return prConsumer.consumerBegin( source );
     }
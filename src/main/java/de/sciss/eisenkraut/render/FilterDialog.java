@@ -41,9 +41,21 @@ import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.KeyEvent;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.MalformedURLException;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.prefs.Preferences;
 
 /**
  *	TODO:	an option to render the transformed data
@@ -75,6 +87,7 @@ public class FilterDialog
      *	Default to be used for the GUI elements.
      */
     private RenderPlugIn			plugIn	= null;
+    private Preferences				plugInPrefs;
     private ProcessingThread		pt;
     private RenderContext			context = null;
     private HelpButton				ggHelp;
@@ -84,6 +97,10 @@ public class FilterDialog
     // context options map
     private static final String	KEY_CONSC	= "consc";
 
+    private static final int		PIPELINE_DEPTH	= 3;	// blocks per pipeline stage
+    private static final int		POLL_MILLIS		= 100;
+    private static final int		PARALLEL_BLOCK_SIZE	= 8192;	// default for channel-parallel rendering
+
     /**
      *	Constructs a Trajectory-Filtering dialog.
      */
@@ -106,8 +123,9 @@ public class FilterDialog
 
         plugIn		= plug;
         className	= plugIn.getName();
-        plugIn.init(AbstractApplication.getApplication().getUserPrefs().node(PrefsUtil.NODE_PLUGINS).node(
-                className.substring(className.lastIndexOf('.') + 1)));
+        plugInPrefs	= AbstractApplication.getApplication().getUserPrefs().node(PrefsUtil.NODE_PLUGINS).node(
+                className.substring(className.lastIndexOf('.') + 1));
+        plugIn.init(plugInPrefs);
 
         process(aDoc, forceDisplay, blockDisplay);
     }
@@ -230,16 +248,48 @@ public class FilterDialog
      */
     private void invokeProducerCancel(ProcessingThread proc, RenderSource source, RenderPlugIn prod)
             throws IOException {
+        final ConsumerContext consc = (ConsumerContext) source.context.getOption(KEY_CONSC);
+        if (consc.workers != null) {
+            for (ChannelWorker w : consc.workers) w.cancel();
+        }
         prod.producerCancel(source);
     }
 
     /*
      *	This implementation simply calls
-     *	<code>prod.producerRender( source )</code>
+     *	<code>prod.producerRender( source )</code>,
+     *	or renders the channel sets on the worker threads
+     *	and passes the merged block to the consumer.
      */
     private boolean invokeProducerRender(ProcessingThread proc, RenderSource source, RenderPlugIn prod)
             throws IOException {
-        return prod.producerRender(source);
+        final ConsumerContext consc = (ConsumerContext) source.context.getOption(KEY_CONSC);
+        if (consc.workers == null) return prod.producerRender(source);
+
+        final List<Future<Boolean>> results;
+        try {
+            results = consc.workerPool.invokeAll(Arrays.asList(consc.workers));
+            for (Future<Boolean> f : results) {
+                if (!f.get()) return false;
+            }
+        } catch (InterruptedException e1) {
+            throw new InterruptedIOException();
+        } catch (ExecutionException e1) {
+            final Throwable cause = e1.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            throw new IOException(cause);
+        }
+
+        final ChannelWorker w0 = consc.workers[0];
+        for (ChannelWorker w : consc.workers) {
+            if (!w.outSpan.equals(w0.outSpan) || (w.outOff != w0.outOff) || (w.outLen != w0.outLen)) {
+                throw new IOException("Channel workers rendered different blocks");
+            }
+        }
+        source.blockSpan		= w0.outSpan;
+        source.audioBlockBufOff	= w0.outOff;
+        source.audioBlockBufLen	= w0.outLen;
+        return consumerRender(source);
     }
 
     /*
@@ -248,7 +298,81 @@ public class FilterDialog
      */
     private boolean invokeProducerFinish(ProcessingThread proc, RenderSource source, RenderPlugIn prod)
             throws IOException {
-        return prod.producerFinish(source);
+        final ConsumerContext consc = (ConsumerContext) source.context.getOption(KEY_CONSC);
+        boolean success = true;
+        if (consc.workers != null) {
+            int i = 0;
+            try {
+                // every worker must be finished, so that all of them are disposed
+                for (; i < consc.workers.length; i++) {
+                    if (!consc.workers[i].finish()) success = false;
+                }
+            } finally {
+                // if a worker failed with an exception, dispose the remaining ones
+                for (i++; i < consc.workers.length; i++) consc.workers[i].cancel();
+            }
+        }
+        return success && prod.producerFinish(source);
+    }
+
+    /*
+     *	Distributes the selected channels round-robin among
+     *	new instances of the plug-in. Returns null if the plug-in
+     *	cannot be instantiated or if there is nothing to gain.
+     */
+    private ChannelWorker[] createChannelWorkers(RenderSource source, int blockSize) {
+        final int numSelected;
+        int n = 0;
+        for (int ch = 0; ch < source.numAudioChannels; ch++) {
+            if (source.audioTrackMap[ch]) n++;
+        }
+        numSelected = n;
+        final int numWorkers = Math.min(numSelected, Runtime.getRuntime().availableProcessors());
+        if (numWorkers < 2) return null;
+
+        final boolean[][]		trackMaps	= new boolean[numWorkers][source.numAudioChannels];
+        final ChannelWorker[]	workers		= new ChannelWorker[numWorkers];
+        final RenderHost		workerHost	= new RenderHost() {
+            public void showMessage(int type, String text) {
+                FilterDialog.this.showMessage(type, text);
+            }
+
+            public boolean isRunning() {
+                return FilterDialog.this.isRunning();
+            }
+
+            // progress is reported by the processing thread
+            public void setProgression(float p) { /* ignore */ }
+
+            public void setException(Exception e) {
+                FilterDialog.this.setException(e);
+            }
+        };
+
+        for (int ch = 0, i = 0; ch < source.numAudioChannels; ch++) {
+            if (source.audioTrackMap[ch]) trackMaps[i++ % numWorkers][ch] = true;
+        }
+
+        int numBegun = 0;
+        try {
+            for (int i = 0; i < numWorkers; i++) {
+                final RenderPlugIn p = plugIn.getClass().newInstance();
+                p.init(plugInPrefs);
+                workers[i] = new ChannelWorker(p, workerHost, source, trackMaps[i], blockSize);
+                if (!workers[i].begin()) {
+                    p.dispose();
+                    break;
+                }
+                numBegun++;
+            }
+        } catch (Exception e1) {
+            System.err.println("FilterDialog: falling back to single-threaded rendering : " + e1);
+        }
+        if (numBegun < numWorkers) {
+            for (int i = 0; i < numBegun; i++) workers[i].cancel();
+            return null;
+        }
+        return workers;
     }
 
 // ---------------- RenderConsumer interface ---------------- 
@@ -270,6 +394,7 @@ public class FilterDialog
         consc.as		= at.alloc(span);
         consc.progOff	= getProgression();
         consc.progWeight= (1.0f - consc.progOff) / span.getLength();
+        consc.writer	= new WriteBehind(consc, source.audioTrackMap, source.numAudioChannels);
 
         return true;
     }
@@ -289,6 +414,7 @@ public class FilterDialog
 //			mte.finishWrite( consc.bs, consc.edit, pt, 0.9f, 0.1f );
         if (consc.edit != null) {
 
+            consc.writer.finish();
             ProcessingThread.flushProgression();
             ProcessingThread.setNextProgStop(1.0f);
 
@@ -319,13 +445,13 @@ public class FilterDialog
 
     /**
      *	Writes a block of the transformed data back
-     *	to the transmitter trajectory tracks.
+     *	to the transmitter trajectory tracks. The data is
+     *	copied and handed over to the write-behind thread,
+     *	so the plug-in can continue while the block is written.
      */
     public boolean consumerRender(RenderSource source)
             throws IOException {
         final ConsumerContext       consc   = (ConsumerContext) source.context.getOption(KEY_CONSC);
-        final AudioTrail            at      = consc.doc.getAudioTrail();
-        final boolean               preFade, postFade;
 
 // UUU
 //		if( consc.bs == null ) {
@@ -336,52 +462,61 @@ public class FilterDialog
         }
 //		mte.continueWrite( consc.bs, source.blockBuf, source.blockBufOff, source.blockBufLen );
 
-        preFade     = source.blockSpan.overlaps(consc.blendPreSpan);
-        postFade    = source.blockSpan.overlaps(consc.blendPostSpan);
+        consc.writer.write(source.audioBlockBuf, source.audioBlockBufOff, source.blockSpan);
+
+        setProgression(consc.progOff + consc.progWeight * consc.writer.getFramesWritten());
+
+        return true;
+    }
+
+    // blends and writes a block of rendered frames. called by the write-behind thread
+    private static void writeBlock(ConsumerContext consc, boolean[] trackMap, float[][] buf, Span span,
+                                   float[][] inBuf, float[][] outBuf)
+            throws IOException {
+        final AudioTrail            at      = consc.doc.getAudioTrail();
+        final int                   len     = (int) span.getLength();
+        final boolean               preFade, postFade;
+
+        preFade     = span.overlaps(consc.blendPreSpan);
+        postFade    = span.overlaps(consc.blendPostSpan);
 
-        // outBuf is audioBlockBuf but with the unused
+        // outBuf is buf but with the unused
         // channels set to null, so they won't be faded
         if (preFade || postFade || consc.restoreUnused) {
-            for (int ch = 0; ch < source.numAudioChannels; ch++) {
-                if (source.audioTrackMap[ch]) {
-                    consc.outBuf[ch] = source.audioBlockBuf[ch];
+            for (int ch = 0; ch < trackMap.length; ch++) {
+                if (trackMap[ch]) {
+                    outBuf[ch] = buf[ch];
                 } else {
-                    consc.outBuf[ch] = null;
+                    outBuf[ch] = null;
                 }
             }
-            at.readFrames(consc.inBuf, 0, source.blockSpan);
+            at.readFrames(inBuf, 0, span);
         }
 
         if (preFade) {
-            consc.bcPre.blend(source.blockSpan.start - consc.blendPreSpan.start,
-                    consc.inBuf, 0,
-                    source.audioBlockBuf, source.audioBlockBufOff,
-                    consc.outBuf, source.audioBlockBufOff,
-                    source.audioBlockBufLen);
+            consc.bcPre.blend(span.start - consc.blendPreSpan.start,
+                    inBuf, 0,
+                    buf, 0,
+                    outBuf, 0,
+                    len);
         }
         if (postFade) {
-            consc.bcPost.blend(source.blockSpan.start - consc.blendPostSpan.start,
-                    source.audioBlockBuf, source.audioBlockBufOff,
-                    consc.inBuf, 0,
-                    consc.outBuf, source.audioBlockBufOff,
-                    source.audioBlockBufLen);
+            consc.bcPost.blend(span.start - consc.blendPostSpan.start,
+                    buf, 0,
+                    inBuf, 0,
+                    outBuf, 0,
+                    len);
         }
         if (consc.restoreUnused) {
-            for (int ch = 0; ch < source.numAudioChannels; ch++) {
-                if (!source.audioTrackMap[ch]) {
-                    consc.outBuf[ch] = consc.inBuf[ch];
+            for (int ch = 0; ch < trackMap.length; ch++) {
+                if (!trackMap[ch]) {
+                    outBuf[ch] = inBuf[ch];
                 }
             }
-            consc.as.writeFrames(consc.outBuf        , source.audioBlockBufOff, source.blockSpan);
+            consc.as.writeFrames(outBuf, 0, span);
         } else {
-            consc.as.writeFrames(source.audioBlockBuf, source.audioBlockBufOff, source.blockSpan);
+            consc.as.writeFrames(buf   , 0, span);
         }
-
-        consc.framesWritten += source.audioBlockBufLen;
-
-        setProgression(consc.progOff + consc.progWeight * consc.framesWritten);
-
-        return true;
     }
 
     /**
@@ -410,8 +545,9 @@ public class FilterDialog
         if (className != null) {
             try {
                 plugIn = (RenderPlugIn) Class.forName(className).newInstance();
-                plugIn.init(app.getUserPrefs().node(PrefsUtil.NODE_PLUGINS).node(
-                        className.substring(className.lastIndexOf('.') + 1)));
+                plugInPrefs = app.getUserPrefs().node(PrefsUtil.NODE_PLUGINS).node(
+                        className.substring(className.lastIndexOf('.') + 1));
+                plugIn.init(plugInPrefs);
                 success = true;
             } catch (InstantiationException e1) {
                 GUIUtil.displayError(getWindow()              , e1, app.getResourceString("errInitPlugIn"));
@@ -448,6 +584,7 @@ public class FilterDialog
         final int minBlockSize, maxBlockSize, prefBlockSize;
         final Set<Object> newOptions;
         final RandomAccessRequester rar;
+        final boolean channelParallel;
         final long pasteLength, preMaxLen, postMaxLen;
         final Span span;
         Object value;
@@ -470,6 +607,7 @@ public class FilterDialog
             }
         }
         source.validMarkers = (consc.plugIn.getMarkerPolicy() == RenderPlugIn.POLICY_MODIFY) && hasSelectedMarkers;
+        source.waveform     = doc.getDecimatedWaveTrail();
         if (source.validMarkers) {
             source.markers = doc.markers.getCutTrail(context.getTimeSpan(), doc.markers.getDefaultTouchMode(), 0);
         }
@@ -496,18 +634,21 @@ public class FilterDialog
             } else {
                 maxBlockSize = 0x7FFFFF;
             }
-            if (newOptions.contains(RenderContext.KEY_PREF_BLOCK_SIZE)) {
-                value = context.getOption(RenderContext.KEY_PREF_BLOCK_SIZE);
-                prefBlockSize = (Integer) value;
-            } else {
-                prefBlockSize = Math.max(minBlockSize, Math.min(maxBlockSize, 1024));
-            }
             if (newOptions.contains(RenderContext.KEY_RANDOM_ACCESS)) {
                 rar = (RandomAccessRequester) context.getOption(RenderContext.KEY_RANDOM_ACCESS);
 //				randomAccess	= true;
             } else {
                 rar = null;
             }
+            channelParallel = (rar == null) && newOptions.contains(RenderContext.KEY_CHANNEL_INDEPENDENT) &&
+                    Boolean.TRUE.equals(context.getOption(RenderContext.KEY_CHANNEL_INDEPENDENT));
+            if (newOptions.contains(RenderContext.KEY_PREF_BLOCK_SIZE)) {
+                value = context.getOption(RenderContext.KEY_PREF_BLOCK_SIZE);
+                prefBlockSize = (Integer) value;
+            } else {
+                // larger blocks make up for the synchronization of the workers
+                prefBlockSize = Math.max(minBlockSize, Math.min(maxBlockSize, channelParallel ? PARALLEL_BLOCK_SIZE : 1024));
+            }
             if (newOptions.contains(RenderContext.KEY_CLIPBOARD)) {
                 return; // FAILED;
             }
@@ -520,13 +661,24 @@ public class FilterDialog
             for (int ch = 0; ch < source.numAudioChannels; ch++) {
                 source.audioBlockBuf[ch] = new float[outTrnsLen];
             }
+            if (channelParallel) {
+                consc.workers = createChannelWorkers(source, outTrnsLen);
+                if (consc.workers != null) {
+                    consc.workerPool = Executors.newFixedThreadPool(consc.workers.length, new ThreadFactory() {
+                        public Thread newThread(Runnable r) {
+                            final Thread t = new Thread(r, "FilterDialog-Channels");
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+                }
+            }
         } catch (IOException e1) {
             GUIUtil.displayError(getWindow(), e1, plugIn.getName());
             return;
         }
 
-        consc.inBuf     = new float[source.numAudioChannels][inTrnsLen];
-        consc.outBuf    = new float[source.numAudioChannels][];
+        consc.inBuf     = (rar != null) ? new float[source.numAudioChannels][inTrnsLen] : null;
         pasteLength		= context.getTimeSpan().getLength();
         preMaxLen		= pasteLength >> 1;
         postMaxLen		= pasteLength - preMaxLen;
@@ -588,6 +740,12 @@ public class FilterDialog
      *	<code>invokeProducerBegin</code>, <code>invokeProducerRender</code>,
      *	<code>invokeProducerCancel</code> and <code>invokeProducerFinish</code>.
      *	<p>
+     *	Reading, rendering and writing form a pipeline: unless the plug-in
+     *	requests random access, the input is read ahead by a separate thread,
+     *	and the output is written behind by another one (see <code>consumerRender</code>).
+     *	Each stage passes a small number of reusable blocks to the next,
+     *	so a long render proceeds at the pace of the slowest stage.
+     *	<p>
      *  If resampling is active, here's the scheme of the
      *  buffer handling:<br>
      *  <PRE>
@@ -654,18 +812,19 @@ public class FilterDialog
         boolean consFinished    = false;
 
         int readLen, writeLen;
-        long readOffset, remainingRead;
+        float[][] inBuf;
+        Block block = null;
 
         // --- resampling related ---
         final int						inOff				= 0;
 
         // --- init ---
 
-        remainingRead = context.getTimeSpan().getLength();
         if (source.validAudio) ProcessingThread.setNextProgStop(0.9f); // XXX arbitrary
 
 //		inOff		= 0;
-        readOffset	= context.getTimeSpan().getStart();
+        final ReadAhead readAhead = randomAccess ? null :
+                new ReadAhead(at, context.getTimeSpan(), source.numAudioChannels, inTrnsLen - inOff);
 
         try {
             // --- rendering loop ---
@@ -674,28 +833,30 @@ public class FilterDialog
                 if (randomAccess) {
                     source.blockSpan = rar.getNextSpan();
                     readLen = (int) source.blockSpan.getLength();
+                    if (readLen == 0) break;
+                    // XXX optimization possibilities here:
+                    // leave some channels null (both in readFrames
+                    // as well as in arraycopy) depending on some
+                    // kind of policy (maybe a new value of audioPolicy: POLICY_READONLY
+                    // and POLICY_BYPASS would become POLICY_IGNORE
+                    at.readFrames(consc.inBuf, inOff, source.blockSpan);
+                    inBuf = consc.inBuf;
                 } else {
-                    readLen = (int) Math.min(inTrnsLen - inOff, remainingRead);
-                    source.blockSpan = new Span(readOffset, readOffset + readLen);
-                    // preparation for next loop iteration
-                    remainingRead -= readLen;
-                    readOffset += readLen;
+                    block = readAhead.next();
+                    if (block == null) break;
+                    source.blockSpan = block.span;
+                    readLen = block.len;
+                    inBuf = block.buf;
                 }
-                if (readLen == 0) break;
                 writeLen = readLen;
                 source.audioBlockBufLen = writeLen;
 
-                // XXX optimization possibilities here:
-                // leave some channels null (both in readFrames
-                // as well as in arraycopy) depending on some
-                // kind of policy (maybe a new value of audioPolicy: POLICY_READONLY
-                // and POLICY_BYPASS would become POLICY_IGNORE
-                at.readFrames(consc.inBuf, inOff, source.blockSpan);
                 // looks like a bit of overload but in future
                 // versions, channel arrangement might be different than 1:1 from mte
                 for (int ch = 0; ch < source.numAudioChannels; ch++) {
-                    System.arraycopy(consc.inBuf[ch], inOff, source.audioBlockBuf[ch], 0, writeLen);
+                    System.arraycopy(inBuf[ch], inOff, source.audioBlockBuf[ch], 0, writeLen);
                 }
+                if (block != null) readAhead.recycle(block);
 
                 // --- handle thread ---
                 if (ProcessingThread.shouldCancel()) break;
@@ -713,6 +874,9 @@ public class FilterDialog
                 return (invokeProducerFinish(proc, source, plugIn) ? DONE : FAILED);
             }
         } finally {
+            if (readAhead != null) readAhead.cancel();
+            if (consc.writer != null) consc.writer.cancel();
+            if (consc.workerPool != null) consc.workerPool.shutdown();
             if (consStarted && !consFinished) {    // on failure cancel rendering and undo edits
                 try {
                     invokeProducerCancel(proc, source, plugIn);
@@ -789,11 +953,338 @@ public class FilterDialog
         protected BlendContext				bcPre, bcPost;
         protected Span						blendPreSpan, blendPostSpan;
         protected float						progOff, progWeight;
-        protected long						framesWritten;
         protected AudioStake				as;
         protected boolean					restoreUnused;
-        protected float[][]					inBuf, outBuf;
+        protected float[][]					inBuf;
+        protected WriteBehind				writer;
+        protected ChannelWorker[]			workers;
+        protected ExecutorService			workerPool;
 
         protected ConsumerContext() { /* empty */ }
     }
+
+// -------- ChannelWorker internal class --------
+
+    /*
+     *	An instance of a channel-independent plug-in which renders
+     *	a subset of the channels. It acts as the consumer of its plug-in,
+     *	copying the rendered channels back into the main source's block.
+     */
+    private static final class ChannelWorker
+            implements RenderConsumer, Callable<Boolean> {
+
+        private final RenderPlugIn	plugIn;
+        private final RenderSource	main;
+        private final RenderSource	source;
+        private boolean				rendered;
+        private boolean				finishing	= false;
+        Span						outSpan;
+        int							outOff;
+        int							outLen;
+
+        ChannelWorker(RenderPlugIn plugIn, RenderHost host, RenderSource main, boolean[] trackMap, int blockSize) {
+            final RenderContext mc = main.context;
+
+            this.plugIn			= plugIn;
+            this.main			= main;
+            source				= new RenderSource(new RenderContext(host, this, mc.getTrackInfo(),
+                                        mc.getTimeSpan(), mc.getSourceRate()), trackMap);
+            source.validAudio	= main.validAudio;
+            source.waveform		= main.waveform;
+            for (int ch = 0; ch < trackMap.length; ch++) {
+                if (trackMap[ch]) source.audioBlockBuf[ch] = new float[blockSize];
+            }
+        }
+
+        boolean begin()
+                throws IOException {
+            return plugIn.producerBegin(source);
+        }
+
+        // renders the current block of the main source
+        public Boolean call()
+                throws IOException {
+            final int len = main.audioBlockBufLen;
+
+            for (int ch = 0; ch < source.numAudioChannels; ch++) {
+                if (!source.audioTrackMap[ch]) continue;
+                if (source.audioBlockBuf[ch].length < len) source.audioBlockBuf[ch] = new float[len];
+                System.arraycopy(main.audioBlockBuf[ch], main.audioBlockBufOff, source.audioBlockBuf[ch], 0, len);
+            }
+            source.blockSpan		= main.blockSpan;
+            source.audioBlockBufOff	= 0;
+            source.audioBlockBufLen	= len;
+            rendered				= false;
+
+            if (!plugIn.producerRender(source)) return false;
+            if (!rendered) throw new IOException("Channel-independent plug-in did not render a block");
+            return true;
+        }
+
+        boolean finish()
+                throws IOException {
+            finishing = true;
+            try {
+                return plugIn.producerFinish(source);
+            } finally {
+                plugIn.dispose();
+            }
+        }
+
+        void cancel() {
+            try {
+                plugIn.producerCancel(source);
+            } catch (IOException e1) { /* ignore */ }
+            finally {
+                plugIn.dispose();
+            }
+        }
+
+        // ---- RenderConsumer ----
+
+        public boolean consumerBegin(RenderSource s) {
+            return true;
+        }
+
+        public boolean consumerRender(RenderSource s)
+                throws IOException {
+            if (finishing || rendered) {
+                throw new IOException("Channel-independent plug-in rendered an unexpected block");
+            }
+            for (int ch = 0; ch < s.numAudioChannels; ch++) {
+                if (!s.audioTrackMap[ch]) continue;
+                if (s.audioBlockBufOff + s.audioBlockBufLen > main.audioBlockBuf[ch].length) {
+                    main.audioBlockBuf[ch] = grow(main.audioBlockBuf[ch], s.audioBlockBufOff + s.audioBlockBufLen);
+                }
+                System.arraycopy(s.audioBlockBuf[ch], s.audioBlockBufOff, main.audioBlockBuf[ch],
+                        s.audioBlockBufOff, s.audioBlockBufLen);
+            }
+            outSpan		= s.blockSpan;
+            outOff		= s.audioBlockBufOff;
+            outLen		= s.audioBlockBufLen;
+            rendered	= true;
+            return true;
+        }
+
+        public boolean consumerFinish(RenderSource s) {
+            return true;
+        }
+
+        public void consumerCancel(RenderSource s) { /* nothing to undo */ }
+
+        // the workers own disjoint channels, so they may replace the main buffers
+        private static float[] grow(float[] buf, int len) {
+            final float[] newBuf = new float[len];
+            System.arraycopy(buf, 0, newBuf, 0, buf.length);
+            return newBuf;
+        }
+    }
+
+// -------- pipeline internal classes --------
+
+    private static final class Block {
+        float[][]	buf;
+        Span		span;
+        int			len;
+
+        Block(int numChannels, int capacity) {
+            buf = new float[numChannels][capacity];
+        }
+
+        void ensureCapacity(int capacity) {
+            for (int ch = 0; ch < buf.length; ch++) {
+                if (buf[ch].length < capacity) buf[ch] = new float[capacity];
+            }
+        }
+    }
+
+    // marks the end of a block queue
+    private static final Block END_OF_STREAM = new Block(0, 0);
+
+    /*
+     *	Reads the blocks of a span in advance, so that reading
+     *	overlaps with rendering. The stage threads are never interrupted,
+     *	since that would close the audio files' channels, instead they poll.
+     */
+    private static final class ReadAhead
+            implements Runnable {
+
+        private final AudioTrail			at;
+        private final Span					span;
+        private final BlockingQueue<Block>	free		= new ArrayBlockingQueue<Block>(PIPELINE_DEPTH);
+        private final BlockingQueue<Block>	filled		= new ArrayBlockingQueue<Block>(PIPELINE_DEPTH + 1);
+        private final int					blockLen;
+        private volatile boolean			cancelled	= false;
+        private volatile IOException		failure		= null;
+
+        ReadAhead(AudioTrail at, Span span, int numChannels, int blockLen) {
+            this.at			= at;
+            this.span		= span;
+            this.blockLen	= blockLen;
+            for (int i = 0; i < PIPELINE_DEPTH; i++) {
+                free.add(new Block(numChannels, blockLen));
+            }
+            final Thread t = new Thread(this, "FilterDialog-ReadAhead");
+            t.setDaemon(true);
+            t.start();
+        }
+
+        public void run() {
+            Block b;
+            try {
+                for (long pos = span.start; pos < span.stop; pos = b.span.stop) {
+                    do {
+                        if (cancelled) return;
+                        b = free.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                    } while (b == null);
+                    b.span	= new Span(pos, Math.min(span.stop, pos + blockLen));
+                    b.len	= (int) b.span.getLength();
+                    at.readFrames(b.buf, 0, b.span);
+                    filled.add(b);
+                }
+            } catch (IOException e1) {
+                failure = e1;
+            } catch (RuntimeException e1) {
+                failure = new IOException(e1);
+            } catch (InterruptedException e1) { /* ignore */ }
+            finally {
+                filled.add(END_OF_STREAM);
+            }
+        }
+
+        /*
+         *	Returns the next block, or null at the end of the span.
+         */
+        Block next()
+                throws IOException {
+            final Block b;
+            try {
+                b = filled.take();
+            } catch (InterruptedException e1) {
+                throw new InterruptedIOException();
+            }
+            if (b == END_OF_STREAM) {
+                filled.add(b);	// for subsequent calls
+                if (failure != null) throw failure;
+                return null;
+            }
+            return b;
+        }
+
+        void recycle(Block b) {
+            free.add(b);
+        }
+
+        void cancel() {
+            cancelled = true;
+        }
+    }
+
+    /*
+     *	Writes the rendered blocks behind the plug-in, so that writing
+     *	overlaps with rendering. Blocks are written in the order in which they
+     *	were passed in; when all blocks are in use, write() waits for the thread.
+     */
+    private static final class WriteBehind
+            implements Runnable {
+
+        private final ConsumerContext		consc;
+        private final boolean[]				trackMap;
+        private final BlockingQueue<Block>	free		= new ArrayBlockingQueue<Block>(PIPELINE_DEPTH);
+        private final BlockingQueue<Block>	queued		= new ArrayBlockingQueue<Block>(PIPELINE_DEPTH + 1);
+        private final Thread				thread;
+        private float[][]					inBuf, outBuf;
+        private volatile boolean			cancelled		= false;
+        private volatile IOException		failure			= null;
+        private volatile long				framesWritten	= 0L;
+
+        WriteBehind(ConsumerContext consc, boolean[] trackMap, int numChannels) {
+            this.consc		= consc;
+            this.trackMap	= trackMap;
+            for (int i = 0; i < PIPELINE_DEPTH; i++) {
+                free.add(new Block(numChannels, 0));
+            }
+            inBuf	= new float[numChannels][0];
+            outBuf	= new float[numChannels][];
+            thread	= new Thread(this, "FilterDialog-WriteBehind");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        public void run() {
+            Block b;
+            try {
+                while (true) {
+                    do {
+                        if (cancelled) return;
+                        b = queued.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                    } while (b == null);
+                    if (b == END_OF_STREAM) return;
+
+                    if ((inBuf.length > 0) && (inBuf[0].length < b.len)) {
+                        inBuf = new float[inBuf.length][b.len];
+                    }
+                    writeBlock(consc, trackMap, b.buf, b.span, inBuf, outBuf);
+                    framesWritten += b.len;
+                    free.add(b);
+                }
+            } catch (IOException e1) {
+                failure = e1;
+            } catch (RuntimeException e1) {
+                failure = new IOException(e1);
+            } catch (InterruptedException e1) { /* ignore */ }
+        }
+
+        void write(float[][] data, int dataOffset, Span span)
+                throws IOException {
+
+            final int len = (int) span.getLength();
+            Block b;
+
+            try {
+                do {
+                    if (failure != null) throw failure;
+                    if (!thread.isAlive()) throw new IOException("Write-behind thread has stopped");
+                    b = free.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                } while (b == null);
+            } catch (InterruptedException e1) {
+                throw new InterruptedIOException();
+            }
+            b.ensureCapacity(len);
+            for (int ch = 0; ch < b.buf.length; ch++) {
+                if (data[ch] != null) System.arraycopy(data[ch], dataOffset, b.buf[ch], 0, len);
+            }
+            b.span	= span;
+            b.len	= len;
+            queued.add(b);
+        }
+
+        long getFramesWritten() {
+            return framesWritten;
+        }
+
+        /*
+         *	Waits until all blocks have been written.
+         */
+        void finish()
+                throws IOException {
+            queued.add(END_OF_STREAM);
+            try {
+                thread.join();
+            } catch (InterruptedException e1) {
+                throw new InterruptedIOException();
+            }
+            if (failure != null) throw failure;
+        }
+
+        /*
+         *	Stops writing, waiting for the block in progress.
+         */
+        void cancel() {
+            cancelled = true;
+            try {
+                thread.join();
+            } catch (InterruptedException e1) { /* ignore */ }
+        }
+    }
 }
\ No newline at end of file
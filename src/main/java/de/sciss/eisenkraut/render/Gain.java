@@ -47,6 +47,7 @@ public class Gain
     private boolean			prNormalize;
     private float			prMaxAmp;
     private boolean			prPeakKnown;
+    private boolean			prPeakPending;	// to be queried from the overview
     private long			prFramesWritten;
     private long			prRenderLength;
     private float			prProgWeight;
@@ -100,6 +101,19 @@ public class Gain
         prConsumer		= source.context.getConsumer();
         prHost			= source.context.getHost();
 
+        if( !prNormalize ) {	// a normalization gain depends on the peak of all channels
+            source.context.setOption( RenderContext.KEY_CHANNEL_INDEPENDENT, Boolean.TRUE );
+        }
+
+        // the overview yields the peak without a separate pass, so we can
+        // proceed as with an absolute gain. as it may still need to read
+        // parts of the file, it is queried with the first block, which is
+        // rendered on the processing thread rather than the event thread
+        prPeakPending	= prNormalize && (source.waveform != null);
+        if( prPeakPending ) {
+            prNormalize = false;
+        }
+
         if( prNormalize ) {	// needs to scan twice, hence random access
             source.context.setOption( RenderContext.KEY_PREF_BLOCK_SIZE, BLOCK_SIZE);
             source.context.setOption( RenderContext.KEY_RANDOM_ACCESS, this );
@@ -118,6 +132,13 @@ public class Gain
     public boolean producerRender( RenderSource source )
     throws IOException
     {
+        if( prPeakPending ) {
+            prPeakPending	= false;
+            prMaxAmp		= source.getPeak( prTotalSpan );
+            if( prMaxAmp > 0.0f ) {
+                prGain /= prMaxAmp;
+            }
+        }
         if( prNormalize && !prPeakKnown ) {
             float f1;
             for( int ch = 0; ch < source.numAudioChannels; ch++ ) {
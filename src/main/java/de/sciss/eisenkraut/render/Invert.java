@@ -18,6 +18,12 @@ import java.io.IOException;
 public class Invert
         extends AbstractRenderPlugIn {
 
+    public boolean producerBegin(RenderSource source)
+            throws IOException {
+        source.context.setOption(RenderContext.KEY_CHANNEL_INDEPENDENT, Boolean.TRUE);
+        return super.producerBegin(source);
+    }
+
     public boolean producerRender(RenderSource source)
             throws IOException {
         for (int ch = 0; ch < source.numAudioChannels; ch++) {
@@ -79,6 +79,22 @@ public class RenderContext {
      *	in sync with the blockBuf with regard to offset and length.
      */
     public static final Object KEY_CLIPBOARD	 = "clipboard";
+    /**
+     *  Key: Producer processes each audio channel independently of the others.<br>
+     *  Value: Boolean
+     *	<p>
+     *	A plug-in sets this option to allow the host to render disjoint
+     *	sets of channels in parallel. The host then creates further instances
+     *	of the plug-in class, one per worker thread, and begins each of them
+     *	with a render source whose <code>audioTrackMap</code> only contains
+     *	the worker's channels. The instance which set the option is only used
+     *	to begin and finish the consumption. For each call of
+     *	<code>producerRender</code>, a worker must pass exactly one block
+     *	to its consumer, with the same span, offset and length for all workers,
+     *	and it must not pass any blocks in <code>producerFinish</code>.
+     *	The option is ignored in random access mode.
+     */
+    public static final Object KEY_CHANNEL_INDEPENDENT = "channelindependent";
     /*
      *  Key: Object that produces output<br>
      *  Value: PlugIn
@@ -13,12 +13,14 @@
 
 package de.sciss.eisenkraut.render;
 
+import java.io.IOException;
 import java.util.List;
 
 import de.sciss.io.Span;
 import de.sciss.timebased.Trail;
 
 import de.sciss.eisenkraut.io.AudioTrail;
+import de.sciss.eisenkraut.io.DecimatedWaveTrail;
 import de.sciss.eisenkraut.timeline.Track;
 
 /**
@@ -63,6 +65,12 @@ public class RenderSource {
 
     public Trail			markers;
 
+    /**
+     *  The overview of the audio input, if available.
+     *  Speeds up <code>getPeak</code>.
+     */
+    public DecimatedWaveTrail	waveform;
+
     public boolean			validAudio;
     public boolean			validMarkers;
 
@@ -78,6 +86,18 @@ public class RenderSource {
      *  @param 	context	...
      */
     public RenderSource(RenderContext context) {
+        this(context, null);
+    }
+
+    /**
+     *  Constructs a new RenderSource for a subset of
+     *  the selected audio channels.
+     *
+     *  @param 	context			...
+     *  @param	audioTrackMap	the channels to render, or <code>null</code>
+     *							to render the context's selected channels
+     */
+    public RenderSource(RenderContext context, boolean[] audioTrackMap) {
         this.context = context;
 
         final List<Track.Info> trackInfo	= context.getTrackInfo();
@@ -91,7 +111,31 @@ public class RenderSource {
             }
         }
         numAudioChannels	= ch;
-        audioTrackMap		= tm;
+        this.audioTrackMap	= (audioTrackMap != null) ? audioTrackMap : tm;
         audioBlockBuf 		= new float[numAudioChannels][];
     }
+
+    /**
+     *  Determines the peak amplitude of the audio input
+     *  in the channels of <code>audioTrackMap</code>
+     *  from the waveform overview, so only a small part
+     *  of the span needs to be read. Requires that
+     *  <code>waveform</code> is set. As this may read
+     *  from disk, it should be called from the processing
+     *  thread, not from <code>producerBegin</code>.
+     *
+     *  @param	span	the time span to examine
+     *  @return	the maximum absolute sample value
+     *
+     *  @throws	IllegalStateException	if there is no <code>waveform</code>
+     *
+     *  @see	DecimatedWaveTrail#getPeak( Span, boolean[] )
+     */
+    public float getPeak(Span span)
+            throws IOException {
+
+        if (waveform == null) throw new IllegalStateException("No waveform overview");
+
+        return waveform.getPeak(span, audioTrackMap);
+    }
 }
\ No newline at end of file
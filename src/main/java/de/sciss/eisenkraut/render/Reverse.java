@@ -44,6 +44,8 @@ public class Reverse extends AbstractRenderPlugIn {
         // request last block
 //		prNextSpan	= new Span( Math.max( prTotalSpan.start, prTotalSpan.stop - BLOCK_SIZE ), prTotalSpan.stop );
         prConsumer	= source.context.getConsumer();
+        // each block is reversed in place, regardless of the other channels
+        source.context.setOption(RenderContext.KEY_CHANNEL_INDEPENDENT, Boolean.TRUE);
 
         // flip markers at once
         if (source.validMarkers) {
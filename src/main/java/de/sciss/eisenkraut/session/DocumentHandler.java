@@ -19,11 +19,15 @@ import java.util.Map;
 
 import de.sciss.app.Document;
 import de.sciss.eisenkraut.Main;
+import de.sciss.eisenkraut.net.OSCConcurrent;
 import de.sciss.eisenkraut.net.OSCRoot;
 import de.sciss.eisenkraut.net.OSCRouter;
 import de.sciss.eisenkraut.net.OSCRouterWrapper;
 import de.sciss.eisenkraut.net.RoutedOSCMessage;
 
+// documents are looked up under the handler's lock,
+// so messages may be routed from any thread
+@OSCConcurrent
 public class DocumentHandler
         extends de.sciss.app.AbstractDocumentHandler
         implements OSCRouter {
@@ -86,6 +90,8 @@ public class DocumentHandler
 
             switch (subPath) {
                 case OSC_ACTIVE:
+                    // the active document is only maintained on the event thread
+                    if (rom.defer(false)) return;
                     doc = getActiveDocument();
                     break;
                 case OSC_ID:
@@ -98,10 +104,12 @@ public class DocumentHandler
                 case OSC_INDEX:
                     rom = rom.next();
                     final int idx = Integer.parseInt(rom.getPathComponent());
-                    if (getDocumentCount() > idx) {
-                        doc = getDocument(idx);
-                    } else {
-                        doc = null;
+                    synchronized (this.sync) {
+                        if (getDocumentCount() > idx) {
+                            doc = getDocument(idx);
+                        } else {
+                            doc = null;
+                        }
                     }
                     break;
                 default:
@@ -133,6 +141,7 @@ public class DocumentHandler
         osc.oscRemoveRouter(subRouter);
     }
 
+    @OSCConcurrent
     public Object oscQuery_count() {
         return getDocumentCount();
     }
@@ -29,12 +29,16 @@ import de.sciss.eisenkraut.edit.EditSetTimelineLength;
 import de.sciss.eisenkraut.edit.TimelineVisualEdit;
 import de.sciss.eisenkraut.edit.UndoManager;
 import de.sciss.eisenkraut.gui.BlendingAction;
+import de.sciss.eisenkraut.io.AudioStake;
 import de.sciss.eisenkraut.io.AudioTrail;
 import de.sciss.eisenkraut.io.BlendContext;
 import de.sciss.eisenkraut.io.DecimatedSonaTrail;
 import de.sciss.eisenkraut.io.DecimatedTrail;
 import de.sciss.eisenkraut.io.DecimatedWaveTrail;
 import de.sciss.eisenkraut.io.MarkerTrail;
+import de.sciss.eisenkraut.io.PrefCacheManager;
+import de.sciss.eisenkraut.io.SaveJournal;
+import de.sciss.eisenkraut.net.OSCConcurrent;
 import de.sciss.eisenkraut.net.OSCRoot;
 import de.sciss.eisenkraut.net.OSCRouter;
 import de.sciss.eisenkraut.net.OSCRouterWrapper;
@@ -67,6 +71,7 @@ import de.sciss.common.BasicDocument;
 import de.sciss.common.BasicWindowHandler;
 import de.sciss.common.ProcessingThread;
 
+@OSCConcurrent
 public class Session
         extends BasicDocument
         implements OSCRouter {
@@ -596,6 +601,7 @@ if( !audioTracks.isEmpty() ) throw new IllegalStateException( "Cannot call repea
     public static Session newFrom(File path, boolean createTransport, boolean createOSC)
             throws IOException {
 
+        SaveJournal.recover( path );
         final AudioFile			af	= AudioFile.openAsRead( path );
         final AudioFileDescr	afd	= af.getDescr();
         Session					doc;
@@ -631,6 +637,7 @@ if( !audioTracks.isEmpty() ) throw new IllegalStateException( "Cannot call repea
         AudioTrail				at		= null;
         Session					doc;
 
+        SaveJournal.recover( paths[ 0 ]);
         try {
             for( int i = 0; i < paths.length; i++ ) {
                 afs[ i ]	= AudioFile.openAsRead( paths[ i ]);
@@ -803,7 +810,12 @@ if( !audioTracks.isEmpty() ) throw new IllegalStateException( "Cannot call repea
     /**
      *	Replaces the currently selected span with
      *	the contents of a given audio file, applying
-     *	blending if activated.
+     *	blending if activated. If the file matches the
+     *	document's channels and rate, all tracks are selected
+     *	and blending is off, its frames are copied into the
+     *	document's temp files in the background instead of
+     *	being rendered through the plug-in; the copy is made
+     *	of raw bytes where the sample formats allow.
      *
      *	"replace", &lt;fileName&gt;[, &lt;fileOffset&gt; ]
      *
@@ -826,6 +838,7 @@ if( !audioTracks.isEmpty() ) throw new IllegalStateException( "Cannot call repea
                 startFrame	= 0;
             }
             af			= AudioFile.openAsRead( new File( fileName ));
+            if( spliceReplace( af, startFrame )) return;
             af.seekFrame( startFrame );
             plugIn		= new Replace( af );
         }
@@ -852,6 +865,39 @@ if( !audioTracks.isEmpty() ) throw new IllegalStateException( "Cannot call repea
 //		actionProcessAgain.setPlugIn( filterDlg.getPlugIn() );
     }
 
+    // replaces the selected span by a stake that reads a copy of the
+    // file's frames. returns false if the file must be rendered
+    private boolean spliceReplace( AudioFile af, long fileStart )
+    {
+        final AudioTrail			at		= getAudioTrail();
+        final Span					selSpan	= timeline.getSelectionSpan();
+        final Span					span	= selSpan.isEmpty() ? new Span( 0, timeline.getLength() ) : selSpan;
+        final ProcessingThread		proc;
+
+        if( span.isEmpty() || (af.getChannelNum() != at.getChannelNum()) ||
+            (af.getDescr().rate != timeline.getRate()) || (fileStart < 0) ||
+            (fileStart + span.getLength() > af.getFrameNum()) ) return false;
+
+        for( int i = 0; i < audioTracks.size(); i++ ) {
+            if( !selectedTracks.contains( audioTracks.get( i ))) return false;
+        }
+        if( (createBlendContext( span.getLength() >> 1, span.getLength() - (span.getLength() >> 1), true ) != null) ||
+            !checkProcess() ) return false;
+
+        // the file belongs to the client which may overwrite it any time
+        // without us noticing, so referencing it and copying only upon
+        // save or close would pick up whatever it contains by then. the
+        // frames are therefore copied before they are spliced in, which
+        // is still cheaper than rendering them through the plug-in
+        proc	= new ProcessingThread( new SpliceReplace(), getFrame(), getResourceString( "plugInReplace" ));
+        proc.putClientArg( "af", af );
+        proc.putClientArg( "fileStart", fileStart );
+        proc.putClientArg( "span", span );
+        start( proc );
+        return true;
+    }
+
+    @OSCConcurrent
     public Object oscQuery_id() {
         return getNodeID();
     }
@@ -984,6 +1030,7 @@ if( !audioTracks.isEmpty() ) throw new IllegalStateException( "Cannot call repea
             final boolean					saveMarkers	= (Boolean) context.getClientArg("markers");
             final Span						span		= (Span) context.getClientArg("span");
             final int[]						channelMap	= (int[]) context.getClientArg("chanMap");
+            final boolean					asCopy		= (Boolean) context.getClientArg("asCopy");
             final AudioTrail				audioTrail	= doc.getAudioTrail();
 //			final File[]					tempFs		= new File[ numFiles ];
 //			final boolean[]					renamed		= new boolean[ numFiles ];
@@ -993,6 +1040,11 @@ if( !audioTracks.isEmpty() ) throw new IllegalStateException( "Cannot call repea
 
             context.putClientArg( "afs", afs );
 
+            // overviews cached for the files we are about to overwrite become stale
+            for (AudioFileDescr afd : clientAFDs) {
+                PrefCacheManager.getInstance().invalidate(afd.file);
+            }
+
             if (saveMarkers) {
                 if (clientAFDs[0].isPropertySupported(AudioFileDescr.KEY_MARKERS)) {
                     doc.markers.copyToAudioFile(clientAFDs[0], span);    // XXX
@@ -1011,6 +1063,27 @@ if( !audioTracks.isEmpty() ) throw new IllegalStateException( "Cannot call repea
                 System.err.println("WARNING: comments are not saved in this file format!");
             }
 
+            // when saving over the document's own files without changing
+            // their format, only the edited regions need to be written
+            if (!asCopy && audioTrail.canWriteInPlace(clientAFDs, span, channelMap)) {
+                audioTrail.writeInPlace(span);
+                // only publish the files when all are open, as
+                // processFinished deletes them if the process failed
+                final AudioFile[] afsRead = new AudioFile[numFiles];
+                try {
+                    for (int i = 0; i < numFiles; i++) {
+                        afsRead[i] = AudioFile.openAsRead(clientAFDs[i].file);
+                    }
+                } catch (IOException e1) {
+                    for (AudioFile af : afsRead) {
+                        if (af != null) af.cleanUp();
+                    }
+                    throw e1;
+                }
+                System.arraycopy(afsRead, 0, afs, 0, numFiles);
+                return DONE;
+            }
+
             for (int i = 0; i < numFiles; i++) {
                 if (clientAFDs[i].file.exists()) {
 //						tempFs[ i ]			= File.createTempFile( "eis", null, afds[ i ].file.getParentFile() );
@@ -1131,6 +1204,10 @@ tryRename:					  {
                     }
                     doc.setDescr( clientAFDs );
                 }
+                // the new contents may share their fingerprint with a stale entry
+                for( AudioFileDescr afd : clientAFDs ) {
+                    PrefCacheManager.getInstance().invalidate( afd.file );
+                }
             } else {	// ------------------------------- FAILED or CANCELLED -------------------------------
                 if( afs != null ) {
                     for (AudioFile af : afs) {
@@ -1888,4 +1965,52 @@ tryRename:					  {
         // mte will check pt.shouldCancel() itself
         public void processCancel( ProcessingThread context ) { /* ignore */ }
     } // class actionSilenceClass
+
+    // copies the frames of a replace command and splices them in as one stake
+    private class SpliceReplace
+            implements ProcessingThread.Client {
+
+        protected SpliceReplace() { /* empty */ }
+
+        public int processRun( ProcessingThread context )
+        throws IOException
+        {
+            final AudioFile af = (AudioFile) context.getClientArg( "af" );
+
+            try {
+                context.putClientArg( "stake", getAudioTrail().adoptCopy( af,
+                    (Long) context.getClientArg( "fileStart" ), (Span) context.getClientArg( "span" )));
+            }
+            finally {
+                af.cleanUp();
+            }
+            return DONE;
+        }
+
+        public void processFinished( ProcessingThread context )
+        {
+            if( context.getReturnCode() != DONE ) return;
+
+            final AudioTrail			at		= getAudioTrail();
+            final AudioStake			stake	= (AudioStake) context.getClientArg( "stake" );
+            final Span					span	= (Span) context.getClientArg( "span" );
+            final AbstractCompoundEdit	edit	= new BasicCompoundEdit( getResourceString( "plugInReplace" ));
+
+            at.editBegin( edit );
+            try {
+                at.editRemove( this, span, edit );
+                at.editInsert( this, span, edit );
+                at.editAdd( this, stake, edit );
+            }
+            finally {
+                at.editEnd( edit );
+            }
+            edit.perform();
+            edit.end();
+            getUndoManager().addEdit( edit );
+        }
+
+        // adoptCopy checks for cancellation itself
+        public void processCancel( ProcessingThread context ) { /* ignored */ }
+    }
 }
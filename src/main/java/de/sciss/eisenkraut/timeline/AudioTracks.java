@@ -13,9 +13,16 @@
 
 package de.sciss.eisenkraut.timeline;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.util.List;
 
+import de.sciss.eisenkraut.edit.BasicCompoundEdit;
+import de.sciss.eisenkraut.io.AudioStake;
 import de.sciss.eisenkraut.io.AudioTrail;
+import de.sciss.eisenkraut.io.SampleDataLayout;
+import de.sciss.eisenkraut.net.OSCRoot;
 import de.sciss.eisenkraut.net.OSCRouter;
 import de.sciss.eisenkraut.net.OSCRouterWrapper;
 import de.sciss.eisenkraut.net.RoutedOSCMessage;
@@ -23,7 +30,10 @@ import de.sciss.eisenkraut.session.Session;
 import de.sciss.eisenkraut.session.SessionCollection;
 
 import de.sciss.app.AbstractApplication;
+import de.sciss.app.AbstractCompoundEdit;
 import de.sciss.common.ProcessingThread;
+import de.sciss.io.AudioFile;
+import de.sciss.io.Span;
 import de.sciss.timebased.Trail;
 import de.sciss.util.Flag;
 
@@ -102,4 +112,258 @@ public class AudioTracks
     {
         return size();
     }
-}
\ No newline at end of file
+
+    /**
+     *	"readFrames", &lt;startFrame&gt;, &lt;stopFrame&gt;
+     *	<p>
+     *	Copies a span of the audio to a scratch file (32-bit float Wave64,
+     *	all channels interleaved) and replies with
+     *	"/done", "readFrames", &lt;startFrame&gt;, &lt;stopFrame&gt;, &lt;path&gt;,
+     *	&lt;byteOffset&gt;, &lt;byteLength&gt;, where offset and length locate
+     *	the little endian sample data, so it can be memory-mapped. The file
+     *	belongs to the client which may modify it and pass it to
+     *	<code>writeFrames</code>.
+     */
+    public void oscCmd_readFrames(RoutedOSCMessage rom) {
+        final long				len		= doc.timeline.getLength();
+        final Span				span;
+        final ProcessingThread	proc;
+        int						argIdx	= 1;
+
+        try {
+            final long start	= Math.max(0, Math.min(len, ((Number) rom.msg.getArg(argIdx)).longValue()));
+            argIdx++;
+            final long stop		= Math.max(start, Math.min(len, ((Number) rom.msg.getArg(argIdx)).longValue()));
+            span = new Span(start, stop);
+        } catch (IndexOutOfBoundsException e1) {
+            OSCRoot.failedArgCount(rom);
+            return;
+        } catch (ClassCastException e1) {
+            OSCRoot.failedArgType(rom, argIdx);
+            return;
+        }
+
+        if (!doc.checkProcess()) {
+            OSCRoot.failed(rom.msg, "Process is running");
+            return;
+        }
+        proc = new ProcessingThread(new ReadFrames(), doc.getFrame(), getResourceString("editReadFrames"));
+        proc.putClientArg("rom", rom);
+        proc.putClientArg("span", span);
+        doc.start(proc);
+    }
+
+    /**
+     *	"writeFrames", &lt;numFrames&gt;
+     *	<p>
+     *	Creates a scratch file of the given length whose frames are zero,
+     *	and replies with "/done", "writeFrames", &lt;numFrames&gt;, &lt;path&gt;,
+     *	&lt;byteOffset&gt;, &lt;byteLength&gt; as with <code>readFrames</code>.
+     *	<p>
+     *	"writeFrames", &lt;path&gt;, &lt;startFrame&gt;
+     *	<p>
+     *	Overwrites the audio from the given frame on with the contents of
+     *	an audio file that has the document's number of channels, typically
+     *	a scratch file obtained from <code>readFrames</code> or the first form of
+     *	this command. A scratch file handed out by this document is spliced in as
+     *	it is, so no frames are copied; from now on it belongs to the document,
+     *	which deletes it when it is no longer needed, and it must not be modified
+     *	or deleted by the client. The frames of any other file are copied first,
+     *	so the client keeps its file. The document's own files are rejected.
+     *	Replies with "/done", "writeFrames", &lt;path&gt;, &lt;startFrame&gt;.
+     */
+    public void oscCmd_writeFrames(RoutedOSCMessage rom) {
+        int argIdx = 1;
+
+        try {
+            final Object arg = rom.msg.getArg(argIdx);
+            if (arg instanceof Number) {
+                final long numFrames = ((Number) arg).longValue();
+                if (numFrames < 0) {
+                    OSCRoot.failedArgValue(rom, argIdx);
+                    return;
+                }
+                final AudioFile af = doc.getAudioTrail().createScratchFile(numFrames);
+                af.close();
+                rom.replyDone(2, describeScratchFile(af));
+
+            } else {
+                final File path = new File(arg.toString());
+                argIdx++;
+                final long start = ((Number) rom.msg.getArg(argIdx)).longValue();
+                if (!doc.checkProcess()) {
+                    OSCRoot.failed(rom.msg, "Process is running");
+                    return;
+                }
+                spliceFrames(rom, path, start);
+            }
+        } catch (IndexOutOfBoundsException e1) {
+            OSCRoot.failedArgCount(rom);
+        } catch (ClassCastException e1) {
+            OSCRoot.failedArgType(rom, argIdx);
+        } catch (IOException e1) {
+            OSCRoot.failed(rom, e1);
+        }
+    }
+
+    private void spliceFrames(RoutedOSCMessage rom, File path, long start)
+            throws IOException {
+
+        final AudioTrail			at		= doc.getAudioTrail();
+        if (at.isOwnFile(path)) {
+            OSCRoot.failedArgValue(rom, 1);
+            return;
+        }
+        final AudioFile				af		= AudioFile.openAsRead(path);
+        final Span					span	= new Span(start, start + af.getFrameNum());
+        final ProcessingThread		proc;
+
+        if (af.getChannelNum() != at.getChannelNum()) {
+            af.cleanUp();
+            OSCRoot.failed(rom.msg, "Illegal number of channels (" + af.getChannelNum() + ")");
+            return;
+        }
+        if ((start < 0) || (span.stop > doc.timeline.getLength())) {
+            af.cleanUp();
+            OSCRoot.failedArgValue(rom, 2);
+            return;
+        }
+        if (span.isEmpty()) {
+            af.cleanUp();
+        } else if (at.claimScratchFile(path)) {
+            // only scratch files that we handed out may be taken over by the trail
+            splice(at.adopt(af, span), span);
+        } else {
+            proc = new ProcessingThread(new WriteFrames(), doc.getFrame(), getResourceString("editWriteFrames"));
+            proc.putClientArg("rom", rom);
+            proc.putClientArg("af", af);
+            proc.putClientArg("span", span);
+            doc.start(proc);
+            return;
+        }
+        rom.replyDone(3, new Object[0]);
+    }
+
+    private void splice(AudioStake stake, Span span) {
+        final AudioTrail			at		= doc.getAudioTrail();
+        final AbstractCompoundEdit	edit	= new BasicCompoundEdit(getResourceString("editWriteFrames"));
+
+        at.editBegin(edit);
+        try {
+            at.editRemove(this, span, edit);
+            at.editInsert(this, span, edit);
+            at.editAdd(this, stake, edit);
+        } finally {
+            at.editEnd(edit);
+        }
+        edit.perform();
+        edit.end();
+        doc.getUndoManager().addEdit(edit);
+    }
+
+    // path, byte offset and byte length of the sample data of a closed scratch file
+    private static Object[] describeScratchFile(AudioFile af)
+            throws IOException {
+
+        final RandomAccessFile	raf		= new RandomAccessFile(af.getFile(), "r");
+        final SampleDataLayout	layout;
+        try {
+            layout = SampleDataLayout.create(af, raf.getChannel());
+        } finally {
+            raf.close();
+        }
+        if (layout == null) throw new IOException("Unsupported scratch file format");
+
+        return new Object[] { af.getFile().getAbsolutePath(), layout.dataOffset,
+                              af.getFrameNum() * layout.frameSize };
+    }
+
+    private static String getResourceString(String key) {
+        return AbstractApplication.getApplication().getResourceString(key);
+    }
+
+// ---------------- internal classes ----------------
+
+    // writes the scratch file for readFrames
+    private class ReadFrames
+            implements ProcessingThread.Client {
+
+        protected ReadFrames() { /* empty */ }
+
+        public int processRun(ProcessingThread context)
+                throws IOException {
+
+            final Span			span	= (Span) context.getClientArg("span");
+            final AudioTrail	at		= doc.getAudioTrail();
+            final AudioFile		af		= at.createScratchFile(0);
+            boolean				success	= false;
+
+            try {
+                at.flatten(af, span, null);
+                af.close();
+                context.putClientArg("reply", describeScratchFile(af));
+                success = true;
+            } finally {
+                if (!success) {
+                    af.cleanUp();
+                    if (!af.getFile().delete()) af.getFile().deleteOnExit();
+                }
+            }
+            return DONE;
+        }
+
+        public void processFinished(ProcessingThread context) {
+            final RoutedOSCMessage rom = (RoutedOSCMessage) context.getClientArg("rom");
+
+            try {
+                if (context.getReturnCode() == DONE) {
+                    rom.replyDone(3, (Object[]) context.getClientArg("reply"));
+                } else {
+                    rom.replyFailed(3);
+                }
+            } catch (IOException e1) {
+                OSCRoot.failed(rom, e1);
+            }
+        }
+
+        // flatten will check pt.shouldCancel() itself
+        public void processCancel(ProcessingThread context) { /* ignore */ }
+    }
+
+    // copies the frames of a file which is not ours, and splices them in
+    private class WriteFrames
+            implements ProcessingThread.Client {
+
+        protected WriteFrames() { /* empty */ }
+
+        public int processRun(ProcessingThread context)
+                throws IOException {
+
+            final AudioFile af = (AudioFile) context.getClientArg("af");
+            try {
+                context.putClientArg("stake", doc.getAudioTrail().adoptCopy(af, 0L, (Span) context.getClientArg("span")));
+            } finally {
+                af.cleanUp();
+            }
+            return DONE;
+        }
+
+        public void processFinished(ProcessingThread context) {
+            final RoutedOSCMessage rom = (RoutedOSCMessage) context.getClientArg("rom");
+
+            try {
+                if (context.getReturnCode() == DONE) {
+                    splice((AudioStake) context.getClientArg("stake"), (Span) context.getClientArg("span"));
+                    rom.replyDone(3, new Object[0]);
+                } else {
+                    rom.replyFailed(3);
+                }
+            } catch (IOException e1) {
+                OSCRoot.failed(rom, e1);
+            }
+        }
+
+        // adoptCopy checks for cancellation itself
+        public void processCancel(ProcessingThread context) { /* ignore */ }
+    }
+}
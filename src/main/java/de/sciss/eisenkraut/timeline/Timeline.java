@@ -23,6 +23,7 @@ import de.sciss.app.BasicEvent;
 import de.sciss.app.EventManager;
 import de.sciss.eisenkraut.edit.BasicCompoundEdit;
 import de.sciss.eisenkraut.edit.TimelineVisualEdit;
+import de.sciss.eisenkraut.net.OSCConcurrent;
 import de.sciss.eisenkraut.net.OSCRoot;
 import de.sciss.eisenkraut.net.OSCRouter;
 import de.sciss.eisenkraut.net.OSCRouterWrapper;
@@ -41,6 +42,7 @@ import de.sciss.io.Span;
  *
  *	TODO: view based stuff (visible span) should be removed
  */
+@OSCConcurrent
 public class Timeline
         extends AbstractSessionObject
         implements EventManager.Processor, OSCRouter {
@@ -49,11 +51,12 @@ public class Timeline
     private static final String			MAP_KEY_LENGTH			= "len";
     private static final String			MAP_KEY_POSITION		= "pos";
 
-    private double						rate;				// sample frames per second
-    private long						length;				// total number of sample frames
-    private long						position;			// current head position
-    private Span						visibleSpan;		// what's being viewed in the TimelineFrame
-    private Span						selectionSpan;
+    // volatile because they are queried from the OSC dispatcher thread
+    private volatile double				rate;				// sample frames per second
+    private volatile long				length;				// total number of sample frames
+    private volatile long				position;			// current head position
+    private volatile Span				visibleSpan;		// what's being viewed in the TimelineFrame
+    private volatile Span				selectionSpan;
 
     protected final Session				doc;
 
@@ -454,30 +457,37 @@ public class Timeline
         osc.oscRemoveRouter(subRouter);
     }
 
+    @OSCConcurrent
     public Object oscQuery_position() {
         return getPosition();
     }
 
+    @OSCConcurrent
     public Object oscQuery_selectionStart() {
         return getSelectionSpan().start;
     }
 
+    @OSCConcurrent
     public Object oscQuery_selectionStop() {
         return getSelectionSpan().stop;
     }
 
+    @OSCConcurrent
     public Object oscQuery_viewStart() {
         return getVisibleSpan().start;
     }
 
+    @OSCConcurrent
     public Object oscQuery_viewStop() {
         return getVisibleSpan().stop;
     }
 
+    @OSCConcurrent
     public Object oscQuery_rate() {
         return getRate();
     }
 
+    @OSCConcurrent
     public Object oscQuery_length() {
         return getLength();
     }
@@ -167,6 +167,22 @@ public class PrefsUtil {
      *  Node:
      */
     public static final String KEY_VERTSCALE	= "vertscale";		// integer (VSCALE_AMP_LIN etc.)
+    /**
+     *  Value: Boolean indicating whether audio files should
+     *  be read through memory mappings instead of positional
+     *  file channel reads.<br>
+     *  Has default value: no!<br>
+     *  Node: shared
+     */
+    public static final String KEY_MAPPEDREAD	= "mappedread";		// boolean
+    /**
+     *  Value: Param representing the memory budget
+     *  of the cache for decoded audio file frames
+     *  in megabytes. Zero disables the cache.<br>
+     *  Has default value: yes!<br>
+     *  Node: shared
+     */
+    public static final String KEY_BLOCKCACHE	= "blockcache";		// Param
 
     public static final int TIME_SAMPLES		= 0;
     public static final int TIME_MINSECS		= 1;
@@ -428,6 +444,7 @@ public class PrefsUtil {
 
         putIntDontOverwrite(mainPrefs, KEY_TIMEUNITS, TIME_MINSECS);
         putIntDontOverwrite(mainPrefs, KEY_VERTSCALE, VSCALE_AMP_LIN);
+        putDontOverwrite(mainPrefs, KEY_BLOCKCACHE, new Param(64, ParamSpace.NONE).toString());
 
         // audio
         childPrefs = mainPrefs.node(NODE_AUDIO);
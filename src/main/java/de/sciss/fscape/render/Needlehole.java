@@ -22,6 +22,7 @@ package de.sciss.fscape.render;
 import java.awt.BorderLayout;
 import java.beans.XMLDecoder;
 import java.io.IOException;
+import java.util.Arrays;
 
 import javax.swing.JComponent;
 import javax.swing.JPanel;
@@ -124,6 +125,7 @@ public class Needlehole
     private boolean					prNormalize;
     private float					prGain;
     private float[][]				prInBuf;
+    private float[][]				prOutBuf;		// the selected channels of the source's block
     private int						prInBufSize;
     private float					prMaxAmp;
     private int						prOutBufSize;
@@ -166,7 +168,12 @@ public class Needlehole
         prInBufSize		= prOutBufSize + prWinSize;
 //		prWinSizeH		= prWinSize >> 1;
 
-        prInBuf			= new float[ source.numAudioChannels ][ prInBufSize ];
+        int numChannels = 0;
+        for( int ch = 0; ch < source.numAudioChannels; ch++ ) {
+            if( source.audioTrackMap[ ch ]) numChannels++;
+        }
+        prInBuf			= new float[ numChannels ][ prInBufSize ];
+        prOutBuf		= new float[ numChannels ][];
 
 //System.err.println( "winsizeH "+prWinSizeH+"; winsize "+prWinSize+"; prInBufSize "+prInBufSize+"; prOutBufSize "+prOutBufSize );
 
@@ -176,21 +183,21 @@ public class Needlehole
         source.context.setOption( RenderContext.KEY_MAX_BLOCK_SIZE, outBufSizeI );
 
         if( filterType.equals( FILTER_MEDIAN )) {
-            prFilter	= new MedianFilter( prWinSize, source.numAudioChannels );
+            prFilter	= new MedianFilter( prWinSize, numChannels );
         } else if( filterType.equals( FILTER_STDDEV )) {
-            prFilter	= new StdDevFilter( prWinSize, source.numAudioChannels );
+            prFilter	= new StdDevFilter( prWinSize, numChannels );
         } else if( filterType.equals( FILTER_MINIMUM )) {
-            prFilter	= new MinimumFilter( prWinSize, source.numAudioChannels );
+            prFilter	= new MinimumFilter( prWinSize, numChannels );
         } else if( filterType.equals( FILTER_CENTER )) {
-            prFilter	= new CenterClippingFilter( prWinSize, source.numAudioChannels, threshAmp );
+            prFilter	= new CenterClippingFilter( prWinSize, numChannels, threshAmp );
         } else if( filterType.equals( FILTER_MINIMUM2 )) {
-            prFilter	= new Minimum2Filter( prWinSize, source.numAudioChannels );
+            prFilter	= new Minimum2Filter( prWinSize, numChannels );
         } else if( filterType.equals( FILTER_AUTOCORR )) {
-            prFilter	= new AutoCorrelationFilter( prWinSize, source.numAudioChannels );
+            prFilter	= new AutoCorrelationFilter( prWinSize, numChannels );
         } else if( filterType.equals( FILTER_AUTOCORR2 )) {
-            prFilter	= new AutoCorrelation2Filter( prWinSize, source.numAudioChannels );
+            prFilter	= new AutoCorrelation2Filter( prWinSize, numChannels );
         } else if( filterType.equals( FILTER_MINPHASE )) {
-            prFilter	= new MinimumPhaseFilter( prWinSize, source.numAudioChannels );
+            prFilter	= new MinimumPhaseFilter( prWinSize, numChannels );
         } else {
             throw new IOException( "Unknown filter type : " + filterType );
         }
@@ -215,6 +222,8 @@ public class Needlehole
             return true;
         } else {
             prTempFile	= null;
+            // the filters keep separate state for each channel
+            source.context.setOption( RenderContext.KEY_CHANNEL_INDEPENDENT, Boolean.TRUE );
             return prConsumer.consumerBegin( source );
         }
     }
@@ -227,9 +236,9 @@ public class Needlehole
         if( prNormalize ) {
             float f1;
 
-            for( int ch = 0; ch < source.numAudioChannels; ch++ ) {
+            for( float[] chBuf : prOutBuf ) {
                 for( int i = source.audioBlockBufOff, j = i + source.audioBlockBufLen; i < j; i++ ) {
-                    f1 = Math.abs( source.audioBlockBuf[ ch ][ i ]);
+                    f1 = Math.abs( chBuf[ i ]);
                     if( f1 > prMaxAmp ) {
                         prMaxAmp = f1;
                     }
@@ -255,7 +264,7 @@ public class Needlehole
         // in immedate mode, directly feed consumer
         } else {
             if( prGain != 1.0f ) {
-                multiply( source.audioBlockBuf, source.audioBlockBufOff, source.audioBlockBufLen, prGain );
+                multiply( prOutBuf, source.audioBlockBufOff, source.audioBlockBufLen, prGain );
             }
             return prConsumer.consumerRender( source );
         }
@@ -294,6 +303,7 @@ public class Needlehole
             source.blockSpan	= new Span( writeOffset, writeOffset + transLen );
 
             prTempFile.readFrames( source.audioBlockBuf, source.audioBlockBufOff, source.audioBlockBufLen );
+            selectChannels( source );
 
 //			float test = 0f;
 //			for( int i = 0; i < source.audioBlockBufLen; i++ ) {
@@ -304,7 +314,7 @@ public class Needlehole
 //			System.out.println( "after " + (prFramesWritten+transLen) + " maxAmp is " + test );
 
             if( prGain != 1.0f ) {
-                multiply( source.audioBlockBuf, source.audioBlockBufOff, source.audioBlockBufLen, prGain );
+                multiply( prOutBuf, source.audioBlockBufOff, source.audioBlockBufLen, prGain );
             }
 
 //			float test = 0f;
@@ -328,9 +338,10 @@ public class Needlehole
     {
         final int transLen	= (int) Math.min( prProcLen, prRenderLength - prFramesWritten );
 
+        selectChannels( source );
 //System.err.println( "received "+source.audioBlockBufLen+" input samples. copied to ("+prOffStart+" ... "+(prOffStart+source.audioBlockBufLen)+")" );
-        for( int ch = 0; ch < source.numAudioChannels; ch++ ) {
-            System.arraycopy( source.audioBlockBuf[ ch ], source.audioBlockBufOff, prInBuf[ ch ], prOffStart,
+        for( int ch = 0; ch < prInBuf.length; ch++ ) {
+            System.arraycopy( prOutBuf[ ch ], source.audioBlockBufOff, prInBuf[ ch ], prOffStart,
                               source.audioBlockBufLen );
         }
 
@@ -341,16 +352,16 @@ public class Needlehole
         }
 
 //System.err.println( "processing "+transLen+" samples in (0 ... " + transLen+")" );
-        prFilter.process( prInBuf, source.audioBlockBuf, 0, source.audioBlockBufOff, transLen );
+        prFilter.process( prInBuf, prOutBuf, 0, source.audioBlockBufOff, transLen );
 
         if( prSubDry) {
-            subtract( source.audioBlockBuf, source.audioBlockBufOff, prInBuf, prOffStart, transLen );
+            subtract( prOutBuf, source.audioBlockBufOff, prInBuf, prOffStart, transLen );
         }
 
         // shift buffers
 //System.err.println( "copy "+prWinSize+" overlap samples from (" + transLen+ " ... " + (transLen + prWinSize)+") to (0 ... " + prWinSize + ")" );
-        for( int ch = 0; ch < source.numAudioChannels; ch++ ) {
-            System.arraycopy( prInBuf[ ch ], transLen, prInBuf[ ch ], 0, prWinSize );
+        for( float[] chBuf : prInBuf ) {
+            System.arraycopy( chBuf, transLen, chBuf, 0, prWinSize );
         }
 
         prProcLen		 = prOutBufSize;
@@ -360,6 +371,14 @@ public class Needlehole
         source.audioBlockBufLen = transLen;
     }
 
+    // unselected channels are neither filtered nor written
+    private void selectChannels( RenderSource source )
+    {
+        for( int ch = 0, i = 0; ch < source.numAudioChannels; ch++ ) {
+            if( source.audioTrackMap[ ch ]) prOutBuf[ i++ ] = source.audioBlockBuf[ ch ];
+        }
+    }
+
     // ---------- RandomAccessRequester interface ----------
 
     public Span getNextSpan()
@@ -391,6 +410,15 @@ public class Needlehole
 //		}
     }
 
+    /*
+     *	Keeps running sums of the window's samples and of their squares,
+     *	so each output sample takes a constant number of operations
+     *	instead of one pass over the window. To keep rounding errors
+     *	from accumulating, the sums are recomputed every winSize samples.
+     *	Compared to summing the squared deviations directly, the
+     *	variance may differ by about 1.0e-12 relative to the window's
+     *	mean square, which is far below the precision of the output.
+     */
     private static class StdDevFilter
     extends RunningWindowFilter
     {
@@ -411,38 +439,42 @@ public class Needlehole
         public void process( float[][] inBuf, float[][] outBuf, int inOff, int outOff, int len )
         throws IOException
         {
-            int			ch, i, j, k, m, n;
+            int			ch, j, k, m, n, renorm;
             float[]		convBuf2, convBuf3;
             double[]	convBuf4;
-            double		d1, d2, mu, mus, omus, sum;
+            double		d1, d2, f1, f2, sum, sumSq;
 
             for( ch = 0; ch < channels; ch++ ) {
                 convBuf4	= dcMem[ ch ];
                 convBuf2	= inBuf[ch];
                 convBuf3	= outBuf[ch];
-                // calc first full window sum
-                mus			= 0.0;
-                for( i = 0, m = inOff; i < winSizeM1; i++, m++ ) {
-                    mus	   += convBuf2[ m ];	// sum all but last one in window
-                }
-                omus		= 0.0;
+                sum			= 0.0;
+                sumSq		= 0.0;
+                renorm		= 0;
                 for( j = 0, m = inOff, n = outOff; j < len; j++, m++, n++ ) {
-                    // shift by one : remove obsolete sample
-                    // and add new last window sample
-                    mus		= mus - omus + convBuf2[ m + winSizeM1 ];
-                    mu		= mus / winSize;	// mean now
-                    sum		= 0.0;
-                    for( i = 0, k = m; i < winSize; i++, k++ ) {
-                        d1		= convBuf2[ k ] - mu;
-                        sum	   += d1 * d1;	// variance
+                    if( renorm == 0 ) {		// full window sums
+                        sum		= 0.0;
+                        sumSq	= 0.0;
+                        for( k = m; k <= m + winSizeM1; k++ ) {
+                            f1		= convBuf2[ k ];
+                            sum	   += f1;
+                            sumSq  += f1 * f1;
+                        }
+                        renorm	= winSize;
+                    } else {				// remove obsolete sample and add new last window sample
+                        f1		= convBuf2[ m - 1 ];
+                        f2		= convBuf2[ m + winSizeM1 ];
+                        sum	   += f2 - f1;
+                        sumSq  += f2 * f2 - f1 * f1;
                     }
-                    d1				= Math.sqrt( sum );	// standard deviation
+                    renorm--;
+                    // sum of squared deviations from the mean
+                    d1				= Math.sqrt( Math.max( 0.0, sumSq - sum * sum / winSize ));	// standard deviation
                 // ---- remove DC ----
                     d2				= d1 - convBuf4[ 0 ] + 0.99 * convBuf4[ 1 ];
                     convBuf3[ n ]	= (float) d2;
                     convBuf4[ 0 ]	= d1;
                     convBuf4[ 1 ]	= d2;
-                    omus			= convBuf2[ m ];
                 }
             } // for channels
         } // process
@@ -450,12 +482,21 @@ public class Needlehole
 
     /*
      *	Verfolgt das betragsmaessige Minimum
+     *
+     *	The candidates are kept in a monotonic deque: indices
+     *	of the window in ascending order, whose magnitudes are
+     *	ascending as well. The head is the minimum; a new sample
+     *	removes all candidates from the tail which it beats. Each
+     *	index enters and leaves the deque once, so the cost per output
+     *	sample is constant on average. Of several samples with equal
+     *	magnitude, the earliest one is output, as before.
      */
     private static class MinimumFilter
     extends RunningWindowFilter
     {
         private final int			channels;
         private final int			winSizeM1;
+        private int[]				deque		= new int[ 0 ];
 
         protected MinimumFilter( int winSize, int channels )
         {
@@ -468,51 +509,50 @@ public class Needlehole
         public void process( float[][] inBuf, float[][] outBuf, int inOff, int outOff, int len )
         throws IOException
         {
-            int			ch, i, j, k, m, n, minidx;
+            int			ch, j, k, m, n, first, last;
             float[]		convBuf2, convBuf3;
-            float		f1, f2, min;
+            float		f1;
 
             for( ch = 0; ch < channels; ch++ ) {
                 convBuf2	= inBuf[ch];
                 convBuf3	= outBuf[ch];
-                minidx		= -1;
-                min			= 0.0f;
-                for( j = 0, m = inOff, n = outOff; j < len; j++, m++, n++ ) {
-                    if( minidx < m ) {	// need to find again
-                        f1		= Math.abs( convBuf2[ m ]);
-                        minidx	= m;
-                        for( i = 1, k = m + 1; i < winSize; i++, k++ ) {
-                            f2	= Math.abs( convBuf2[ k ]);
-                            if( f2 < f1 ) {
-                                f1		= f2;
-                                minidx	= k;
-                            }
-                        }
-                        min	= convBuf2[ minidx ];
-                    } else {
-                        f1	= convBuf2[ m + winSizeM1 ];
-                        if( Math.abs( f1 ) < Math.abs( min )) {
-                            min		= f1;
-                            minidx	= m + winSizeM1;
-                        }
-                    }
-                    convBuf3[ n ]	= min;
-                    minidx--;
+                if( deque.length < convBuf2.length ) deque = new int[ convBuf2.length ];
+                first		= 0;
+                last		= 0;
+                for( k = inOff; k < inOff + winSizeM1; k++ ) {
+                    f1		= Math.abs( convBuf2[ k ]);
+                    while( (last > first) && (Math.abs( convBuf2[ deque[ last - 1 ]]) > f1) ) last--;
+                    deque[ last++ ] = k;
+                }
+                for( j = 0, m = inOff, n = outOff; j < len; j++, m++, n++, k++ ) {
+                    // add new last window sample
+                    f1		= Math.abs( convBuf2[ k ]);
+                    while( (last > first) && (Math.abs( convBuf2[ deque[ last - 1 ]]) > f1) ) last--;
+                    deque[ last++ ] = k;
+                    // remove obsolete sample
+                    if( deque[ first ] < m ) first++;
+                    convBuf3[ n ]	= convBuf2[ deque[ first ]];
                 }
             } // for channels
         } // process
     } // class MinimumFilter
 
-    // this is about 20 times faster than the original code
+    /*
+     *	Keeps the lower half of the window in a max-heap and the
+     *	upper half in a min-heap, so the median is the top of the
+     *	lower heap. Each heap entry refers to a slot of the history
+     *	ring buffer, and each heap knows the position of its slots,
+     *	so the obsolete sample can be removed directly. Insertion
+     *	and removal take O(log winSize) steps, instead of moving
+     *	half the window in a sorted array.
+     */
     private static class MedianFilter
     extends RunningWindowFilter
     {
-        private final int		winSizeH;
-        private final int		winSizeM1;
         private final int		channels;
-
-        private final float[][]	medianBuf;
         private final float[][]	histoBuf;
+        private final Heap[]	lowerBuf;
+        private final Heap[]	upperBuf;
 
         private int				histoIdx	= 0;
         private int				medianNum	= 0;
@@ -522,126 +562,160 @@ public class Needlehole
             super( winSize );
 
             this.channels   = channels;
-            winSizeH		= winSize >> 1;
-            winSizeM1		= winSize - 1;
 
-            medianBuf		= new float[ channels ][ winSize ];
             histoBuf		= new float[ channels ][ winSize ];
-        }
-
-//		public int getStartOffset()
-//		{
-//			return 0;
-//		}
-
-        // we need access to low and high, that's why we cannot
-        // use Arrays.binarySearch directly ;-/
-        private int binarySearch( float[] a, float key, int low,int high )
-        {
-            while( low <= high ) {
-                final int	mid		= (low + high) >> 1;
-                final float	midVal	= a[ mid ];
-
-                if( midVal < key ) {
-                    low = mid + 1;
-                } else if( midVal > key ) {
-                    high = mid - 1;
-                } else {
-                    return mid;
-                }
+            lowerBuf		= new Heap[ channels ];
+            upperBuf		= new Heap[ channels ];
+            for( int ch = 0; ch < channels; ch++ ) {
+                lowerBuf[ ch ]	= new Heap( histoBuf[ ch ], true );
+                upperBuf[ ch ]	= new Heap( histoBuf[ ch ], false );
             }
-            return -(low + 1);  // key not found.
         }
 
         public void process( float[][] inBuf, float[][] outBuf, int inOff, int outOff, int len )
         throws IOException
         {
-//System.out.println( "inOff = " + inOff + "; outOff = " + outOff + "; len = " + len );
+            int medianChanNum	= medianNum;
+            int histoChanIdx	= histoIdx;
 
             for( int ch = 0; ch < channels; ch++ ) {
-                final float[]	medianChanBuf	= medianBuf[ ch ];
                 final float[]	inChanBuf		= inBuf[ ch ];
                 final float[]	outChanBuf		= outBuf[ ch ];
                 final float[]	histoChanBuf	= histoBuf[ ch ];
-                int				medianChanNum	= medianNum;
-                int				histoChanIdx	= histoIdx;
-
-//int lastCpySrcIdx = -666, lastCpyDstIdx = -666, lastCpyLen = -666;
-//boolean didLastCpy = false;
-//int lastOldIdx = -666, lastNewIdx = -666;
-//float lastOldVal = -666;
-//float[] backup = new float[ winSize ];
+                final Heap		lower			= lowerBuf[ ch ];
+                final Heap		upper			= upperBuf[ ch ];
+                medianChanNum	= medianNum;
+                histoChanIdx	= histoIdx;
 
                 for( int i = inOff, j = outOff, k = inOff + len; i < k; i++, j++ ) {
                     final float val = inChanBuf[ i ];
-//System.arraycopy( medianChanBuf, 0, backup, 0, winSize );
                     if( medianChanNum == winSize ) { // full buffer size reached
                         if( histoChanIdx == winSize ) histoChanIdx = 0;
-//lastOldVal = histoChanBuf[ histoChanIdx ];
-                        final int oldIdx = binarySearch( medianChanBuf, histoChanBuf[ histoChanIdx ], 0, winSizeM1 );
-                        // trick to kind of ignore the removed value
-//						medianChanBuf[ oldIdx ] = medianChanBuf[ oldIdx > 0 ? oldIdx - 1 : oldIdx + 1 ];
-                        int newIdx = binarySearch( medianChanBuf, val, 0, winSizeM1 );
-                        if( newIdx < 0 ) newIdx = -(newIdx + 1);
-//try {
-                        if( newIdx < oldIdx ) {
-//lastCpySrcIdx=newIdx; lastCpyDstIdx=newIdx+1;lastCpyLen=oldIdx-newIdx; didLastCpy = true;
-                            System.arraycopy( medianChanBuf, newIdx, medianChanBuf, newIdx + 1, oldIdx - newIdx );
-                        } else if( newIdx > oldIdx ) {
-                            newIdx--;
-//lastCpySrcIdx=oldIdx+1; lastCpyDstIdx=oldIdx;lastCpyLen=newIdx-oldIdx; didLastCpy = true;
-                            System.arraycopy( medianChanBuf, oldIdx + 1, medianChanBuf, oldIdx, newIdx - oldIdx );
+                        if( lower.contains( histoChanIdx )) {
+                            lower.remove( histoChanIdx );
+                        } else {
+                            upper.remove( histoChanIdx );
                         }
-//						else didLastCpy = false; 
-                        medianChanBuf[ newIdx ] = val;
-
-//lastOldIdx = oldIdx; lastNewIdx = newIdx;
-
-//}
-//catch( ArrayIndexOutOfBoundsException e1 ) {
-//	System.out.println( "ch = " + ch + "; oldIdx = " + oldIdx + "; newIdx = " + newIdx + "; winSize = " + winSize );
-//	throw e1;
-//}
-                        outChanBuf[ j ] = medianChanBuf[ winSizeH ];
                     } else {	// buffer still in the process of filling up
-                        int newIdx = binarySearch( medianChanBuf, val, 0, medianChanNum - 1 );
-                        if( newIdx < 0 ) newIdx = -(newIdx + 1);
-//						System.out.println( "ch = " + ch + "; newIdx = " + newIdx + "; medianChanNum = " + medianChanNum + "; winSize = " + winSize );
-                        System.arraycopy( medianChanBuf, newIdx, medianChanBuf, newIdx + 1, medianChanNum - newIdx );
-                        medianChanBuf[ newIdx ] = val;
                         medianChanNum++;
-                        outChanBuf[ j ] = medianChanBuf[ medianChanNum >> 1 ];
+                    }
+                    histoChanBuf[ histoChanIdx ] = val;
+                    if( (lower.size > 0) && (val > lower.top()) ) {
+                        upper.add( histoChanIdx );
+                    } else {
+                        lower.add( histoChanIdx );
+                    }
+                    histoChanIdx++;
+
+                    // the lower heap holds the (medianChanNum >> 1) + 1 smallest values
+                    final int lowerNum = (medianChanNum >> 1) + 1;
+                    while( lower.size > lowerNum ) {
+                        final int slot = lower.topSlot();
+                        lower.remove( slot );
+                        upper.add( slot );
+                    }
+                    while( lower.size < lowerNum ) {
+                        final int slot = upper.topSlot();
+                        upper.remove( slot );
+                        lower.add( slot );
                     }
 
-                    histoChanBuf[ histoChanIdx++ ] = val;
-//					histoChanIdx = (histoChanIdx + 1) % winSize;
-//boolean failed=false;
-//for( int ii = 0; ii < Math.max( histoChanIdx, medianChanNum ); ii++ ) {
-//	if( binarySearch( medianChanBuf, histoChanBuf[ ii ], 0, medianChanNum - 1 ) < 0 ) {
-//		System.out.println( "TEST FAILED! value " + histoChanBuf[ ii ] + " not found" );
-//		failed=true;
-//	}
-//}
-//if( failed ) {
-//	if( !didLastCpy ) System.out.println( "DIDN'T DO LASTCPY" );
-//	System.out.println( "last copy : from " + lastCpySrcIdx + "; to " + lastCpyDstIdx + "; len = " + lastCpyLen + "; oldIdx = " +lastOldIdx + "; newIdx = " + lastNewIdx + "; oldVal = " + lastOldVal + "; newVal = " + val );
-//}
-
-//					float prev = medianChanBuf[ 0 ];
-//					for( int kk = 1; kk < medianChanNum; kk++ ) {
-//						if( medianChanBuf[ kk ] < prev ) {
-//							System.out.println( "TEST FAILED!" );
-//						}
-//						prev = medianChanBuf[ kk ]; 
-//					}
-                }
-
-                if( ch == channels - 1 ) {
-                    medianNum	= medianChanNum;
-                    histoIdx	= histoChanIdx;
+                    outChanBuf[ j ] = lower.top();
                 }
             } // for channels
+
+            medianNum	= medianChanNum;
+            histoIdx	= histoChanIdx;
         } // process
+
+        /*
+         *	A binary heap of history slots, ordered by their values.
+         */
+        private static final class Heap
+        {
+            private final float[]	values;
+            private final boolean	max;
+            private final int[]		slots;
+            private final int[]		positions;	// per slot, -1 if not in the heap
+            int						size		= 0;
+
+            Heap( float[] values, boolean max )
+            {
+                this.values	= values;
+                this.max	= max;
+                slots		= new int[ values.length ];
+                positions	= new int[ values.length ];
+                Arrays.fill( positions, -1 );
+            }
+
+            boolean contains( int slot )
+            {
+                return positions[ slot ] >= 0;
+            }
+
+            float top()
+            {
+                return values[ slots[ 0 ]];
+            }
+
+            int topSlot()
+            {
+                return slots[ 0 ];
+            }
+
+            void add( int slot )
+            {
+                siftUp( size++, slot );
+            }
+
+            void remove( int slot )
+            {
+                final int i		= positions[ slot ];
+                positions[ slot ] = -1;
+                if( i == --size ) return;
+
+                final int last	= slots[ size ];
+                siftUp( i, last );
+                if( positions[ last ] == i ) siftDown( i, last );
+            }
+
+            // true if slot a belongs above slot b
+            private boolean above( int a, int b )
+            {
+                return max ? values[ a ] > values[ b ] : values[ a ] < values[ b ];
+            }
+
+            // moves the hole at index i up until slot fits in
+            private void siftUp( int i, int slot )
+            {
+                while( i > 0 ) {
+                    final int parent		= (i - 1) >> 1;
+                    final int parentSlot	= slots[ parent ];
+                    if( !above( slot, parentSlot )) break;
+                    slots[ i ]				= parentSlot;
+                    positions[ parentSlot ]	= i;
+                    i						= parent;
+                }
+                slots[ i ]			= slot;
+                positions[ slot ]	= i;
+            }
+
+            // moves the hole at index i down until slot fits in
+            private void siftDown( int i, int slot )
+            {
+                int child;
+                while( (child = (i << 1) + 1) < size ) {
+                    if( (child + 1 < size) && above( slots[ child + 1 ], slots[ child ])) child++;
+                    final int childSlot		= slots[ child ];
+                    if( !above( childSlot, slot )) break;
+                    slots[ i ]				= childSlot;
+                    positions[ childSlot ]	= i;
+                    i						= child;
+                }
+                slots[ i ]			= slot;
+                positions[ slot ]	= i;
+            }
+        } // class Heap
     } // class MedianFilter
 
 // this is about 6 times faster than the original code
@@ -814,6 +888,11 @@ public class Needlehole
      *	this only works if a) process() is
      *	called on successive chunks; b) samples don't exceed +12 dBFS
      *
+     *	the threshold bin is tracked along with the number of
+     *	samples below it, so it only needs to move by the few
+     *	bins which the two histogram changes per sample affect,
+     *	instead of summing up the histogram from the bottom
+     *
      *	@todo	delay compensation stimmt nicht
      */
     private static class CenterClippingFilter
@@ -824,6 +903,8 @@ public class Needlehole
         private final int			winSizeM1;
         private final int[][]		histogram;
         private final int			threshSum;
+        private final int[]			threshIdx;		// per channel, the clipping bin
+        private final int[]			belowSum;		// per channel, number of samples in the bins below threshIdx
         private boolean	init		= false;
 
         private static final int	HISTOSIZE		= 16384;
@@ -839,6 +920,8 @@ public class Needlehole
             winSizeM1		= winSize - 1;
             histogram		= new int[ channels ][ HISTOSIZE ];
             threshSum		= (int) (threshAmp * winSize + 0.5);
+            threshIdx		= new int[ channels ];
+            belowSum		= new int[ channels ];
         }
 
         public void process( float[][] inBuf, float[][] outBuf, int inOff, int outOff, int len )
@@ -846,10 +929,12 @@ public class Needlehole
         {
             float[]		convBuf2, convBuf3;
             int[]		convBuf4;
-            int			histoIdx, histoSum;
+            int			histoIdx, histoSum, threshChanIdx;
             float		f1, clip;
 
             for( int ch = 0; ch < channels; ch++ ) {
+                threshChanIdx	= threshIdx[ ch ];
+                histoSum		= belowSum[ ch ];
                 convBuf4	= histogram[ ch ];
                 convBuf2	= inBuf[ ch ];
                 convBuf3	= outBuf[ ch ];
@@ -878,12 +963,17 @@ public class Needlehole
                     histoIdx	= (int) (Math.sqrt( Math.min( 1.0f, Math.abs( f1 / 4))) * HISTOSIZEM05);
 //					histoIdx	= 8191 - (int) (Math.log( Math.max( 4.656613e-10, Math.min( 1.0f, Math.abs( f1 / 4)))) * -381.2437);
                     convBuf4[ histoIdx ]++;
+                    if( histoIdx < threshChanIdx ) histoSum++;
 
-                    // find thresh
-                    for( histoIdx = 0, histoSum = 0; histoIdx < HISTOSIZEH && histoSum < threshSum; histoIdx++ ) {
-                        histoSum += convBuf4[ histoIdx ];
+                    // find thresh : the lowest bin with at least threshSum samples
+                    // below it, or HISTOSIZEH if there is no such bin
+                    while( threshChanIdx < HISTOSIZEH && histoSum < threshSum ) {
+                        histoSum += convBuf4[ threshChanIdx++ ];
+                    }
+                    while( threshChanIdx > 0 && histoSum - convBuf4[ threshChanIdx - 1 ] >= threshSum ) {
+                        histoSum -= convBuf4[ --threshChanIdx ];
                     }
-                    clip	= (float) histoIdx / HISTOSIZEM1;
+                    clip	= (float) threshChanIdx / HISTOSIZEM1;
                     clip	= clip*clip*4;
 //					clip	= (float) (Math.exp( (histoIdx - 8191) / 381.2437 ) * 4);
                     f1		= convBuf2[ m ];
@@ -896,7 +986,10 @@ public class Needlehole
                     histoIdx	= (int) (Math.sqrt( Math.min( 1.0f, Math.abs( f1 / 4))) * HISTOSIZEM05);
 //					histoIdx	= 8191 - (int) (Math.log( Math.max( 4.656613e-10, Math.min( 1.0f, Math.abs( f1 / 4)))) * -381.2437);
                     convBuf4[ histoIdx ]--;
+                    if( histoIdx < threshChanIdx ) histoSum--;
                 }
+                threshIdx[ ch ]	= threshChanIdx;
+                belowSum[ ch ]	= histoSum;
             } // for channels
 
             init = true;
@@ -906,6 +999,8 @@ public class Needlehole
     /*
      *	Verfolgt das tatsaechliche Minimum,
      *	mit nachgeschaltetem DC block filter
+     *
+     *	Uses a monotonic deque like MinimumFilter.
      */
     private static class Minimum2Filter
     extends RunningWindowFilter
@@ -913,6 +1008,7 @@ public class Needlehole
         final int			channels;
         final int			winSizeM1;
         final double[][]	dcMem;
+        private int[]		deque		= new int[ 0 ];
 
         protected Minimum2Filter( int winSize, int channels )
         {
@@ -926,44 +1022,36 @@ public class Needlehole
         public void process( float[][] inBuf, float[][] outBuf, int inOff, int outOff, int len )
         throws IOException
         {
-            int			ch, i, j, k, m, n, minidx;
+            int			ch, j, k, m, n, first, last;
             float[]		convBuf2, convBuf3;
             double[]	convBuf4;
-            float		f1, f2, min;
+            float		f1, min;
             double		d2;
 
             for( ch = 0; ch < channels; ch++ ) {
                 convBuf4	= dcMem[ ch ];
                 convBuf2	= inBuf[ch];
                 convBuf3	= outBuf[ch];
-                minidx		= -1;
-                min			= 0.0f;
-                for( j = 0, m = inOff, n = outOff; j < len; j++, m++, n++ ) {
-                    if( minidx < m ) {	// need to find again
-                        f1		= convBuf2[ m ];
-                        minidx	= m;
-                        for( i = 1, k = m + 1; i < winSize; i++, k++ ) {
-                            f2	= convBuf2[ k ];
-                            if( f2 < f1 ) {
-                                f1		= f2;
-                                minidx	= k;
-                            }
-                        }
-                        min	= f1;
-                    } else {
-                        f1	= convBuf2[ m + winSizeM1 ];
-                        if( f1 < min ) {
-                            min		= f1;
-                            minidx	= m + winSizeM1;
-                        }
-                    }
+                if( deque.length < convBuf2.length ) deque = new int[ convBuf2.length ];
+                first		= 0;
+                last		= 0;
+                for( k = inOff; k < inOff + winSizeM1; k++ ) {
+                    f1		= convBuf2[ k ];
+                    while( (last > first) && (convBuf2[ deque[ last - 1 ]] > f1) ) last--;
+                    deque[ last++ ] = k;
+                }
+                for( j = 0, m = inOff, n = outOff; j < len; j++, m++, n++, k++ ) {
+                    f1		= convBuf2[ k ];
+                    while( (last > first) && (convBuf2[ deque[ last - 1 ]] > f1) ) last--;
+                    deque[ last++ ] = k;
+                    if( deque[ first ] < m ) first++;
+                    min		= convBuf2[ deque[ first ]];
 
                 // ---- remove DC ----
                     d2				= min - convBuf4[ 0 ] + 0.99 * convBuf4[ 1 ];
                     convBuf3[ n ]	= (float) d2;
                     convBuf4[ 0 ]	= min;
                     convBuf4[ 1 ]	= d2;
-                    minidx--;
                 }
             } // for channels
         } // process
@@ -973,70 +1061,139 @@ public class Needlehole
      *	Autokorrelations-Grad: Summe der Koefficienten
      *	fuer alle Verschiebungen 0 ... N-1 (N = window size)
      *	, plus DC block filter
+     *
+     *	The sum of the coefficients is a weighted sum of the squared
+     *	spectrum, so only the spectrum of the window is needed. It is
+     *	updated per sample by a sliding DFT, which costs fftSize / 2
+     *	complex multiplications instead of a forward and an inverse FFT.
+     *	Every winSize samples, the spectrum is computed again by a
+     *	regular FFT to keep rounding errors from accumulating. Since the
+     *	sliding DFT works in double precision, the output differs from
+     *	transforming each window only by the rounding error of the latter,
+     *	which is about 1.0e-7 for full scale input.
      */
     private static class AutoCorrelationFilter
     extends RunningWindowFilter
     {
-        final int			winSizeM2;
+        final int			winSizeM1;
         final int			channels;
         final double[][]	dcMem;
         final float[]		fftBuf;
         final int			fftSize;
-        final int			fftSizeP2;
+        final int			numBins;
+        final double[]		weights;	// per bin, contribution of its squared magnitude to the sum
+        final double[]		rotRe, rotIm;	// per bin, phase shift by one sample
+        final double[]		newRe, newIm;	// per bin, phase of the new last window sample
+        final double[]		specRe, specIm;
+        final float			imSign;
 
         protected AutoCorrelationFilter( int winSize, int channels )
         {
             super( winSize );
 
+            final int winSizeM2	= winSize << 1;
+            double    phi;
+
             this.channels   = channels;
-            winSizeM2		= winSize << 1;
+            winSizeM1		= winSize - 1;
             fftSize			= MathUtil.nextPowerOfTwo( winSizeM2 );
-            fftSizeP2		= fftSize + 2;
-            fftBuf			= new float[ fftSizeP2 ];
+            numBins			= (fftSize >> 1) + 1;
+            fftBuf			= new float[ fftSize + 2 ];
             dcMem			= new double[channels][2];
+            weights			= new double[ numBins ];
+            rotRe			= new double[ numBins ];
+            rotIm			= new double[ numBins ];
+            newRe			= new double[ numBins ];
+            newIm			= new double[ numBins ];
+            specRe			= new double[ numBins ];
+            specIm			= new double[ numBins ];
+
+            // the inverse transform yields the mean over all bins of the
+            // spectrum times the cosine basis, where each bin except DC and
+            // nyquist appears twice. the coefficients 0 ... 2N-1 are summed,
+            // hence the weights are the sums of the basis over those.
+            // the nyquist bin alternates and sums up to zero.
+            weights[ 0 ] = (double) winSizeM2 / fftSize;
+            for( int k = 1; k < numBins - 1; k++ ) {
+                phi			= Math.PI * 2 * k / fftSize;
+                weights[ k ]= 2.0 / fftSize * Math.sin( winSize * phi ) * Math.cos( (winSizeM2 - 1) * phi / 2 ) /
+                              Math.sin( phi / 2 );
+            }
+            for( int k = 0; k < numBins; k++ ) {
+                phi			= Math.PI * 2 * k / fftSize;
+                rotRe[ k ]	= Math.cos( phi );
+                rotIm[ k ]	= Math.sin( phi );
+                newRe[ k ]	= Math.cos( phi * winSize );
+                newIm[ k ]	= -Math.sin( phi * winSize );
+            }
+
+            // the sliding DFT uses exp( -i phi n ); find out the sign convention of the FFT
+            fftBuf[ 1 ]		= 1.0f;
+            Fourier.realTransform( fftBuf, fftSize, Fourier.FORWARD );
+            imSign			= fftBuf[ 3 ] < 0.0f ? 1.0f : -1.0f;
         }
 
         public void process( float[][] inBuf, float[][] outBuf, int inOff, int outOff, int len )
         throws IOException
         {
-            int			ch, j, k, m, n;
+            int			ch, j, k, m, n, renorm, numNonZero;
             float[]		convBuf2, convBuf3;
             double[]	convBuf4;
-            float		f1;
-            double		d1, d2;
+            float		f1, f2;
+            double		d1, d2, re, im, sumSq;
 
             for( ch = 0; ch < channels; ch++ ) {
                 convBuf4	= dcMem[ ch ];
                 convBuf2	= inBuf[ch];
                 convBuf3	= outBuf[ch];
+                renorm		= 0;
+                numNonZero	= 0;
+                sumSq		= 0.0;
                 for( j = 0, m = inOff, n = outOff; j < len; j++, m++, n++ ) {
-                    System.arraycopy( convBuf2, m, fftBuf, 0, winSize );
-                    // calc rms
-                    d2 = 0.0;
-                    d1 = 0.0;
-                    for( k = 0; k < winSize; k++ ) {
-                        f1	= fftBuf[ k ];
-                        d2 += f1 * f1;
-                    }
-                    d2	= Math.sqrt( d2 / winSize );
-                    if( d2 > 0.0 ) {
+                    if( renorm == 0 ) {		// full window spectrum
+                        System.arraycopy( convBuf2, m, fftBuf, 0, winSize );
+                        numNonZero	= 0;
+                        sumSq		= 0.0;
+                        for( k = 0; k < winSize; k++ ) {
+                            f1	= fftBuf[ k ];
+                            if( f1 != 0.0f ) numNonZero++;
+                            sumSq += f1 * f1;
+                        }
                         // zero padding
                         for( ; k < fftSize; k++ ) {
                             fftBuf[ k ] = 0.0f;
                         }
                         Fourier.realTransform( fftBuf, fftSize, Fourier.FORWARD );
-                        // autokorrelation: square amplitudes, zero phases
-                        for( k = 0; k < fftSizeP2; ) {
-                            f1				= fftBuf[ k ] / winSize;
-                            fftBuf[ k++ ]	= f1 * f1;
-                            fftBuf[ k++ ]	= 0.0f;
+                        for( k = 0; k < numBins; k++ ) {
+                            specRe[ k ]	= fftBuf[ k << 1 ];
+                            specIm[ k ]	= imSign * fftBuf[ (k << 1) + 1 ];
                         }
-                        Fourier.realTransform( fftBuf, fftSize, Fourier.INVERSE );
-                        // sum coefficients
-                        for( k = 0; k < winSizeM2; k++ ) {
-                            d1 += fftBuf[ k ];
+                        renorm	= winSize;
+                    } else {				// remove obsolete sample and add new last window sample
+                        f1		= convBuf2[ m - 1 ];
+                        f2		= convBuf2[ m + winSizeM1 ];
+                        if( f1 != 0.0f ) numNonZero--;
+                        if( f2 != 0.0f ) numNonZero++;
+                        sumSq  += f2 * f2 - f1 * f1;
+                        for( k = 0; k < numBins; k++ ) {
+                            re			= specRe[ k ] - f1 + f2 * newRe[ k ];
+                            im			= specIm[ k ] + f2 * newIm[ k ];
+                            specRe[ k ]	= re * rotRe[ k ] - im * rotIm[ k ];
+                            specIm[ k ]	= re * rotIm[ k ] + im * rotRe[ k ];
+                        }
+                    }
+                    renorm--;
+
+                    // calc rms
+                    d1 = 0.0;
+                    d2 = numNonZero > 0 ? Math.sqrt( Math.max( 0.0, sumSq ) / winSize ) : 0.0;
+                    if( d2 > 0.0 ) {
+                        // autokorrelation: square amplitudes, zero phases, sum coefficients
+                        for( k = 0; k < numBins; k++ ) {
+                            re	= specRe[ k ];
+                            d1 += weights[ k ] * re * re;
                         }
-                        d1 /= d2;
+                        d1 /= (double) winSize * winSize * d2;
                     }
 
                 // ---- remove DC ----
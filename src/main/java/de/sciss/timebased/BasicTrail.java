@@ -19,6 +19,7 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.ConcurrentModificationException;
 import java.util.Enumeration;
+import java.util.Iterator;
 import java.util.List;
 import javax.swing.tree.TreeNode;
 import javax.swing.undo.UndoableEdit;
@@ -40,11 +41,12 @@ public abstract class BasicTrail
     protected static final Comparator<Object> stopComparator	= new StopComparator();
 //	private static final List	collEmpty			= new ArrayList( 1 );
 
-    private final List<Stake> collStakesByStart	= new ArrayList<Stake>();	// sorted using StartComparator
-    private final List<Stake> collStakesByStop	= new ArrayList<Stake>();	// sorted using StopComparator
+    private final StakeViews views				= new StakeViews(this);
+    private final StakeTree collStakesByStart	= new StakeTree(true , views);	// sorted using StartComparator
+    private final StakeTree collStakesByStop	= new StakeTree(false, views);	// sorted using StopComparator
 
-    private List<Stake>				collEditByStart		= null;
-    private List<Stake>				collEditByStop		= null;
+    private StakeTree				collEditByStart		= null;
+    private StakeTree				collEditByStop		= null;
     private AbstractCompoundEdit	currentEdit			= null;
 
     private double						rate;
@@ -89,13 +91,12 @@ public abstract class BasicTrail
     }
 
     protected void clearIgnoreDependants() {
-        Stake stake;
-
-        while (!collStakesByStart.isEmpty()) {
-            stake = collStakesByStart.remove(0);
+        for (Stake stake : collStakesByStart) {
 //			stake.setTrail( null );
             stake.dispose();
+            views.forget(stake);
         }
+        collStakesByStart.clear();
         collStakesByStop.clear();
     }
 
@@ -119,21 +120,39 @@ public abstract class BasicTrail
 
         collStakesByStart.clear();
         collStakesByStop .clear();
+        views.clear();
     }
 
     protected List<Stake> editGetCollByStart(AbstractCompoundEdit ce) {
-        if ((ce == null) || (collEditByStart == null)) {
-            return collStakesByStart;
+        return editGetTree(true, ce);
+    }
+
+    protected List<Stake> editGetCollByStop(AbstractCompoundEdit ce) {
+        return editGetTree(false, ce);
+    }
+
+    private StakeTree editGetTree(boolean byStart, AbstractCompoundEdit ce) {
+        if (byStart) {
+            return ((ce == null) || (collEditByStart == null)) ? collStakesByStart : collEditByStart;
         } else {
-            return collEditByStart;
+            return ((ce == null) || (collEditByStop  == null)) ? collStakesByStop  : collEditByStop;
         }
     }
 
-    protected List<Stake> editGetCollByStop(AbstractCompoundEdit ce) {
-        if ((ce == null) || (collEditByStop == null)) {
-            return collStakesByStop;
+    /**
+     *	Looks up a position in a list of stakes, with the same
+     *	return value convention as <code>Collections.binarySearch</code>.
+     *	Lists obtained from <code>editGetCollByStart</code> or
+     *	<code>editGetCollByStop</code> are searched in O(log n).
+     *
+     *	@param	coll	a list sorted by start (if <code>byStart</code> is <code>true</code>)
+     *					or by stop
+     */
+    protected static int binarySearch(List<Stake> coll, long pos, boolean byStart) {
+        if (coll instanceof StakeTree) {
+            return ((StakeTree) coll).search(pos);
         } else {
-            return collEditByStop;
+            return Collections.binarySearch(coll, pos, byStart ? startComparator : stopComparator);
         }
     }
 
@@ -148,13 +167,13 @@ public abstract class BasicTrail
     private long editGetStart(AbstractCompoundEdit ce) {
         final List<Stake> coll = editGetCollByStart(ce);
 
-        return (coll.isEmpty() ? 0 : coll.get(0).getSpan().start);
+        return (coll.isEmpty() ? 0 : ((StakeTree) coll).getKey(0));
     }
 
     private long editGetStop(AbstractCompoundEdit ce) {
         final List<Stake> coll = editGetCollByStop(ce);
 
-        return (coll.isEmpty() ? 0 : coll.get(coll.size() - 1).getSpan().stop);
+        return (coll.isEmpty() ? 0 : ((StakeTree) coll).getKey(coll.size() - 1));
     }
 
     public void editBegin(AbstractCompoundEdit ce) {
@@ -162,8 +181,8 @@ public abstract class BasicTrail
             throw new ConcurrentModificationException("Concurrent editing");
         }
         currentEdit = ce;
-        collEditByStart = null;        // dispose ? XXXX
-        collEditByStop = null;        // dispose ? XXXX
+        collEditByStart = null;        // shares its nodes with collStakesByStart, nothing to dispose
+        collEditByStop = null;
 
         // ____ dep ____
         if (dependants != null) {
@@ -177,8 +196,8 @@ public abstract class BasicTrail
     {
         checkEdit( ce );
         currentEdit		= null;
-        collEditByStart	= null;		// dispose ? XXXX
-        collEditByStop	= null;		// dispose ? XXXX
+        collEditByStart	= null;		// shares its nodes with collStakesByStart, nothing to dispose
+        collEditByStop	= null;
 
         // ____ dep ____
         if( dependants != null ) {
@@ -200,11 +219,13 @@ public abstract class BasicTrail
         }
     }
 
+    // the copies share their nodes with the original lists, so this takes O(1) ;
+    // subsequent modifications of either list copy the affected paths only
     private void ensureEditCopy()
     {
         if (collEditByStart == null) {
-            collEditByStart = new ArrayList<Stake>(collStakesByStart);
-            collEditByStop  = new ArrayList<Stake>(collStakesByStop );
+            collEditByStart = new StakeTree(collStakesByStart);
+            collEditByStop  = new StakeTree(collStakesByStop );
         }
     }
 
@@ -215,59 +236,13 @@ public abstract class BasicTrail
 
     // returns stakes that intersect OR TOUCH the span
     public List<Stake> editGetRange(Span span, boolean byStart, AbstractCompoundEdit ce) {
-        final List<Stake> collByStart, collByStop;
-        List<Stake> collResult;
-        int idx;
-
-        if (ce == null) {
-            collByStart = collStakesByStart;
-            collByStop  = collStakesByStop;
-        } else {
-            checkEdit(ce);
-            collByStart = collEditByStart == null ? collStakesByStart : collEditByStart;
-            collByStop  = collEditByStop  == null ? collStakesByStop  : collEditByStop;
-        }
-
-        if (byStart) {
-            idx = Collections.binarySearch(collByStop, span.start, stopComparator);
-            if (idx < 0) {
-                idx = -(idx + 1);
-            } else {
-                // "If the list contains multiple elements equal to the specified object,
-                //  there is no guarantee which one will be found"
-                idx = getLeftMostIndex(collByStop, idx, false);
-            }
-            collResult = new ArrayList<Stake>(collByStop.subList(idx, collByStop.size()));
-
-            Collections.sort( collResult, startComparator );
-
-            idx = Collections.binarySearch(collResult, span.stop, startComparator);
-            if (idx < 0) {
-                idx = -(idx + 1);
-            } else {
-                idx = getRightMostIndex(collResult, idx, true) + 1;
-            }
-            collResult = collResult.subList(0, idx);
-
-        } else {
-            idx = Collections.binarySearch(collByStart, span.stop, startComparator);
-            if (idx < 0) {
-                idx = -(idx + 1);
-            } else {
-                idx = getRightMostIndex(collByStart, idx, true) + 1;
-            }
-            collResult = new ArrayList<Stake>(collByStart.subList(0, idx));
+        final List<Stake> collResult = new ArrayList<Stake>();
 
-            Collections.sort(collResult, stopComparator);
+        if (ce != null) checkEdit(ce);
 
-            idx = Collections.binarySearch(collResult, span.start, stopComparator);
-            if (idx < 0) {
-                idx = -(idx + 1);
-            } else {
-                idx = getLeftMostIndex(collResult, idx, false);
-            }
-            collResult = collResult.subList(idx, collResult.size());
-        }
+        // the trees are augmented with the maximum stop resp. minimum start
+        // of each sub tree, so only the matching stakes are visited
+        editGetTree(byStart, ce).getRange(span.start, span.stop, collResult);
 
         return collResult;
     }
@@ -284,6 +259,13 @@ public abstract class BasicTrail
         editInsert(source, span, getDefaultTouchMode(), ce);
     }
 
+    /**
+     *	Inserts a time span into the trail. Stakes that begin at or after the
+     *	insertion point are shifted to the right by <code>span.getLength()</code>.
+     *	For <code>TOUCH_NONE</code> and <code>TOUCH_SPLIT</code>, this shift is done lazily
+     *	on the whole tail of the trail and takes O(log n) regardless of the
+     *	number of stakes that follow the insertion point.
+     */
     public void editInsert(Object source, Span span, int touchMode, AbstractCompoundEdit ce) {
         final long start = span.start;
 //		final long	stop			= span.stop;
@@ -292,48 +274,43 @@ public abstract class BasicTrail
 
         if ((delta == 0) || (start > totStop)) return;
 
-        final List<Stake> collRange = editGetRange(new Span(start, totStop), true, ce);
-
-        if (collRange.isEmpty()) return;
-
         final List<Stake> collToAdd = new ArrayList<Stake>();
         final List<Stake> collToRemove = new ArrayList<Stake>();
         final Span modSpan;
         Span stakeSpan;
+        boolean shiftTail = true;
 
         switch (touchMode) {
             case TOUCH_NONE:
-                // XXX could use binarySearch ?
-                for (Stake stake : collRange) {
-                    stakeSpan = stake.getSpan();
-                    if (stakeSpan.start >= start) {
-                        collToRemove.add(stake);
-                        collToAdd.add(stake.shiftVirtual(delta));
-                    }
-                }
+                // all stakes with start >= insertion point are shifted
                 break;
 
             case TOUCH_SPLIT:
-                for (Stake stake : collRange) {
+                // all stakes with start >= insertion point are shifted, except for zero length stakes
+                // at the insertion point ; stakes crossing the insertion point are split
+                for (Stake stake : editGetRange(new Span(start, start), true, ce)) {
                     stakeSpan = stake.getSpan();
-                    if (stakeSpan.stop <= start) continue;
+                    if (stakeSpan.stop <= start) {
+                        if (stakeSpan.start == start) {        // zero length, remains in place
+                            collToRemove.add(stake);
+                            collToAdd.add(stake.duplicate());
+                        }
+                        continue;
+                    }
+                    if (stakeSpan.start >= start) continue;    // part of the shifted tail
 
                     collToRemove.add(stake);
-
-                    if (stakeSpan.start >= start) {            // not splitted
-                        collToAdd.add(stake.shiftVirtual(delta));
-                    } else {
-                        collToAdd.add(stake.replaceStop(start));
-                        stake = stake.replaceStart(start);
-                        collToAdd.add(stake.shiftVirtual(delta));
-                        stake.dispose();                        // delete temp product
-                    }
+                    collToAdd.add(stake.replaceStop(start));
+                    stake = stake.replaceStart(start);
+                    collToAdd.add(stake.shiftVirtual(delta));
+                    stake.dispose();                            // delete temp product
                 }
                 break;
 
             case TOUCH_RESIZE:
                 System.err.println("BasicTrail.insert, touchmode resize : not tested");
-                for (Stake stake : collRange) {
+                shiftTail = false;
+                for (Stake stake : editGetRange(new Span(start, totStop), true, ce)) {
                     stakeSpan = stake.getSpan();
                     if (stakeSpan.stop > start) {
                         collToRemove.add(stake);
@@ -351,7 +328,8 @@ public abstract class BasicTrail
                 throw new IllegalArgumentException("TouchMode : " + touchMode);
         }
 
-        modSpan = Span.union(removeAllPr(collToRemove, ce), addAllPr(collToAdd, ce));
+        modSpan = Span.union(Span.union(removeAllPr(collToRemove, ce),
+                shiftTail ? shiftPr(start, delta, ce) : null), addAllPr(collToAdd, ce));
 
         // ____ dep ____
         if (dependants != null) {
@@ -421,52 +399,38 @@ public abstract class BasicTrail
 
         if ((delta == 0) || (start > totStop)) return;
 
-        final List<Stake> collRange = editGetRange(new Span(start, totStop), true, ce);
-
-        if (collRange.isEmpty()) return;
-
         final List<Stake> collToAdd = new ArrayList<Stake>();
         final List<Stake> collToRemove = new ArrayList<Stake>();
         final Span modSpan;
         Span stakeSpan;
+        boolean shiftTail = true;
 
+        // stakes with start >= stop are shifted as a whole (see shiftPr),
+        // thus only the stakes intersecting the removed span need to be visited
         switch (touchMode) {
             case TOUCH_NONE:
-                // XXX could use binarySearch ?
-                for (Stake stake : collRange) {
+                for (Stake stake : editGetRange(span, true, ce)) {
                     stakeSpan = stake.getSpan();
-                    if (stakeSpan.start < start) continue;
+                    if ((stakeSpan.start < start) || (stakeSpan.start >= stop)) continue;
 
                     collToRemove.add(stake);
-
-                    if (stakeSpan.start >= stop) {
-                        collToAdd.add(stake.shiftVirtual(delta));
-                    }
                 }
                 break;
 
             case TOUCH_SPLIT:
-                for (Stake stake : collRange) {
+                for (Stake stake : editGetRange(span, true, ce)) {
                     stakeSpan = stake.getSpan();
-                    if (stakeSpan.stop > start) {
+                    if ((stakeSpan.stop > start) && (stakeSpan.start < stop)) {
 
                         collToRemove.add(stake);
 
-                        if (stakeSpan.start >= start) {            // start portion not splitted
-                            if (stakeSpan.start >= stop) {            // just shifted
-                                collToAdd.add(stake.shiftVirtual(delta));
-                            } else if (stakeSpan.stop > stop) {    // stop portion splitted (otherwise completely removed!)
-                                stake = stake.replaceStart(stop);
-                                collToAdd.add(stake.shiftVirtual(delta));
-                                stake.dispose();                    // delete temp product
-                            }
-                        } else {
+                        if (stakeSpan.start < start) {
                             collToAdd.add(stake.replaceStop(start));    // start portion splitted
-                            if (stakeSpan.stop > stop) {            // stop portion splitted
-                                stake = stake.replaceStart(stop);
-                                collToAdd.add(stake.shiftVirtual(delta));
-                                stake.dispose();                    // delete temp product
-                            }
+                        }
+                        if (stakeSpan.stop > stop) {                // stop portion splitted
+                            stake = stake.replaceStart(stop);
+                            collToAdd.add(stake.shiftVirtual(delta));
+                            stake.dispose();                        // delete temp product
                         }
                     }
                 }
@@ -474,7 +438,8 @@ public abstract class BasicTrail
 
             case TOUCH_RESIZE:
                 System.err.println("BasicTrail.remove, touchmode resize : not tested");
-                for (Stake stake : collRange) {
+                shiftTail = false;
+                for (Stake stake : editGetRange(new Span(start, totStop), true, ce)) {
                     stakeSpan = stake.getSpan();
                     if (stakeSpan.stop > start) {
 
@@ -513,7 +478,8 @@ public abstract class BasicTrail
                 System.err.println("  span " + ((Stake) aCollToAdd).getSpan());
             }
         }
-        modSpan = Span.union(removeAllPr(collToRemove, ce), addAllPr(collToAdd, ce));
+        modSpan = Span.union(Span.union(removeAllPr(collToRemove, ce),
+                shiftTail ? shiftPr(stop, delta, ce) : null), addAllPr(collToAdd, ce));
 
         // ____ dep ____
         if (dependants != null) {
@@ -524,7 +490,7 @@ public abstract class BasicTrail
             }
         }
 
-        if ((source != null) && !(collToRemove.isEmpty() && collToAdd.isEmpty())) {
+        if ((source != null) && (modSpan != null)) {
             if (ce != null) {
                 ce.addPerform(new Edit(this, modSpan));
             } else {
@@ -762,31 +728,22 @@ public abstract class BasicTrail
     }
 
     public int editIndexOf(Stake stake, boolean byStart, AbstractCompoundEdit ce) {
-        final List<Stake> coll;
-        final Comparator<Object> comp = byStart ? startComparator : stopComparator;
+        final StakeTree coll;
+        final long pos = byStart ? stake.getSpan().start : stake.getSpan().stop;
         final int idx;
 
-        if (ce == null) {
-            coll = byStart ? collStakesByStart : collStakesByStop;
-        } else {
-            checkEdit(ce);
-            coll = byStart ? (collEditByStart == null ? collStakesByStart : collEditByStart) :
-                    (collEditByStop == null ? collStakesByStop : collEditByStop);
-        }
+        if (ce != null) checkEdit(ce);
+        coll = editGetTree(byStart, ce);
 
-        // "If the list contains multiple elements equal to the specified object,
-        //  there is no guarantee which one will be found"
-        idx = Collections.binarySearch(coll, stake, comp);
+        // search returns the first of the stakes sharing the position
+        idx = coll.search(pos);
         if (idx >= 0) {
-            Stake stake2 = coll.get(idx);
-            if (stake2.equals(stake)) return idx;
-            for (int idx2 = idx - 1; idx2 >= 0; idx2--) {
-                stake2 = coll.get(idx2);
-                if (stake2.equals(stake)) return idx2;
-            }
-            for (int idx2 = idx + 1; idx2 < coll.size(); idx2++) {
-                stake2 = coll.get(idx2);
+            final Iterator<Stake> iter = coll.iterator(idx);
+            Stake stake2;
+            for (int idx2 = idx; iter.hasNext(); idx2++) {
+                stake2 = iter.next();
                 if (stake2.equals(stake)) return idx2;
+                if ((byStart ? stake2.getSpan().start : stake2.getSpan().stop) != pos) break;
             }
         }
         return idx;
@@ -797,11 +754,7 @@ public abstract class BasicTrail
     }
 
     public int editIndexOf(long pos, boolean byStart, AbstractCompoundEdit ce) {
-        if (byStart) {
-            return Collections.binarySearch(editGetCollByStart(ce), pos, startComparator);
-        } else {
-            return Collections.binarySearch(editGetCollByStop(ce), pos, stopComparator);
-        }
+        return editGetTree(byStart, ce).search(pos);
     }
 
     public Stake editGetLeftMost(int idx, boolean byStart, AbstractCompoundEdit ce) {
@@ -810,88 +763,42 @@ public abstract class BasicTrail
             if (idx < 0) return null;
         }
 
-        final List<Stake> coll = byStart ? editGetCollByStart(ce) : editGetCollByStop(ce);
-        Stake lastStake = coll.get(idx);
-        final long pos = byStart ? lastStake.getSpan().start : lastStake.getSpan().stop;
-        Stake nextStake;
-
-        while (idx > 0) {
-            nextStake = coll.get(--idx);
-            if ((byStart ? nextStake.getSpan().start : nextStake.getSpan().stop) != pos) break;
-            lastStake = nextStake;
-        }
-
-        return lastStake;
+        final StakeTree coll = editGetTree(byStart, ce);
+        return coll.get(getLeftMostIndex(coll, idx, byStart));
     }
 
     public Stake editGetRightMost(int idx, boolean byStart, AbstractCompoundEdit ce) {
-        final List<Stake> coll = byStart ? editGetCollByStart(ce) : editGetCollByStop(ce);
-        final int sizeM1 = coll.size() - 1;
-
-        if (idx < 0) {
-            idx = -(idx + 1);
-            if (idx > sizeM1) return null;
-        }
-
-        Stake lastStake = coll.get(idx);
-        final long pos = byStart ? lastStake.getSpan().start : lastStake.getSpan().stop;
-        Stake nextStake;
-
-        while (idx < sizeM1) {
-            nextStake = coll.get(++idx);
-            if ((byStart ? nextStake.getSpan().start : nextStake.getSpan().stop) != pos) break;
-            lastStake = nextStake;
-        }
-
-        return lastStake;
+        final StakeTree coll = editGetTree(byStart, ce);
+        idx = getRightMostIndex(coll, idx, byStart);
+        return idx < 0 ? null : coll.get(idx);
     }
 
     public int editGetLeftMostIndex(int idx, boolean byStart, AbstractCompoundEdit ce) {
-        final List<Stake> coll = byStart ? editGetCollByStart(ce) : editGetCollByStop(ce);
-        return getLeftMostIndex(coll, idx, byStart);
+        return getLeftMostIndex(editGetTree(byStart, ce), idx, byStart);
     }
 
-    private int getLeftMostIndex(List<Stake> coll, int idx, boolean byStart) {
+    private int getLeftMostIndex(StakeTree coll, int idx, boolean byStart) {
         if (idx < 0) {
             idx = -(idx + 2);
             if (idx < 0) return -1;
         }
 
-        Stake stake = coll.get(idx);
-        final long pos = byStart ? stake.getSpan().start : stake.getSpan().stop;
-
-        while (idx > 0) {
-            stake = coll.get(idx - 1);
-            if ((byStart ? stake.getSpan().start : stake.getSpan().stop) != pos) break;
-            idx--;
-        }
-
-        return idx;
+        final Stake stake = coll.get(idx);
+        return coll.lowerBound(byStart ? stake.getSpan().start : stake.getSpan().stop);
     }
 
     public int editGetRightMostIndex_(int idx, boolean byStart, AbstractCompoundEdit ce) {
-        final List<Stake> coll = byStart ? editGetCollByStart(ce) : editGetCollByStop(ce);
-        return getRightMostIndex(coll, idx, byStart);
+        return getRightMostIndex(editGetTree(byStart, ce), idx, byStart);
     }
 
-    private int getRightMostIndex(List<Stake> coll, int idx, boolean byStart) {
-        final int sizeM1 = coll.size() - 1;
-
+    private int getRightMostIndex(StakeTree coll, int idx, boolean byStart) {
         if (idx < 0) {
             idx = -(idx + 1);
-            if (idx > sizeM1) return -1;
+            if (idx >= coll.size()) return -1;
         }
 
-        Stake stake = coll.get(idx);
-        final long pos = byStart ? stake.getSpan().start : stake.getSpan().stop;
-
-        while (idx < sizeM1) {
-            stake = coll.get(idx + 1);
-            if ((byStart ? stake.getSpan().start : stake.getSpan().stop) != pos) break;
-            idx++;
-        }
-
-        return idx;
+        final Stake stake = coll.get(idx);
+        return coll.upperBound(byStart ? stake.getSpan().start : stake.getSpan().stop) - 1;
     }
 
     public List<Stake> getAll(boolean byStart) {
@@ -900,8 +807,14 @@ public abstract class BasicTrail
     }
 
     public List<Stake> getAll(int startIdx, int stopIdx, boolean byStart) {
-        final List<Stake> coll = byStart ? collStakesByStart : collStakesByStop;
-        return new ArrayList<Stake>(coll.subList(startIdx, stopIdx));
+        final StakeTree coll = byStart ? collStakesByStart : collStakesByStop;
+        if (stopIdx > coll.size()) throw new IndexOutOfBoundsException(String.valueOf(stopIdx));
+        if (startIdx > stopIdx) throw new IllegalArgumentException(startIdx + " > " + stopIdx);
+
+        final List<Stake> result = new ArrayList<Stake>(stopIdx - startIdx);
+        final Iterator<Stake> iter = coll.iterator(startIdx);
+        for (int i = startIdx; i < stopIdx; i++) result.add(iter.next());
+        return result;
     }
 
     public void add(Object source, Stake stake)
@@ -1036,7 +949,10 @@ public abstract class BasicTrail
             sortRemoveStake(stake, ce);
             start = Math.min(start, stake.getSpan().start);
             stop = Math.max(stop, stake.getSpan().stop);
-            if (ce == null) stake.dispose();
+            if (ce == null) {
+                stake.dispose();
+                views.forget(stake);
+            }
         }
         span		= new Span( start, stop );
         if( ce != null ) ce.addPerform( new Edit( this, stakes, span, EDIT_REMOVE ));
@@ -1044,6 +960,66 @@ public abstract class BasicTrail
         return span;
     }
 
+    /*
+     *	Shifts all stakes with start >= pos by delta. If these stakes form the
+     *	tails of both the start and the stop sorted list, and remain sorted
+     *	after the shift, the tails are shifted lazily in O(log n) and recorded
+     *	as a single edit. Otherwise (e.g. overlapping stakes crossing pos),
+     *	the stakes are replaced one by one with shifted copies.
+     */
+    private Span shiftPr(long pos, long delta, AbstractCompoundEdit ce) {
+        final StakeTree collByStart, collByStop;
+
+        if (ce == null) {
+            collByStart = collStakesByStart;
+            collByStop  = collStakesByStop;
+        } else {
+            ensureEditCopy();
+            collByStart = collEditByStart;
+            collByStop  = collEditByStop;
+        }
+
+        final int num           = collByStart.size();
+        final int idxStart      = collByStart.lowerBound(pos);
+        final int numShift      = num - idxStart;
+        if (numShift == 0) return null;
+        final int idxStop       = num - numShift;
+        final long firstStart   = collByStart.getKey(idxStart);
+
+        if ((collByStop.getTailBound(idxStop) >= pos) &&    // i.e. both tails hold the same stakes
+            ((idxStart == 0) || (collByStart.getKey(idxStart - 1) <= firstStart + delta)) &&
+            ((idxStop  == 0) || (collByStop .getKey(idxStop  - 1) <= collByStop.getKey(idxStop) + delta))) {
+
+            final long lastStop = collByStop.getKey(num - 1);
+            final Span span     = new Span(Math.min(firstStart, firstStart + delta), Math.max(lastStop, lastStop + delta));
+
+            collByStart.shiftTail(idxStart, delta);
+            collByStop .shiftTail(idxStop , delta);
+            if (ce != null) ce.addPerform(new Edit(this, numShift, delta, span));
+
+            return span;
+
+        } else {
+            final List<Stake> collToRemove  = new ArrayList<Stake>(numShift);
+            final List<Stake> collToAdd     = new ArrayList<Stake>(numShift);
+            final Iterator<Stake> iter      = collByStart.iterator(idxStart);
+            Stake stake;
+
+            while (iter.hasNext()) {
+                stake = iter.next();
+                collToRemove.add(stake);
+                collToAdd.add(stake.shiftVirtual(delta));
+            }
+            return Span.union(removeAllPr(collToRemove, ce), addAllPr(collToAdd, ce));
+        }
+    }
+
+    // applies a lazy shift to the tails of the lists (not the edit copies)
+    private void shiftTail(int numShift, long delta) {
+        collStakesByStart.shiftTail(collStakesByStart.size() - numShift, delta);
+        collStakesByStop .shiftTail(collStakesByStop .size() - numShift, delta);
+    }
+
     public void debugDump() {
         /* empty */
     }
@@ -1080,8 +1056,7 @@ public abstract class BasicTrail
     }
 
     protected void sortAddStake(Stake stake, AbstractCompoundEdit ce) {
-        final List<Stake> collByStart, collByStop;
-        int idx;
+        final StakeTree collByStart, collByStop;
 
         if (ce == null) {
             collByStart = collStakesByStart;
@@ -1092,18 +1067,15 @@ public abstract class BasicTrail
             collByStop  = collEditByStop;
         }
 
-        idx = editIndexOf(stake.getSpan().start, true, ce);    // look for position only!
-        if (idx < 0) idx = -(idx + 1);
-        collByStart.add(idx, stake);
-        idx = editIndexOf(stake.getSpan().stop, false, ce);
-        if (idx < 0) idx = -(idx + 1);
-        collByStop.add(idx, stake);
+        // look for position only! stakes sharing a position keep their order of insertion
+        collByStart.add(collByStart.upperBound(stake.getSpan().start), stake);
+        collByStop .add(collByStop .upperBound(stake.getSpan().stop ), stake);
 
         stake.setTrail(this);    // ???
     }
 
     protected void sortRemoveStake(Stake stake, AbstractCompoundEdit ce) {
-        final List<Stake> collByStart, collByStop;
+        final StakeTree collByStart, collByStop;
         int idx;
 
         if (ce == null) {
@@ -1246,8 +1218,9 @@ public abstract class BasicTrail
     private static final int EDIT_ADD		= 0;
     private static final int EDIT_REMOVE	= 1;
     private static final int EDIT_DISPATCH	= 2;
+    private static final int EDIT_SHIFT		= 3;
 
-    protected static final String[] EDIT_NAMES = { "Add", "Remove", "Dispatch" };
+    protected static final String[] EDIT_NAMES = { "Add", "Remove", "Dispatch", "Shift" };
 
     // @todo	disposal is wrong (leaks?) when edit is not performed (e.g. EDIT_ADD not performed)
     // @todo	dispatch should not be a separate edit but one that is sucked and collapsed through multiple EDIT_ADD / EDIT_REMOVE stages
@@ -1261,11 +1234,25 @@ public abstract class BasicTrail
 //		private boolean					removed;
         private boolean					disposeWhenDying;
         private Span					span;
+        private final int				numShift;
+        private final long				delta;
 
         protected Edit(BasicTrail t, Span span) {
             this(t, null, span, EDIT_DISPATCH, "editChangeTrail");
         }
 
+        // shifts the last numShift stakes by delta
+        protected Edit(BasicTrail t, int numShift, long delta, Span span) {
+            this.stakes     = null;
+            this.cmd        = EDIT_SHIFT;
+            this.key        = "editChangeTrail";
+            this.span       = span;
+            this.trail      = t;
+            this.numShift   = numShift;
+            this.delta      = delta;
+            disposeWhenDying = false;
+        }
+
         protected Edit(BasicTrail t, List<Stake> stakes, Span span, int cmd) {
             this(t, stakes, span, cmd, "editChangeTrail");
         }
@@ -1276,6 +1263,8 @@ public abstract class BasicTrail
             this.key	= key;
             this.span	= span;
             this.trail	= t;
+            numShift	= 0;
+            delta		= 0L;
 //			removed		= false;
             disposeWhenDying = stakes != null;
         }
@@ -1297,6 +1286,7 @@ public abstract class BasicTrail
         private void disposeAll() {
             for (Stake stake : stakes) {
                 stake.dispose();
+                trail.views.forget(stake);
             }
         }
 
@@ -1313,6 +1303,9 @@ public abstract class BasicTrail
                 case EDIT_DISPATCH:
                     trail.dispatchModification(trail, span);
                     break;
+                case EDIT_SHIFT:
+                    trail.shiftTail(numShift, -delta);
+                    break;
                 default:
                     assert false : cmd;
             }
@@ -1334,6 +1327,9 @@ public abstract class BasicTrail
                 case EDIT_DISPATCH:
                     trail.dispatchModification(trail, span);
                     break;
+                case EDIT_SHIFT:
+                    trail.shiftTail(numShift, delta);
+                    break;
                 default:
                     assert false : cmd;
             }
@@ -1376,6 +1372,8 @@ public abstract class BasicTrail
                     case EDIT_DISPATCH:
                         this.span = this.span.union(old.span);
                         break;
+                    case EDIT_SHIFT:
+                        return false;   // the shifted tails differ
                     default:
                         assert false : cmd;
                 }
@@ -0,0 +1,612 @@
+/*
+ *  StakeTree.java
+ *  de.sciss.timebased package
+ *
+ *  Copyright (c) 2004-2020 Hanns Holger Rutz. All rights reserved.
+ *
+ *  This software is published under the GNU Affero General Public License v3+
+ *
+ *
+ *  For further information, please contact Hanns Holger Rutz at
+ *  contact@sciss.de
+ */
+
+package de.sciss.timebased;
+
+import java.util.AbstractList;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+
+/**
+ *	A list of stakes sorted either by their start or by their stop
+ *	position. It is backed by a balanced (AVL) tree whose nodes count
+ *	the size of their sub trees, so positional access, insertion and
+ *	removal take O(log n). Each node furthermore records the maximum stop
+ *	(when sorted by start) resp. the minimum start (when sorted by stop)
+ *	found in its sub tree. This turns the list into an interval tree:
+ *	<code>getRange</code> finds the k stakes touching a span in
+ *	O(log n + k) without copying or re-sorting the list.
+ *	<p>
+ *	Positions are stored relative to the parent node: <code>shiftTail</code>
+ *	moves all stakes from a given index onwards in time by tagging
+ *	O(log n) sub trees. A node keeps its original stake along with the
+ *	accumulated offset; the shifted stake is only created (through
+ *	<code>StakeViews</code>) when it is actually read from the list.
+ *	<p>
+ *	Copies of a list share their nodes with the original. A node is
+ *	only modified by the list that owns it; any other list first
+ *	copies the node (and thus the path from the root to it). Copying
+ *	a list therefore takes constant time, and each subsequent change
+ *	allocates O(log n) nodes in the list that makes it.
+ *	<p>
+ *	Stakes must not change their span while they are in the list.
+ *	The list does not sort itself; elements are inserted at the index
+ *	given by the caller, usually obtained through <code>upperBound</code>.
+ */
+class StakeTree
+        extends AbstractList<Stake>
+        implements RandomAccess {
+
+    private final boolean		byStart;
+    private final StakeViews	views;
+    private Node				root		= null;
+    private Object				owner		= new Object();	// identifies the nodes we may modify in place
+    private Stake				removed;
+    private Node				removedFirst;
+
+    StakeTree(boolean byStart, StakeViews views) {
+        this.byStart	= byStart;
+        this.views		= views;
+    }
+
+    /**
+     *	Creates a list from stakes which are already sorted
+     *	in the order of this list. This takes O(n).
+     */
+    StakeTree(boolean byStart, StakeViews views, List<Stake> sorted) {
+        this(byStart, views);
+        final Stake[] a = sorted.toArray(new Stake[sorted.size()]);
+        root = build(a, 0, a.length);
+    }
+
+    /**
+     *	Creates a copy of another list, sharing its
+     *	stakes, views and nodes. This takes O(1).
+     */
+    StakeTree(StakeTree orig) {
+        this(orig.byStart, orig.views);
+        root		= orig.root;
+        orig.owner	= new Object();	// from now on, both lists copy shared nodes before modifying them
+    }
+
+    private Node build(Stake[] a, int from, int to) {
+        if (from >= to) return null;
+        final int mid = (from + to) >>> 1;
+        final Node n = createNode(a[mid]);
+        n.left  = build(a, from, mid);
+        n.right = build(a, mid + 1, to);
+        update(n);
+        return n;
+    }
+
+    // a stake that is a shifted view of another stake becomes
+    // the original stake plus offset, so the offset may later be undone
+    private Node createNode(Stake stake) {
+        final StakeViews.Origin origin = views.getOrigin(stake);
+        if (origin == null) {
+            return new Node(stake, 0L, byStart, owner);
+        } else {
+            return new Node(origin.stake, origin.offset, byStart, owner);
+        }
+    }
+
+    private Stake view(Node n, long acc) {
+        return views.get(n.stake, n.offset + acc);
+    }
+
+    public int size() {
+        return size(root);
+    }
+
+    public void clear() {
+        root = null;
+        modCount++;
+    }
+
+    public Stake get(int idx) {
+        if ((idx < 0) || (idx >= size(root))) throw new IndexOutOfBoundsException(String.valueOf(idx));
+
+        Node n = root;
+        long acc = 0L;
+        int ls;
+        while (true) {
+            ls = size(n.left);
+            if (idx < ls) {
+                acc += n.lazy;
+                n = n.left;
+            } else if (idx > ls) {
+                idx -= ls + 1;
+                acc += n.lazy;
+                n = n.right;
+            } else {
+                return view(n, acc);
+            }
+        }
+    }
+
+    /**
+     *	Returns the sort position (start or stop) of the stake
+     *	at a given index, without creating a shifted stake.
+     */
+    public long getKey(int idx) {
+        if ((idx < 0) || (idx >= size(root))) throw new IndexOutOfBoundsException(String.valueOf(idx));
+
+        Node n = root;
+        long acc = 0L;
+        int ls;
+        while (true) {
+            ls = size(n.left);
+            if (idx < ls) {
+                acc += n.lazy;
+                n = n.left;
+            } else if (idx > ls) {
+                idx -= ls + 1;
+                acc += n.lazy;
+                n = n.right;
+            } else {
+                return n.key + acc;
+            }
+        }
+    }
+
+    public void add(int idx, Stake stake) {
+        if ((idx < 0) || (idx > size(root))) throw new IndexOutOfBoundsException(String.valueOf(idx));
+
+        root = insert(root, idx, createNode(stake));
+        modCount++;
+    }
+
+    public Stake remove(int idx) {
+        if ((idx < 0) || (idx >= size(root))) throw new IndexOutOfBoundsException(String.valueOf(idx));
+
+        root = delete(root, idx);
+        modCount++;
+        final Stake result = removed;
+        removed = null;
+        return result;
+    }
+
+    /**
+     *	Moves all stakes from a given index to the end of the list
+     *	in time. The caller must make sure that this does not
+     *	violate the sort order. This takes O(log n).
+     */
+    public void shiftTail(int idx, long delta) {
+        if ((idx < 0) || (idx > size(root))) throw new IndexOutOfBoundsException(String.valueOf(idx));
+
+        if (delta != 0L) {
+            root = shiftFrom(root, idx, delta);
+            modCount++;
+        }
+    }
+
+    /**
+     *	Returns the maximum stop (if sorted by start) resp. the minimum
+     *	start (if sorted by stop) of the stakes from a given index to
+     *	the end of the list. For an empty range, <code>Long.MIN_VALUE</code>
+     *	resp. <code>Long.MAX_VALUE</code> is returned.
+     */
+    public long getTailBound(int idx) {
+        Node n = root;
+        long acc = 0L;
+        long res = byStart ? Long.MIN_VALUE : Long.MAX_VALUE;
+        int ls;
+        while (n != null) {
+            ls = size(n.left);
+            if (idx <= ls) {
+                // the node and its right sub tree are included
+                res = combine(res, n.other + acc);
+                if (n.right != null) res = combine(res, n.right.aug + acc + n.lazy);
+                acc += n.lazy;
+                n = n.left;
+            } else {
+                idx -= ls + 1;
+                acc += n.lazy;
+                n = n.right;
+            }
+        }
+        return res;
+    }
+
+    /**
+     *	Returns the maximum stop (if sorted by start) resp. the minimum
+     *	start (if sorted by stop) of the stakes before a given index.
+     *	For an empty range, <code>Long.MIN_VALUE</code>
+     *	resp. <code>Long.MAX_VALUE</code> is returned.
+     */
+    public long getHeadBound(int idx) {
+        Node n = root;
+        long acc = 0L;
+        long res = byStart ? Long.MIN_VALUE : Long.MAX_VALUE;
+        int ls;
+        while (n != null) {
+            ls = size(n.left);
+            if (idx > ls) {
+                // the node and its left sub tree are included
+                res = combine(res, n.other + acc);
+                if (n.left != null) res = combine(res, n.left.aug + acc + n.lazy);
+                idx -= ls + 1;
+                acc += n.lazy;
+                n = n.right;
+            } else {
+                acc += n.lazy;
+                n = n.left;
+            }
+        }
+        return res;
+    }
+
+    private long combine(long a, long b) {
+        return byStart ? Math.max(a, b) : Math.min(a, b);
+    }
+
+    /**
+     *	Looks up a position, with the same return value convention
+     *	as <code>Collections.binarySearch</code>. If several stakes
+     *	share the position, the index of the first one is returned.
+     */
+    public int search(long pos) {
+        final int idx = lowerBound(pos);
+        return ((idx < size(root)) && (getKey(idx) == pos)) ? idx : -(idx + 1);
+    }
+
+    /**
+     *	Returns the number of stakes whose sort position is
+     *	less than the given position.
+     */
+    public int lowerBound(long pos) {
+        Node n = root;
+        long acc = 0L;
+        int idx = 0;
+        while (n != null) {
+            if (n.key + acc < pos) {
+                idx += size(n.left) + 1;
+                acc += n.lazy;
+                n = n.right;
+            } else {
+                acc += n.lazy;
+                n = n.left;
+            }
+        }
+        return idx;
+    }
+
+    /**
+     *	Returns the number of stakes whose sort position is
+     *	less than or equal to the given position.
+     */
+    public int upperBound(long pos) {
+        Node n = root;
+        long acc = 0L;
+        int idx = 0;
+        while (n != null) {
+            if (n.key + acc <= pos) {
+                idx += size(n.left) + 1;
+                acc += n.lazy;
+                n = n.right;
+            } else {
+                acc += n.lazy;
+                n = n.left;
+            }
+        }
+        return idx;
+    }
+
+    /**
+     *	Collects all stakes that intersect or touch a span,
+     *	that is whose stop is greater than or equal to <code>start</code>
+     *	and whose start is less than or equal to <code>stop</code>.
+     *	The stakes are added in the order of this list.
+     */
+    public void getRange(long start, long stop, List<Stake> result) {
+        if (byStart) {
+            collectByStart(root, 0L, start, stop, result);
+        } else {
+            collectByStop(root, 0L, start, stop, result);
+        }
+    }
+
+    // keys are starts, aug is the maximum stop
+    private void collectByStart(Node n, long acc, long start, long stop, List<Stake> result) {
+        while ((n != null) && (n.aug + acc >= start)) {
+            collectByStart(n.left, acc + n.lazy, start, stop, result);
+            if (n.key + acc > stop) return;
+            if (n.other + acc >= start) result.add(view(n, acc));
+            acc += n.lazy;
+            n = n.right;
+        }
+    }
+
+    // keys are stops, aug is the minimum start
+    private void collectByStop(Node n, long acc, long start, long stop, List<Stake> result) {
+        while ((n != null) && (n.aug + acc <= stop)) {
+            if (n.key + acc >= start) {
+                collectByStop(n.left, acc + n.lazy, start, stop, result);
+                if (n.other + acc <= stop) result.add(view(n, acc));
+            }
+            acc += n.lazy;
+            n = n.right;
+        }
+    }
+
+    public Iterator<Stake> iterator() {
+        return iterator(0);
+    }
+
+    /**
+     *	Returns an iterator that begins at a given index. Unlike
+     *	repeated calls to <code>get</code>, advancing the iterator
+     *	takes amortized constant time.
+     */
+    public Iterator<Stake> iterator(int idx) {
+        if ((idx < 0) || (idx > size(root))) throw new IndexOutOfBoundsException(String.valueOf(idx));
+        return new Iter(idx);
+    }
+
+    // ---------------- tree ----------------
+
+    private static int size(Node n) {
+        return n == null ? 0 : n.size;
+    }
+
+    private static int height(Node n) {
+        return n == null ? 0 : n.height;
+    }
+
+    private void update(Node n) {
+        final Node l = n.left;
+        final Node r = n.right;
+        long aug = n.other;
+
+        // children's values are relative to n's pending shift
+        n.size   = size(l) + size(r) + 1;
+        n.height = Math.max(height(l), height(r)) + 1;
+        if (byStart) {
+            if ((l != null) && (l.aug + n.lazy > aug)) aug = l.aug + n.lazy;
+            if ((r != null) && (r.aug + n.lazy > aug)) aug = r.aug + n.lazy;
+        } else {
+            if ((l != null) && (l.aug + n.lazy < aug)) aug = l.aug + n.lazy;
+            if ((r != null) && (r.aug + n.lazy < aug)) aug = r.aug + n.lazy;
+        }
+        n.aug = aug;
+    }
+
+    // returns the node itself if we own it, otherwise a copy that we own
+    private Node own(Node n) {
+        return (n.owner == owner) ? n : new Node(n, owner);
+    }
+
+    // moves a node's pending shift to its children.
+    // the node must be owned
+    private void push(Node n) {
+        if (n.lazy != 0L) {
+            n.left	= shiftNode(n.left , n.lazy);
+            n.right	= shiftNode(n.right, n.lazy);
+            n.lazy	= 0L;
+        }
+    }
+
+    private Node shiftNode(Node n, long delta) {
+        if (n == null) return null;
+        n = own(n);
+        n.key		+= delta;
+        n.other		+= delta;
+        n.offset	+= delta;
+        n.aug		+= delta;
+        n.lazy		+= delta;
+        return n;
+    }
+
+    private Node shiftFrom(Node n, int idx, long delta) {
+        if (n == null) return null;
+
+        n = own(n);
+        push(n);
+        final int ls = size(n.left);
+        if (idx <= ls) {
+            n.right		= shiftNode(n.right, delta);
+            n.key		+= delta;
+            n.other		+= delta;
+            n.offset	+= delta;
+            n.left		= shiftFrom(n.left, idx, delta);
+        } else {
+            n.right		= shiftFrom(n.right, idx - ls - 1, delta);
+        }
+        update(n);
+        return n;
+    }
+
+    private Node rotateRight(Node n) {
+        n = own(n);
+        push(n);
+        final Node l = own(n.left);
+        push(l);
+        n.left  = l.right;
+        l.right = n;
+        update(n);
+        update(l);
+        return l;
+    }
+
+    private Node rotateLeft(Node n) {
+        n = own(n);
+        push(n);
+        final Node r = own(n.right);
+        push(r);
+        n.right = r.left;
+        r.left  = n;
+        update(n);
+        update(r);
+        return r;
+    }
+
+    // the node must be owned
+    private Node balance(Node n) {
+        update(n);
+        final int bal = height(n.left) - height(n.right);
+        if (bal > 1) {
+            push(n);
+            if (height(n.left.left) < height(n.left.right)) n.left = rotateLeft(n.left);
+            return rotateRight(n);
+        } else if (bal < -1) {
+            push(n);
+            if (height(n.right.right) < height(n.right.left)) n.right = rotateRight(n.right);
+            return rotateLeft(n);
+        }
+        return n;
+    }
+
+    private Node insert(Node n, int idx, Node x) {
+        if (n == null) return x;
+
+        n = own(n);
+        push(n);
+        final int ls = size(n.left);
+        if (idx <= ls) {
+            n.left  = insert(n.left, idx, x);
+        } else {
+            n.right = insert(n.right, idx - ls - 1, x);
+        }
+        return balance(n);
+    }
+
+    // stores the removed stake in the 'removed' field
+    private Node delete(Node n, int idx) {
+        n = own(n);
+        push(n);
+        final int ls = size(n.left);
+        if (idx < ls) {
+            n.left  = delete(n.left, idx);
+        } else if (idx > ls) {
+            n.right = delete(n.right, idx - ls - 1);
+        } else {
+            removed = view(n, 0L);
+            if (n.left  == null) return n.right;
+            if (n.right == null) return n.left;
+            final Node right	= deleteFirst(n.right);
+            final Node succ		= removedFirst;
+            removedFirst		= null;
+            succ.right			= right;
+            succ.left			= n.left;
+            return balance(succ);
+        }
+        return balance(n);
+    }
+
+    // stores the detached node in the 'removedFirst' field
+    private Node deleteFirst(Node n) {
+        n = own(n);
+        push(n);
+        if (n.left == null) {
+            removedFirst = n;
+            return n.right;
+        }
+        n.left = deleteFirst(n.left);
+        return balance(n);
+    }
+
+    private static final class Node {
+        final Stake	stake;	// as originally added, not shifted
+        long		offset;	// shift of this node's stake
+        long		key;	// start or stop, depending on the sort order
+        long		other;	// stop or start, respectively
+        long		aug;	// maximum stop or minimum start in the sub tree
+        long		lazy;	// shift not yet applied to the children
+        Node		left, right;
+        int			size, height;
+        final Object owner;
+
+        Node(Stake stake, long offset, boolean byStart, Object owner) {
+            this.stake	= stake;
+            this.owner	= owner;
+            this.offset	= offset;
+            key			= (byStart ? stake.getSpan().start : stake.getSpan().stop ) + offset;
+            other		= (byStart ? stake.getSpan().stop  : stake.getSpan().start) + offset;
+            aug			= other;
+            size		= 1;
+            height		= 1;
+        }
+
+        Node(Node orig, Object owner) {
+            this.owner	= owner;
+            stake		= orig.stake;
+            offset		= orig.offset;
+            key			= orig.key;
+            other		= orig.other;
+            aug			= orig.aug;
+            lazy		= orig.lazy;
+            left		= orig.left;
+            right		= orig.right;
+            size		= orig.size;
+            height		= orig.height;
+        }
+    }
+
+    // in-order traversal with an explicit stack of the nodes still to visit,
+    // along with the pending shifts of their ancestors
+    private final class Iter
+            implements Iterator<Stake> {
+
+        private final Node[]	stack			= new Node[height(root) + 1];
+        private final long[]	stackAcc		= new long[stack.length];
+        private int				sp				= 0;
+        private final int		expectedMod		= modCount;
+
+        Iter(int idx) {
+            Node n = root;
+            long acc = 0L;
+            int ls;
+            while (n != null) {
+                ls = size(n.left);
+                if (idx <= ls) {
+                    stackAcc[sp]	= acc;
+                    stack[sp++]		= n;
+                    acc += n.lazy;
+                    n = n.left;
+                } else {
+                    idx -= ls + 1;
+                    acc += n.lazy;
+                    n = n.right;
+                }
+            }
+        }
+
+        public boolean hasNext() {
+            return sp > 0;
+        }
+
+        public Stake next() {
+            if (modCount != expectedMod) throw new ConcurrentModificationException();
+            if (sp == 0) throw new NoSuchElementException();
+
+            final Node result		= stack[--sp];
+            final long resultAcc	= stackAcc[sp];
+            long acc = resultAcc + result.lazy;
+            Node n = result.right;
+            while (n != null) {
+                stackAcc[sp]	= acc;
+                stack[sp++]		= n;
+                acc += n.lazy;
+                n = n.left;
+            }
+            return view(result, resultAcc);
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
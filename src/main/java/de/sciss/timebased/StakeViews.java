@@ -0,0 +1,130 @@
+/*
+ *  StakeViews.java
+ *  de.sciss.timebased package
+ *
+ *  Copyright (c) 2004-2020 Hanns Holger Rutz. All rights reserved.
+ *
+ *  This software is published under the GNU Affero General Public License v3+
+ *
+ *
+ *  For further information, please contact Hanns Holger Rutz at
+ *  contact@sciss.de
+ */
+
+package de.sciss.timebased;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ *	Creates and remembers the shifted copies of stakes which
+ *	<code>StakeTree</code> hands out for lazily shifted nodes.
+ *	For a given stake and offset, the same copy is returned each time,
+ *	no matter which tree (the trail's lists or their edit copies)
+ *	asks for it. This is important because undoable edits identify
+ *	stakes by object equality. Conversely, a copy that is added to
+ *	a tree again is traced back to its original stake and offset.
+ *	<p>
+ *	Copies are only weakly referenced: a copy that nobody holds on to
+ *	any more may be garbage collected and is simply created anew when
+ *	it is asked for the next time.
+ */
+class StakeViews {
+
+    private final Trail							trail;
+    private final Map<Origin, ViewRef>			views	= new HashMap<Origin, ViewRef>();
+    private final Map<Stake, Origin>			origins	= new WeakHashMap<Stake, Origin>();
+    private final ReferenceQueue<Stake>			queue	= new ReferenceQueue<Stake>();
+
+    StakeViews(Trail trail) {
+        this.trail = trail;
+    }
+
+    /**
+     *	Returns a stake shifted by an offset.
+     *	For offset zero, this is the stake itself.
+     */
+    synchronized Stake get(Stake stake, long offset) {
+        if (offset == 0L) return stake;
+
+        expunge();
+        final Origin origin = new Origin(stake, offset);
+        final ViewRef ref = views.get(origin);
+        Stake view = (ref == null) ? null : ref.get();
+        if (view == null) {
+            view = stake.shiftVirtual(offset);
+            view.setTrail(trail);
+            views.put(origin, new ViewRef(view, origin, queue));
+            origins.put(view, origin);
+        }
+        return view;
+    }
+
+    /**
+     *	Returns the original stake and offset from which a
+     *	shifted copy was made, or <code>null</code> if the
+     *	stake is not such a copy.
+     */
+    synchronized Origin getOrigin(Stake view) {
+        return origins.get(view);
+    }
+
+    /**
+     *	Forgets a shifted copy, to be called when it is disposed.
+     */
+    synchronized void forget(Stake view) {
+        final Origin origin = origins.remove(view);
+        if (origin != null) {
+            final ViewRef ref = views.get(origin);
+            if ((ref != null) && (ref.get() == view)) views.remove(origin);
+        }
+    }
+
+    synchronized void clear() {
+        views.clear();
+        origins.clear();
+    }
+
+    private void expunge() {
+        Reference<? extends Stake> r;
+        while ((r = queue.poll()) != null) {
+            final Origin origin = ((ViewRef) r).origin;
+            if (views.get(origin) == r) views.remove(origin);
+        }
+    }
+
+    private static final class ViewRef
+            extends WeakReference<Stake> {
+
+        final Origin origin;
+
+        ViewRef(Stake view, Origin origin, ReferenceQueue<Stake> queue) {
+            super(view, queue);
+            this.origin = origin;
+        }
+    }
+
+    static final class Origin {
+        final Stake	stake;
+        final long	offset;
+
+        Origin(Stake stake, long offset) {
+            this.stake	= stake;
+            this.offset	= offset;
+        }
+
+        public int hashCode() {
+            return System.identityHashCode(stake) ^ (int) (offset ^ (offset >>> 32));
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof Origin)) return false;
+            final Origin that = (Origin) o;
+            return (that.stake == this.stake) && (that.offset == this.offset);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ *  DecimatedSonaTrailTest.java
+ *  Eisenkraut
+ *
+ *  Copyright (c) 2004-2020 Hanns Holger Rutz. All rights reserved.
+ *
+ *  This software is published under the GNU Affero General Public License v3+
+ *
+ *
+ *  For further information, please contact Hanns Holger Rutz at
+ *  contact@sciss.de
+ */
+
+package de.sciss.eisenkraut.io;
+
+import java.io.File;
+import java.io.IOException;
+
+import de.sciss.io.AudioFile;
+import de.sciss.io.AudioFileDescr;
+import de.sciss.io.Span;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ *	Checks that the levels written by <code>DecimatedSonaTrail</code>'s
+ *	<code>LevelWriter</code> fit the stake allocated for them, which is
+ *	sized with the floor of the stake length per level.
+ */
+public class DecimatedSonaTrailTest {
+
+    private static final int	STEP_SHIFT		= 8;		// 256 frames per hop
+    private static final int	FFT_HOPS		= 16;		// 4096 frames fft
+    private static final int[]	LEVEL_SHIFTS	= { 0, 4, 8 };
+    private static final int	NUM_CHANNELS	= 2;
+    private static final int	CHUNK			= 64;
+
+    @Test
+    public void partialLevels() throws IOException {
+        // hop counts that are not multiples of 256, with remainders on either side of 16
+        checkLevels(256 * 3 + 100);
+        checkLevels(256 * 2 + 16);
+        checkLevels(256 + 15);
+        checkLevels(256 * 4 + 255);
+        checkLevels(256 * 4);
+    }
+
+    private static void checkLevels(int numHops) throws IOException {
+        final DecimationHelp[]	helps		= new DecimationHelp[LEVEL_SHIFTS.length];
+        final AudioFile[]		fs			= new AudioFile[LEVEL_SHIFTS.length];
+        final Span[]			fileSpans	= new Span[LEVEL_SHIFTS.length];
+        final Span[]			biasedSpans	= new Span[LEVEL_SHIFTS.length];
+        final Span				extSpan		= new Span(0L, (long) numHops << STEP_SHIFT);
+        // as in addAllDepAsync, the first fft is centred on the first hop
+        final int				numFrames	= numHops - FFT_HOPS + 1;
+
+        try {
+            for (int i = 0; i < LEVEL_SHIFTS.length; i++) {
+                helps[i]		= new DecimationHelp(44100.0, STEP_SHIFT + LEVEL_SHIFTS[i]);
+                fs[i]			= createFile();
+                // as in allocAsync
+                fileSpans[i]	= new Span(0L, extSpan.getLength() >> helps[i].shift);
+                biasedSpans[i]	= extSpan;
+                fs[i].setFrameNum(fileSpans[i].stop);
+            }
+
+            final DecimatedStake	das		= new DecimatedStake(extSpan, fs,
+                                                fileSpans, biasedSpans, helps);
+            final DecimatedSonaTrail.LevelWriter levels	= new DecimatedSonaTrail.LevelWriter(helps, NUM_CHANNELS, CHUNK);
+            final float[][]			frames	= new float[NUM_CHANNELS][CHUNK];
+            int						len;
+
+            for (int i = 0; i < numFrames; i += len) {
+                len = Math.min(CHUNK, numFrames - i);
+                for (int ch = 0; ch < NUM_CHANNELS; ch++) {
+                    for (int j = 0; j < len; j++) {
+                        frames[ch][j] = i + j;
+                    }
+                }
+                levels.write(das, frames, len);
+            }
+            levels.flush(das);
+
+            long expected = numFrames;
+            for (int i = 0; i < LEVEL_SHIFTS.length; i++) {
+                if (i > 0) expected = (expected + (1 << (LEVEL_SHIFTS[i] - LEVEL_SHIFTS[i - 1])) - 1) >>
+                        (LEVEL_SHIFTS[i] - LEVEL_SHIFTS[i - 1]);
+                final long written = fileSpans[i].getLength() - das.getFramesLeft(i);
+                assertEquals(numHops + " hops, level " + i, Math.min(expected, fileSpans[i].getLength()), written);
+            }
+        } finally {
+            for (AudioFile f : fs) {
+                if (f != null) {
+                    SampleReader.release(f);
+                    f.cleanUp();
+                    if (!f.getFile().delete()) f.getFile().deleteOnExit();
+                }
+            }
+        }
+    }
+
+    private static AudioFile createFile() throws IOException {
+        final AudioFileDescr afd = new AudioFileDescr();
+
+        afd.type			= AudioFileDescr.TYPE_AIFF;
+        afd.channels		= NUM_CHANNELS;
+        afd.rate			= 44100.0;
+        afd.bitsPerSample	= 32;
+        afd.sampleFormat	= AudioFileDescr.FORMAT_FLOAT;
+        afd.file			= File.createTempFile("eisk", ".aif");
+
+        return AudioFile.openAsWrite(afd);
+    }
+}
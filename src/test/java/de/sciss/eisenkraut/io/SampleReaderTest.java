@@ -0,0 +1,169 @@
+/*
+ *  SampleReaderTest.java
+ *  Eisenkraut
+ *
+ *  Copyright (c) 2004-2020 Hanns Holger Rutz. All rights reserved.
+ *
+ *  This software is published under the GNU Affero General Public License v3+
+ *
+ *
+ *  For further information, please contact Hanns Holger Rutz at
+ *  contact@sciss.de
+ */
+
+package de.sciss.eisenkraut.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import de.sciss.io.AudioFile;
+import de.sciss.io.AudioFileDescr;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ *	Checks that the direct read path of <code>SampleReader</code>
+ *	decodes integer files bit for bit like <code>AudioFile</code>, and
+ *	that <code>SampleDataLayout</code> encodes them byte for byte alike.
+ */
+public class SampleReaderTest {
+
+    private static final int NUM_FRAMES		= 10000;
+    private static final int NUM_CHANNELS	= 3;
+
+    @Test
+    public void decodeInt16() throws IOException {
+        checkDecode(AudioFileDescr.TYPE_AIFF, 16);
+        checkDecode(AudioFileDescr.TYPE_WAVE, 16);
+    }
+
+    @Test
+    public void decodeInt24() throws IOException {
+        checkDecode(AudioFileDescr.TYPE_AIFF, 24);
+        checkDecode(AudioFileDescr.TYPE_WAVE, 24);
+    }
+
+    @Test
+    public void decodeInt32() throws IOException {
+        checkDecode(AudioFileDescr.TYPE_AIFF, 32);
+        checkDecode(AudioFileDescr.TYPE_WAVE, 32);
+    }
+
+    @Test
+    public void encodeInt() throws IOException {
+        for (int bits = 16; bits <= 32; bits += 8) {
+            checkEncode(AudioFileDescr.TYPE_AIFF, bits);
+            checkEncode(AudioFileDescr.TYPE_WAVE, bits);
+        }
+    }
+
+    private static void checkEncode(int type, int bits) throws IOException {
+        final File f = createFile(type, bits);
+        try {
+            final AudioFile af = AudioFile.openAsRead(f);
+            try {
+                final SampleReader		r		= SampleReader.get(af);
+                assertNotNull("no direct reader for " + bits + " bit", r);
+                final SampleDataLayout	layout	= r.getLayout();
+                final ByteBuffer		expect	= ByteBuffer.allocate(NUM_FRAMES * layout.frameSize);
+                final ByteBuffer		actual	= ByteBuffer.allocate(NUM_FRAMES * layout.frameSize).order(layout.byteOrder);
+                final RandomAccessFile	raf		= new RandomAccessFile(f, "r");
+                try {
+                    raf.seek(layout.dataOffset);
+                    raf.readFully(expect.array());
+                } finally {
+                    raf.close();
+                }
+                layout.encode(createData(), 0, actual, 0, NUM_FRAMES);
+                for (int i = 0; i < expect.capacity(); i++) {
+                    assertEquals("encode " + bits + " bit, byte " + i, expect.get(i), actual.get(i));
+                }
+            } finally {
+                SampleReader.release(af);
+                af.close();
+            }
+        } finally {
+            if (!f.delete()) f.deleteOnExit();
+        }
+    }
+
+    private static void checkDecode(int type, int bits) throws IOException {
+        final File f = createFile(type, bits);
+        try {
+            final AudioFile		af		= AudioFile.openAsRead(f);
+            final float[][]		expect	= new float[NUM_CHANNELS][NUM_FRAMES];
+            final float[][]		actual	= new float[NUM_CHANNELS][NUM_FRAMES];
+            final boolean		wasMapped = SampleReader.isMapped();
+            try {
+                af.readFrames(expect, 0, NUM_FRAMES);
+                final SampleReader r = SampleReader.get(af);
+                assertNotNull("no direct reader for " + bits + " bit", r);
+
+                SampleReader.setMapped(false);
+                assertTrue(r.readFrames(0L, actual, 0, NUM_FRAMES));
+                assertIdentical("positional " + bits + " bit", expect, actual);
+
+                SampleReader.setMapped(true);
+                assertTrue(r.readFrames(0L, actual, 0, NUM_FRAMES));
+                assertIdentical("mapped " + bits + " bit", expect, actual);
+            } finally {
+                SampleReader.setMapped(wasMapped);
+                SampleReader.release(af);
+                af.close();
+            }
+        } finally {
+            if (!f.delete()) f.deleteOnExit();
+        }
+    }
+
+    // writes full scale extremes, silence, tiny values and noise
+    static File createFile(int type, int bits) throws IOException {
+        final File				f		= File.createTempFile("eisk", (type == AudioFileDescr.TYPE_AIFF) ? ".aif" : ".wav");
+        final AudioFileDescr	afd		= new AudioFileDescr();
+        final float[][]			data	= createData();
+
+        afd.type			= type;
+        afd.channels		= NUM_CHANNELS;
+        afd.rate			= 44100.0;
+        afd.bitsPerSample	= bits;
+        afd.sampleFormat	= AudioFileDescr.FORMAT_INT;
+        afd.file			= f;
+
+        final AudioFile af = AudioFile.openAsWrite(afd);
+        try {
+            af.writeFrames(data, 0, NUM_FRAMES);
+        } finally {
+            af.close();
+        }
+        return f;
+    }
+
+    static float[][] createData() {
+        final float[][]	data	= new float[NUM_CHANNELS][NUM_FRAMES];
+        final Random	rnd		= new Random(0L);
+        final float[]	fixed	= { 1.0f, -1.0f, 0.0f, 1.0e-9f, -1.0e-9f, 0.5f, -0.5f, 0.99999994f, -0.99999994f };
+
+        for (int ch = 0; ch < NUM_CHANNELS; ch++) {
+            System.arraycopy(fixed, 0, data[ch], 0, fixed.length);
+            for (int i = fixed.length; i < NUM_FRAMES; i++) {
+                data[ch][i] = rnd.nextFloat() * 2 - 1;
+            }
+        }
+        return data;
+    }
+
+    static void assertIdentical(String msg, float[][] expect, float[][] actual) {
+        for (int ch = 0; ch < expect.length; ch++) {
+            for (int i = 0; i < expect[ch].length; i++) {
+                assertEquals(msg + ", channel " + ch + ", frame " + i,
+                        Float.floatToRawIntBits(expect[ch][i]), Float.floatToRawIntBits(actual[ch][i]));
+            }
+        }
+    }
+}